@@ -0,0 +1,239 @@
+package amie.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class ChunkedLoader
+ *
+ * Parallel loader for TSV files. Each file is split into chunks of about CHUNK_SIZE
+ * bytes, whose boundaries are moved to the next end of line, and the chunks are parsed
+ * by a pool of threads. Thus a single big file is loaded with all the cores. The facts
+ * of each chunk are passed to a sink created for that chunk, so that sinks can
+ * accumulate facts without synchronization and merge them when the chunk is done.
+ *
+ * Lines are parsed as in KB.load(File, String): a trailing dot is ignored and lines with
+ * 3 columns (subject, relation, object) or 4 columns (id, subject, relation, object)
+ * are facts.
+ *
+ * @author lgalarra
+ *
+ */
+public class ChunkedLoader {
+
+	/** Approximate size of the chunks in bytes **/
+	public static final int CHUNK_SIZE = 16 << 20;
+
+	/**
+	 * A range of bytes of a file that starts at the beginning of a line and ends
+	 * after an end of line or at the end of the file.
+	 */
+	static class Chunk {
+		final File file;
+
+		final long start;
+
+		final long end;
+
+		Chunk(File file, long start, long end) {
+			this.file = file;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Receives the facts of a chunk. A sink is used by a single thread.
+	 */
+	public static abstract class FactSink {
+		/**
+		 * It receives a fact of the chunk.
+		 */
+		protected abstract void add(ByteString subject, ByteString relation, ByteString object);
+
+		/**
+		 * It is called after the last fact of the chunk.
+		 */
+		protected void close() {}
+	}
+
+	/**
+	 * Creates the sink of each chunk. It is called by the loading threads.
+	 */
+	public static abstract class SinkFactory {
+		protected abstract FactSink newSink();
+	}
+
+	/**
+	 * It loads the files in parallel with one thread per available processor.
+	 * @param files Files or directories
+	 * @param factory
+	 * @throws IOException
+	 */
+	public static void load(List<File> files, SinkFactory factory) throws IOException {
+		load(files, factory, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * It loads the files in parallel.
+	 * @param files Files or directories
+	 * @param factory
+	 * @param nThreads
+	 * @throws IOException
+	 */
+	public static void load(List<File> files, SinkFactory factory, int nThreads)
+			throws IOException {
+		load(files, factory, nThreads, CHUNK_SIZE);
+	}
+
+	/**
+	 * It loads the files in parallel with chunks of about chunkSize bytes.
+	 * @param files Files or directories
+	 * @param factory
+	 * @param nThreads
+	 * @param chunkSize
+	 * @throws IOException
+	 */
+	public static void load(List<File> files, final SinkFactory factory, int nThreads, 
+			long chunkSize) throws IOException {
+		List<Chunk> chunks = split(files, chunkSize);
+		if (chunks.isEmpty())
+			return;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(nThreads, chunks.size())));
+		try {
+			List<Future<?>> results = new ArrayList<>(chunks.size());
+			for (final Chunk chunk : chunks) {
+				results.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							FactSink sink = factory.newSink();
+							parse(chunk, sink);
+							sink.close();
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}));
+			}
+
+			for (Future<?> result : results) {
+				try {
+					result.get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException && cause.getCause() instanceof IOException)
+						throw (IOException) cause.getCause();
+					throw new RuntimeException(cause);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while loading", e);
+				}
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * It splits the files into chunks that start at the beginning of a line.
+	 * Directories are replaced by the files they contain.
+	 * @param files
+	 * @param chunkSize
+	 * @return
+	 * @throws IOException
+	 */
+	static List<Chunk> split(List<File> files, long chunkSize) throws IOException {
+		List<Chunk> chunks = new ArrayList<>();
+		for (File file : files) {
+			if (file.isDirectory()) {
+				File[] children = file.listFiles();
+				if (children != null) {
+					List<File> childList = new ArrayList<>();
+					for (File child : children)
+						childList.add(child);
+					chunks.addAll(split(childList, chunkSize));
+				}
+				continue;
+			}
+
+			try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+				long length = in.length();
+				long start = 0;
+				while (start < length) {
+					long end = start + chunkSize >= length ? length : nextLine(in, start + chunkSize);
+					chunks.add(new Chunk(file, start, end));
+					start = end;
+				}
+			}
+		}
+		return (chunks);
+	}
+
+	/**
+	 * It returns the position after the first end of line at or after the given
+	 * position, or the length of the file if there is none.
+	 */
+	private static long nextLine(RandomAccessFile in, long position) throws IOException {
+		byte[] buffer = new byte[8192];
+		in.seek(position);
+		int read;
+		while ((read = in.read(buffer)) > 0) {
+			for (int i = 0; i < read; ++i) {
+				if (buffer[i] == '\n')
+					return (position + i + 1);
+			}
+			position += read;
+		}
+		return (position);
+	}
+
+	/**
+	 * It parses the lines of a chunk and passes the facts to the sink.
+	 * @param chunk
+	 * @param sink
+	 * @throws IOException
+	 */
+	static void parse(Chunk chunk, FactSink sink) throws IOException {
+		byte[] data = new byte[(int) (chunk.end - chunk.start)];
+		try (RandomAccessFile in = new RandomAccessFile(chunk.file, "r")) {
+			in.seek(chunk.start);
+			in.readFully(data);
+		}
+
+		int lineStart = 0;
+		while (lineStart < data.length) {
+			int lineEnd = lineStart;
+			while (lineEnd < data.length && data[lineEnd] != '\n')
+				++lineEnd;
+			int next = lineEnd + 1;
+			if (lineEnd > lineStart && data[lineEnd - 1] == '\r')
+				--lineEnd;
+			if (lineEnd > lineStart && data[lineEnd - 1] == '.')
+				--lineEnd;
+			if (lineEnd > lineStart) {
+				String[] split = new String(data, lineStart, lineEnd - lineStart,
+						StandardCharsets.UTF_8).split("\t");
+				if (split.length == 3) {
+					sink.add(KB.compress(split[0].trim()), KB.compress(split[1].trim()),
+							KB.compress(split[2].trim()));
+				} else if (split.length == 4) {
+					sink.add(KB.compress(split[1].trim()), KB.compress(split[2].trim()),
+							KB.compress(split[3].trim()));
+				}
+			}
+			lineStart = next;
+		}
+	}
+}
@@ -0,0 +1,1584 @@
+package amie.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class EncodedKB
+ *
+ * An in-memory KB that maps subjects, relations and objects to integer identifiers
+ * when facts are added, and stores the six permutations of the facts as primitive
+ * integer indexes (see {@link IntIndex}). This requires much less memory than the
+ * nested maps of strings used by {@link KB}.
+ *
+ * The class offers the same query interface as KB. Conjunctive queries on regular
+ * relations and the predicates equals and differentFrom are evaluated directly on the
+ * integer indexes; strings are only looked up for the bindings that are returned.
+ * Queries with other special relations (exists, ~exists, hasNumberOfValues*) are
+ * answered by the algorithms of the superclass, which see the integer indexes through
+ * read-only decoding views. The string indexes inherited from KB remain empty; they
+ * are only used to identify the permutation requested by the superclass.
+ *
+ * Mining does not modify the KB, so load() builds the indexes directly as sorted
+ * arrays (see {@link IntIndex#freeze()}). All lookups run on the frozen indexes: queries
+ * freeze the KB if facts were added since the last freeze, and adding or deleting facts
+ * brings the indexes back to the updatable layout. The indexes of the permutations that
+ * are not declared with setPermutations() are built from spo the first time they are used.
+ *
+ * @author lgalarra
+ *
+ */
+public class EncodedKB extends KB {
+
+	// ---------------------------------------------------------------------------
+	// Indexes
+	// ---------------------------------------------------------------------------
+
+	/** String <-> identifier mapping **/
+	protected final KBDictionary dictionary = new KBDictionary();
+
+	/** Index subject -> relation -> object **/
+	protected final IntIndex spo = new IntIndex();
+
+	/** Index relation -> object -> subject **/
+	protected final IntIndex ros = new IntIndex();
+
+	/** Index object -> subject -> relation **/
+	protected final IntIndex osr = new IntIndex();
+
+	/** Index relation -> subject -> object **/
+	protected final IntIndex rso = new IntIndex();
+
+	/** Index object -> relation -> subject **/
+	protected final IntIndex ors = new IntIndex();
+
+	/** Index subject -> object -> relation **/
+	protected final IntIndex sor = new IntIndex();
+
+	/** The indexes in the order of {@link KB.Permutation} **/
+	private final IntIndex[] permutations = {spo, ros, osr, rso, ors, sor};
+
+	private static final Permutation[] PERMUTATIONS = Permutation.values();
+
+	/** Positions of the first, second and third level keys of each index of permutations **/
+	private static final int[][] ORDERS = {{0, 1, 2}, {1, 2, 0}, {2, 0, 1}, {1, 0, 2}, {2, 1, 0}, {0, 2, 1}};
+
+	/** TRUE if all the indexes are frozen **/
+	private volatile boolean frozen;
+
+	/**
+	 * Evaluation strategies for queries with several atoms.
+	 */
+	public enum JoinPolicy {
+		/** One atom at a time, starting with the most restrictive atom **/
+		NestedLoops,
+		/** One variable at a time, intersecting sorted ranges (see {@link LeapfrogJoin}) **/
+		Leapfrog,
+		/** Leapfrog for cyclic queries, nested loops otherwise **/
+		Adaptive
+	};
+
+	/** Strategy for the queries with several atoms **/
+	private volatile JoinPolicy joinPolicy = JoinPolicy.Adaptive;
+
+	// ---------------------------------------------------------------------------
+	// Loading
+	// ---------------------------------------------------------------------------
+
+	public EncodedKB() {}
+
+	/**
+	 * It builds the frozen indexes in bulk: the chunks of the files are parsed in
+	 * parallel into arrays of identifiers, which are then sorted into the six
+	 * permutations in parallel. The facts already in the KB are kept.
+	 */
+	@Override
+	protected void loadFacts(List<File> files) throws IOException {
+		freeze();
+		final List<int[]> facts = Collections.synchronizedList(new ArrayList<int[]>());
+		if (spo.size() > 0)
+			facts.add(spo.entries());
+		ChunkedLoader.load(files, new ChunkedLoader.SinkFactory() {
+			@Override
+			protected ChunkedLoader.FactSink newSink() {
+				return (new EncodingSink(facts));
+			}
+		}, Runtime.getRuntime().availableProcessors(), chunkSize);
+		build(facts);
+	}
+
+	/**
+	 * It replaces the built indexes with the given facts.
+	 * @param facts Arrays of facts, each one stored as 3 consecutive identifiers
+	 * (subject, relation, object).
+	 */
+	private void build(final List<int[]> facts) throws IOException {
+		final int nKeys = dictionary.size();
+		List<Permutation> materialized = new ArrayList<>(getPermutations());
+		ExecutorService executor = Executors.newFixedThreadPool(
+				Math.min(materialized.size(), Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (Permutation permutation : materialized) {
+				final IntIndex index = permutations[permutation.ordinal()];
+				final int[] order = ORDERS[permutation.ordinal()];
+				results.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						index.build(facts, order[0], order[1], order[2], nKeys);
+					}
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while building the indexes", e);
+		} finally {
+			executor.shutdownNow();
+		}
+		size = spo.values.length;
+		rebuildCounters();
+		// Bulk loads bypass add(), so the overlap tables cannot be maintained
+		if (overlapTablesBuilt)
+			buildOverlapTables();
+		invalidateQueryCache();
+	}
+
+	/**
+	 * It recomputes the number of facts per subject, relation and object from
+	 * the frozen index spo and registers the relations in the overlap tables.
+	 */
+	void rebuildCounters() {
+		count(spo, subjectSize);
+		int[] relations = new int[dictionary.size()];
+		int[] objects = new int[dictionary.size()];
+		for (int i = 0; i < spo.keys2.length; ++i)
+			relations[spo.keys2[i]] += spo.offsets2[i + 1] - spo.offsets2[i];
+		for (int object : spo.values)
+			++objects[object];
+		count(relations, relationSize);
+		count(objects, objectSize);
+		for (int id = 0; id < relations.length; ++id) {
+			if (relations[id] == 0)
+				continue;
+			ByteString relation = dictionary.decode(id);
+			if (!subject2subjectOverlap.containsKey(relation))
+				subject2subjectOverlap.put(relation, new IntHashMap<ByteString>());
+			if (!subject2objectOverlap.containsKey(relation))
+				subject2objectOverlap.put(relation, new IntHashMap<ByteString>());
+			if (!object2objectOverlap.containsKey(relation))
+				object2objectOverlap.put(relation, new IntHashMap<ByteString>());
+		}
+	}
+
+	@Override
+	protected void collectStatistics(KBStatistics catalog) {
+		ensureFrozen();
+		// The degrees of the subjects are read from spo, so that rso is not built
+		for (int key : spo.keys1) {
+			for (int i = spo.start(key); i < spo.end(key); ++i)
+				catalog.add(dictionary.decode(spo.keys2[i]), 0, spo.offsets2[i + 1] - spo.offsets2[i]);
+		}
+		collectStatistics(catalog, index(1, 2), 2);
+	}
+
+	/**
+	 * It registers in the catalog the number of third level values of each pair of
+	 * keys of an index whose first level is the relation.
+	 */
+	private void collectStatistics(KBStatistics catalog, IntIndex index, int position) {
+		for (int key : index.keys1) {
+			ByteString relation = dictionary.decode(key);
+			for (int i = index.start(key); i < index.end(key); ++i)
+				catalog.add(relation, position, index.offsets2[i + 1] - index.offsets2[i]);
+		}
+	}
+
+	/**
+	 * It sets the counter to the non-zero counts, indexed by identifier.
+	 */
+	private void count(int[] counts, IntHashMap<ByteString> counter) {
+		counter.clear();
+		for (int id = 0; id < counts.length; ++id) {
+			if (counts[id] > 0)
+				counter.put(dictionary.decode(id), counts[id]);
+		}
+	}
+
+	/**
+	 * It sets the counter to the number of facts of each first level key of the index.
+	 */
+	private void count(IntIndex index, IntHashMap<ByteString> counter) {
+		counter.clear();
+		for (int key : index.keys1)
+			counter.put(dictionary.decode(key),
+					index.offsets2[index.end(key)] - index.offsets2[index.start(key)]);
+	}
+
+	/**
+	 * Sink that encodes the facts of a chunk with a local dictionary and translates
+	 * them to the identifiers of the KB when the chunk is done. Thus the dictionary
+	 * of the KB is locked once per chunk.
+	 */
+	private class EncodingSink extends ChunkedLoader.FactSink {
+		private final List<int[]> output;
+
+		private final KBDictionary local = new KBDictionary();
+
+		private int[] facts = new int[3 * 1024];
+
+		private int n;
+
+		EncodingSink(List<int[]> output) {
+			this.output = output;
+		}
+
+		@Override
+		protected void add(ByteString subject, ByteString relation, ByteString object) {
+			if (n + 3 > facts.length)
+				facts = Arrays.copyOf(facts, 2 * facts.length);
+			facts[n++] = local.encode(subject);
+			facts[n++] = local.encode(relation);
+			facts[n++] = local.encode(object);
+		}
+
+		@Override
+		protected void close() {
+			int[] ids = new int[local.size()];
+			synchronized (dictionary) {
+				for (int i = 0; i < ids.length; ++i)
+					ids[i] = dictionary.encode(local.decode(i));
+			}
+			for (int i = 0; i < n; ++i)
+				facts[i] = ids[facts[i]];
+			output.add(Arrays.copyOf(facts, n));
+		}
+	}
+
+	@Override
+	public void loadSequential(List<File> files) throws IOException {
+		super.loadSequential(files);
+		freeze();
+	}
+
+	/**
+	 * It compacts the indexes into sorted arrays. Afterwards the KB can
+	 * be queried concurrently.
+	 */
+	public synchronized void freeze() {
+		if (frozen)
+			return;
+		for (IntIndex index : indexes())
+			index.freeze();
+		frozen = true;
+	}
+
+	/**
+	 * It brings the indexes back to the layout that supports updates.
+	 */
+	private synchronized void thaw() {
+		if (!frozen)
+			return;
+		for (IntIndex index : indexes())
+			index.thaw();
+		frozen = false;
+	}
+
+	/** TRUE if the indexes are frozen **/
+	public boolean isFrozen() {
+		return (frozen);
+	}
+
+	/**
+	 * It freezes the indexes if there were updates since the last freeze.
+	 * Lookups must call it before accessing the indexes.
+	 */
+	private void ensureFrozen() {
+		if (!frozen)
+			freeze();
+	}
+
+	/**
+	 * It sets the strategy to evaluate queries with several atoms.
+	 * @param joinPolicy
+	 */
+	public void setJoinPolicy(JoinPolicy joinPolicy) {
+		this.joinPolicy = joinPolicy;
+	}
+
+	public JoinPolicy getJoinPolicy() {
+		return (joinPolicy);
+	}
+
+	/** The indexes in the order spo, ros, osr, rso, ors, sor **/
+	IntIndex[] indexes() {
+		return (new IntIndex[] {spo, ros, osr, rso, ors, sor});
+	}
+
+	@Override
+	protected boolean add(ByteString subject, ByteString relation, ByteString object) {
+		if (frozen)
+			thaw();
+		int s = dictionary.encode(subject);
+		int r = dictionary.encode(relation);
+		int o = dictionary.encode(object);
+		if (!spo.add(s, r, o))
+			return (false);
+		for (int i = 1; i < permutations.length; ++i) {
+			if (isMaterialized(PERMUTATIONS[i]))
+				permutations[i].add(fact(ORDERS[i][0], s, r, o), fact(ORDERS[i][1], s, r, o),
+						fact(ORDERS[i][2], s, r, o));
+		}
+		updateCounters(subject, relation, object);
+		invalidateQueryCache();
+		return (true);
+	}
+
+	@Override
+	public boolean delete(ByteString subject, ByteString predicate, ByteString object) {
+		if (frozen)
+			thaw();
+		int s = dictionary.get(subject);
+		int r = dictionary.get(predicate);
+		int o = dictionary.get(object);
+		if (!spo.remove(s, r, o))
+			return (false);
+		for (int i = 1; i < permutations.length; ++i) {
+			if (isMaterialized(PERMUTATIONS[i]))
+				permutations[i].remove(fact(ORDERS[i][0], s, r, o), fact(ORDERS[i][1], s, r, o),
+						fact(ORDERS[i][2], s, r, o));
+		}
+		subjectSize.decrease(subject);
+		relationSize.decrease(predicate);
+		objectSize.decrease(object);
+		--size;
+		updateOverlaps(subject, predicate, object, -1);
+		invalidateQueryCache();
+		return (true);
+	}
+
+	/**
+	 * It returns the component of a fact at the given position.
+	 */
+	private static int fact(int position, int s, int r, int o) {
+		return (position == 0 ? s : position == 1 ? r : o);
+	}
+
+	@Override
+	protected void buildPermutation(Permutation permutation) {
+		ensureFrozen();
+		int[] order = ORDERS[permutation.ordinal()];
+		permutations[permutation.ordinal()].build(Collections.singletonList(spo.entries()),
+				order[0], order[1], order[2], dictionary.size());
+		setMaterialized(permutation, true);
+	}
+
+	@Override
+	protected void dropPermutation(Permutation permutation) {
+		setMaterialized(permutation, false);
+		permutations[permutation.ordinal()].build(Collections.<int[]>emptyList(), 0, 1, 2, 0);
+	}
+
+	/**
+	 * It returns the dictionary that maps the strings of the KB to identifiers.
+	 * @return
+	 */
+	public KBDictionary getDictionary() {
+		return (dictionary);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Index access
+	// ---------------------------------------------------------------------------
+
+	@Override
+	protected void sortedColumns(List<ByteString> relations, int[][] subjects, int[][] objects) {
+		ensureFrozen();
+		for (int i = 0; i < relations.size(); ++i) {
+			int relation = dictionary.get(relations.get(i));
+			subjects[i] = index(1, 0).keys(relation);
+			objects[i] = index(1, 2).keys(relation);
+		}
+	}
+
+	@Override
+	protected int columnDegree(ByteString relation, ByteString value, int position) {
+		return (index(1, position == 0 ? 0 : 2).degree(dictionary.get(relation), dictionary.get(value)));
+	}
+
+	@Override
+	protected Collection<ByteString> relationsOf(ByteString value, int position) {
+		int[] ids = (position == 0 ? spo : index(2, 1)).tailKeys(dictionary.get(value));
+		List<ByteString> result = new ArrayList<>(ids.length);
+		for (int id : ids)
+			result.add(dictionary.decode(id));
+		return (result);
+	}
+
+	/**
+	 * It returns the integer index that replaces the given string index of
+	 * the superclass.
+	 * @param map
+	 * @return
+	 */
+	protected IntIndex index(Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map) {
+		Permutation permutation = getPermutation(map);
+		if (permutation == null)
+			throw new IllegalArgumentException("The map is not an index of this KB");
+		return (index(permutation));
+	}
+
+	/**
+	 * It returns the index of the permutation, which is built if necessary.
+	 * @param permutation
+	 * @return
+	 */
+	protected IntIndex index(Permutation permutation) {
+		if (materializedPermutations != ALL_PERMUTATIONS)
+			materialize(permutation);
+		return (permutations[permutation.ordinal()]);
+	}
+
+	/**
+	 * It returns the index whose first and second levels correspond to the given
+	 * positions in a triple (0 = subject, 1 = relation, 2 = object).
+	 * @param first
+	 * @param second
+	 * @return
+	 */
+	protected IntIndex index(int first, int second) {
+		switch (first) {
+		case 0:
+			return (second == 1 ? spo : index(Permutation.SubjectObjectRelation));
+		case 1:
+			return (index(second == 0 ? Permutation.RelationSubjectObject
+					: Permutation.RelationObjectSubject));
+		default:
+			return (index(second == 0 ? Permutation.ObjectSubjectRelation
+					: Permutation.ObjectRelationSubject));
+		}
+	}
+
+	/**
+	 * It returns a new set with the strings of the given identifiers.
+	 * @param ids
+	 * @return
+	 */
+	protected IntHashMap<ByteString> decode(IntHashSet ids) {
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		for (int id : ids.table) {
+			if (id != IntHashSet.EMPTY)
+				result.add(dictionary.decode(id));
+		}
+		return (result);
+	}
+
+	/**
+	 * It returns a new set with the strings of the third level values of
+	 * a frozen index for the given keys.
+	 * @param index
+	 * @param key1
+	 * @param key2
+	 * @return
+	 */
+	protected IntHashMap<ByteString> decode(IntIndex index, int key1, int key2) {
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		int pos = index.find(key1, key2);
+		if (pos != -1) {
+			for (int i = index.offsets2[pos]; i < index.offsets2[pos + 1]; ++i)
+				result.add(dictionary.decode(index.values[i]));
+		}
+		return (result);
+	}
+
+	@Override
+	protected IntHashMap<ByteString> get(
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map,
+			ByteString key1, ByteString key2) {
+		ensureFrozen();
+		return (decode(index(map), dictionary.get(key1), dictionary.get(key2)));
+	}
+
+	@Override
+	protected Map<ByteString, IntHashMap<ByteString>> get(
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map,
+			ByteString key) {
+		ensureFrozen();
+		return (tail(index(map), dictionary.get(key)));
+	}
+
+	/**
+	 * It returns a view of the second and third levels of the index for
+	 * the given key.
+	 */
+	private Map<ByteString, IntHashMap<ByteString>> tail(IntIndex index, int key) {
+		if (index.size(key) == 0)
+			return (Collections.emptyMap());
+		return (new DecodedTail(index, key));
+	}
+
+	/**
+	 * It returns TRUE if the relation is not stored in the KB but computed
+	 * at query time, e.g., equals, exists or hasNumberOfValues.
+	 * @param relation
+	 * @return
+	 */
+	protected boolean isSpecialRelation(ByteString relation) {
+		if (specialRelations.contains(relation))
+			return (true);
+		if (isVariable(relation) || relationSize.containsKey(relation))
+			return (false);
+		return (parseCardinalityRelation(relation) != null);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Single triple selections
+	// ---------------------------------------------------------------------------
+
+	@Override
+	public IntHashMap<ByteString> resultsOneVariable(ByteString... triple) {
+		if (isSpecialRelation(triple[1]))
+			return (super.resultsOneVariable(triple));
+		ensureFrozen();
+		if (isVariable(triple[0]))
+			return (decode(index(1, 2), dictionary.get(triple[1]), dictionary.get(triple[2])));
+		if (isVariable(triple[1]))
+			return (decode(index(2, 0), dictionary.get(triple[2]), dictionary.get(triple[0])));
+		return (decode(spo, dictionary.get(triple[0]), dictionary.get(triple[1])));
+	}
+
+	@Override
+	protected boolean contains(ByteString... fact) {
+		if (isSpecialRelation(fact[1]))
+			return (super.contains(fact));
+		ensureFrozen();
+		return (spo.contains(dictionary.get(fact[0]), dictionary.get(fact[1]),
+				dictionary.get(fact[2])));
+	}
+
+	@Override
+	public Map<ByteString, IntHashMap<ByteString>> resultsTwoVariables(
+			int pos1, int pos2, ByteString[] triple) {
+		if (isSpecialRelation(triple[1]) || pos1 < 0 || pos1 > 2
+				|| pos2 < 0 || pos2 > 2 || pos1 == pos2)
+			return (super.resultsTwoVariables(pos1, pos2, triple));
+		ensureFrozen();
+		int constantPos = 3 - pos1 - pos2;
+		return (tail(index(constantPos, pos1), dictionary.get(triple[constantPos])));
+	}
+
+	@Override
+	public Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> resultsThreeVariables(
+			ByteString var1, ByteString var2, ByteString var3,
+			ByteString[] triple) {
+		int varPos1 = varpos(var1, triple);
+		int varPos2 = varpos(var2, triple);
+		int varPos3 = varpos(var3, triple);
+		if (varPos1 == -1 || varPos2 == -1 || varPos3 == -1
+				|| varPos1 == varPos2 || varPos1 == varPos3 || varPos2 == varPos3)
+			return (super.resultsThreeVariables(var1, var2, var3, triple));
+		ensureFrozen();
+		return (new DecodedIndex(index(varPos1, varPos2)));
+	}
+
+	@Override
+	protected long countOneVariable(ByteString... triple) {
+		if (isSpecialRelation(triple[1]))
+			return (super.countOneVariable(triple));
+		ensureFrozen();
+		if (isVariable(triple[0]))
+			return (index(1, 2).size(dictionary.get(triple[1]), dictionary.get(triple[2])));
+		if (isVariable(triple[1]))
+			return (index(2, 0).size(dictionary.get(triple[2]), dictionary.get(triple[0])));
+		return (spo.size(dictionary.get(triple[0]), dictionary.get(triple[1])));
+	}
+
+	// ---------------------------------------------------------------------------
+	// Query evaluation on identifiers
+	// ---------------------------------------------------------------------------
+
+	/** Atom on a relation stored in the KB **/
+	static final byte REGULAR = 0;
+
+	/** Atom with the equals predicate **/
+	static final byte EQUALS = 1;
+
+	/** Atom with the differentFrom predicate **/
+	static final byte DIFFERENTFROM = 2;
+
+	/** Value of the variables without binding **/
+	static final int UNBOUND = -1;
+
+	/** Identifier of constants that do not occur in the KB **/
+	static final int UNKNOWN = Integer.MAX_VALUE;
+
+	/**
+	 * Returned by mostRestrictive when the only pending atoms are differentFrom
+	 * atoms with unbound variables
+	 */
+	private static final int UNCONSTRAINED = -2;
+
+	/** Maximal number of atoms of the queries evaluated on identifiers **/
+	private static final int MAX_ATOMS = 63;
+
+	/**
+	 * A conjunctive query translated to identifiers. Each atom is encoded with three
+	 * integers: constants are mapped to their identifiers and the i-th variable
+	 * of the query is mapped to -(i + 1).
+	 */
+	static class EncodedQuery {
+		final int[] codes;
+
+		final byte[] kinds;
+
+		final List<ByteString> variables;
+
+		EncodedQuery(int[] codes, byte[] kinds, List<ByteString> variables) {
+			this.codes = codes;
+			this.kinds = kinds;
+			this.variables = variables;
+		}
+
+		/** Bit mask with all the atoms of the query **/
+		long allAtoms() {
+			return ((1L << kinds.length) - 1);
+		}
+
+		/** Empty bindings for the variables of the query **/
+		int[] newBindings() {
+			int[] bindings = new int[variables.size()];
+			Arrays.fill(bindings, UNBOUND);
+			return (bindings);
+		}
+	}
+
+	/**
+	 * A callback for the bindings of the variables that satisfy an atom.
+	 */
+	private static abstract class Continuation {
+		/**
+		 * @return TRUE if the enumeration of bindings must stop.
+		 */
+		abstract boolean apply();
+	}
+
+	/**
+	 * It translates a query into identifiers. It returns null if the query cannot
+	 * be evaluated on the integer indexes, namely if it contains special relations
+	 * other than equals and differentFrom, or if it is too long.
+	 * @param query
+	 * @return
+	 */
+	private EncodedQuery encode(List<ByteString[]> query) {
+		if (query.isEmpty() || query.size() > MAX_ATOMS)
+			return (null);
+
+		int[] codes = new int[3 * query.size()];
+		byte[] kinds = new byte[query.size()];
+		List<ByteString> variables = new ArrayList<>();
+		for (int i = 0; i < query.size(); ++i) {
+			ByteString[] atom = query.get(i);
+			if (atom.length != 3)
+				return (null);
+			if (atom[1] == EQUALSbs || atom[1] == DIFFERENTFROMbs) {
+				kinds[i] = atom[1] == EQUALSbs ? EQUALS : DIFFERENTFROM;
+				codes[3 * i] = encode(atom[0], variables);
+				codes[3 * i + 2] = encode(atom[2], variables);
+				// Constants that are not in the KB cannot be decoded back
+				if (codes[3 * i] == UNKNOWN || codes[3 * i + 2] == UNKNOWN)
+					return (null);
+			} else if (isSpecialRelation(atom[1])) {
+				return (null);
+			} else {
+				kinds[i] = REGULAR;
+				for (int j = 0; j < 3; ++j)
+					codes[3 * i + j] = encode(atom[j], variables);
+			}
+		}
+		return (new EncodedQuery(codes, kinds, variables));
+	}
+
+	/**
+	 * It returns the code of a term of a query.
+	 */
+	private int encode(ByteString term, List<ByteString> variables) {
+		if (isVariable(term)) {
+			int idx = variables.indexOf(term);
+			if (idx == -1) {
+				idx = variables.size();
+				variables.add(term);
+			}
+			return (-idx - 1);
+		}
+		int id = dictionary.get(term);
+		return (id == KBDictionary.NONE ? UNKNOWN : id);
+	}
+
+	/**
+	 * It returns the value of the term at the given position of the query: its identifier
+	 * for constants and bound variables, UNBOUND otherwise.
+	 */
+	static int value(EncodedQuery q, int pos, int[] bindings) {
+		int code = q.codes[pos];
+		return (code >= 0 ? code : bindings[-code - 1]);
+	}
+
+	/**
+	 * It returns the number of facts that match an atom with the current bindings.
+	 * For atoms with repeated variables the number is an upper bound.
+	 */
+	private long count(EncodedQuery q, int atom, int[] bindings) {
+		int s = value(q, 3 * atom, bindings);
+		int o = value(q, 3 * atom + 2, bindings);
+		switch (q.kinds[atom]) {
+		case EQUALS:
+			if (s != UNBOUND && o != UNBOUND)
+				return (s == o ? 1 : 0);
+			if (s != UNBOUND || o != UNBOUND)
+				return (1);
+			return (Long.MAX_VALUE - 1);
+		case DIFFERENTFROM:
+			if (s != UNBOUND && o != UNBOUND)
+				return (s != o ? 1 : 0);
+			return (Long.MAX_VALUE);
+		}
+
+		int r = value(q, 3 * atom + 1, bindings);
+		if (s == UNKNOWN || r == UNKNOWN || o == UNKNOWN)
+			return (0);
+		if (s != UNBOUND) {
+			if (r != UNBOUND)
+				return (o != UNBOUND ? (spo.contains(s, r, o) ? 1 : 0) : spo.size(s, r));
+			return (o != UNBOUND ? index(0, 2).size(s, o) : subjectSize.get(dictionary.decode(s), 0));
+		}
+		if (r != UNBOUND)
+			return (o != UNBOUND ? index(1, 2).size(r, o) : relationSize.get(dictionary.decode(r), 0));
+		if (o != UNBOUND)
+			return (objectSize.get(dictionary.decode(o), 0));
+		return (size);
+	}
+
+	/**
+	 * It returns the pending atom with the smallest number of matches, or a cheaper
+	 * one according to the statistics catalog when more than two atoms are pending,
+	 * -1 if some atom has no matches and UNCONSTRAINED if no atom can be
+	 * used to bind variables.
+	 * @param pending Bit mask of the atoms to consider
+	 */
+	private int mostRestrictive(EncodedQuery q, long pending, int[] bindings) {
+		int bestPos = -1;
+		long best = Long.MAX_VALUE;
+		long[] counts = Long.bitCount(pending) > 2 ? new long[Long.bitCount(pending)] : null;
+		for (int i = 0, k = 0; i < q.kinds.length; ++i) {
+			if ((pending & (1L << i)) == 0)
+				continue;
+			long count = count(q, i, bindings);
+			if (count == 0)
+				return (-1);
+			if (counts != null)
+				counts[k++] = count;
+			if (count < best) {
+				best = count;
+				bestPos = i;
+			}
+		}
+		if (bestPos == -1)
+			return (UNCONSTRAINED);
+		if (counts == null || best < KBStatistics.MIN_MATCHES)
+			return (bestPos);
+		return (cheapest(q, pending, bindings, counts, bestPos));
+	}
+
+	/**
+	 * It returns the pending atom to evaluate first according to the statistics
+	 * catalog (see {@link KBStatistics#cheapest}).
+	 * @param counts Number of matches of the pending atoms
+	 * @param bestPos The atom with the smallest number of matches
+	 */
+	private int cheapest(EncodedQuery q, long pending, int[] bindings, long[] counts, int bestPos) {
+		int[] atoms = new int[counts.length];
+		ByteString[] relations = new ByteString[counts.length];
+		int[] terms = new int[2 * counts.length];
+		for (int i = 0, k = 0; i < q.kinds.length; ++i) {
+			if ((pending & (1L << i)) == 0)
+				continue;
+			int r = value(q, 3 * i + 1, bindings);
+			atoms[k] = i;
+			relations[k] = q.kinds[i] == REGULAR && r >= 0 && r != UNKNOWN ? dictionary.decode(r) : null;
+			terms[2 * k] = unbound(q, 3 * i, bindings);
+			terms[2 * k + 1] = unbound(q, 3 * i + 2, bindings);
+			++k;
+		}
+		int cheapest = getStatistics().cheapest(relations, terms, counts);
+		return (cheapest == -1 ? bestPos : atoms[cheapest]);
+	}
+
+	/**
+	 * It returns the unbound variable at the given position of the query, -1 if
+	 * the term is a constant or a bound variable.
+	 */
+	private static int unbound(EncodedQuery q, int position, int[] bindings) {
+		int code = q.codes[position];
+		return (code < 0 && bindings[-code - 1] == UNBOUND ? -code - 1 : -1);
+	}
+
+	/**
+	 * TRUE if the atom contains the variable.
+	 */
+	private static boolean occurs(EncodedQuery q, int atom, int variable) {
+		int code = -variable - 1;
+		return (q.codes[3 * atom] == code || q.codes[3 * atom + 1] == code
+				|| q.codes[3 * atom + 2] == code);
+	}
+
+	/**
+	 * TRUE if the atom is on a regular relation and its unbound variables are
+	 * all different. In that case count() is exact and each binding of one of the
+	 * variables can be extended to a match of the atom.
+	 */
+	private static boolean isSimple(EncodedQuery q, int atom, int[] bindings) {
+		if (q.kinds[atom] != REGULAR)
+			return (false);
+		for (int i = 0; i < 3; ++i) {
+			int code = q.codes[3 * atom + i];
+			if (code >= 0 || bindings[-code - 1] != UNBOUND)
+				continue;
+			for (int j = i + 1; j < 3; ++j) {
+				if (q.codes[3 * atom + j] == code)
+					return (false);
+			}
+		}
+		return (true);
+	}
+
+	/**
+	 * TRUE if the atom is on a regular relation, contains the variable once and
+	 * its other two terms are bound. The matches of such an atom are given by a
+	 * sorted range of a frozen index.
+	 */
+	private static boolean isLeaf(EncodedQuery q, int atom, int variable, int[] bindings) {
+		if (q.kinds[atom] != REGULAR)
+			return (false);
+		int code = -variable - 1;
+		int occurrences = 0;
+		for (int i = 0; i < 3; ++i) {
+			int term = q.codes[3 * atom + i];
+			if (term == code)
+				++occurrences;
+			else if (term < 0 && bindings[-term - 1] == UNBOUND)
+				return (false);
+		}
+		return (occurrences == 1);
+	}
+
+	/**
+	 * It returns the intersection of two sorted arrays by merging them.
+	 */
+	private static int[] intersect(int[] a, int[] b) {
+		int[] result = new int[Math.min(a.length, b.length)];
+		int i = 0, j = 0, n = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
+				result[n++] = a[i];
+				++i;
+				++j;
+			}
+		}
+		return (n == result.length ? result : Arrays.copyOf(result, n));
+	}
+
+	/**
+	 * It binds a variable to a value and calls the continuation. If the variable
+	 * is already bound, the continuation is called only if the values coincide.
+	 * @return TRUE if the continuation requested to stop.
+	 */
+	private static boolean bind(int variable, int value, int[] bindings, Continuation next) {
+		if (bindings[variable] != UNBOUND)
+			return (bindings[variable] == value && next.apply());
+		bindings[variable] = value;
+		boolean stop = next.apply();
+		bindings[variable] = UNBOUND;
+		return (stop);
+	}
+
+	/**
+	 * It binds the variable to each of the values in the range [from, to) of
+	 * the sorted array and calls the continuation.
+	 * @return TRUE if the continuation requested to stop.
+	 */
+	private static boolean bind(int variable, int[] values, int from, int to,
+			int[] bindings, Continuation next) {
+		if (bindings[variable] != UNBOUND)
+			return (Arrays.binarySearch(values, from, to, bindings[variable]) >= 0 && next.apply());
+		boolean stop = false;
+		for (int i = from; i < to; ++i) {
+			bindings[variable] = values[i];
+			if (stop = next.apply())
+				break;
+		}
+		bindings[variable] = UNBOUND;
+		return (stop);
+	}
+
+	/**
+	 * It binds the variables to each of the pairs of second and third level values
+	 * of the index for the given key and calls the continuation.
+	 * @return TRUE if the continuation requested to stop.
+	 */
+	private static boolean bind(int variable1, int variable2, IntIndex index, int key,
+			int[] bindings, Continuation next) {
+		if (bindings[variable1] != UNBOUND) {
+			int pos = index.find(key, bindings[variable1]);
+			return (pos != -1 && bind(variable2, index.values, index.offsets2[pos],
+					index.offsets2[pos + 1], bindings, next));
+		}
+		boolean stop = false;
+		for (int j = index.start(key); j < index.end(key); ++j) {
+			bindings[variable1] = index.keys2[j];
+			if (stop = bind(variable2, index.values, index.offsets2[j],
+					index.offsets2[j + 1], bindings, next))
+				break;
+		}
+		bindings[variable1] = UNBOUND;
+		return (stop);
+	}
+
+	/**
+	 * It calls the continuation for each binding of the unbound variables of the atom
+	 * that matches a fact of the KB (or satisfies the predicate for special atoms).
+	 * @return TRUE if the continuation requested to stop.
+	 */
+	private boolean forEachMatch(EncodedQuery q, int atom, int[] bindings, Continuation next) {
+		int[] codes = q.codes;
+		int base = 3 * atom;
+		int s = value(q, base, bindings);
+		int o = value(q, base + 2, bindings);
+		switch (q.kinds[atom]) {
+		case EQUALS:
+			if (s != UNBOUND && o != UNBOUND)
+				return (s == o && next.apply());
+			if (s != UNBOUND)
+				return (bind(-codes[base + 2] - 1, s, bindings, next));
+			if (o != UNBOUND)
+				return (bind(-codes[base] - 1, o, bindings, next));
+			for (int subject : spo.keys1) {
+				bindings[-codes[base] - 1] = subject;
+				boolean stop = bind(-codes[base + 2] - 1, subject, bindings, next);
+				bindings[-codes[base] - 1] = UNBOUND;
+				if (stop)
+					return (true);
+			}
+			return (false);
+		case DIFFERENTFROM:
+			if (s != UNBOUND && o != UNBOUND)
+				return (s != o && next.apply());
+			throw new IllegalArgumentException("Cannot query differentFrom with unbound variables");
+		}
+
+		int[] values = {s, value(q, base + 1, bindings), o};
+		int[] order = new int[3];
+		int nBound = 0;
+		for (int i = 0; i < 3; ++i) {
+			if (values[i] != UNBOUND)
+				order[nBound++] = i;
+		}
+		int n = nBound;
+		for (int i = 0; i < 3; ++i) {
+			if (values[i] == UNBOUND)
+				order[n++] = i;
+		}
+
+		switch (nBound) {
+		case 3:
+			return (spo.contains(s, values[1], o) && next.apply());
+		case 2:
+			IntIndex index = index(order[0], order[1]);
+			int pos = index.find(values[order[0]], values[order[1]]);
+			return (pos != -1 && bind(-codes[base + order[2]] - 1, index.values,
+					index.offsets2[pos], index.offsets2[pos + 1], bindings, next));
+		case 1:
+			return (bind(-codes[base + order[1]] - 1, -codes[base + order[2]] - 1,
+					index(order[0], order[1]), values[order[0]], bindings, next));
+		default:
+			int variable = -codes[base] - 1;
+			for (int subject : spo.keys1) {
+				bindings[variable] = subject;
+				boolean stop = bind(-codes[base + 1] - 1, -codes[base + 2] - 1,
+						spo, subject, bindings, next);
+				bindings[variable] = UNBOUND;
+				if (stop)
+					return (true);
+			}
+			return (false);
+		}
+	}
+
+	/**
+	 * It returns the distinct values that the variable takes in the matches of the
+	 * atom. For atoms with repeated variables the result is a superset. The array
+	 * must not be modified. If the other two terms of the atom are bound, the
+	 * values are sorted.
+	 */
+	private int[] candidates(EncodedQuery q, int atom, int variable, int[] bindings) {
+		int base = 3 * atom;
+		int code = -variable - 1;
+		if (q.kinds[atom] == EQUALS) {
+			int s = value(q, base, bindings);
+			int o = value(q, base + 2, bindings);
+			if (s != UNBOUND)
+				return (new int[] {s});
+			if (o != UNBOUND)
+				return (new int[] {o});
+			return (spo.keys());
+		} else if (q.kinds[atom] == DIFFERENTFROM) {
+			throw new IllegalArgumentException("Cannot query differentFrom with unbound variables");
+		}
+
+		int pos = q.codes[base] == code ? 0 : q.codes[base + 1] == code ? 1 : 2;
+		int bound1 = -1, bound2 = -1;
+		for (int i = 0; i < 3; ++i) {
+			if (value(q, base + i, bindings) != UNBOUND) {
+				if (bound1 == -1)
+					bound1 = i;
+				else
+					bound2 = i;
+			}
+		}
+
+		if (bound2 != -1) {
+			return (index(bound1, bound2).values(value(q, base + bound1, bindings),
+					value(q, base + bound2, bindings)));
+		} else if (bound1 != -1) {
+			return (index(bound1, pos).keys(value(q, base + bound1, bindings)));
+		} else {
+			return (index(pos, pos == 0 ? 1 : 0).keys());
+		}
+	}
+
+	/**
+	 * It returns TRUE if the pending atoms have at least one match compatible with
+	 * the bindings.
+	 */
+	private boolean exists(final EncodedQuery q, long pending, final int[] bindings) {
+		if (pending == 0)
+			return (true);
+		int best = mostRestrictive(q, pending, bindings);
+		if (best == -1)
+			return (false);
+		if (best == UNCONSTRAINED)
+			return (true);
+		final long rest = pending & ~(1L << best);
+		if (rest == 0 && isSimple(q, best, bindings))
+			return (true);
+		return (forEachMatch(q, best, bindings, new Continuation() {
+			@Override
+			boolean apply() {
+				return (exists(q, rest, bindings));
+			}
+		}));
+	}
+
+	/**
+	 * It adds to the result the values of the variable that satisfy the pending atoms
+	 * with the current bindings.
+	 */
+	private void selectDistinct(final EncodedQuery q, final int variable, long pending,
+			final int[] bindings, final IntHashSet result) {
+		if (bindings[variable] != UNBOUND) {
+			if (!result.contains(bindings[variable]) && exists(q, pending, bindings))
+				result.add(bindings[variable]);
+			return;
+		}
+
+		if (pending == 0)
+			return;
+		int best = mostRestrictive(q, pending, bindings);
+		if (best == -1)
+			return;
+		if (best == UNCONSTRAINED)
+			throw new IllegalArgumentException("Cannot query differentFrom with unbound variables");
+
+		if (isLeaf(q, best, variable, bindings)) {
+			// Intersect the sorted values of all the atoms where the variable is
+			// the only unbound term
+			int[] values = candidates(q, best, variable, bindings);
+			long rest = pending & ~(1L << best);
+			for (int i = 0; i < q.kinds.length && values.length > 0; ++i) {
+				if ((rest & (1L << i)) != 0 && isLeaf(q, i, variable, bindings)) {
+					values = intersect(values, candidates(q, i, variable, bindings));
+					rest &= ~(1L << i);
+				}
+			}
+			for (int value : values) {
+				if (rest == 0) {
+					result.add(value);
+				} else if (!result.contains(value)) {
+					bindings[variable] = value;
+					if (exists(q, rest, bindings))
+						result.add(value);
+					bindings[variable] = UNBOUND;
+				}
+			}
+		} else if (occurs(q, best, variable)) {
+			boolean exact = pending == (1L << best) && isSimple(q, best, bindings);
+			for (int value : candidates(q, best, variable, bindings)) {
+				if (exact) {
+					result.add(value);
+				} else if (!result.contains(value)) {
+					bindings[variable] = value;
+					if (exists(q, pending, bindings))
+						result.add(value);
+					bindings[variable] = UNBOUND;
+				}
+			}
+		} else {
+			final long rest = pending & ~(1L << best);
+			forEachMatch(q, best, bindings, new Continuation() {
+				@Override
+				boolean apply() {
+					selectDistinct(q, variable, rest, bindings, result);
+					return (false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * For each match of the first atom of the query, it adds the values of the
+	 * variable that satisfy the rest of the query. Matches are grouped by the
+	 * variable that the first atom shares with the most restrictive atom.
+	 */
+	private void countProjectionBindings(final EncodedQuery q, final int variable,
+			final int[] bindings, final IntHashMap<ByteString> result) {
+		final long others = q.allAtoms() & ~1L;
+		int best = mostRestrictive(q, q.allAtoms(), bindings);
+		if (best == -1)
+			return;
+
+		int shared = -1;
+		if (best > 0) {
+			for (int i = 0; i < 3 && shared == -1; ++i) {
+				int code = q.codes[3 * best + i];
+				if (code < 0 && bindings[-code - 1] == UNBOUND && occurs(q, 0, -code - 1))
+					shared = -code - 1;
+			}
+		}
+
+		if (shared == -1) {
+			forEachMatch(q, 0, bindings, new Continuation() {
+				@Override
+				boolean apply() {
+					IntHashSet values = new IntHashSet();
+					selectDistinct(q, variable, others, bindings, values);
+					for (int value : values.table) {
+						if (value != IntHashSet.EMPTY)
+							result.increase(dictionary.decode(value));
+					}
+					return (false);
+				}
+			});
+		} else {
+			for (int value : candidates(q, best, shared, bindings)) {
+				bindings[shared] = value;
+				countProjectionBindings(q, variable, bindings, result);
+			}
+			bindings[shared] = UNBOUND;
+		}
+	}
+
+	/**
+	 * It returns the worst-case optimal join of the query for the given output
+	 * variables, or null if the query must be evaluated with nested loops
+	 * according to the join policy.
+	 */
+	private LeapfrogJoin leapfrog(EncodedQuery q, int... outputs) {
+		JoinPolicy policy = joinPolicy;
+		if (policy == JoinPolicy.NestedLoops
+				|| policy == JoinPolicy.Adaptive && !LeapfrogJoin.isCyclic(q))
+			return (null);
+		return (LeapfrogJoin.compile(this, q, outputs));
+	}
+
+	/**
+	 * It returns the distinct variables of the first atom of the query.
+	 */
+	private static int[] projectionVariables(EncodedQuery q) {
+		int[] variables = new int[3];
+		int n = 0;
+		for (int i = 0; i < 3; ++i) {
+			int code = q.codes[i];
+			if (code < 0 && (n == 0 || variables[0] != -code - 1)
+					&& (n < 2 || variables[1] != -code - 1))
+				variables[n++] = -code - 1;
+		}
+		return (Arrays.copyOf(variables, n));
+	}
+
+	/**
+	 * It returns the projection triple followed by the other triples.
+	 */
+	private static List<ByteString[]> wholeQuery(ByteString[] projectionTriple,
+			List<ByteString[]> otherTriples) {
+		List<ByteString[]> query = new ArrayList<>(otherTriples.size() + 1);
+		query.add(projectionTriple);
+		query.addAll(otherTriples);
+		return (query);
+	}
+
+	@Override
+	public boolean existsBS(List<ByteString[]> triples) {
+		EncodedQuery q = triples.size() < 2 ? null : encode(triples);
+		if (q == null)
+			return (super.existsBS(triples));
+		ensureFrozen();
+		LeapfrogJoin join = leapfrog(q);
+		if (join != null)
+			return (join.exists());
+		return (exists(q, q.allAtoms(), q.newBindings()));
+	}
+
+	@Override
+	public Set<ByteString> selectDistinct(ByteString variable, List<ByteString[]> query) {
+		EncodedQuery q = query.size() < 2 ? null : encode(query);
+		int var = q == null ? -1 : q.variables.indexOf(variable);
+		if (var == -1)
+			return (super.selectDistinct(variable, query));
+		ensureFrozen();
+		IntHashSet values = new IntHashSet();
+		LeapfrogJoin join = leapfrog(q, var);
+		if (join != null) {
+			for (int value : join.select())
+				values.add(value);
+		} else {
+			selectDistinct(q, var, q.allAtoms(), q.newBindings(), values);
+		}
+		return (decode(values));
+	}
+
+	@Override
+	protected long evaluateCountDistinct(ByteString variable, List<ByteString[]> query) {
+		EncodedQuery q = query.size() < 2 ? null : encode(query);
+		int var = q == null ? -1 : q.variables.indexOf(variable);
+		if (var == -1)
+			return (super.evaluateCountDistinct(variable, query));
+		ensureFrozen();
+		LeapfrogJoin join = leapfrog(q, var);
+		if (join != null)
+			return (join.select().length);
+		IntHashSet values = new IntHashSet();
+		selectDistinct(q, var, q.allAtoms(), q.newBindings(), values);
+		return (values.size());
+	}
+
+	@Override
+	protected long evaluateCountDistinctPairs(ByteString var1, ByteString var2,
+			List<ByteString[]> query) {
+		EncodedQuery q = query.size() < 2 ? null : encode(query);
+		int v1 = q == null ? -1 : q.variables.indexOf(var1);
+		int v2 = q == null ? -1 : q.variables.indexOf(var2);
+		if (v1 == -1 || v2 == -1 || v1 == v2)
+			return (super.evaluateCountDistinctPairs(var1, var2, query));
+		ensureFrozen();
+		LeapfrogJoin join = leapfrog(q, v1, v2);
+		if (join == null)
+			return (super.evaluateCountDistinctPairs(var1, var2, query));
+		return (join.select().length / 2);
+	}
+
+	@Override
+	protected long evaluateCountProjection(ByteString[] projectionTriple,
+			List<ByteString[]> otherTriples) {
+		int nVariables = numVariables(projectionTriple);
+		if (otherTriples.isEmpty() || nVariables == 0 || nVariables == 3)
+			return (super.evaluateCountProjection(projectionTriple, otherTriples));
+		final EncodedQuery q = encode(wholeQuery(projectionTriple, otherTriples));
+		if (q == null)
+			return (super.evaluateCountProjection(projectionTriple, otherTriples));
+
+		ensureFrozen();
+		int[] outputs = projectionVariables(q);
+		LeapfrogJoin join = leapfrog(q, outputs);
+		if (join != null)
+			return (join.select().length / outputs.length);
+
+		final int[] bindings = q.newBindings();
+		final long others = q.allAtoms() & ~1L;
+		final long[] counter = new long[1];
+		forEachMatch(q, 0, bindings, new Continuation() {
+			@Override
+			boolean apply() {
+				if (exists(q, others, bindings))
+					++counter[0];
+				return (false);
+			}
+		});
+		return (counter[0]);
+	}
+
+	@Override
+	public IntHashMap<ByteString> countProjectionBindings(
+			ByteString[] projectionTriple, List<ByteString[]> otherTriples,
+			ByteString variable) {
+		int nVariables = numVariables(projectionTriple);
+		if (otherTriples.isEmpty() || nVariables == 0 || nVariables == 3)
+			return (super.countProjectionBindings(projectionTriple, otherTriples, variable));
+		EncodedQuery q = encode(wholeQuery(projectionTriple, otherTriples));
+		int var = q == null ? -1 : q.variables.indexOf(variable);
+		if (var == -1)
+			return (super.countProjectionBindings(projectionTriple, otherTriples, variable));
+
+		ensureFrozen();
+		IntHashMap<ByteString> result = new IntHashMap<>();
+		int[] outputs = projectionVariables(q);
+		int pos = 0;
+		while (pos < outputs.length && outputs[pos] != var)
+			++pos;
+		if (pos == outputs.length) {
+			outputs = Arrays.copyOf(outputs, pos + 1);
+			outputs[pos] = var;
+		}
+		LeapfrogJoin join = leapfrog(q, outputs);
+		if (join != null) {
+			// Distinct bindings of the projection variables for each value of the variable
+			int[] tuples = join.select();
+			for (int i = pos; i < tuples.length; i += outputs.length)
+				result.increase(dictionary.decode(tuples[i]));
+		} else {
+			countProjectionBindings(q, var, q.newBindings(), result);
+		}
+		return (result);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Decoding views
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * Iterator over a range of a sorted array of identifiers, decoded as strings.
+	 */
+	private class KeyIterator implements Iterator<ByteString> {
+		private final int[] keys;
+
+		private final int to;
+
+		private int pos;
+
+		KeyIterator(int[] keys, int from, int to) {
+			this.keys = keys;
+			this.pos = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return (pos < to);
+		}
+
+		@Override
+		public ByteString next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return (dictionary.decode(keys[pos++]));
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("The views of an EncodedKB are read-only");
+		}
+	}
+
+	/**
+	 * Read-only view of a range of a sorted array of identifiers as a set of strings.
+	 */
+	private class DecodedKeys extends AbstractSet<ByteString> {
+		private final int[] keys;
+
+		private final int from;
+
+		private final int to;
+
+		DecodedKeys(int[] keys, int from, int to) {
+			this.keys = keys;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return (o instanceof ByteString
+					&& Arrays.binarySearch(keys, from, to, dictionary.get((ByteString) o)) >= 0);
+		}
+
+		@Override
+		public Iterator<ByteString> iterator() {
+			return (new KeyIterator(keys, from, to));
+		}
+
+		@Override
+		public int size() {
+			return (to - from);
+		}
+	}
+
+	/**
+	 * Read-only view of the second and third levels of a frozen index for
+	 * a key as a map of strings.
+	 */
+	private class DecodedTail extends AbstractMap<ByteString, IntHashMap<ByteString>> {
+		private final IntIndex index;
+
+		private final int key;
+
+		DecodedTail(IntIndex index, int key) {
+			this.index = index;
+			this.key = key;
+		}
+
+		@Override
+		public IntHashMap<ByteString> get(Object key) {
+			if (!(key instanceof ByteString))
+				return (null);
+			int key2 = dictionary.get((ByteString) key);
+			return (index.find(this.key, key2) == -1 ? null : decode(index, this.key, key2));
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key instanceof ByteString
+					&& index.find(this.key, dictionary.get((ByteString) key)) != -1);
+		}
+
+		@Override
+		public int size() {
+			return (index.size(key));
+		}
+
+		@Override
+		public Set<ByteString> keySet() {
+			return (new DecodedKeys(index.keys2, index.start(key), index.end(key)));
+		}
+
+		@Override
+		public Set<Map.Entry<ByteString, IntHashMap<ByteString>>> entrySet() {
+			return (new AbstractSet<Map.Entry<ByteString, IntHashMap<ByteString>>>() {
+				@Override
+				public Iterator<Map.Entry<ByteString, IntHashMap<ByteString>>> iterator() {
+					final Iterator<ByteString> keys = keySet().iterator();
+					return (new Iterator<Map.Entry<ByteString, IntHashMap<ByteString>>>() {
+						@Override
+						public boolean hasNext() {
+							return (keys.hasNext());
+						}
+
+						@Override
+						public Map.Entry<ByteString, IntHashMap<ByteString>> next() {
+							ByteString key = keys.next();
+							return (new AbstractMap.SimpleImmutableEntry<>(key, get(key)));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException("The views of an EncodedKB are read-only");
+						}
+					});
+				}
+
+				@Override
+				public int size() {
+					return (index.size(key));
+				}
+			});
+		}
+	}
+
+	/**
+	 * Read-only view of a frozen index as a 3-level map of strings.
+	 */
+	private class DecodedIndex extends AbstractMap<ByteString, Map<ByteString, IntHashMap<ByteString>>> {
+		private final IntIndex index;
+
+		DecodedIndex(IntIndex index) {
+			this.index = index;
+		}
+
+		@Override
+		public Map<ByteString, IntHashMap<ByteString>> get(Object key) {
+			if (!(key instanceof ByteString))
+				return (null);
+			int key1 = dictionary.get((ByteString) key);
+			return (index.size(key1) == 0 ? null : new DecodedTail(index, key1));
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return (key instanceof ByteString && index.size(dictionary.get((ByteString) key)) > 0);
+		}
+
+		@Override
+		public int size() {
+			return (index.size());
+		}
+
+		@Override
+		public Set<ByteString> keySet() {
+			return (new DecodedKeys(index.keys1, 0, index.keys1.length));
+		}
+
+		@Override
+		public Set<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>> entrySet() {
+			return (new AbstractSet<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>>() {
+				@Override
+				public Iterator<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>> iterator() {
+					final Iterator<ByteString> keys = keySet().iterator();
+					return (new Iterator<Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>>>() {
+						@Override
+						public boolean hasNext() {
+							return (keys.hasNext());
+						}
+
+						@Override
+						public Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>> next() {
+							ByteString key = keys.next();
+							return (new AbstractMap.SimpleImmutableEntry<>(key, get(key)));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException("The views of an EncodedKB are read-only");
+						}
+					});
+				}
+
+				@Override
+				public int size() {
+					return (index.size());
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,249 @@
+package amie.data;
+
+import java.util.Arrays;
+
+/**
+ * Class IntHashSet
+ *
+ * A set of non-negative integers stored in a single primitive array. Small sets
+ * (up to {@link #LINEAR_THRESHOLD} elements) keep their elements packed at the
+ * beginning of the array and are scanned linearly. Bigger sets become open addressing
+ * hash tables with linear probing. It is the last level of the integer indexes used
+ * by {@link EncodedKB}.
+ *
+ * @author lgalarra
+ *
+ */
+public class IntHashSet {
+
+	/** Value of the empty slots **/
+	static final int EMPTY = -1;
+
+	/** Sets with at most this number of elements are scanned linearly **/
+	static final int LINEAR_THRESHOLD = 8;
+
+	/** Elements of the set. Unused slots contain EMPTY. **/
+	int[] table;
+
+	/** Number of elements **/
+	int size;
+
+	public IntHashSet() {
+		this(1);
+	}
+
+	/**
+	 * @param capacity Expected number of elements
+	 */
+	public IntHashSet(int capacity) {
+		if (capacity <= LINEAR_THRESHOLD) {
+			table = new int[Math.max(capacity, 1)];
+		} else {
+			table = new int[tableSize(capacity)];
+		}
+		Arrays.fill(table, EMPTY);
+	}
+
+	/**
+	 * It returns the smallest power of 2 that can store the given number of elements
+	 * in hash mode.
+	 * @param capacity
+	 * @return
+	 */
+	static int tableSize(int capacity) {
+		int size = 2 * LINEAR_THRESHOLD;
+		while (size * 3 < capacity * 4)
+			size <<= 1;
+		return (size);
+	}
+
+	/**
+	 * Spreads the bits of the key.
+	 * @param key
+	 * @return
+	 */
+	static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16));
+	}
+
+	/**
+	 * TRUE if the elements are stored packed and scanned linearly.
+	 * @return
+	 */
+	private boolean isLinear() {
+		return (table.length <= LINEAR_THRESHOLD);
+	}
+
+	/** Number of elements in the set **/
+	public int size() {
+		return (size);
+	}
+
+	/** TRUE if the set contains no elements **/
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/**
+	 * TRUE if the set contains the given value.
+	 * @param value
+	 * @return
+	 */
+	public boolean contains(int value) {
+		if (value < 0)
+			return (false);
+
+		if (isLinear()) {
+			for (int i = 0; i < size; ++i) {
+				if (table[i] == value)
+					return (true);
+			}
+			return (false);
+		}
+
+		int mask = table.length - 1;
+		for (int i = hash(value) & mask; table[i] != EMPTY; i = (i + 1) & mask) {
+			if (table[i] == value)
+				return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * Adds a value to the set.
+	 * @param value A non-negative integer
+	 * @return TRUE if the set did not contain the value.
+	 */
+	public boolean add(int value) {
+		if (value < 0)
+			throw new IllegalArgumentException("Only non-negative values are supported: " + value);
+
+		if (isLinear()) {
+			for (int i = 0; i < size; ++i) {
+				if (table[i] == value)
+					return (false);
+			}
+
+			if (size < table.length) {
+				table[size++] = value;
+				return (true);
+			}
+
+			if (table.length < LINEAR_THRESHOLD) {
+				int[] newTable = Arrays.copyOf(table, Math.min(table.length * 2, LINEAR_THRESHOLD));
+				Arrays.fill(newTable, size, newTable.length, EMPTY);
+				table = newTable;
+				table[size++] = value;
+				return (true);
+			}
+
+			rehash(tableSize(size + 1));
+		} else if ((size + 1) * 4 > table.length * 3) {
+			rehash(table.length * 2);
+		}
+
+		if (insert(table, value)) {
+			++size;
+			return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * Inserts a value in a hash table.
+	 * @return TRUE if the value was not in the table.
+	 */
+	private static boolean insert(int[] table, int value) {
+		int mask = table.length - 1;
+		int i = hash(value) & mask;
+		while (table[i] != EMPTY) {
+			if (table[i] == value)
+				return (false);
+			i = (i + 1) & mask;
+		}
+		table[i] = value;
+		return (true);
+	}
+
+	/**
+	 * It moves all the elements to a hash table of the given size.
+	 * @param newSize
+	 */
+	private void rehash(int newSize) {
+		int[] newTable = new int[newSize];
+		Arrays.fill(newTable, EMPTY);
+		for (int value : table) {
+			if (value != EMPTY)
+				insert(newTable, value);
+		}
+		table = newTable;
+	}
+
+	/**
+	 * Removes a value from the set.
+	 * @param value
+	 * @return TRUE if the set contained the value.
+	 */
+	public boolean remove(int value) {
+		if (value < 0)
+			return (false);
+
+		if (isLinear()) {
+			for (int i = 0; i < size; ++i) {
+				if (table[i] == value) {
+					table[i] = table[size - 1];
+					table[--size] = EMPTY;
+					return (true);
+				}
+			}
+			return (false);
+		}
+
+		int mask = table.length - 1;
+		int i = hash(value) & mask;
+		while (table[i] != value) {
+			if (table[i] == EMPTY)
+				return (false);
+			i = (i + 1) & mask;
+		}
+
+		// Backward shift deletion: move up the elements of the cluster
+		// that would not be reachable otherwise.
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (table[j] == EMPTY)
+				break;
+			int k = hash(table[j]) & mask;
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+			table[i] = table[j];
+			i = j;
+		}
+		table[i] = EMPTY;
+		--size;
+		return (true);
+	}
+
+	/**
+	 * It returns the elements of the set in a new array.
+	 * @return
+	 */
+	public int[] toArray() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int value : table) {
+			if (value != EMPTY)
+				result[n++] = value;
+		}
+		return (result);
+	}
+
+	@Override
+	public String toString() {
+		int[] values = toArray();
+		Arrays.sort(values);
+		return (Arrays.toString(values));
+	}
+}
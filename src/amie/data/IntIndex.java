@@ -0,0 +1,358 @@
+package amie.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Class IntIndex
+ *
+ * One permutation of the facts of an {@link EncodedKB}, e.g., subject -> relation -> object,
+ * on integer identifiers. While facts are being added, the index is stored as nested
+ * primitive hash maps. The method freeze() compacts it into a read-only
+ * compressed-sparse-row (CSR) layout:
+ * <ul>
+ * <li> offsets1[k1] .. offsets1[k1 + 1] is the range of keys2 with the second level
+ * keys for the first level key k1. Identifiers are dense, so offsets1 is indexed directly
+ * by the key.</li>
+ * <li> offsets2[j] .. offsets2[j + 1] is the range of values with the third level
+ * values for the pair (k1, keys2[j]).</li>
+ * </ul>
+ * Second level keys and values are sorted within each range, which allows lookups by
+ * binary search and intersections by merging. Lookups are only supported on frozen indexes.
+ *
+ * @author lgalarra
+ *
+ */
+public class IntIndex {
+
+	/** First level -> second level -> third level, while the index is not frozen **/
+	private IntObjectHashMap<IntObjectHashMap<IntHashSet>> map = new IntObjectHashMap<>();
+
+	/** Sorted first level keys **/
+	int[] keys1;
+
+	/** First level key -> range in keys2 **/
+	int[] offsets1;
+
+	/** Second level keys **/
+	int[] keys2;
+
+	/** Position in keys2 -> range in values **/
+	int[] offsets2;
+
+	/** Third level values **/
+	int[] values;
+
+	// ---------------------------------------------------------------------------
+	// Updates
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * Adds an entry to the index. The index must not be frozen.
+	 * @param key1
+	 * @param key2
+	 * @param key3
+	 * @return TRUE if the index did not contain the entry.
+	 */
+	public synchronized boolean add(int key1, int key2, int key3) {
+		IntObjectHashMap<IntHashSet> tail = map.get(key1);
+		if (tail == null)
+			map.put(key1, tail = new IntObjectHashMap<>());
+		IntHashSet values = tail.get(key2);
+		if (values == null)
+			tail.put(key2, values = new IntHashSet());
+		return (values.add(key3));
+	}
+
+	/**
+	 * Removes an entry from the index. The index must not be frozen.
+	 * @param key1
+	 * @param key2
+	 * @param key3
+	 * @return TRUE if the index contained the entry.
+	 */
+	public synchronized boolean remove(int key1, int key2, int key3) {
+		IntObjectHashMap<IntHashSet> tail = map.get(key1);
+		if (tail == null)
+			return (false);
+		IntHashSet values = tail.get(key2);
+		if (values == null || !values.remove(key3))
+			return (false);
+		if (values.isEmpty()) {
+			tail.remove(key2);
+			if (tail.isEmpty())
+				map.remove(key1);
+		}
+		return (true);
+	}
+
+	/**
+	 * Number of third level values for the given keys. Unlike size(key1, key2),
+	 * it also works while the index is not frozen.
+	 */
+	synchronized int degree(int key1, int key2) {
+		if (map == null)
+			return (size(key1, key2));
+		IntObjectHashMap<IntHashSet> tail = map.get(key1);
+		IntHashSet values = tail == null ? null : tail.get(key2);
+		return (values == null ? 0 : values.size());
+	}
+
+	/**
+	 * Second level keys for the given first level key (not sorted if the index
+	 * is not frozen). Unlike keys(key1), it also works while the index is not frozen.
+	 */
+	synchronized int[] tailKeys(int key1) {
+		if (map == null)
+			return (keys(key1));
+		IntObjectHashMap<IntHashSet> tail = map.get(key1);
+		return (tail == null ? new int[0] : tail.keys());
+	}
+
+	/** TRUE if the index is in the read-only compact layout **/
+	public boolean isFrozen() {
+		return (map == null);
+	}
+
+	/**
+	 * It compacts the index into the read-only CSR layout.
+	 */
+	public synchronized void freeze() {
+		if (map == null)
+			return;
+
+		int[] keys1 = map.keys();
+		Arrays.sort(keys1);
+		int n2 = 0, n3 = 0;
+		for (int key1 : keys1) {
+			IntObjectHashMap<IntHashSet> tail = map.get(key1);
+			n2 += tail.size();
+			for (Object values : tail.values) {
+				if (values != null)
+					n3 += ((IntHashSet) values).size();
+			}
+		}
+
+		int maxKey = keys1.length == 0 ? -1 : keys1[keys1.length - 1];
+		int[] offsets1 = new int[maxKey + 2];
+		int[] keys2 = new int[n2];
+		int[] offsets2 = new int[n2 + 1];
+		int[] values = new int[n3];
+		int p1 = 0, p2 = 0, p3 = 0;
+		for (int key1 = 0; key1 <= maxKey; ++key1) {
+			offsets1[key1] = p2;
+			if (keys1[p1] != key1)
+				continue;
+			++p1;
+			IntObjectHashMap<IntHashSet> tail = map.get(key1);
+			int[] tailKeys = tail.keys();
+			Arrays.sort(tailKeys);
+			for (int key2 : tailKeys) {
+				keys2[p2] = key2;
+				offsets2[p2++] = p3;
+				int[] leaf = tail.get(key2).toArray();
+				Arrays.sort(leaf);
+				System.arraycopy(leaf, 0, values, p3, leaf.length);
+				p3 += leaf.length;
+			}
+		}
+		offsets1[maxKey + 1] = p2;
+		offsets2[n2] = p3;
+
+		this.keys1 = keys1;
+		this.offsets1 = offsets1;
+		this.keys2 = keys2;
+		this.offsets2 = offsets2;
+		this.values = values;
+		map = null;
+	}
+
+	/**
+	 * It replaces the contents of the index with the given CSR arrays,
+	 * e.g., read from a {@link KBSnapshot}.
+	 */
+	synchronized void freeze(int[] keys1, int[] offsets1, int[] keys2, int[] offsets2, int[] values) {
+		if (offsets1.length == 0 || offsets2.length != keys2.length + 1)
+			throw new IllegalArgumentException("Inconsistent CSR arrays");
+		this.keys1 = keys1;
+		this.offsets1 = offsets1;
+		this.keys2 = keys2;
+		this.offsets2 = offsets2;
+		this.values = values;
+		map = null;
+	}
+
+	/**
+	 * It replaces the contents of the index with the given facts in the frozen layout.
+	 * The facts are sorted with a counting sort on the first level key followed by a
+	 * sort of the (second, third) pairs of each key, and duplicates are removed.
+	 * @param facts Arrays of facts, each one stored as 3 consecutive identifiers
+	 * @param first Position of the first level key in the facts (0, 1 or 2)
+	 * @param second Position of the second level key in the facts
+	 * @param third Position of the third level value in the facts
+	 * @param nKeys Upper bound of the identifiers
+	 */
+	synchronized void build(List<int[]> facts, int first, int second, int third, int nKeys) {
+		long total = 0;
+		int[] starts = new int[nKeys + 1];
+		for (int[] chunk : facts) {
+			for (int i = first; i < chunk.length; i += 3)
+				++starts[chunk[i] + 1];
+			total += chunk.length / 3;
+		}
+		if (total > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("Too many facts for an index: " + total);
+		int n = (int) total;
+		for (int key = 0; key < nKeys; ++key)
+			starts[key + 1] += starts[key];
+
+		int[] next = Arrays.copyOf(starts, nKeys);
+		long[] pairs = new long[n];
+		for (int[] chunk : facts) {
+			for (int i = 0; i < chunk.length; i += 3)
+				pairs[next[chunk[i + first]]++] = ((long) chunk[i + second] << 32) | chunk[i + third];
+		}
+		next = null;
+
+		int[] keys1 = new int[nKeys];
+		int[] offsets1 = new int[nKeys + 1];
+		int[] keys2 = new int[n];
+		int[] offsets2 = new int[n + 1];
+		int[] values = new int[n];
+		int n1 = 0, p2 = 0, p3 = 0;
+		for (int key = 0; key < nKeys; ++key) {
+			offsets1[key] = p2;
+			if (starts[key] == starts[key + 1])
+				continue;
+			Arrays.sort(pairs, starts[key], starts[key + 1]);
+			keys1[n1++] = key;
+			long previous = -1;
+			for (int i = starts[key]; i < starts[key + 1]; ++i) {
+				long pair = pairs[i];
+				if (pair == previous)
+					continue;
+				int key2 = (int) (pair >>> 32);
+				if (p2 == offsets1[key] || keys2[p2 - 1] != key2) {
+					keys2[p2] = key2;
+					offsets2[p2++] = p3;
+				}
+				values[p3++] = (int) pair;
+				previous = pair;
+			}
+		}
+		offsets1[nKeys] = p2;
+		offsets2[p2] = p3;
+		freeze(Arrays.copyOf(keys1, n1), offsets1, Arrays.copyOf(keys2, p2),
+				Arrays.copyOf(offsets2, p2 + 1), Arrays.copyOf(values, p3));
+	}
+
+	/**
+	 * It returns the entries of a frozen index as consecutive triples (key1, key2, value).
+	 */
+	int[] entries() {
+		int[] result = new int[3 * values.length];
+		int n = 0;
+		for (int key1 : keys1) {
+			for (int j = offsets1[key1]; j < offsets1[key1 + 1]; ++j) {
+				for (int k = offsets2[j]; k < offsets2[j + 1]; ++k) {
+					result[n++] = key1;
+					result[n++] = keys2[j];
+					result[n++] = values[k];
+				}
+			}
+		}
+		return (result);
+	}
+
+	/**
+	 * It brings a frozen index back to the updatable layout.
+	 */
+	public synchronized void thaw() {
+		if (map != null)
+			return;
+
+		IntObjectHashMap<IntObjectHashMap<IntHashSet>> map = new IntObjectHashMap<>(keys1.length);
+		for (int key1 : keys1) {
+			IntObjectHashMap<IntHashSet> tail = new IntObjectHashMap<>(size(key1));
+			for (int j = offsets1[key1]; j < offsets1[key1 + 1]; ++j) {
+				IntHashSet leaf = new IntHashSet(offsets2[j + 1] - offsets2[j]);
+				for (int k = offsets2[j]; k < offsets2[j + 1]; ++k)
+					leaf.add(values[k]);
+				tail.put(keys2[j], leaf);
+			}
+			map.put(key1, tail);
+		}
+
+		this.map = map;
+		keys1 = offsets1 = keys2 = offsets2 = values = null;
+	}
+
+	// ---------------------------------------------------------------------------
+	// Lookups (frozen index)
+	// ---------------------------------------------------------------------------
+
+	/** Start of the range of second level keys for the given first level key **/
+	int start(int key1) {
+		return (key1 >= 0 && key1 < offsets1.length - 1 ? offsets1[key1] : 0);
+	}
+
+	/** End of the range of second level keys for the given first level key **/
+	int end(int key1) {
+		return (key1 >= 0 && key1 < offsets1.length - 1 ? offsets1[key1 + 1] : 0);
+	}
+
+	/**
+	 * It returns the position in keys2 of the pair (key1, key2), -1 if the
+	 * index does not contain it.
+	 */
+	int find(int key1, int key2) {
+		int pos = Arrays.binarySearch(keys2, start(key1), end(key1), key2);
+		return (pos < 0 ? -1 : pos);
+	}
+
+	/**
+	 * TRUE if the index contains the given entry.
+	 */
+	public boolean contains(int key1, int key2, int key3) {
+		int pos = find(key1, key2);
+		return (pos != -1 && Arrays.binarySearch(values, offsets2[pos], offsets2[pos + 1], key3) >= 0);
+	}
+
+	/** Number of distinct keys in the first level **/
+	public int size() {
+		return (keys1.length);
+	}
+
+	/** Number of distinct second level keys for the given first level key **/
+	public int size(int key1) {
+		return (end(key1) - start(key1));
+	}
+
+	/** Number of third level values for the given first level key **/
+	public int count(int key1) {
+		int start = start(key1), end = end(key1);
+		return (start == end ? 0 : offsets2[end] - offsets2[start]);
+	}
+
+	/** Number of third level values for the given keys **/
+	public int size(int key1, int key2) {
+		int pos = find(key1, key2);
+		return (pos == -1 ? 0 : offsets2[pos + 1] - offsets2[pos]);
+	}
+
+	/** It returns the sorted keys of the first level. The array must not be modified. **/
+	public int[] keys() {
+		return (keys1);
+	}
+
+	/** It returns the sorted second level keys for the given first level key **/
+	public int[] keys(int key1) {
+		return (Arrays.copyOfRange(keys2, start(key1), end(key1)));
+	}
+
+	/** It returns the sorted third level values for the given keys **/
+	public int[] values(int key1, int key2) {
+		int pos = find(key1, key2);
+		return (pos == -1 ? new int[0] : Arrays.copyOfRange(values, offsets2[pos], offsets2[pos + 1]));
+	}
+}
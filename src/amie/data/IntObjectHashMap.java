@@ -0,0 +1,232 @@
+package amie.data;
+
+import java.util.Arrays;
+
+/**
+ * Class IntObjectHashMap
+ *
+ * A map from non-negative integers to objects backed by two parallel arrays.
+ * As in {@link IntHashSet}, small maps are scanned linearly and bigger maps
+ * become open addressing hash tables with linear probing. It is used for the first
+ * and second levels of the integer indexes of {@link EncodedKB}.
+ *
+ * @author lgalarra
+ *
+ * @param <V>
+ */
+public class IntObjectHashMap<V> {
+
+	/** Keys. Unused slots contain IntHashSet.EMPTY. **/
+	int[] keys;
+
+	/** Values, aligned with the keys **/
+	Object[] values;
+
+	/** Number of entries **/
+	int size;
+
+	public IntObjectHashMap() {
+		this(1);
+	}
+
+	/**
+	 * @param capacity Expected number of entries
+	 */
+	public IntObjectHashMap(int capacity) {
+		int length = capacity <= IntHashSet.LINEAR_THRESHOLD ?
+				Math.max(capacity, 1) : IntHashSet.tableSize(capacity);
+		keys = new int[length];
+		values = new Object[length];
+		Arrays.fill(keys, IntHashSet.EMPTY);
+	}
+
+	/**
+	 * TRUE if the entries are stored packed and scanned linearly.
+	 * @return
+	 */
+	private boolean isLinear() {
+		return (keys.length <= IntHashSet.LINEAR_THRESHOLD);
+	}
+
+	/** Number of entries in the map **/
+	public int size() {
+		return (size);
+	}
+
+	/** TRUE if the map has no entries **/
+	public boolean isEmpty() {
+		return (size == 0);
+	}
+
+	/**
+	 * It returns the slot of the given key or -1 if the key is not in the map.
+	 * @param key
+	 * @return
+	 */
+	private int find(int key) {
+		if (key < 0)
+			return (-1);
+
+		if (isLinear()) {
+			for (int i = 0; i < size; ++i) {
+				if (keys[i] == key)
+					return (i);
+			}
+			return (-1);
+		}
+
+		int mask = keys.length - 1;
+		for (int i = IntHashSet.hash(key) & mask; keys[i] != IntHashSet.EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == key)
+				return (i);
+		}
+		return (-1);
+	}
+
+	/**
+	 * It returns the value associated to the key or null if the key is not in the map.
+	 * @param key
+	 * @return
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int pos = find(key);
+		return (pos == -1 ? null : (V) values[pos]);
+	}
+
+	/**
+	 * TRUE if the map contains the given key
+	 * @param key
+	 * @return
+	 */
+	public boolean containsKey(int key) {
+		return (find(key) != -1);
+	}
+
+	/**
+	 * Associates a value to the key.
+	 * @param key A non-negative integer
+	 * @param value
+	 * @return The value previously associated to the key, null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value) {
+		if (key < 0)
+			throw new IllegalArgumentException("Only non-negative keys are supported: " + key);
+
+		int pos = find(key);
+		if (pos != -1) {
+			V old = (V) values[pos];
+			values[pos] = value;
+			return (old);
+		}
+
+		if (isLinear()) {
+			if (size < keys.length) {
+				keys[size] = key;
+				values[size++] = value;
+				return (null);
+			}
+
+			if (keys.length < IntHashSet.LINEAR_THRESHOLD) {
+				int length = Math.min(keys.length * 2, IntHashSet.LINEAR_THRESHOLD);
+				keys = Arrays.copyOf(keys, length);
+				values = Arrays.copyOf(values, length);
+				Arrays.fill(keys, size, length, IntHashSet.EMPTY);
+				keys[size] = key;
+				values[size++] = value;
+				return (null);
+			}
+
+			rehash(IntHashSet.tableSize(size + 1));
+		} else if ((size + 1) * 4 > keys.length * 3) {
+			rehash(keys.length * 2);
+		}
+
+		insert(keys, values, key, value);
+		++size;
+		return (null);
+	}
+
+	/**
+	 * Inserts a key that is not in the hash table.
+	 */
+	private static void insert(int[] keys, Object[] values, int key, Object value) {
+		int mask = keys.length - 1;
+		int i = IntHashSet.hash(key) & mask;
+		while (keys[i] != IntHashSet.EMPTY)
+			i = (i + 1) & mask;
+		keys[i] = key;
+		values[i] = value;
+	}
+
+	/**
+	 * It moves all the entries to a hash table of the given size.
+	 * @param newSize
+	 */
+	private void rehash(int newSize) {
+		int[] newKeys = new int[newSize];
+		Object[] newValues = new Object[newSize];
+		Arrays.fill(newKeys, IntHashSet.EMPTY);
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != IntHashSet.EMPTY)
+				insert(newKeys, newValues, keys[i], values[i]);
+		}
+		keys = newKeys;
+		values = newValues;
+	}
+
+	/**
+	 * Removes a key from the map.
+	 * @param key
+	 * @return The value associated to the key, null if the key was not in the map.
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(int key) {
+		int i = find(key);
+		if (i == -1)
+			return (null);
+
+		V old = (V) values[i];
+		if (isLinear()) {
+			keys[i] = keys[size - 1];
+			values[i] = values[size - 1];
+			keys[--size] = IntHashSet.EMPTY;
+			values[size] = null;
+			return (old);
+		}
+
+		// Backward shift deletion, see IntHashSet.remove
+		int mask = keys.length - 1;
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (keys[j] == IntHashSet.EMPTY)
+				break;
+			int k = IntHashSet.hash(keys[j]) & mask;
+			if (i <= j ? (i < k && k <= j) : (i < k || k <= j))
+				continue;
+			keys[i] = keys[j];
+			values[i] = values[j];
+			i = j;
+		}
+		keys[i] = IntHashSet.EMPTY;
+		values[i] = null;
+		--size;
+		return (old);
+	}
+
+	/**
+	 * It returns the keys of the map in a new array.
+	 * @return
+	 */
+	public int[] keys() {
+		int[] result = new int[size];
+		int n = 0;
+		for (int key : keys) {
+			if (key != IntHashSet.EMPTY)
+				result[n++] = key;
+		}
+		return (result);
+	}
+}
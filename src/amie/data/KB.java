@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
@@ -19,6 +20,14 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -66,6 +75,9 @@ public class KB {
 	/** Index */
 	protected final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> subject2object2relation = new IdentityHashMap<ByteString, Map<ByteString, IntHashMap<ByteString>>>();
 
+	/** Bit i is set if the index of the permutation with ordinal i is built **/
+	protected volatile int materializedPermutations = ALL_PERMUTATIONS;
+
 	/** Number of facts per subject */
 	protected final IntHashMap<ByteString> subjectSize = new IntHashMap<ByteString>();
 
@@ -94,8 +106,20 @@ public class KB {
 	 */
 	protected final Map<ByteString, IntHashMap<ByteString>> object2objectOverlap = new IdentityHashMap<ByteString, IntHashMap<ByteString>>();
 
-	/** Number of facts */
+	/** TRUE if the overlap tables have been built. They are then maintained on updates. **/
+	protected volatile boolean overlapTablesBuilt;
+
+	/** Number of facts. It is updated under the lock of relationSize. */
 	protected long size;
+
+	/** Approximate size in bytes of the chunks of the files loaded in parallel **/
+	protected int chunkSize = ChunkedLoader.CHUNK_SIZE;
+
+	/** Cache for the results of counting queries, null if disabled **/
+	protected QueryCache queryCache;
+
+	/** Statistics catalog for query planning, null until it is built **/
+	protected volatile KBStatistics statistics;
 	
 	// ---------------------------------------------------------------------------
 	// Constants
@@ -141,7 +165,7 @@ public class KB {
 	/** Variable sign (as defined in SPARQL) **/
 	public static final char VariableSign = '?';
 	
-	private static List<ByteString> specialRelations = Arrays.asList(DIFFERENTFROMbs, 
+	protected static List<ByteString> specialRelations = Arrays.asList(DIFFERENTFROMbs, 
 			EQUALSbs, EXISTSbs, EXISTSINVbs, NOTEXISTSbs, NOTEXISTSINVbs);
 
 	/** Identifiers for the overlap maps */
@@ -152,6 +176,20 @@ public class KB {
 	public static final int OBJECT2OBJECT = 4;
 	
 	public enum Column { Subject, Relation, Object };
+
+	/**
+	 * Permutations of the facts kept as indexes. The name gives the order of the
+	 * levels, e.g., RelationObjectSubject is the index relation -> object -> subject.
+	 */
+	public enum Permutation { SubjectRelationObject, RelationObjectSubject, ObjectSubjectRelation,
+		RelationSubjectObject, ObjectRelationSubject, SubjectObjectRelation };
+
+	/** Value of materializedPermutations when all the indexes are built **/
+	protected static final int ALL_PERMUTATIONS = (1 << Permutation.values().length) - 1;
+
+	/** Permutations used by conditional key mining **/
+	public static final Set<Permutation> KEY_MINING_PERMUTATIONS = Collections.unmodifiableSet(
+			EnumSet.of(Permutation.SubjectRelationObject, Permutation.RelationObjectSubject));
 	
 	public static final String hasNumberOfValuesEquals = "hasNumberOfValuesEquals";
 	
@@ -242,16 +280,38 @@ public class KB {
 	protected boolean add(ByteString subject, ByteString relation, ByteString object) {
 		if (!add(subject, relation, object, subject2relation2object))
 			return (false);
-		add(relation, object, subject, relation2object2subject);
-		add(object, subject, relation, object2subject2relation);
-		add(relation, subject, object, relation2subject2object);
-		add(object, relation, subject, object2relation2subject);
-		add(subject, object, relation, subject2object2relation);
+		if (materializedPermutations == ALL_PERMUTATIONS) {
+			add(relation, object, subject, relation2object2subject);
+			add(object, subject, relation, object2subject2relation);
+			add(relation, subject, object, relation2subject2object);
+			add(object, relation, subject, object2relation2subject);
+			add(subject, object, relation, subject2object2relation);
+		} else {
+			for (Permutation permutation : Permutation.values()) {
+				if (permutation != Permutation.SubjectRelationObject)
+					add(subject, relation, object, permutation);
+			}
+		}
+		updateCounters(subject, relation, object);
+		invalidateQueryCache();
+		return (true);
+	}
+
+	/**
+	 * It updates the number of facts per subject, relation and object, the total number of
+	 * facts and registers the relation in the overlap tables after a new fact has been added
+	 * to the indexes.
+	 * @param subject
+	 * @param relation
+	 * @param object
+	 */
+	protected void updateCounters(ByteString subject, ByteString relation, ByteString object) {
 		synchronized (subjectSize) {
 			subjectSize.increase(subject);
 		}
 		synchronized (relationSize) {
 			relationSize.increase(relation);
+			size++;
 		}
 		synchronized (objectSize) {
 			objectSize.increase(object);
@@ -284,8 +344,7 @@ public class KB {
 			}
 		}
 
-		size++;
-		return (true);
+		updateOverlaps(subject, relation, object, 1);
 	}
 	
 
@@ -295,9 +354,9 @@ public class KB {
 	 */
 	public int add(KB otherKb) {
 		int count = 0;
-		for (ByteString subject: otherKb.subject2relation2object.keySet()) {
+		for (ByteString subject: otherKb.subjectSize) {
 			Map<ByteString, IntHashMap<ByteString>> subjectMap = 
-					otherKb.subject2relation2object.get(subject);
+					otherKb.get(otherKb.subject2relation2object, subject);
 			for (ByteString relation : subjectMap.keySet()) {
 				for (ByteString object : subjectMap.get(relation)) {
 					if (this.add(subject, relation, object))
@@ -308,6 +367,195 @@ public class KB {
 		return count;
 	}
 
+	// ---------------------------------------------------------------------------
+	// Permutations
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It declares the permutations whose indexes are filled when facts are added,
+	 * e.g., KEY_MINING_PERMUTATIONS. The other indexes are built from the index
+	 * subject -> relation -> object, which is always kept, the first time they are
+	 * used. Built indexes of permutations that are not declared are dropped, so
+	 * the method should be called before loading the facts.
+	 * @param permutations
+	 */
+	public synchronized void setPermutations(Set<Permutation> permutations) {
+		for (Permutation permutation : Permutation.values()) {
+			if (permutation == Permutation.SubjectRelationObject)
+				continue;
+			if (permutations.contains(permutation))
+				materialize(permutation);
+			else if (isMaterialized(permutation))
+				dropPermutation(permutation);
+		}
+	}
+
+	/**
+	 * It returns the permutations whose indexes are built.
+	 * @return
+	 */
+	public Set<Permutation> getPermutations() {
+		Set<Permutation> result = EnumSet.noneOf(Permutation.class);
+		for (Permutation permutation : Permutation.values()) {
+			if (isMaterialized(permutation))
+				result.add(permutation);
+		}
+		return (result);
+	}
+
+	/** TRUE if the index of the permutation is built **/
+	public boolean isMaterialized(Permutation permutation) {
+		return ((materializedPermutations & (1 << permutation.ordinal())) != 0);
+	}
+
+	/**
+	 * It builds the index of the permutation if it is not built.
+	 * @param permutation
+	 */
+	public void materialize(Permutation permutation) {
+		if (isMaterialized(permutation))
+			return;
+		synchronized (this) {
+			if (!isMaterialized(permutation))
+				buildPermutation(permutation);
+		}
+	}
+
+	/**
+	 * It marks the index of a permutation as built or dropped.
+	 */
+	protected void setMaterialized(Permutation permutation, boolean materialized) {
+		if (materialized)
+			materializedPermutations |= 1 << permutation.ordinal();
+		else
+			materializedPermutations &= ~(1 << permutation.ordinal());
+	}
+
+	/**
+	 * It fills the index of a permutation with the facts of the index
+	 * subject -> relation -> object and marks it as built.
+	 * @param permutation
+	 */
+	protected void buildPermutation(Permutation permutation) {
+		Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map = getIndex(permutation);
+		synchronized (map) {
+			// Facts added meanwhile are inserted again by add(), which has no effect
+			synchronized (subject2relation2object) {
+				for (Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>> subjectEntry : 
+					subject2relation2object.entrySet()) {
+					for (Map.Entry<ByteString, IntHashMap<ByteString>> relationEntry : 
+						subjectEntry.getValue().entrySet()) {
+						for (ByteString object : relationEntry.getValue())
+							add(subjectEntry.getKey(), relationEntry.getKey(), object, permutation, map);
+					}
+				}
+			}
+			setMaterialized(permutation, true);
+		}
+	}
+
+	/**
+	 * It empties the index of a permutation and marks it as not built.
+	 * @param permutation
+	 */
+	protected void dropPermutation(Permutation permutation) {
+		Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map = getIndex(permutation);
+		synchronized (map) {
+			setMaterialized(permutation, false);
+			map.clear();
+		}
+	}
+
+	/**
+	 * It adds a fact to the index of a permutation if the index is built.
+	 */
+	private void add(ByteString subject, ByteString relation, ByteString object, 
+			Permutation permutation) {
+		Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map = getIndex(permutation);
+		synchronized (map) {
+			if (isMaterialized(permutation))
+				add(subject, relation, object, permutation, map);
+		}
+	}
+
+	/**
+	 * It adds a fact to the map of a permutation, in the order of its levels.
+	 */
+	private void add(ByteString subject, ByteString relation, ByteString object, 
+			Permutation permutation, Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map) {
+		switch (permutation) {
+		case SubjectRelationObject :
+			add(subject, relation, object, map);
+			break;
+		case RelationObjectSubject :
+			add(relation, object, subject, map);
+			break;
+		case ObjectSubjectRelation :
+			add(object, subject, relation, map);
+			break;
+		case RelationSubjectObject :
+			add(relation, subject, object, map);
+			break;
+		case ObjectRelationSubject :
+			add(object, relation, subject, map);
+			break;
+		case SubjectObjectRelation :
+			add(subject, object, relation, map);
+			break;
+		}
+	}
+
+	/**
+	 * It returns the map that stores the index of a permutation. The index may not be built.
+	 * @param permutation
+	 * @return
+	 */
+	protected Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> getIndex(Permutation permutation) {
+		switch (permutation) {
+		case SubjectRelationObject :
+			return (subject2relation2object);
+		case RelationObjectSubject :
+			return (relation2object2subject);
+		case ObjectSubjectRelation :
+			return (object2subject2relation);
+		case RelationSubjectObject :
+			return (relation2subject2object);
+		case ObjectRelationSubject :
+			return (object2relation2subject);
+		default :
+			return (subject2object2relation);
+		}
+	}
+
+	/**
+	 * It returns the permutation stored by the map, null if the map is not an index.
+	 * @param map
+	 * @return
+	 */
+	protected Permutation getPermutation(Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map) {
+		for (Permutation permutation : Permutation.values()) {
+			if (map == getIndex(permutation))
+				return (permutation);
+		}
+		return (null);
+	}
+
+	/**
+	 * It builds the index stored by the map if it is not built yet.
+	 * Lookups must call it before accessing an index.
+	 * @param map
+	 * @return The map
+	 */
+	protected Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> materialized(
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map) {
+		if (materializedPermutations != ALL_PERMUTATIONS) {
+			Permutation permutation = getPermutation(map);
+			if (permutation != null)
+				materialize(permutation);
+		}
+		return (map);
+	}
+
 	/** 
 	 * Returns the number of facts in the KB. 
 	 **/
@@ -360,8 +608,9 @@ public class KB {
 	
 
 	/**
-	 * It clears the overlap tables and rebuilds them. Recommended when new facts has been added
-	 * to the KB after the initial loading.
+	 * It clears the overlap tables and rebuilds them. The tables are maintained
+	 * on add() and delete() once they are built, so this is only needed if the
+	 * indexes were modified by other means.
 	 */
 	public void rebuildOverlapTables() {
 		resetOverlapTables(); 
@@ -372,6 +621,7 @@ public class KB {
 	 * It clears all overlap tables.
 	 */
 	private void resetOverlapTables() {
+		overlapTablesBuilt = false;
 		resetMap(subject2subjectOverlap);
 		resetMap(subject2objectOverlap);
 		resetMap(object2objectOverlap);
@@ -391,56 +641,252 @@ public class KB {
 	/**
 	 * It builds the overlap tables for relations. They contain the number of subjects and
 	 * objects in common between pairs of relations. They can be used for join cardinality estimation.
+	 * The subjects and objects of each relation are turned into sorted arrays of identifiers,
+	 * which are intersected by merging in parallel, one relation per task.
 	 */
 	public void buildOverlapTables() {
-		for (ByteString r1 : relationSize) {
-			Set<ByteString> subjects1 = relation2subject2object.get(r1)
-					.keySet();
-			Set<ByteString> objects1 = relation2object2subject.get(r1)
-					.keySet();
-			for (ByteString r2 : relationSize) {
-				Set<ByteString> subjects2 = relation2subject2object.get(r2)
-						.keySet();
-				Set<ByteString> objects2 = relation2object2subject.get(r2)
-						.keySet();
-
-				if (!r1.equals(r2)) {
-					int ssoverlap = computeOverlap(subjects1, subjects2);
-					subject2subjectOverlap.get(r1).put(r2, ssoverlap);
-					subject2subjectOverlap.get(r2).put(r1, ssoverlap);
-				} else {
-					subject2subjectOverlap.get(r1).put(r1, subjects2.size());
-				}
-
-				int soverlap1 = computeOverlap(subjects1, objects2);
-				subject2objectOverlap.get(r1).put(r2, soverlap1);
-				int soverlap2 = computeOverlap(subjects2, objects1);
-				subject2objectOverlap.get(r2).put(r1, soverlap2);
+		final List<ByteString> relations = new ArrayList<ByteString>();
+		for (ByteString relation : relationSize)
+			relations.add(relation);
+		final int n = relations.size();
+		final int[][] subjects = new int[n][];
+		final int[][] objects = new int[n][];
+		sortedColumns(relations, subjects, objects);
+
+		// Row i of the symmetric tables only contains the relations j >= i
+		final List<IntHashMap<ByteString>> ssRows = new ArrayList<>(Collections.nCopies(n, (IntHashMap<ByteString>) null));
+		final List<IntHashMap<ByteString>> soRows = new ArrayList<>(ssRows);
+		final List<IntHashMap<ByteString>> ooRows = new ArrayList<>(ssRows);
+		final AtomicInteger next = new AtomicInteger();
+		int nThreads = Math.max(1, Math.min(n, Runtime.getRuntime().availableProcessors()));
+		ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int t = 0; t < nThreads; ++t) {
+				results.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						for (int i = next.getAndIncrement(); i < n; i = next.getAndIncrement()) {
+							IntHashMap<ByteString> ss = new IntHashMap<>();
+							IntHashMap<ByteString> so = new IntHashMap<>();
+							IntHashMap<ByteString> oo = new IntHashMap<>();
+							for (int j = 0; j < n; ++j) {
+								ByteString r2 = relations.get(j);
+								so.put(r2, intersectionSize(subjects[i], objects[j]));
+								if (j > i) {
+									ss.put(r2, intersectionSize(subjects[i], subjects[j]));
+									oo.put(r2, intersectionSize(objects[i], objects[j]));
+								}
+							}
+							ss.put(relations.get(i), subjects[i].length);
+							oo.put(relations.get(i), objects[i].length);
+							ssRows.set(i, ss);
+							soRows.set(i, so);
+							ooRows.set(i, oo);
+						}
+					}
+				}));
+			}
+			for (Future<?> result : results)
+				result.get();
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while building the overlap tables", e);
+		} finally {
+			executor.shutdownNow();
+		}
 
-				if (!r1.equals(r2)) {
-					int oooverlap = computeOverlap(objects1, objects2);
-					object2objectOverlap.get(r1).put(r2, oooverlap);
-					object2objectOverlap.get(r2).put(r1, oooverlap);
-				} else {
-					object2objectOverlap.get(r1).put(r1, objects2.size());
+		synchronized (subject2subjectOverlap) {
+			for (int i = 0; i < n; ++i) {
+				ByteString r1 = relations.get(i);
+				subject2subjectOverlap.put(r1, ssRows.get(i));
+				subject2objectOverlap.put(r1, soRows.get(i));
+				object2objectOverlap.put(r1, ooRows.get(i));
+			}
+			for (int i = 0; i < n; ++i) {
+				ByteString r1 = relations.get(i);
+				for (int j = i + 1; j < n; ++j) {
+					ByteString r2 = relations.get(j);
+					subject2subjectOverlap.get(r2).put(r1, ssRows.get(i).get(r2));
+					object2objectOverlap.get(r2).put(r1, ooRows.get(i).get(r2));
 				}
 			}
+			overlapTablesBuilt = true;
+		}
+	}
+
+	/** TRUE if the overlap tables have been built **/
+	public boolean hasOverlapTables() {
+		return (overlapTablesBuilt);
+	}
+
+	/**
+	 * It stores in subjects[i] and objects[i] the sorted identifiers of the subjects 
+	 * and objects of the i-th relation. The identifiers are only used to intersect
+	 * the arrays.
+	 * @param relations
+	 * @param subjects
+	 * @param objects
+	 */
+	protected void sortedColumns(List<ByteString> relations, int[][] subjects, int[][] objects) {
+		Map<ByteString, Integer> ids = new IdentityHashMap<>();
+		for (int i = 0; i < relations.size(); ++i) {
+			subjects[i] = identifiers(get(relation2subject2object, relations.get(i)).keySet(), ids);
+			objects[i] = identifiers(get(relation2object2subject, relations.get(i)).keySet(), ids);
+		}
+	}
+
+	/**
+	 * It returns the sorted identifiers of the entities, assigning new identifiers
+	 * to the entities that do not have one.
+	 */
+	private static int[] identifiers(Set<ByteString> entities, Map<ByteString, Integer> ids) {
+		int[] result = new int[entities.size()];
+		int n = 0;
+		for (ByteString entity : entities) {
+			Integer id = ids.get(entity);
+			if (id == null)
+				ids.put(entity, id = ids.size());
+			result[n++] = id;
 		}
+		Arrays.sort(result);
+		return (result);
 	}
 
 	/**
-	 * Calculates the number of elements in the intersection of two sets of ByteStrings.
-	 * @param s1
-	 * @param s2
+	 * Calculates the number of elements in the intersection of two sorted arrays. If one
+	 * array is much smaller, its elements are searched in the other one.
+	 * @param a
+	 * @param b
 	 * @return
 	 */
-	private static int computeOverlap(Set<ByteString> s1, Set<ByteString> s2) {
+	static int intersectionSize(int[] a, int[] b) {
+		if (a.length > b.length)
+			return (intersectionSize(b, a));
 		int overlap = 0;
-		for (ByteString r : s1) {
-			if (s2.contains(r))
+		if (a.length * 32L < b.length) {
+			int from = 0;
+			for (int value : a) {
+				int pos = Arrays.binarySearch(b, from, b.length, value);
+				if (pos >= 0) {
+					++overlap;
+					from = pos + 1;
+				} else {
+					from = -pos - 1;
+				}
+				if (from == b.length)
+					break;
+			}
+			return (overlap);
+		}
+		int i = 0, j = 0;
+		while (i < a.length && j < b.length) {
+			if (a[i] < b[j]) {
+				++i;
+			} else if (a[i] > b[j]) {
+				++j;
+			} else {
 				++overlap;
+				++i;
+				++j;
+			}
 		}
-		return overlap;
+		return (overlap);
+	}
+
+	/**
+	 * It updates the overlap tables, if they have been built, after a fact has been 
+	 * added to (delta = 1) or removed from (delta = -1) the indexes. The subject
+	 * enters (leaves) the subjects of the relation before the object enters (leaves)
+	 * its objects, so that each pair of columns is updated once per value.
+	 * @param subject
+	 * @param relation
+	 * @param object
+	 * @param delta
+	 */
+	protected void updateOverlaps(ByteString subject, ByteString relation, ByteString object, int delta) {
+		if (!overlapTablesBuilt)
+			return;
+		// Degree of the values in the relation when they enter or leave the columns
+		int threshold = delta > 0 ? 1 : 0;
+		boolean newSubject = columnDegree(relation, subject, 0) == threshold;
+		boolean newObject = columnDegree(relation, object, 2) == threshold;
+		if (!newSubject && !newObject)
+			return;
+
+		synchronized (subject2subjectOverlap) {
+			if (delta > 0 && !subject2subjectOverlap.get(relation).containsKey(relation))
+				registerOverlaps(relation);
+			// While the subject moves, the object is still in (not yet in) the objects of the relation
+			boolean objectPending = newObject && subject.equals(object);
+			if (newSubject) {
+				for (ByteString other : relationsOf(subject, 0)) {
+					if (other != relation)
+						subject2subjectOverlap.get(other).add(relation, delta);
+					subject2subjectOverlap.get(relation).add(other, delta);
+				}
+				if (delta < 0)
+					subject2subjectOverlap.get(relation).add(relation, delta);
+				for (ByteString other : relationsOf(subject, 2)) {
+					if (other != relation || !objectPending)
+						subject2objectOverlap.get(relation).add(other, delta);
+				}
+				if (delta < 0 && objectPending)
+					subject2objectOverlap.get(relation).add(relation, delta);
+			}
+			if (newObject) {
+				for (ByteString other : relationsOf(object, 2)) {
+					if (other != relation)
+						object2objectOverlap.get(other).add(relation, delta);
+					object2objectOverlap.get(relation).add(other, delta);
+				}
+				if (delta < 0)
+					object2objectOverlap.get(relation).add(relation, delta);
+				for (ByteString other : relationsOf(object, 0))
+					subject2objectOverlap.get(other).add(relation, delta);
+			}
+		}
+	}
+
+	/**
+	 * It adds the entries of a new relation, with overlap 0, to the overlap tables.
+	 */
+	private void registerOverlaps(ByteString relation) {
+		for (Map<ByteString, IntHashMap<ByteString>> table : Arrays.asList(
+				subject2subjectOverlap, subject2objectOverlap, object2objectOverlap)) {
+			IntHashMap<ByteString> row = table.get(relation);
+			for (ByteString other : table.keySet()) {
+				row.put(other, 0);
+				table.get(other).put(relation, 0);
+			}
+		}
+	}
+
+	/**
+	 * It returns the number of facts of the relation with the value as subject
+	 * (position 0) or object (position 2).
+	 * @param relation
+	 * @param value
+	 * @param position
+	 * @return
+	 */
+	protected int columnDegree(ByteString relation, ByteString value, int position) {
+		return (get(position == 0 ? relation2subject2object : relation2object2subject,
+				relation, value).size());
+	}
+
+	/**
+	 * It returns the relations that have the value as subject (position 0) or
+	 * object (position 2).
+	 * @param value
+	 * @param position
+	 * @return
+	 */
+	protected Collection<ByteString> relationsOf(ByteString value, int position) {
+		return (get(position == 0 ? subject2relation2object : object2relation2subject,
+				value).keySet());
 	}
 
 	/**
@@ -465,45 +911,134 @@ public class KB {
 		long time = System.currentTimeMillis();
 		long memory = Runtime.getRuntime().freeMemory();
 		Announce.doing("Loading files");
-		final int[] running = new int[1];
-		for (final File file : files) {
-			running[0]++;
-			new Thread() {
-				public void run() {
-					try {
-						synchronized (Announce.blanks) {
-							Announce.message("Starting " + file.getName());
-						}
-						load(file, null);
-					} catch (Exception e) {
-						e.printStackTrace();
+		loadFacts(files);
+		buildStatistics();
+		
+		Announce.done("Loaded " + (size() - size) + " facts in "
+				+ NumberFormatter.formatMS(System.currentTimeMillis() - time)
+				+ " using "
+				+ ((Runtime.getRuntime().freeMemory() - memory) / 1000000)
+				+ " MB");
+	}
+	
+	/**
+	 * It sets the approximate size in bytes of the chunks that are parsed in parallel
+	 * when files are loaded (see {@link ChunkedLoader}).
+	 * @param chunkSize
+	 */
+	public void setChunkSize(int chunkSize) {
+		if (chunkSize < 1)
+			throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+		this.chunkSize = chunkSize;
+	}
+
+	public int getChunkSize() {
+		return (chunkSize);
+	}
+
+	/**
+	 * It loads the facts of the given files in parallel (see {@link ChunkedLoader}).
+	 * Each chunk is parsed into a partial index subject -> relation -> object without
+	 * synchronization, and the partial index is merged into the KB once the chunk is
+	 * done (see {@link #addAll(Map)}). Subclasses can override it to build their indexes 
+	 * in bulk.
+	 * @param files
+	 * @throws IOException
+	 */
+	protected void loadFacts(List<File> files) throws IOException {
+		ChunkedLoader.load(files, new ChunkedLoader.SinkFactory() {
+			@Override
+			protected ChunkedLoader.FactSink newSink() {
+				return (new ChunkedLoader.FactSink() {
+					private final Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> partialIndex = 
+							new IdentityHashMap<>();
+
+					@Override
+					protected void add(ByteString subject, ByteString relation, ByteString object) {
+						KB.this.add(subject, relation, object, partialIndex);
 					}
-					synchronized (Announce.blanks) {
-						Announce.message("Finished " + file.getName()
-								+ ", still running: " + (running[0] - 1));
-						synchronized (running) {
-							if (--running[0] == 0) {
-								running.notify();
-							}
+
+					@Override
+					protected void close() {
+						addAll(partialIndex);
+					}
+				});
+			}
+		}, Runtime.getRuntime().availableProcessors(), chunkSize);
+		// The overlap tables are maintained fact by fact, so they are rebuilt once
+		if (overlapTablesBuilt)
+			rebuildOverlapTables();
+	}
+
+	/**
+	 * It adds the facts of a partial index subject -> relation -> object. Unlike
+	 * add(), it takes the lock of each index and counter once for all the facts.
+	 * The overlap tables are not maintained, the caller must rebuild them if they
+	 * are built.
+	 * @param partialIndex
+	 * @return The number of facts that did not exist before
+	 */
+	protected int addAll(Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> partialIndex) {
+		// The new facts, 3 values per fact
+		List<ByteString> added = new ArrayList<>();
+		synchronized (subject2relation2object) {
+			for (Map.Entry<ByteString, Map<ByteString, IntHashMap<ByteString>>> subjectEntry : 
+				partialIndex.entrySet()) {
+				for (Map.Entry<ByteString, IntHashMap<ByteString>> relationEntry : 
+					subjectEntry.getValue().entrySet()) {
+					for (ByteString object : relationEntry.getValue()) {
+						if (add(subjectEntry.getKey(), relationEntry.getKey(), object, subject2relation2object)) {
+							added.add(subjectEntry.getKey());
+							added.add(relationEntry.getKey());
+							added.add(object);
 						}
 					}
 				}
-			}.start();
+			}
 		}
+		if (added.isEmpty())
+			return (0);
 
-		try {
-			synchronized (running) {
-				running.wait();
+		for (Permutation permutation : Permutation.values()) {
+			if (permutation == Permutation.SubjectRelationObject)
+				continue;
+			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map = getIndex(permutation);
+			synchronized (map) {
+				if (!isMaterialized(permutation))
+					continue;
+				for (int i = 0; i < added.size(); i += 3)
+					add(added.get(i), added.get(i + 1), added.get(i + 2), permutation, map);
 			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
-		
-		Announce.done("Loaded " + (size() - size) + " facts in "
-				+ NumberFormatter.formatMS(System.currentTimeMillis() - time)
-				+ " using "
-				+ ((Runtime.getRuntime().freeMemory() - memory) / 1000000)
-				+ " MB");
+
+		int nFacts = added.size() / 3;
+		synchronized (subjectSize) {
+			for (int i = 0; i < added.size(); i += 3)
+				subjectSize.increase(added.get(i));
+		}
+		Set<ByteString> relations = Collections.newSetFromMap(new IdentityHashMap<ByteString, Boolean>());
+		synchronized (relationSize) {
+			for (int i = 1; i < added.size(); i += 3) {
+				relationSize.increase(added.get(i));
+				relations.add(added.get(i));
+			}
+			size += nFacts;
+		}
+		synchronized (objectSize) {
+			for (int i = 2; i < added.size(); i += 3)
+				objectSize.increase(added.get(i));
+		}
+		for (Map<ByteString, IntHashMap<ByteString>> table : Arrays.asList(
+				subject2subjectOverlap, subject2objectOverlap, object2objectOverlap)) {
+			synchronized (table) {
+				for (ByteString relation : relations) {
+					if (!table.containsKey(relation))
+						table.put(relation, new IntHashMap<ByteString>());
+				}
+			}
+		}
+		invalidateQueryCache();
+		return (nFacts);
 	}
 	
 	/**
@@ -549,6 +1084,7 @@ public class KB {
 		Announce.doing("Loading files");
 		for (File file : files)
 			load(file);
+		buildStatistics();
 		Announce.done("Loaded " + (size() - size) + " facts in "
 				+ NumberFormatter.formatMS(System.currentTimeMillis() - time)
 				+ " using "
@@ -568,8 +1104,8 @@ public class KB {
 		if (relation.equals(EQUALSbs)) {
 			return 1.0;
 		} else {
-			if (relation2subject2object.containsKey(relation)) {
-				return ((double) relation2subject2object.get(relation).size() / relationSize
+			if (relationSize.containsKey(relation)) {
+				return ((double) get(relation2subject2object, relation).size() / relationSize
 					.get(relation));
 			} else {
 				throw new IllegalArgumentException("The relation " + relation + " was not found in the KB");
@@ -593,8 +1129,8 @@ public class KB {
 		if (relation.equals(EQUALSbs)) {
 			return 1.0;
 		} else {
-			if (relation2object2subject.containsKey(relation)) {
-				return ((double) relation2object2subject.get(relation).size() / relationSize
+			if (relationSize.containsKey(relation)) {
+				return ((double) get(relation2object2subject, relation).size() / relationSize
 						.get(relation));
 			} else {
 				throw new IllegalArgumentException("The relation " + relation + " was not found in the KB");
@@ -674,7 +1210,7 @@ public class KB {
 		// Now compute the formula
 		double sum = 0.0;
 		Map<ByteString, IntHashMap<ByteString>> targetMap = 
-				relation2object2subject.get(relation);
+				get(relation2object2subject, relation);
 		for (ByteString object : targetMap.keySet()) {
 			sum += Math.pow(avg - targetMap.get(object).size(), 2.0);
 		}
@@ -694,7 +1230,7 @@ public class KB {
 		// Now compute the formula
 		double sum = 0.0;
 		Map<ByteString, IntHashMap<ByteString>> targetMap = 
-				relation2subject2object.get(relation);
+				get(relation2subject2object, relation);
 		for (ByteString subject : targetMap.keySet()) {
 			sum += Math.pow(avg - targetMap.get(subject).size(), 2.0);
 		}
@@ -748,15 +1284,64 @@ public class KB {
 	public int relationColumnSize(ByteString relation, Column column) {
 		switch (column) {
 		case Subject:
-			return relation2subject2object.get(relation).size();
+			return get(relation2subject2object, relation).size();
 		case Object:
-			return relation2object2subject.get(relation).size();
+			return get(relation2object2subject, relation).size();
 		default:
 			throw new IllegalArgumentException(
 					"Argument column can be 0 (subject) or 2 (object)");
 		}
 	}
 
+	/**
+	 * It builds the statistics catalog used to plan queries with several atoms.
+	 * It is called after loading files and must be called again if the KB is
+	 * modified afterwards (otherwise it is rebuilt once the number of facts has
+	 * changed significantly).
+	 */
+	public void buildStatistics() {
+		KBStatistics catalog = new KBStatistics(this);
+		collectStatistics(catalog);
+		catalog.setSize(size());
+		statistics = catalog;
+	}
+
+	/**
+	 * It returns the statistics catalog of the KB. The catalog is built if it
+	 * does not exist or the KB has changed too much since it was built.
+	 * @return
+	 */
+	public KBStatistics getStatistics() {
+		KBStatistics catalog = statistics;
+		if (catalog == null || catalog.isStale(size())) {
+			synchronized (this) {
+				catalog = statistics;
+				if (catalog == null || catalog.isStale(size())) {
+					buildStatistics();
+					catalog = statistics;
+				}
+			}
+		}
+		return (catalog);
+	}
+
+	/**
+	 * It registers the degrees of the subjects and objects of every relation
+	 * in the catalog.
+	 * @param catalog
+	 */
+	protected void collectStatistics(KBStatistics catalog) {
+		for (ByteString subject : subjectSize) {
+			for (Map.Entry<ByteString, IntHashMap<ByteString>> entry : 
+				get(subject2relation2object, subject).entrySet())
+				catalog.add(entry.getKey(), 0, entry.getValue().size());
+		}
+		for (ByteString relation : relationSize) {
+			for (IntHashMap<ByteString> subjects : get(relation2object2subject, relation).values())
+				catalog.add(relation, 2, subjects.size());
+		}
+	}
+
 	// ---------------------------------------------------------------------------
 	// Single triple selections
 	// ---------------------------------------------------------------------------
@@ -816,7 +1401,7 @@ public class KB {
 	protected IntHashMap<ByteString> get(
 			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map,
 			ByteString key1, ByteString key2) {
-		Map<ByteString, IntHashMap<ByteString>> m = map.get(key1);
+		Map<ByteString, IntHashMap<ByteString>> m = materialized(map).get(key1);
 		if (m == null)
 			return (new IntHashMap<>());
 		IntHashMap<ByteString> r = m.get(key2);
@@ -835,7 +1420,7 @@ public class KB {
 	protected Map<ByteString, IntHashMap<ByteString>> get(
 			Map<ByteString, Map<ByteString, IntHashMap<ByteString>>> map,
 			ByteString key) {
-		Map<ByteString, IntHashMap<ByteString>> m = map.get(key);
+		Map<ByteString, IntHashMap<ByteString>> m = materialized(map).get(key);
 		if (m == null)
 			return (Collections.emptyMap());
 		else
@@ -1147,7 +1732,7 @@ public class KB {
 					"Cannot query with differentFrom: " + toString(triple));
 		if (triple[1].equals(EQUALSbs)) {
 			Map<ByteString, IntHashMap<ByteString>> result = new HashMap<>();
-			for (ByteString entity : subject2object2relation.keySet()) {
+			for (ByteString entity : subjectSize) {
 				IntHashMap<ByteString> innerResult = new IntHashMap<>();
 				innerResult.add(entity);
 				result.put(entity, innerResult);
@@ -1159,9 +1744,9 @@ public class KB {
 					triple[1].equals(EXISTSbs) ? relation2subject2object
 							: relation2object2subject;
 			Map<ByteString, IntHashMap<ByteString>> result = new HashMap<>();
-			for (ByteString relation : map.keySet()) {
+			for (ByteString relation : relationSize) {
 				IntHashMap<ByteString> innerResult = new IntHashMap<>();
-				innerResult.addAll(map.get(relation).keySet());
+				innerResult.addAll(get(map, relation).keySet());
 				result.put(relation, innerResult);
 			}
 			return (result);
@@ -1172,10 +1757,10 @@ public class KB {
 					triple[1].equals(NOTEXISTSbs) ? relation2subject2object
 							: relation2object2subject;
 			Map<ByteString, IntHashMap<ByteString>> result = new HashMap<>();
-			for (ByteString relation : map.keySet()) {
+			for (ByteString relation : relationSize) {
 				Set<ByteString> uMap = triple[1].equals(NOTEXISTSbs) ? 
 						new LinkedHashSet<>(subjectSize) : new LinkedHashSet<>(objectSize);				
-				uMap.removeAll(map.get(relation).keySet());	
+				uMap.removeAll(get(map, relation).keySet());	
 				result.put(relation, new IntHashMap<>(uMap));
 			}	
 			return result;
@@ -1247,13 +1832,13 @@ public class KB {
 			switch (varPos2) {
 			case 1 :
 				if (varPos3 == 2)
-					return subject2relation2object;
+					return materialized(subject2relation2object);
 				else
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 							+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);
 			case 2 :
 				if (varPos3 == 1)
-					return subject2object2relation;
+					return materialized(subject2object2relation);
 				else
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 							+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);
@@ -1265,13 +1850,13 @@ public class KB {
 			switch (varPos2) {
 			case 0 :
 				if (varPos3 == 2)
-					return relation2subject2object;
+					return materialized(relation2subject2object);
 				else 
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 								+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);
 			case 2 :
 				if (varPos3 == 0) 
-					return relation2object2subject;
+					return materialized(relation2object2subject);
 				else
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 							+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);					
@@ -1283,13 +1868,13 @@ public class KB {
 			switch (varPos2) {
 			case 0 :
 				if (varPos3 == 1)
-					return object2subject2relation;
+					return materialized(object2subject2relation);
 				else
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 							+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);
 			case 1 :
 				if (varPos3 == 0)
-					return object2relation2subject;
+					return materialized(object2relation2subject);
 				else
 					throw new IllegalArgumentException("Invalid combination of variables in " + toString(triple)
 							+ " pos1 = " + varPos1 + " pos2=" + varPos2 + " pos3=" + varPos3);
@@ -1414,7 +1999,7 @@ public class KB {
 		if (triple[1].equals(DIFFERENTFROMbs))
 			return (Long.MAX_VALUE);
 		if (triple[1].equals(EQUALSbs))
-			return (subject2relation2object.size());
+			return (subjectSize.size());
 		if (triple[1].equals(EXISTSbs)) {
 			long count = 0;
 			for (ByteString relation : relationSize) {
@@ -1523,14 +2108,19 @@ public class KB {
 	/**
 	 * It returns the index of the most restrictive triple, -1 if most restrictive has count 0.
 	 * The most restrictive triple is the one that contains the smallest number of satisfying
-	 * instantiations.
+	 * instantiations. On queries with more than two triples, the choice takes into account
+	 * the estimated number of bindings of the joins with the other triples 
+	 * (see {@link KBStatistics}).
 	 **/
 	protected int mostRestrictiveTriple(List<ByteString[]> triples) {
 		int bestPos = -1;
 		long count = Long.MAX_VALUE;
+		long[] counts = triples.size() > 2 ? new long[triples.size()] : null;
 		for (int i = 0; i < triples.size(); i++) {
 			long myCount = isSpecialAtom(triples.get(i)) ? Long.MAX_VALUE - 1 :
 				count(triples.get(i));
+			if (counts != null)
+				counts[i] = myCount;
 			if (myCount >= count)
 				continue;
 			if (myCount == 0)
@@ -1538,16 +2128,58 @@ public class KB {
 			bestPos = i;
 			count = myCount;
 		}
+		if (counts != null && bestPos != -1 && count >= KBStatistics.MIN_MATCHES) {
+			int cheapest = cheapestTriple(triples, counts);
+			// Triples without constants are only chosen if they are the most restrictive
+			if (cheapest != -1 && numVariables(triples.get(cheapest)) < 3)
+				bestPos = cheapest;
+		}
 		return (bestPos);
 	}
 
+	/**
+	 * It returns the index of the triple to evaluate first according to the 
+	 * statistics catalog.
+	 * @param triples
+	 * @param counts Number of instantiations of each triple
+	 */
+	private int cheapestTriple(List<ByteString[]> triples, long[] counts) {
+		KBStatistics catalog = getStatistics();
+		int n = triples.size();
+		ByteString[] relations = new ByteString[n];
+		int[] terms = new int[2 * n];
+		List<ByteString> variables = new ArrayList<>();
+		for (int i = 0; i < n; ++i) {
+			ByteString[] triple = triples.get(i);
+			relations[i] = isVariable(triple[1]) || isSpecialAtom(triple) ? null : triple[1];
+			terms[2 * i] = variableId(triple[0], variables);
+			terms[2 * i + 1] = variableId(triple[2], variables);
+		}
+		return (catalog.cheapest(relations, terms, counts));
+	}
+
+	/**
+	 * It returns the position of the variable in the list, adding it if necessary,
+	 * or -1 if the term is a constant.
+	 */
+	private static int variableId(ByteString term, List<ByteString> variables) {
+		if (!isVariable(term))
+			return (-1);
+		int id = variables.indexOf(term);
+		if (id == -1) {
+			id = variables.size();
+			variables.add(term);
+		}
+		return (id);
+	}
+
 	/**
 	 * Returns true if the atom includes any of the special non-materialized relations.
 	 * This types of relations are normally computed in the KB.
 	 * @param byteStrings
 	 * @return
 	 */
-	private boolean isSpecialAtom(ByteString[] atom) {
+	protected boolean isSpecialAtom(ByteString[] atom) {
 		return specialRelations.contains(atom[1]) ||
 				parseCardinalityRelation(atom[1]) != null;
 	}
@@ -1735,6 +2367,32 @@ public class KB {
 		}
 	}
 
+	// ---------------------------------------------------------------------------
+	// Query cache
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It sets the cache for the results of countDistinct, countProjection and
+	 * countDistinctPairs on queries with several atoms. Null disables the cache.
+	 * @param queryCache
+	 */
+	public void setQueryCache(QueryCache queryCache) {
+		this.queryCache = queryCache;
+	}
+
+	public QueryCache getQueryCache() {
+		return (queryCache);
+	}
+
+	/**
+	 * It removes the cached results. It must be called whenever the facts change.
+	 */
+	protected void invalidateQueryCache() {
+		QueryCache cache = queryCache;
+		if (cache != null)
+			cache.clear();
+	}
+
 	// ---------------------------------------------------------------------------
 	// Count Distinct
 	// ---------------------------------------------------------------------------
@@ -1751,6 +2409,21 @@ public class KB {
 
 	/** returns the number of instances that fulfill a certain condition */
 	public long countDistinct(ByteString variable, List<ByteString[]> query) {
+		String key = queryCache == null || query.size() < 2 ? null : QueryCache.canonicalForm(
+				QueryCache.COUNT_DISTINCT, new ByteString[] {variable}, null, query);
+		Long cached = key == null ? null : queryCache.get(key);
+		if (cached != null)
+			return (cached);
+		long result = evaluateCountDistinct(variable, query);
+		if (key != null)
+			queryCache.put(key, result);
+		return (result);
+	}
+
+	/**
+	 * It computes countDistinct without looking at the query cache.
+	 */
+	protected long evaluateCountDistinct(ByteString variable, List<ByteString[]> query) {
 		return (long) (selectDistinct(variable, query).size());
 	}
 
@@ -2591,6 +3264,22 @@ public class KB {
 	 */
 	public long countProjection(ByteString[] projectionTriple,
 			List<ByteString[]> otherTriples) {
+		String key = queryCache == null || otherTriples.isEmpty() ? null : QueryCache.canonicalForm(
+				QueryCache.COUNT_PROJECTION, new ByteString[0], projectionTriple, otherTriples);
+		Long cached = key == null ? null : queryCache.get(key);
+		if (cached != null)
+			return (cached);
+		long result = evaluateCountProjection(projectionTriple, otherTriples);
+		if (key != null)
+			queryCache.put(key, result);
+		return (result);
+	}
+
+	/**
+	 * It computes countProjection without looking at the query cache.
+	 */
+	protected long evaluateCountProjection(ByteString[] projectionTriple,
+			List<ByteString[]> otherTriples) {
 		if (otherTriples.isEmpty())
 			return (count(projectionTriple));
 		switch (numVariables(projectionTriple)) {
@@ -2836,6 +3525,22 @@ public class KB {
 	/** returns the number of distinct pairs (var1,var2) for the query */
 	public long countDistinctPairs(ByteString var1, ByteString var2,
 			List<ByteString[]> query) {
+		String key = queryCache == null ? null : QueryCache.canonicalForm(
+				QueryCache.COUNT_PAIRS, new ByteString[] {var1, var2}, null, query);
+		Long cached = key == null ? null : queryCache.get(key);
+		if (cached != null)
+			return (cached);
+		long result = evaluateCountDistinctPairs(var1, var2, query);
+		if (key != null)
+			queryCache.put(key, result);
+		return (result);
+	}
+
+	/**
+	 * It computes countDistinctPairs without looking at the query cache.
+	 */
+	protected long evaluateCountDistinctPairs(ByteString var1, ByteString var2,
+			List<ByteString[]> query) {
 		// Go for the standard plan
 		long result = 0;
 
@@ -2849,6 +3554,188 @@ public class KB {
 		return (result);
 	}
 
+	// ---------------------------------------------------------------------------
+	// Parallel counting
+	// ---------------------------------------------------------------------------
+
+	/** Candidate bindings evaluated sequentially by a counting task **/
+	private static final int PARALLEL_COUNT_CHUNK = 128;
+
+	/**
+	 * It returns the atom of the query with the fewest matches among those that
+	 * contain the variable, or -1 if there is no such atom.
+	 */
+	private int mostRestrictiveTripleWith(ByteString variable, List<ByteString[]> query) {
+		int bestPos = -1;
+		long bestCount = Long.MAX_VALUE;
+		for (int i = 0; i < query.size(); ++i) {
+			ByteString[] atom = query.get(i);
+			if (isSpecialAtom(atom) || varpos(variable, atom) == -1)
+				continue;
+			long count = count(atom);
+			if (count < bestCount) {
+				bestCount = count;
+				bestPos = i;
+			}
+		}
+		return (bestPos);
+	}
+
+	/**
+	 * It estimates the number of index lookups needed to count the bindings of the
+	 * variable in the query: the matches of the most restrictive atom that contains
+	 * the variable times the number of remaining atoms. It returns 0 for queries with
+	 * a single atom.
+	 * @param variable
+	 * @param query
+	 * @return
+	 */
+	public long estimateCountCost(ByteString variable, List<ByteString[]> query) {
+		if (query.size() < 2)
+			return (0);
+		int pos = mostRestrictiveTripleWith(variable, query);
+		if (pos == -1)
+			return (0);
+		return (count(query.get(pos)) * (query.size() - 1));
+	}
+
+	/**
+	 * It takes the bindings of a variable in the most restrictive atom that contains it.
+	 * They are a superset of the bindings of the variable in the whole query.
+	 */
+	private List<ByteString> candidateBindings(ByteString variable, List<ByteString[]> query) {
+		int pos = mostRestrictiveTripleWith(variable, query);
+		if (pos == -1)
+			return (null);
+		return (new ArrayList<>(selectDistinct(variable, Collections.<ByteString[]>singletonList(query.get(pos)))));
+	}
+
+	/** A copy of the query that can be instantiated without affecting the original **/
+	private static List<ByteString[]> copyQuery(List<ByteString[]> query) {
+		List<ByteString[]> copy = new ArrayList<>(query.size());
+		for (ByteString[] atom : query)
+			copy.add(atom.clone());
+		return (copy);
+	}
+
+	/**
+	 * It counts the candidate bindings of var1 in [from, to) that satisfy the query or,
+	 * if var2 is not null, the distinct pairs (var1, var2) for those bindings. The range
+	 * is split among the threads of the fork/join pool.
+	 */
+	private class ParallelCountTask extends RecursiveTask<Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final ByteString var1;
+
+		private final ByteString var2;
+
+		private final List<ByteString[]> query;
+
+		private final List<ByteString> bindings;
+
+		private final int from;
+
+		private final int to;
+
+		ParallelCountTask(ByteString var1, ByteString var2, List<ByteString[]> query,
+				List<ByteString> bindings, int from, int to) {
+			this.var1 = var1;
+			this.var2 = var2;
+			this.query = query;
+			this.bindings = bindings;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected Long compute() {
+			if (to - from <= PARALLEL_COUNT_CHUNK) {
+				long result = 0;
+				List<ByteString[]> myQuery = copyQuery(query);
+				try (Instantiator insty = new Instantiator(myQuery, var1)) {
+					for (int i = from; i < to; ++i) {
+						List<ByteString[]> instantiated = insty.instantiate(bindings.get(i));
+						if (var2 == null) {
+							if (existsBS(instantiated))
+								++result;
+						} else {
+							result += evaluateCountDistinct(var2, instantiated);
+						}
+					}
+				}
+				return (result);
+			}
+			int middle = (from + to) >>> 1;
+			ParallelCountTask left = new ParallelCountTask(var1, var2, query, bindings, from, middle);
+			left.fork();
+			long right = new ParallelCountTask(var1, var2, query, bindings, middle, to).compute();
+			return (left.join() + right);
+		}
+	}
+
+	private long evaluateInParallel(ByteString var1, ByteString var2, List<ByteString[]> query) {
+		List<ByteString> bindings = candidateBindings(var1, query);
+		if (bindings == null)
+			return (-1);
+		ParallelCountTask task = new ParallelCountTask(var1, var2, query, bindings, 0, bindings.size());
+		if (ForkJoinTask.inForkJoinPool())
+			return (task.invoke());
+		else
+			return (ForkJoinPool.commonPool().invoke(task));
+	}
+
+	/**
+	 * Same as {@link #countDistinct(ByteString, List)}, but the candidate bindings of the
+	 * variable are split among the threads of the current fork/join pool (or the common pool),
+	 * which check them independently. It pays off for expensive queries, see
+	 * {@link #estimateCountCost(ByteString, List)}.
+	 * @param variable
+	 * @param query
+	 * @return
+	 */
+	public long countDistinctInParallel(ByteString variable, List<ByteString[]> query) {
+		if (query.size() < 2)
+			return (countDistinct(variable, query));
+		String key = queryCache == null ? null : QueryCache.canonicalForm(
+				QueryCache.COUNT_DISTINCT, new ByteString[] {variable}, null, query);
+		Long cached = key == null ? null : queryCache.get(key);
+		if (cached != null)
+			return (cached);
+		long result = evaluateInParallel(variable, null, query);
+		if (result == -1)
+			return (countDistinct(variable, query));
+		if (key != null)
+			queryCache.put(key, result);
+		return (result);
+	}
+
+	/**
+	 * Same as {@link #countDistinctPairs(ByteString, ByteString, List)}, but the candidate
+	 * bindings of var1 are split among the threads of the current fork/join pool (or the common
+	 * pool), which count the bindings of var2 for them. The partial counts are added up.
+	 * @param var1
+	 * @param var2
+	 * @param query
+	 * @return
+	 */
+	public long countDistinctPairsInParallel(ByteString var1, ByteString var2,
+			List<ByteString[]> query) {
+		if (query.size() < 2)
+			return (countDistinctPairs(var1, var2, query));
+		String key = queryCache == null ? null : QueryCache.canonicalForm(
+				QueryCache.COUNT_PAIRS, new ByteString[] {var1, var2}, null, query);
+		Long cached = key == null ? null : queryCache.get(key);
+		if (cached != null)
+			return (cached);
+		long result = evaluateInParallel(var1, var2, query);
+		if (result == -1)
+			return (countDistinctPairs(var1, var2, query));
+		if (key != null)
+			queryCache.put(key, result);
+		return (result);
+	}
+
 	/** Can instantiate a variable in a query with a value */
 	public static class Instantiator implements Closeable {
 		List<ByteString[]> query;
@@ -2899,6 +3786,54 @@ public class KB {
 		}
 	}
 
+	// ---------------------------------------------------------------------------
+	// Variables
+	// ---------------------------------------------------------------------------
+
+	/** Number of pre-interned suffixes for each kind of variable **/
+	private static final int PREINTERNED_SUFFIXES = 64;
+
+	/** ?a, ..., ?z, followed by ?a1, ..., ?z1, ... **/
+	private static final ByteString[][] letterVariables = new ByteString[26][PREINTERNED_SUFFIXES];
+
+	/** ?ob0, ?ob1, ... **/
+	private static final ByteString[] objectVariables = new ByteString[PREINTERNED_SUFFIXES];
+
+	static {
+		for (int suffix = 0; suffix < PREINTERNED_SUFFIXES; ++suffix) {
+			for (char letter = 'a'; letter <= 'z'; ++letter)
+				letterVariables[letter - 'a'][suffix] = ByteString.of("?" + letter
+						+ (suffix == 0 ? "" : String.valueOf(suffix)));
+			objectVariables[suffix] = ByteString.of("?ob" + suffix);
+		}
+	}
+
+	/**
+	 * It returns the variable ?[letter][suffix], e.g., ?a or ?b1. The most common
+	 * variables are pre-interned, so that building rules does not create and hash
+	 * new strings.
+	 * @param letter A lowercase letter
+	 * @param suffix The suffix, omitted if it is 0
+	 * @return
+	 */
+	public static ByteString variable(char letter, int suffix) {
+		if (letter >= 'a' && letter <= 'z' && suffix >= 0 && suffix < PREINTERNED_SUFFIXES)
+			return (letterVariables[letter - 'a'][suffix]);
+		return (ByteString.of("?" + letter + (suffix == 0 ? "" : String.valueOf(suffix))));
+	}
+
+	/**
+	 * It returns the variable ?ob[index], used by the key miners for the objects
+	 * shared by the two entities of a key.
+	 * @param index
+	 * @return
+	 */
+	public static ByteString objectVariable(int index) {
+		if (index >= 0 && index < PREINTERNED_SUFFIXES)
+			return (objectVariables[index]);
+		return (ByteString.of("?ob" + index));
+	}
+
 	// ---------------------------------------------------------------------------
 	// Creating Triples
 	// ---------------------------------------------------------------------------
@@ -3582,10 +4517,10 @@ public class KB {
 	 */
 	public IntHashMap<ByteString> getRelationsBiggerOrEqualThan(int threshold) {	
 		IntHashMap<ByteString> relationsBiggerThan = new IntHashMap<ByteString>();
-		for (ByteString relation : relation2subject2object.keySet()) {
+		for (ByteString relation : relationSize) {
 			int size = 0;		
 			Map<ByteString, IntHashMap<ByteString>> tail = 
-					relation2subject2object.get(relation);
+					get(relation2subject2object, relation);
 			for (ByteString subject : tail.keySet()) {
 				size += tail.get(subject).size();
 				if (size >= threshold) {
@@ -3609,8 +4544,8 @@ public class KB {
 	public String toString() {
 		StringBuilder strBuilder = new StringBuilder();
 		int maxCount = 30;
-		for (ByteString v1 : subject2relation2object.keySet()) {
-			Map<ByteString, IntHashMap<ByteString>> tail = subject2relation2object.get(v1);
+		for (ByteString v1 : subjectSize) {
+			Map<ByteString, IntHashMap<ByteString>> tail = get(subject2relation2object, v1);
 			for (ByteString v2 : tail.keySet()) {
 				for (ByteString v3 : tail.get(v2)) {
 					strBuilder.append(v1);
@@ -3795,9 +4730,9 @@ public class KB {
 	public KB intersect(KB otherKb) {
 		ByteString[] triple = new ByteString[3];
 		KB result = new KB();
-		for (ByteString subject : subject2relation2object.keySet()) {
+		for (ByteString subject : subjectSize) {
 			triple[0] = subject;
-			Map<ByteString, IntHashMap<ByteString>> tail = subject2relation2object.get(subject);			
+			Map<ByteString, IntHashMap<ByteString>> tail = get(subject2relation2object, subject);			
 			for (ByteString predicate : tail.keySet()) {
 				triple[1] = predicate;
 				for (ByteString object : tail.get(predicate)) {
@@ -3828,15 +4763,24 @@ public class KB {
 	public boolean delete(ByteString subject, ByteString predicate, ByteString object) {
 		if (contains(subject, predicate, object)) {
 			subjectSize.decrease(subject);
-			relationSize.decrease(predicate);
+			synchronized (relationSize) {
+				relationSize.decrease(predicate);
+				--size;
+			}
 			objectSize.decrease(object);
 			removeFromIndex(subject, predicate, object, subject2relation2object);
-			removeFromIndex(subject, object, predicate, subject2object2relation);
-			removeFromIndex(predicate, subject, object, relation2subject2object);
-			removeFromIndex(predicate, object, subject, relation2object2subject);
-			removeFromIndex(object, subject, predicate, object2subject2relation);
-			removeFromIndex(object, predicate, subject, object2relation2subject);
-			--size;
+			if (isMaterialized(Permutation.SubjectObjectRelation))
+				removeFromIndex(subject, object, predicate, subject2object2relation);
+			if (isMaterialized(Permutation.RelationSubjectObject))
+				removeFromIndex(predicate, subject, object, relation2subject2object);
+			if (isMaterialized(Permutation.RelationObjectSubject))
+				removeFromIndex(predicate, object, subject, relation2object2subject);
+			if (isMaterialized(Permutation.ObjectSubjectRelation))
+				removeFromIndex(object, subject, predicate, object2subject2relation);
+			if (isMaterialized(Permutation.ObjectRelationSubject))
+				removeFromIndex(object, predicate, subject, object2relation2subject);
+			updateOverlaps(subject, predicate, object, -1);
+			invalidateQueryCache();
 			return true;
 		}
 		
@@ -3883,8 +4827,8 @@ public class KB {
 						"\t" + inverseFunctionality(relation) + 
 						"\t" + variance(relation) +
 						"\t" + inverseVariance(relation) +
-						"\t" + relation2subject2object.get(relation).size() +
-						"\t" + relation2object2subject.get(relation).size());
+						"\t" + get(relation2subject2object, relation).size() +
+						"\t" + get(relation2object2subject, relation).size());
 			}
 		}
 	}
@@ -3918,9 +4862,9 @@ public class KB {
 			Map<ByteString, IntHashMap<ByteString>> theMap = null;
 			boolean isFunctional = isFunctional(relation);
 			if (isFunctional) {
-				theMap = relation2subject2object.get(relation);
+				theMap = get(relation2subject2object, relation);
 			} else {
-				theMap = relation2object2subject.get(relation);
+				theMap = get(relation2object2subject, relation);
 			}
 			
 			if (useSignatureTypes) {				
@@ -3967,8 +4911,8 @@ public class KB {
 	 * @param out
 	 */
 	public void dump(PrintStream out) {
-		for (ByteString subject : subject2relation2object.keySet()) {
-			Map<ByteString, IntHashMap<ByteString>> iMap = subject2relation2object.get(subject);
+		for (ByteString subject : subjectSize) {
+			Map<ByteString, IntHashMap<ByteString>> iMap = get(subject2relation2object, subject);
 			for (ByteString relation : iMap.keySet()) {
 				for (ByteString object : iMap.get(relation)) {
 					out.println(subject + "\t" + relation + "\t" + object);
@@ -3990,9 +4934,9 @@ public class KB {
 	 * Outputs statistics about the types (classes) present in the KB.
 	 */
 	public void summarizeTypes() {
-		if (relation2object2subject.containsKey(amie.data.U.typeRelationBS)) {
+		if (relationSize.containsKey(amie.data.U.typeRelationBS)) {
 			Map<ByteString, IntHashMap<ByteString>> map = 
-					relation2object2subject.get(amie.data.U.typeRelationBS);
+					get(relation2object2subject, amie.data.U.typeRelationBS);
 			for (ByteString type : map.keySet()) {
 				System.out.println(type + "\t" + map.get(type).size());
 			}
@@ -0,0 +1,118 @@
+package amie.data;
+
+import java.util.Arrays;
+
+import javatools.datatypes.ByteString;
+
+/**
+ * Class KBDictionary
+ *
+ * Bidirectional mapping between the strings of a KB and dense integer identifiers
+ * (0, 1, 2, ...) assigned in order of appearance.
+ *
+ * @author lgalarra
+ *
+ */
+public class KBDictionary {
+
+	/** Identifier returned for strings that are not in the dictionary **/
+	public static final int NONE = -1;
+
+	/** Hash table of strings **/
+	private ByteString[] keys;
+
+	/** Identifiers of the strings, aligned with keys **/
+	private int[] ids;
+
+	/** Identifier -> string **/
+	private ByteString[] strings;
+
+	/** Number of strings **/
+	private int size;
+
+	public KBDictionary() {
+		keys = new ByteString[64];
+		ids = new int[64];
+		strings = new ByteString[32];
+	}
+
+	/**
+	 * It returns the slot of the given string in the hash table, or the first empty
+	 * slot of its cluster if the string is not in the table.
+	 */
+	private static int find(ByteString[] keys, ByteString string) {
+		int mask = keys.length - 1;
+		int i = IntHashSet.hash(string.hashCode()) & mask;
+		while (keys[i] != null && !keys[i].equals(string))
+			i = (i + 1) & mask;
+		return (i);
+	}
+
+	/**
+	 * It returns the identifier of the string, assigning a new one if the string
+	 * is not in the dictionary.
+	 * @param string
+	 * @return
+	 */
+	public synchronized int encode(ByteString string) {
+		int pos = find(keys, string);
+		if (keys[pos] != null)
+			return (ids[pos]);
+
+		if (size == strings.length)
+			strings = Arrays.copyOf(strings, size * 2);
+		strings[size] = string;
+		ids[pos] = size;
+		keys[pos] = string;
+		++size;
+		if (size * 4 > keys.length * 3)
+			rehash();
+		return (size - 1);
+	}
+
+	/**
+	 * It returns the identifier of the string or NONE if the string is not in
+	 * the dictionary.
+	 * @param string
+	 * @return
+	 */
+	public int get(ByteString string) {
+		ByteString[] keys = this.keys;
+		int[] ids = this.ids;
+		int pos = find(keys, string);
+		return (keys[pos] == null ? NONE : ids[pos]);
+	}
+
+	/**
+	 * It returns the string with the given identifier, null if there is no such
+	 * identifier.
+	 * @param id
+	 * @return
+	 */
+	public ByteString decode(int id) {
+		ByteString[] strings = this.strings;
+		return (id >= 0 && id < strings.length ? strings[id] : null);
+	}
+
+	/** Number of strings in the dictionary **/
+	public int size() {
+		return (size);
+	}
+
+	/**
+	 * Doubles the size of the hash table.
+	 */
+	private void rehash() {
+		ByteString[] newKeys = new ByteString[keys.length * 2];
+		int[] newIds = new int[keys.length * 2];
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != null) {
+				int pos = find(newKeys, keys[i]);
+				newKeys[pos] = keys[i];
+				newIds[pos] = ids[i];
+			}
+		}
+		ids = newIds;
+		keys = newKeys;
+	}
+}
@@ -0,0 +1,268 @@
+package amie.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+
+import javatools.administrative.Announce;
+import javatools.datatypes.ByteString;
+
+/**
+ * Class KBSnapshot
+ *
+ * Binary snapshot of an {@link EncodedKB}: the dictionary and the six frozen
+ * permutation indexes. Opening a snapshot avoids parsing the TSV files and sorting
+ * the facts again, but it is still linear in the size of the KB: the file is read
+ * through a memory mapping, and the arrays of the indexes are copied to the heap. The
+ * strings are added to a new dictionary, and the counters and the statistics catalog
+ * are rebuilt. The KB does not use the mapped file once it is open.
+ *
+ * Layout (big-endian):
+ * <ul>
+ * <li> MAGIC (int), VERSION (int), number of facts (long), number of strings (int)</li>
+ * <li> For each identifier in increasing order: length (int) and bytes of the string</li>
+ * <li> For each index (spo, ros, osr, rso, ors, sor): the arrays keys1, offsets1,
+ * keys2, offsets2 and values of {@link IntIndex}, each one as its length (int)
+ * followed by its elements</li>
+ * </ul>
+ * The counters of the KB are rebuilt from the offsets of the indexes. Overlap
+ * tables are not stored.
+ *
+ * @author lgalarra
+ *
+ */
+public class KBSnapshot {
+
+	/** Extension of the snapshot files **/
+	public static final String EXTENSION = ".kbsnap";
+
+	/** "AMKB" **/
+	private static final int MAGIC = 0x414D4B42;
+
+	/** Version of the format. Increase it whenever the layout changes. **/
+	private static final int VERSION = 1;
+
+	/** Maximal size of the regions of the file mapped at once **/
+	private static final long MAX_WINDOW = 1L << 30;
+
+	/**
+	 * TRUE if the file has the extension of the snapshots.
+	 * @param file
+	 * @return
+	 */
+	public static boolean isSnapshot(File file) {
+		return (file.getName().endsWith(EXTENSION));
+	}
+
+	// ---------------------------------------------------------------------------
+	// Writing
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It writes a snapshot of the KB into the given file. The KB is frozen and
+	 * the indexes of all the permutations are built.
+	 * @param kb
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(EncodedKB kb, File file) throws IOException {
+		kb.freeze();
+		for (KB.Permutation permutation : KB.Permutation.values())
+			kb.materialize(permutation);
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 1 << 20))) {
+			KBDictionary dictionary = kb.getDictionary();
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(kb.size());
+			out.writeInt(dictionary.size());
+			for (int id = 0; id < dictionary.size(); ++id) {
+				byte[] data = dictionary.decode(id).data;
+				out.writeInt(data.length);
+				out.write(data);
+			}
+
+			for (IntIndex index : kb.indexes()) {
+				write(out, index.keys1);
+				write(out, index.offsets1);
+				write(out, index.keys2);
+				write(out, index.offsets2);
+				write(out, index.values);
+			}
+		}
+	}
+
+	private static void write(DataOutputStream out, int[] array) throws IOException {
+		out.writeInt(array.length);
+		for (int value : array)
+			out.writeInt(value);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Reading
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It opens a snapshot written by write(). It takes time and heap space linear in
+	 * the size of the KB (see the description of the class).
+	 * @param file
+	 * @return A frozen KB
+	 * @throws IOException If the file is not a snapshot or its version is not supported.
+	 */
+	public static EncodedKB read(File file) throws IOException {
+		long time = System.currentTimeMillis();
+		Announce.doing("Opening snapshot " + file.getName());
+		EncodedKB kb = new EncodedKB();
+		try (MappedInput in = new MappedInput(file)) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not a KB snapshot");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported snapshot version " + version + " in " + file);
+			long size = in.readLong();
+			int nStrings = in.readInt();
+			KBDictionary dictionary = kb.getDictionary();
+			byte[] buffer = new byte[64];
+			for (int id = 0; id < nStrings; ++id) {
+				int length = in.readInt();
+				if (length > buffer.length)
+					buffer = new byte[Math.max(length, 2 * buffer.length)];
+				in.readBytes(buffer, length);
+				if (dictionary.encode(ByteString.of(decode(buffer, length))) != id)
+					throw new IOException("Duplicate string in the dictionary of " + file);
+			}
+
+			for (IntIndex index : kb.indexes()) {
+				index.freeze(in.readInts(), in.readInts(), in.readInts(), in.readInts(), in.readInts());
+			}
+			kb.freeze();
+			kb.size = size;
+		}
+
+		kb.rebuildCounters();
+		kb.buildStatistics();
+		Announce.done("Opened " + kb.size() + " facts in "
+				+ (System.currentTimeMillis() - time) + " ms");
+		return (kb);
+	}
+
+	/**
+	 * It returns the string stored with the bytes of a ByteString.
+	 */
+	private static String decode(byte[] data, int length) {
+		char[] chars = new char[length];
+		for (int i = 0; i < length; ++i)
+			chars[i] = (char) (data[i] + 128);
+		return (new String(chars));
+	}
+
+	/**
+	 * Sequential reader over a file mapped into memory in regions of at most
+	 * MAX_WINDOW bytes, so that snapshots bigger than 2 GB can be read. The mapping
+	 * is only used to copy the contents of the file.
+	 */
+	private static class MappedInput implements Closeable {
+		private final RandomAccessFile file;
+
+		private final FileChannel channel;
+
+		/** Mapped region **/
+		private MappedByteBuffer buffer;
+
+		/** Offset of the mapped region in the file **/
+		private long offset;
+
+		MappedInput(File file) throws IOException {
+			this.file = new RandomAccessFile(file, "r");
+			this.channel = this.file.getChannel();
+			map(0);
+		}
+
+		private void map(long offset) throws IOException {
+			long length = Math.min(MAX_WINDOW, channel.size() - offset);
+			buffer = channel.map(MapMode.READ_ONLY, offset, length);
+			this.offset = offset;
+		}
+
+		/**
+		 * It makes sure that the next bytes of the file are in the mapped region.
+		 */
+		private void require(int bytes) throws IOException {
+			if (buffer.remaining() >= bytes)
+				return;
+			long next = offset + buffer.position();
+			if (channel.size() - next < bytes)
+				throw new EOFException("Truncated KB snapshot");
+			map(next);
+		}
+
+		int readInt() throws IOException {
+			require(4);
+			return (buffer.getInt());
+		}
+
+		long readLong() throws IOException {
+			require(8);
+			return (buffer.getLong());
+		}
+
+		void readBytes(byte[] destination, int length) throws IOException {
+			require(length);
+			buffer.get(destination, 0, length);
+		}
+
+		/**
+		 * It reads an array stored as its length followed by its elements.
+		 */
+		int[] readInts() throws IOException {
+			int length = readInt();
+			if (length < 0)
+				throw new IOException("Corrupted KB snapshot");
+			int[] result = new int[length];
+			int done = 0;
+			while (done < length) {
+				require(4);
+				int chunk = Math.min(length - done, buffer.remaining() / 4);
+				buffer.asIntBuffer().get(result, done, chunk);
+				buffer.position(buffer.position() + 4 * chunk);
+				done += chunk;
+			}
+			return (result);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+			file.close();
+		}
+	}
+
+	/**
+	 * It loads the given files and writes a snapshot of the resulting KB.
+	 * @param args &lt;snapshot&gt; &lt;file1&gt; [file2 ...]
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("KBSnapshot <output" + EXTENSION + "> <file1> [file2 ...]");
+			System.exit(1);
+		}
+		List<File> files = new ArrayList<File>();
+		for (int i = 1; i < args.length; ++i)
+			files.add(new File(args[i]));
+		KB kb = U.loadFiles(files, new EncodedKB());
+		File output = new File(args[0]);
+		write((EncodedKB) kb, output);
+		System.out.println(kb.size() + " facts written to " + output);
+	}
+}
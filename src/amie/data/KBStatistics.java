@@ -0,0 +1,355 @@
+package amie.data;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class KBStatistics
+ *
+ * Statistics catalog of a {@link KB} used to plan the evaluation of queries with
+ * several atoms. For each relation it stores the number of facts and, for the
+ * subject and object columns, a histogram of the degrees of the values (number of
+ * facts per distinct value). Join overlaps are taken from the overlap tables of the
+ * KB when they have been built (see {@link KB#buildOverlapTables()}).
+ *
+ * The catalog is a snapshot: it is built when the KB is loaded and rebuilt on demand
+ * when the number of facts has changed significantly.
+ *
+ * @author lgalarra
+ *
+ */
+public class KBStatistics {
+
+	/** Relative change of the size of the KB after which the catalog is rebuilt **/
+	private static final double STALE_RATIO = 0.1;
+
+	/** Queries whose most restrictive atom has fewer matches are not planned **/
+	static final long MIN_MATCHES = 16;
+
+	/** Factor by which another atom must be cheaper than the most restrictive one **/
+	private static final double MARGIN = 2.0;
+
+	/**
+	 * Histogram of the degrees of the values of a column. The bucket k counts
+	 * the values with degree in [2^k, 2^(k+1)).
+	 */
+	public static class DegreeHistogram {
+		private final long[] buckets = new long[32];
+
+		private long values;
+
+		private long facts;
+
+		private double squares;
+
+		private int maxDegree;
+
+		void add(int degree) {
+			if (degree <= 0)
+				return;
+			++buckets[31 - Integer.numberOfLeadingZeros(degree)];
+			++values;
+			facts += degree;
+			squares += (double) degree * degree;
+			maxDegree = Math.max(maxDegree, degree);
+		}
+
+		/** Number of values with degree in [2^bucket, 2^(bucket + 1)) **/
+		public long getBucket(int bucket) {
+			return (buckets[bucket]);
+		}
+
+		/** Number of distinct values **/
+		public long getValues() {
+			return (values);
+		}
+
+		public int getMaxDegree() {
+			return (maxDegree);
+		}
+
+		/** Average number of facts per value **/
+		public double getMeanDegree() {
+			return (values == 0 ? 0.0 : (double) facts / values);
+		}
+
+		/**
+		 * Average degree of the value of a random fact. It is much greater than
+		 * the mean degree on skewed columns.
+		 */
+		public double getWeightedDegree() {
+			return (facts == 0 ? 0.0 : squares / facts);
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder strBuilder = new StringBuilder();
+			strBuilder.append(values).append(" values, mean degree ")
+				.append(String.format("%.2f", getMeanDegree()))
+				.append(", max degree ").append(maxDegree).append(", buckets [");
+			int last = 31 - Integer.numberOfLeadingZeros(Math.max(maxDegree, 1));
+			for (int i = 0; i <= last; ++i) {
+				if (i > 0)
+					strBuilder.append(' ');
+				strBuilder.append(buckets[i]);
+			}
+			return (strBuilder.append(']').toString());
+		}
+	}
+
+	/**
+	 * Statistics of a relation
+	 */
+	public static class RelationStatistics {
+		private long size;
+
+		private final DegreeHistogram subjects = new DegreeHistogram();
+
+		private final DegreeHistogram objects = new DegreeHistogram();
+
+		/** Number of facts **/
+		public long getSize() {
+			return (size);
+		}
+
+		/**
+		 * @param position 0 = subject, 2 = object
+		 */
+		public DegreeHistogram getDegrees(int position) {
+			return (position == 0 ? subjects : objects);
+		}
+
+		/**
+		 * Number of distinct values in the column
+		 * @param position 0 = subject, 2 = object
+		 */
+		public long getDistinct(int position) {
+			return (getDegrees(position).getValues());
+		}
+	}
+
+	private final KB kb;
+
+	private final Map<ByteString, RelationStatistics> relations = new IdentityHashMap<>();
+
+	/** Number of facts of the KB when the catalog was built **/
+	private long size;
+
+	KBStatistics(KB kb) {
+		this.kb = kb;
+	}
+
+	/**
+	 * It registers the degree of a value in a column of a relation.
+	 * @param position 0 = subject, 2 = object
+	 */
+	void add(ByteString relation, int position, int degree) {
+		RelationStatistics statistics = relations.get(relation);
+		if (statistics == null)
+			relations.put(relation, statistics = new RelationStatistics());
+		statistics.getDegrees(position).add(degree);
+		if (position == 0)
+			statistics.size += degree;
+	}
+
+	void setSize(long size) {
+		this.size = size;
+	}
+
+	/**
+	 * TRUE if the number of facts of the KB has changed too much since the
+	 * catalog was built.
+	 */
+	boolean isStale(long currentSize) {
+		return (Math.abs(currentSize - size) > STALE_RATIO * size
+				|| (size == 0 && currentSize != 0));
+	}
+
+	/**
+	 * It returns the statistics of the relation, null if the relation has no facts.
+	 * @param relation
+	 * @return
+	 */
+	public RelationStatistics get(ByteString relation) {
+		return (relations.get(relation));
+	}
+
+	/** Number of relations in the catalog **/
+	public int size() {
+		return (relations.size());
+	}
+
+	/**
+	 * It estimates the probability that a value of a column of relation1 appears in
+	 * a column of relation2. It uses the overlap tables of the KB if they are built,
+	 * otherwise it assumes that the column with fewer distinct values is contained in
+	 * the other.
+	 * @param relation1
+	 * @param position1 0 = subject, 2 = object
+	 * @param relation2
+	 * @param position2 0 = subject, 2 = object
+	 * @return
+	 */
+	public double matchProbability(ByteString relation1, int position1,
+			ByteString relation2, int position2) {
+		return (matchProbability(relation1, relations.get(relation1), position1,
+				relation2, relations.get(relation2), position2));
+	}
+
+	private double matchProbability(ByteString relation1, RelationStatistics stats1, int position1,
+			ByteString relation2, RelationStatistics stats2, int position2) {
+		if (stats2 == null)
+			return (0.0);
+		if (stats1 == null)
+			return (1.0);
+		long distinct1 = stats1.getDistinct(position1);
+		long distinct2 = stats2.getDistinct(position2);
+		if (distinct1 == 0)
+			return (0.0);
+		int overlap = overlap(relation1, position1, relation2, position2);
+		if (overlap >= 0)
+			return (Math.min(1.0, (double) overlap / distinct1));
+		return (Math.min(1.0, (double) distinct2 / distinct1));
+	}
+
+	/**
+	 * It returns the number of values in common between the columns, -1 if the
+	 * overlap tables are not built.
+	 */
+	private int overlap(ByteString relation1, int position1, ByteString relation2, int position2) {
+		Map<ByteString, IntHashMap<ByteString>> table;
+		ByteString first = relation1, second = relation2;
+		if (position1 == 0 && position2 == 0) {
+			table = kb.subject2subjectOverlap;
+		} else if (position1 == 2 && position2 == 2) {
+			table = kb.object2objectOverlap;
+		} else {
+			table = kb.subject2objectOverlap;
+			if (position1 == 2) {
+				first = relation2;
+				second = relation1;
+			}
+		}
+		IntHashMap<ByteString> overlaps = table.get(first);
+		return (overlaps == null ? -1 : overlaps.get(second));
+	}
+
+	// ---------------------------------------------------------------------------
+	// Planning
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It returns the atom to evaluate first among the pending atoms of a query.
+	 * The cost of an atom is the number of its matches plus the number of bindings
+	 * produced by joining them with the cheapest neighbour atom, estimated from the
+	 * catalog. Since the estimates are rough, the most restrictive atom (the one with
+	 * fewest matches) is kept unless another atom is MARGIN times cheaper. With less
+	 * than three atoms the last level of the evaluation is a lookup, and with few
+	 * matches planning does not pay off, so the most restrictive atom is returned.
+	 * @param relations Relation of each atom, null if it is a variable or it is
+	 * computed at query time (e.g., differentFrom)
+	 * @param terms Subject and object of each atom (2 per atom): an identifier
+	 * of the variable or -1 if the term is a constant or a bound variable
+	 * @param counts Number of matches of each atom with the current bindings,
+	 * Long.MAX_VALUE if the atom cannot be evaluated first
+	 * @return The position of the atom, -1 if no atom can be evaluated first
+	 */
+	int cheapest(ByteString[] relations, int[] terms, long[] counts) {
+		int n = counts.length;
+		int best = -1;
+		for (int i = 0; i < n; ++i) {
+			if (counts[i] != Long.MAX_VALUE && (best == -1 || counts[i] < counts[best]))
+				best = i;
+		}
+		if (best == -1 || n <= 2 || counts[best] < MIN_MATCHES)
+			return (best);
+
+		RelationStatistics[] stats = new RelationStatistics[n];
+		for (int i = 0; i < n; ++i)
+			stats[i] = relations[i] == null ? null : this.relations.get(relations[i]);
+		int mostRestrictive = best;
+		double bestCost = cost(relations, stats, terms, counts, best) / MARGIN;
+		for (int i = 0; i < n; ++i) {
+			// The cost of an atom is at least its number of matches
+			if (i == mostRestrictive || counts[i] >= bestCost)
+				continue;
+			double cost = cost(relations, stats, terms, counts, i);
+			if (cost < bestCost) {
+				best = i;
+				bestCost = cost;
+			}
+		}
+		return (best);
+	}
+
+	/**
+	 * Estimated number of bindings of the atom i and of its join with the cheapest
+	 * other atom.
+	 */
+	private double cost(ByteString[] relations, RelationStatistics[] stats, int[] terms,
+			long[] counts, int i) {
+		double fanOut = Double.MAX_VALUE;
+		for (int j = 0; j < counts.length; ++j) {
+			if (j != i)
+				fanOut = Math.min(fanOut, fanOut(relations, stats, terms, counts, i, j));
+		}
+		return (fanOut == Double.MAX_VALUE ? counts[i] : counts[i] * (1.0 + fanOut));
+	}
+
+	/**
+	 * Estimated number of matches of the atom j for each match of the atom i.
+	 */
+	private double fanOut(ByteString[] relations, RelationStatistics[] stats, int[] terms,
+			long[] counts, int i, int j) {
+		if (counts[j] >= Long.MAX_VALUE - 1)
+			return (Double.MAX_VALUE);
+		int subject = terms[2 * j], object = terms[2 * j + 1];
+		int subjectIn = subject == -1 ? -1 : position(terms, i, subject);
+		int objectIn = object == -1 ? -1 : position(terms, i, object);
+		if (stats[j] == null || (subjectIn == -1 && objectIn == -1))
+			return (counts[j]);
+
+		double subjectMatch = subjectIn == -1 ? 1.0 : match(relations, stats, i, subjectIn, j, 0);
+		double objectMatch = objectIn == -1 ? 1.0 : match(relations, stats, i, objectIn, j, 2);
+		double result;
+		if (subjectIn != -1 && objectIn != -1) {
+			result = Math.min(subjectMatch, objectMatch);
+		} else {
+			int position = subjectIn != -1 ? 0 : 2;
+			double match = subjectIn != -1 ? subjectMatch : objectMatch;
+			if ((position == 0 ? object : subject) == -1) {
+				// The other term is bound: the counted matches are spread among the values
+				result = match * counts[j] / Math.max(1, stats[j].getDistinct(position));
+			} else {
+				result = match * stats[j].getDegrees(position).getMeanDegree();
+			}
+		}
+		return (Math.min(result, counts[j]));
+	}
+
+	private double match(ByteString[] relations, RelationStatistics[] stats,
+			int i, int positionI, int j, int positionJ) {
+		return (relations[i] == null ? 1.0 : matchProbability(relations[i], stats[i], positionI,
+				relations[j], stats[j], positionJ));
+	}
+
+	/**
+	 * Position (0 = subject, 2 = object) of the variable in the atom, -1 if it
+	 * does not occur.
+	 */
+	private static int position(int[] terms, int atom, int variable) {
+		if (terms[2 * atom] == variable)
+			return (0);
+		if (terms[2 * atom + 1] == variable)
+			return (2);
+		return (-1);
+	}
+
+	@Override
+	public String toString() {
+		return ("Statistics of " + relations.size() + " relations and " + size + " facts");
+	}
+}
@@ -0,0 +1,614 @@
+package amie.data;
+
+import java.util.Arrays;
+
+import amie.data.EncodedKB.EncodedQuery;
+
+/**
+ * Class LeapfrogJoin
+ *
+ * Worst-case optimal evaluation (generic join) of the conjunctive queries of a frozen
+ * {@link EncodedKB}. The query is evaluated one variable at a time instead of one atom
+ * at a time. Once the previous variables are bound, each atom that contains the next
+ * variable provides a sorted range of a permutation index with its possible values:
+ * <ul>
+ * <li> the values of the third level, if the other two terms are known,</li>
+ * <li> the keys of the second level, if only one of the other terms is known,</li>
+ * <li> the keys of the first level otherwise.</li>
+ * </ul>
+ * The values of the variable are the intersection of these ranges, computed with the
+ * leapfrog algorithm: the ranges take turns to seek (galloping search) the largest
+ * current value of the others. Thus cyclic queries such as the self-joins of key
+ * candidates, r(?a, ?y) r(?b, ?y) r'(?a, ?z) r'(?b, ?z), never enumerate the matches
+ * of an atom that the other atoms discard.
+ *
+ * The join returns the distinct bindings of a list of output variables that extend to
+ * a match of the whole query. Once all the output variables are bound, the remaining
+ * variables are only searched for one match.
+ *
+ * @author lgalarra
+ *
+ */
+class LeapfrogJoin {
+
+	/**
+	 * The sorted range of values of an atom for the variable of a depth.
+	 */
+	private static class Source {
+		/** Index of the range, null for an equals atom **/
+		final IntIndex index;
+
+		/** Position in the codes of the query of the first known term, -1 if none **/
+		final int key1;
+
+		/** Position in the codes of the query of the second known term, -1 if none **/
+		final int key2;
+
+		/** Single value of an equals atom **/
+		final int[] single = new int[1];
+
+		/** Current range **/
+		int[] array;
+
+		int pos;
+
+		int end;
+
+		Source(IntIndex index, int key1, int key2) {
+			this.index = index;
+			this.key1 = key1;
+			this.key2 = key2;
+		}
+
+		/**
+		 * It positions the source at the beginning of its range for the current bindings.
+		 * @return FALSE if the range is empty.
+		 */
+		boolean open(EncodedQuery q, int[] bindings) {
+			int value1 = key1 == -1 ? EncodedKB.UNBOUND : EncodedKB.value(q, key1, bindings);
+			if (index == null) {
+				single[0] = value1;
+				array = single;
+				pos = 0;
+				end = 1;
+			} else if (key2 != -1) {
+				int j = index.find(value1, EncodedKB.value(q, key2, bindings));
+				if (j == -1)
+					return (false);
+				array = index.values;
+				pos = index.offsets2[j];
+				end = index.offsets2[j + 1];
+			} else if (key1 != -1) {
+				array = index.keys2;
+				pos = index.start(value1);
+				end = index.end(value1);
+			} else {
+				array = index.keys1;
+				pos = 0;
+				end = array.length;
+			}
+			return (pos < end);
+		}
+
+		int value() {
+			return (array[pos]);
+		}
+	}
+
+	private final EncodedQuery q;
+
+	/** Variables in the order they are bound **/
+	private final int[] order;
+
+	/** Output variables **/
+	private final int[] outputs;
+
+	/** Depth at which all the output variables are bound **/
+	private final int outputDepth;
+
+	/** For each depth, the ranges to intersect **/
+	private final Source[][] sources;
+
+	/** For each depth, the differentFrom atoms checked when the variable is bound **/
+	private final int[][] filters;
+
+	/** TRUE if an atom without variables does not hold **/
+	private final boolean empty;
+
+	private final int[] bindings;
+
+	private LeapfrogJoin(EncodedQuery q, int[] order, int[] outputs, int outputDepth,
+			Source[][] sources, int[][] filters, boolean empty) {
+		this.q = q;
+		this.order = order;
+		this.outputs = outputs;
+		this.outputDepth = outputDepth;
+		this.sources = sources;
+		this.filters = filters;
+		this.empty = empty;
+		this.bindings = q.newBindings();
+	}
+
+	// ---------------------------------------------------------------------------
+	// Planning
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * TRUE if the query has a cycle, i.e., two atoms on regular relations are connected
+	 * by two different paths of shared variables (atoms sharing two variables count as
+	 * a cycle). These are the queries where joining one atom at a time may enumerate
+	 * many more intermediate results than the size of the output.
+	 */
+	static boolean isCyclic(EncodedQuery q) {
+		int[] parent = new int[q.variables.size()];
+		for (int i = 0; i < parent.length; ++i)
+			parent[i] = i;
+		for (int atom = 0; atom < q.kinds.length; ++atom) {
+			if (q.kinds[atom] != EncodedKB.REGULAR)
+				continue;
+			int first = -1;
+			for (int i = 0; i < 3; ++i) {
+				int code = q.codes[3 * atom + i];
+				if (code >= 0)
+					continue;
+				if (first == -1) {
+					first = root(parent, -code - 1);
+					continue;
+				}
+				int other = root(parent, -code - 1);
+				if (other == first)
+					return (true);
+				parent[other] = first;
+			}
+		}
+		return (false);
+	}
+
+	private static int root(int[] parent, int variable) {
+		while (parent[variable] != variable)
+			variable = parent[variable] = parent[parent[variable]];
+		return (variable);
+	}
+
+	/**
+	 * It prepares the evaluation of a query on a frozen KB.
+	 * @param kb
+	 * @param q
+	 * @param outputs Distinct variables whose bindings are returned
+	 * @return null if the query cannot be evaluated variable at a time, namely if an
+	 * atom on a regular relation contains a variable twice or if some variable only
+	 * occurs in differentFrom atoms.
+	 */
+	static LeapfrogJoin compile(EncodedKB kb, EncodedQuery q, int... outputs) {
+		int nVariables = q.variables.size();
+		int nAtoms = q.kinds.length;
+		boolean empty = false;
+
+		// Atoms without variables and repeated variables
+		for (int atom = 0; atom < nAtoms; ++atom) {
+			int base = 3 * atom;
+			if (variables(q, atom) == 0) {
+				int s = q.codes[base], o = q.codes[base + 2];
+				switch (q.kinds[atom]) {
+				case EncodedKB.EQUALS:
+					empty |= s != o;
+					break;
+				case EncodedKB.DIFFERENTFROM:
+					empty |= s == o;
+					break;
+				default:
+					empty |= !kb.spo.contains(s, q.codes[base + 1], o);
+				}
+			} else if (q.kinds[atom] == EncodedKB.REGULAR) {
+				for (int i = 0; i < 3; ++i) {
+					for (int j = i + 1; j < 3; ++j) {
+						if (q.codes[base + i] < 0 && q.codes[base + i] == q.codes[base + j])
+							return (null);
+					}
+				}
+			} else if (q.kinds[atom] == EncodedKB.DIFFERENTFROM
+					&& q.codes[base] == q.codes[base + 2]) {
+				empty = true;
+			}
+		}
+
+		// Order of the variables: greedily, the variable with the smallest expected
+		// range once the previous variables are bound. Ties favor output variables.
+		boolean[] isOutput = new boolean[nVariables];
+		for (int output : outputs)
+			isOutput[output] = true;
+		int[] order = new int[nVariables];
+		int[] depths = new int[nVariables];
+		Arrays.fill(depths, -1);
+		int outputDepth = 0, nOutputs = 0;
+		for (int depth = 0; depth < nVariables; ++depth) {
+			int best = -1;
+			double bestEstimate = Double.POSITIVE_INFINITY;
+			for (int v = 0; v < nVariables; ++v) {
+				if (depths[v] != -1)
+					continue;
+				double estimate = Double.POSITIVE_INFINITY;
+				for (int atom = 0; atom < nAtoms; ++atom) {
+					int pos = position(q, atom, v);
+					if (pos != -1)
+						estimate = Math.min(estimate, estimate(kb, q, atom, pos, depths));
+				}
+				if (estimate < bestEstimate
+						|| estimate == bestEstimate && best != -1 && isOutput[v] && !isOutput[best]) {
+					best = v;
+					bestEstimate = estimate;
+				}
+			}
+			// Variables that only occur in differentFrom atoms
+			if (best == -1)
+				return (null);
+			order[depth] = best;
+			depths[best] = depth;
+			if (isOutput[best] && ++nOutputs == outputs.length)
+				outputDepth = depth + 1;
+		}
+
+		// Ranges and filters of each depth
+		Source[][] sources = new Source[nVariables][];
+		int[][] filters = new int[nVariables][];
+		for (int depth = 0; depth < nVariables; ++depth) {
+			int variable = order[depth];
+			int[] bindings = q.newBindings();
+			for (int i = 0; i < depth; ++i)
+				bindings[order[i]] = 0;
+
+			Source[] depthSources = new Source[nAtoms];
+			int[] depthFilters = new int[nAtoms];
+			int nSources = 0, nFilters = 0;
+			for (int atom = 0; atom < nAtoms; ++atom) {
+				int pos = position(q, atom, variable);
+				if (pos == -1)
+					continue;
+				if (q.kinds[atom] == EncodedKB.DIFFERENTFROM) {
+					int other = q.codes[3 * atom + 2 - pos];
+					if (other >= 0 || depths[-other - 1] < depth)
+						depthFilters[nFilters++] = atom;
+				} else {
+					Source source = source(kb, q, atom, pos, bindings);
+					if (source != null)
+						depthSources[nSources++] = source;
+				}
+			}
+			sources[depth] = Arrays.copyOf(depthSources, nSources);
+			filters[depth] = Arrays.copyOf(depthFilters, nFilters);
+		}
+
+		return (new LeapfrogJoin(q, order, outputs.clone(), outputDepth, sources, filters, empty));
+	}
+
+	/**
+	 * It returns the source of values of the variable at the given position of the
+	 * atom, where the terms that are constants or bound variables are known.
+	 * It returns null for equals atoms whose other term is unknown.
+	 */
+	private static Source source(EncodedKB kb, EncodedQuery q, int atom, int pos, int[] bindings) {
+		int base = 3 * atom;
+		if (q.kinds[atom] == EncodedKB.EQUALS) {
+			int other = base + 2 - pos;
+			return (EncodedKB.value(q, other, bindings) == EncodedKB.UNBOUND ?
+					null : new Source(null, other, -1));
+		}
+
+		int known1 = -1, known2 = -1, unknown = -1;
+		for (int i = 0; i < 3; ++i) {
+			if (i == pos)
+				continue;
+			if (EncodedKB.value(q, base + i, bindings) == EncodedKB.UNBOUND)
+				unknown = i;
+			else if (known1 == -1)
+				known1 = i;
+			else
+				known2 = i;
+		}
+
+		if (known2 != -1)
+			return (new Source(kb.index(known1, known2), base + known1, base + known2));
+		if (known1 != -1)
+			return (new Source(kb.index(known1, pos), base + known1, -1));
+		return (new Source(kb.index(pos, unknown), -1, -1));
+	}
+
+	/**
+	 * It returns the expected size of the range of values of the variable at the given
+	 * position of the atom, once the ordered variables are bound. The size is exact if
+	 * the known terms are constants, and the average over the bindings of the known
+	 * variables otherwise. It returns infinity if the atom provides no range.
+	 */
+	private static double estimate(EncodedKB kb, EncodedQuery q, int atom, int pos, int[] depths) {
+		int base = 3 * atom;
+		if (q.kinds[atom] == EncodedKB.DIFFERENTFROM)
+			return (Double.POSITIVE_INFINITY);
+		if (q.kinds[atom] == EncodedKB.EQUALS)
+			return (isKnown(q, base + 2 - pos, depths) ? 1 : Double.POSITIVE_INFINITY);
+
+		int known1 = -1, known2 = -1, unknown = -1;
+		for (int i = 0; i < 3; ++i) {
+			if (i == pos)
+				continue;
+			if (!isKnown(q, base + i, depths))
+				unknown = i;
+			else if (known1 == -1)
+				known1 = i;
+			else
+				known2 = i;
+		}
+
+		if (known2 != -1) {
+			int c1 = q.codes[base + known1], c2 = q.codes[base + known2];
+			if (c1 >= 0 && c2 >= 0)
+				return (kb.index(known1, known2).size(c1, c2));
+			if (c1 >= 0)
+				return (average(kb.index(known1, known2), c1));
+			if (c2 >= 0)
+				return (average(kb.index(known2, known1), c2));
+			IntIndex index = kb.index(known1, known2);
+			return (index.keys2.length == 0 ? 0 : (double) index.values.length / index.keys2.length);
+		}
+		if (known1 != -1) {
+			int c1 = q.codes[base + known1];
+			IntIndex index = kb.index(known1, pos);
+			if (c1 >= 0)
+				return (index.size(c1));
+			return (index.keys1.length == 0 ? 0 : (double) index.keys2.length / index.keys1.length);
+		}
+		return (kb.index(pos, unknown).keys1.length);
+	}
+
+	/**
+	 * It returns the average number of third level values per second level key
+	 * for the given first level key.
+	 */
+	private static double average(IntIndex index, int key1) {
+		int keys = index.size(key1);
+		return (keys == 0 ? 0 : (double) index.count(key1) / keys);
+	}
+
+	/**
+	 * TRUE if the term is a constant or an ordered variable.
+	 */
+	private static boolean isKnown(EncodedQuery q, int pos, int[] depths) {
+		int code = q.codes[pos];
+		return (code >= 0 || depths[-code - 1] != -1);
+	}
+
+	/**
+	 * It returns the position of the variable in the atom, -1 if it does not occur.
+	 */
+	private static int position(EncodedQuery q, int atom, int variable) {
+		int code = -variable - 1;
+		for (int i = 0; i < 3; ++i) {
+			if (q.codes[3 * atom + i] == code)
+				return (i);
+		}
+		return (-1);
+	}
+
+	/**
+	 * It returns the number of variables of the atom.
+	 */
+	private static int variables(EncodedQuery q, int atom) {
+		int n = 0;
+		for (int i = 0; i < 3; ++i) {
+			if (q.codes[3 * atom + i] < 0)
+				++n;
+		}
+		return (n);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Evaluation
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * TRUE if the query has at least one match.
+	 */
+	boolean exists() {
+		return (!empty && next(0, true, null));
+	}
+
+	/**
+	 * It returns the distinct bindings of the output variables that extend to a match
+	 * of the query, as consecutive tuples in the order of the output variables.
+	 * There must be at least one output variable.
+	 */
+	int[] select() {
+		TupleSet result = new TupleSet(outputs.length);
+		if (!empty)
+			next(0, false, result);
+		return (result.toArray());
+	}
+
+	/**
+	 * It continues the search at the given depth.
+	 * @param existential TRUE if only one match is needed
+	 * @return TRUE if the search must stop.
+	 */
+	private boolean next(int depth, boolean existential, TupleSet result) {
+		if (depth == order.length && existential)
+			return (true);
+		if (existential || depth < outputDepth)
+			return (leapfrog(depth, existential, result));
+		// All the output variables are bound
+		if (!result.contains(bindings, outputs) && next(depth, true, null))
+			result.add(bindings, outputs);
+		return (false);
+	}
+
+	/**
+	 * It binds the variable of the given depth to each value in the intersection of
+	 * its ranges and continues the search.
+	 * @return TRUE if the search must stop.
+	 */
+	private boolean leapfrog(int depth, boolean existential, TupleSet result) {
+		Source[] ranges = sources[depth];
+		int k = ranges.length;
+		for (int i = 0; i < k; ++i) {
+			if (!ranges[i].open(q, bindings))
+				return (false);
+		}
+		// Sort the ranges by their first value
+		for (int i = 1; i < k; ++i) {
+			Source source = ranges[i];
+			int j = i - 1;
+			while (j >= 0 && ranges[j].value() > source.value()) {
+				ranges[j + 1] = ranges[j];
+				--j;
+			}
+			ranges[j + 1] = source;
+		}
+
+		int variable = order[depth];
+		int max = ranges[k - 1].value();
+		int p = 0;
+		while (true) {
+			Source source = ranges[p];
+			int value = source.value();
+			if (value == max) {
+				// All the ranges are positioned at the same value
+				bindings[variable] = value;
+				boolean stop = accept(depth) && next(depth + 1, existential, result);
+				bindings[variable] = EncodedKB.UNBOUND;
+				if (stop)
+					return (true);
+				if (++source.pos == source.end)
+					return (false);
+			} else {
+				source.pos = seek(source.array, source.pos, source.end, max);
+				if (source.pos == source.end)
+					return (false);
+			}
+			max = source.value();
+			p = p + 1 == k ? 0 : p + 1;
+		}
+	}
+
+	/**
+	 * TRUE if the binding of the variable of the given depth satisfies the
+	 * differentFrom atoms.
+	 */
+	private boolean accept(int depth) {
+		for (int atom : filters[depth]) {
+			if (EncodedKB.value(q, 3 * atom, bindings) == EncodedKB.value(q, 3 * atom + 2, bindings))
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * It returns the first position in [from, to) of the sorted array whose value is
+	 * greater or equal than the key, or to if there is none. The array must contain
+	 * a value smaller than the key at position from, or the key itself.
+	 */
+	private static int seek(int[] array, int from, int to, int key) {
+		if (array[from] >= key)
+			return (from);
+		// Galloping: array[lo] < key
+		int lo = from, step = 1;
+		while (lo + step < to && array[lo + step] < key) {
+			lo += step;
+			step <<= 1;
+		}
+		int pos = Arrays.binarySearch(array, lo + 1, Math.min(lo + step, to), key);
+		return (pos >= 0 ? pos : -pos - 1);
+	}
+
+	// ---------------------------------------------------------------------------
+	// Results
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * Open addressing hash set of tuples of identifiers of a fixed arity (at least 1).
+	 */
+	private static class TupleSet {
+		private final int arity;
+
+		/** Tuples stored consecutively, the first identifier of free slots is -1 **/
+		private int[] table;
+
+		private int size;
+
+		TupleSet(int arity) {
+			this.arity = arity;
+			this.table = new int[arity * 16];
+			Arrays.fill(table, -1);
+		}
+
+		private int capacity() {
+			return (table.length / arity);
+		}
+
+		/**
+		 * It returns the slot of the tuple of bindings of the variables, or of
+		 * the free slot where it would be stored.
+		 */
+		private int slot(int[] table, int[] bindings, int[] variables) {
+			int hash = 0;
+			for (int variable : variables)
+				hash = 31 * hash + bindings[variable];
+			hash *= 0x9E3779B9;
+			int mask = table.length / arity - 1;
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while (table[slot * arity] != -1 && !matches(table, slot, bindings, variables))
+				slot = (slot + 1) & mask;
+			return (slot);
+		}
+
+		private boolean matches(int[] table, int slot, int[] bindings, int[] variables) {
+			for (int i = 0; i < arity; ++i) {
+				if (table[slot * arity + i] != bindings[variables[i]])
+					return (false);
+			}
+			return (true);
+		}
+
+		boolean contains(int[] bindings, int[] variables) {
+			return (table[slot(table, bindings, variables) * arity] != -1);
+		}
+
+		void add(int[] bindings, int[] variables) {
+			int slot = slot(table, bindings, variables);
+			if (table[slot * arity] != -1)
+				return;
+			for (int i = 0; i < arity; ++i)
+				table[slot * arity + i] = bindings[variables[i]];
+			if (++size > capacity() / 2)
+				rehash();
+		}
+
+		private void rehash() {
+			int[] old = table;
+			table = new int[2 * old.length];
+			Arrays.fill(table, -1);
+			int[] tuple = new int[arity];
+			int[] positions = new int[arity];
+			for (int i = 0; i < arity; ++i)
+				positions[i] = i;
+			for (int slot = 0; slot < old.length / arity; ++slot) {
+				if (old[slot * arity] == -1)
+					continue;
+				System.arraycopy(old, slot * arity, tuple, 0, arity);
+				System.arraycopy(tuple, 0, table, slot(table, tuple, positions) * arity, arity);
+			}
+		}
+
+		/**
+		 * It returns the tuples stored consecutively.
+		 */
+		int[] toArray() {
+			int[] result = new int[size * arity];
+			int n = 0;
+			for (int slot = 0; slot < capacity(); ++slot) {
+				if (table[slot * arity] != -1) {
+					System.arraycopy(table, slot * arity, result, n, arity);
+					n += arity;
+				}
+			}
+			return (result);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+package amie.data;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import amie.rules.QueryEquivalenceChecker;
+import javatools.datatypes.ByteString;
+
+/**
+ * Class QueryCache
+ *
+ * Bounded cache for the results of the counting queries of a {@link KB}
+ * (countDistinct, countProjection and countDistinctPairs). Queries are stored in a
+ * canonical form, the same as the rules (see {@link QueryEquivalenceChecker}): the
+ * variables are renamed in order of appearance, starting with the projection variables,
+ * and the atoms are ordered by their representation. Thus the same query written
+ * with other variable names or another order of atoms, e.g., a rule reached from
+ * two different parents, is answered from the cache.
+ *
+ * The entries are distributed among segments, each one with its own lock and
+ * least-recently-used eviction, so that several mining threads can use the cache
+ * concurrently. The KB clears the cache whenever facts are added or deleted.
+ *
+ * @author lgalarra
+ *
+ */
+public class QueryCache {
+
+	/** Default maximal number of entries **/
+	public static final int DEFAULT_CAPACITY = 100000;
+
+	/** Number of segments (power of 2) **/
+	private static final int SEGMENTS = 16;
+
+	/** Operations of the cached queries **/
+	static final char COUNT_DISTINCT = 'D';
+
+	static final char COUNT_PROJECTION = 'P';
+
+	static final char COUNT_PAIRS = 'C';
+
+	/**
+	 * A least-recently-used map with a bounded number of entries.
+	 */
+	private static class Segment extends LinkedHashMap<String, Long> {
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+			return (size() > capacity);
+		}
+	}
+
+	private final Segment[] segments;
+
+	private final int capacity;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/** FALSE if an entry was added since the last clear() **/
+	private volatile boolean empty = true;
+
+	/**
+	 * @param capacity Maximal number of entries
+	 */
+	public QueryCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("The capacity of the cache must be positive");
+		this.capacity = capacity;
+		segments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; ++i)
+			segments[i] = new Segment((capacity + SEGMENTS - 1) / SEGMENTS);
+	}
+
+	public QueryCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	private Segment segment(String key) {
+		int hash = key.hashCode() * 0x9E3779B9;
+		return (segments[hash >>> 28]);
+	}
+
+	/**
+	 * It returns the cached result for a query in canonical form, null if there is none.
+	 * @param key
+	 * @return
+	 */
+	public Long get(String key) {
+		Segment segment = segment(key);
+		Long result;
+		synchronized (segment) {
+			result = segment.get(key);
+		}
+		if (result == null)
+			misses.incrementAndGet();
+		else
+			hits.incrementAndGet();
+		return (result);
+	}
+
+	/**
+	 * It stores the result of a query in canonical form.
+	 * @param key
+	 * @param result
+	 */
+	public void put(String key, long result) {
+		Segment segment = segment(key);
+		synchronized (segment) {
+			segment.put(key, result);
+		}
+		empty = false;
+	}
+
+	/**
+	 * It removes all the entries. The counters are kept.
+	 */
+	public void clear() {
+		if (empty)
+			return;
+		empty = true;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	/** Number of entries **/
+	public int size() {
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return (size);
+	}
+
+	public int getCapacity() {
+		return (capacity);
+	}
+
+	public long getHits() {
+		return (hits.get());
+	}
+
+	public long getMisses() {
+		return (misses.get());
+	}
+
+	@Override
+	public String toString() {
+		long hits = getHits(), misses = getMisses();
+		return ("Query cache: " + hits + " hits, " + misses + " misses ("
+				+ (hits + misses == 0 ? 0 : Math.round(100.0 * hits / (hits + misses)))
+				+ "% hit rate), " + size() + " entries");
+	}
+
+	// ---------------------------------------------------------------------------
+	// Canonical forms
+	// ---------------------------------------------------------------------------
+
+	/**
+	 * It returns the canonical form of a query (see 
+	 * {@link QueryEquivalenceChecker#canonicalForm(List, List, ByteString...)}).
+	 * @param operation The counting operation
+	 * @param outputs Projection variables, named first and in this order
+	 * @param fixed Atom that keeps the first position, e.g., the projection
+	 * triple of countProjection, or null
+	 * @param atoms The other atoms
+	 * @return
+	 */
+	static String canonicalForm(char operation, ByteString[] outputs, ByteString[] fixed,
+			List<ByteString[]> atoms) {
+		List<ByteString[]> fixedAtoms = fixed == null ? 
+				Collections.<ByteString[]>emptyList() : Collections.singletonList(fixed);
+		return (operation + String.valueOf(outputs.length) + "|"
+				+ QueryEquivalenceChecker.canonicalForm(fixedAtoms, atoms, outputs));
+	}
+}
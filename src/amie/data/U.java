@@ -293,7 +293,7 @@ public class U {
 		Set<ByteString> result = new LinkedHashSet<ByteString>();
 		if (domainType != null) 
 			result.addAll(getAllEntitiesForType(source, domainType));
-		result.addAll(source.relation2subject2object.get(relation).keySet());
+		result.addAll(source.get(source.relation2subject2object, relation).keySet());
 		return result;
 	}
 	
@@ -366,7 +366,7 @@ public class U {
 		Set<ByteString> result = new LinkedHashSet<ByteString>();
 		if (rangeType != null) 
 			result.addAll(getAllEntitiesForType(source, rangeType));
-		result.addAll(source.relation2object2subject.get(relation).keySet());
+		result.addAll(source.get(source.relation2object2subject, relation).keySet());
 		return result;
 	}
 	
@@ -403,9 +403,9 @@ public class U {
 		sourceEntities.addAll(source1.objectSize);
 		for(ByteString entity: sourceEntities){
 			//Print all facts of the source ontology
-			Map<ByteString, IntHashMap<ByteString>> tail1 = source1.subject2relation2object.get(entity);
-			Map<ByteString, IntHashMap<ByteString>> tail2 = source2.subject2relation2object.get(entity);
-			if(tail2 == null)
+			Map<ByteString, IntHashMap<ByteString>> tail1 = source1.get(source1.subject2relation2object, entity);
+			Map<ByteString, IntHashMap<ByteString>> tail2 = source2.get(source2.subject2relation2object, entity);
+			if(tail2.isEmpty())
 				continue;
 						
 			for(ByteString predicate: tail1.keySet()){
@@ -425,8 +425,8 @@ public class U {
 			for(ByteString entity: source2.objectSize){
 				if(sourceEntities.contains(entity)) continue;
 				
-				Map<ByteString, IntHashMap<ByteString>> tail2 = source2.subject2relation2object.get(entity);
-				if(tail2 == null) continue;
+				Map<ByteString, IntHashMap<ByteString>> tail2 = source2.get(source2.subject2relation2object, entity);
+				if(tail2.isEmpty()) continue;
 				
 				//Print all facts in the target ontology
 				for(ByteString predicate: tail2.keySet()){
@@ -448,8 +448,8 @@ public class U {
 				+ "\tRelation1-objects\tRelation2-subjects\tRelation2-objects"
 				+ "\tSubject-Subject\tSubject-Object\tObject-Subject\tObject-Object");
 		for(ByteString r1: source.relationSize){
-			Set<ByteString> subjects1 = source.relation2subject2object.get(r1).keySet();
-			Set<ByteString> objects1 = source.relation2object2subject.get(r1).keySet();
+			Set<ByteString> subjects1 = source.get(source.relation2subject2object, r1).keySet();
+			Set<ByteString> objects1 = source.get(source.relation2object2subject, r1).keySet();
 			int nSubjectsr1 = subjects1.size();
 			int nObjectsr1 = objects1.size();
 			for(ByteString r2: source.relationSize){
@@ -457,8 +457,8 @@ public class U {
 					continue;				
 				System.out.print(r1 + "\t");
 				System.out.print(r2 + "\t");
-				Set<ByteString> subjects2 = source.relation2subject2object.get(r2).keySet();
-				Set<ByteString> objects2 = source.relation2object2subject.get(r2).keySet();
+				Set<ByteString> subjects2 = source.get(source.relation2subject2object, r2).keySet();
+				Set<ByteString> objects2 = source.get(source.relation2object2subject, r2).keySet();
 				int nSubjectr2 = subjects2.size();
 				int nObjectsr2 = objects2.size();
 				System.out.print(nSubjectsr1 + "\t" + nObjectsr1 + "\t" + nSubjectr2 + "\t" + nObjectsr2 + "\t");
@@ -471,6 +471,38 @@ public class U {
 	}
 		
 	
+	/**
+	 * Loads the files into the given KB and returns it. If one of the files is a
+	 * snapshot (see {@link KBSnapshot}), the KB is opened from the snapshot instead
+	 * and the other files are added to it.
+	 * @param files
+	 * @param kb
+	 * @return
+	 * @throws IOException
+	 */
+	public static KB loadFiles(List<File> files, KB kb) throws IOException {
+		File snapshot = null;
+		List<File> tsvFiles = new ArrayList<File>();
+		for (File file : files) {
+			if (!KBSnapshot.isSnapshot(file)) {
+				tsvFiles.add(file);
+			} else if (snapshot == null) {
+				snapshot = file;
+			} else {
+				throw new IllegalArgumentException("Only one snapshot can be loaded at a time");
+			}
+		}
+		
+		if (snapshot != null) {
+			if (!kb.getClass().isAssignableFrom(EncodedKB.class))
+				throw new IllegalArgumentException("Snapshots can only be opened as " 
+						+ EncodedKB.class.getSimpleName());
+			kb = KBSnapshot.read(snapshot);
+		}
+		kb.load(tsvFiles);
+		return kb;
+	}
+	
 	/**
 	 * Returns a KB with the content of all the files referenced in the string array.
 	 * @param args
@@ -484,8 +516,7 @@ public class U {
 		for (int i = 0; i < args.length; ++i) {
 			files.add(new File(args[i]));
 		}
-		kb.load(files);
-		return kb;
+		return loadFiles(files, kb);
 	}
 	
 	/**
@@ -502,8 +533,7 @@ public class U {
 		for (int i = 0; i < args.length; ++i) {
 			files.add(new File((String)args[i]));
 		}
-		kb.load(files);
-		return kb;
+		return loadFiles(files, kb);
 	}
 	
 	
@@ -524,8 +554,7 @@ public class U {
 		for (int i = fromIndex; i < args.length; ++i) {
 			files.add(new File(args[i]));
 		}
-		kb.load(files);
-		return kb;
+		return loadFiles(files, kb);
 	}
 	
 	/**
@@ -549,8 +578,7 @@ public class U {
 		for (int i = 0; i < args.length; ++i) {
 			files.add(new File(args[i]));
 		}
-		kb.load(files);
-		return kb;
+		return loadFiles(files, kb);
 	}
 	
 	/**
@@ -575,8 +603,7 @@ public class U {
 		for (int i = fromIndex; i < args.length; ++i) {
 			files.add(new File(args[i]));
 		}
-		kb.load(files);
-		return kb;
+		return loadFiles(files, kb);
 	}
 
 	/**
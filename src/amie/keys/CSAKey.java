@@ -8,17 +8,18 @@ package amie.keys;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,14 +32,13 @@ import org.apache.commons.cli.PosixParser;
 
 import amie.data.KB;
 import amie.data.KB.Column;
+import amie.data.QueryCache;
 import amie.mining.assistant.DefaultMiningAssistant;
 import amie.mining.assistant.MiningAssistant;
 import amie.rosa.AlignKBs;
 import amie.rules.Rule;
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
-import javatools.datatypes.Triple;
-import telecom.util.collections.MultiMap;
 
 /**
  *
@@ -50,25 +50,56 @@ public class CSAKey {
     private Map<String, Integer> property2Id;
     private Map<Integer, String> id2Property;
 
-    private HashSet<HashSet<Integer>> nonKeysInt;
+    private HashSet<PropertySet> nonKeysInt;
     //static HashSet<node> nonKeysIntNodes = new HashSet<>();
     private List<Integer> propertiesList;
     /**
-     * A map where the keys are conditions, e.g., residence=Paris
+     * An index where the keys are conditions, e.g., residence=Paris
      * and the values are conditional keys with that condition, e.g.,
      * nationality zipCode | residence=Paris; lastname nationality | residence=Paris
      * etc.
      */
-    private MultiMap<Rule, Rule> conditions2Keys = new MultiMap<>();    
+    private KeyIndex conditions2Keys = new KeyIndex();    
     private MiningAssistant miningHelper = null;
     public static final float defaultMinSupport = 2;
     public float support = defaultMinSupport;
     private KB kb;
+    /** Validation of the candidate keys with partitions of the subjects **/
+    private KeyValidator validator;
     public String nonKeysFile = null;
     private static int maxLoad = 50;
     private static int minLoad = 20;
+    /** The best keys found so far in top-k mode, shared by all the miners **/
+    private TopKKeys topKeys = null;
     
-    public CSAKey(MiningAssistant assistant, HashSet<HashSet<Integer>> nonKeysInt, Map<String, Integer> property2Id, 
+    /**
+     * The settings of a run given in the command line.
+     */
+    public static class Configuration {
+    	public final MiningAssistant assistant;
+    	
+    	public final float support;
+    	
+    	/** Path to the non-keys file, null if the non-keys are computed from the KB **/
+    	public final String nonKeysFile;
+    	
+    	/** If not null, the keys are streamed to this file and not kept in memory **/
+    	public final String outputFile;
+    	
+    	/** If positive, only the topK keys with the highest support are reported **/
+    	public final int topK;
+    	
+    	public Configuration(MiningAssistant assistant, float support, String nonKeysFile, 
+    			String outputFile, int topK) {
+    		this.assistant = assistant;
+    		this.support = support;
+    		this.nonKeysFile = nonKeysFile;
+    		this.outputFile = outputFile;
+    		this.topK = topK;
+    	}
+    }
+    
+    public CSAKey(MiningAssistant assistant, HashSet<PropertySet> nonKeysInt, Map<String, Integer> property2Id, 
     		Map<Integer, String> id2Property, List<Integer> propertiesList) {
     	this.nonKeysInt = nonKeysInt;
     	this.property2Id = property2Id;
@@ -76,6 +107,13 @@ public class CSAKey {
     	this.propertiesList = propertiesList;
     	this.miningHelper = assistant;
     	this.kb = assistant.getKb();
+    	this.validator = new KeyValidator(kb);
+    }
+    
+    public CSAKey(MiningAssistant assistant, HashSet<PropertySet> nonKeysInt, Map<String, Integer> property2Id, 
+    		Map<Integer, String> id2Property, List<Integer> propertiesList, KeyValidator validator) {
+    	this(assistant, nonKeysInt, property2Id, id2Property, propertiesList);
+    	this.validator = validator;
     }
     
     /**
@@ -85,9 +123,11 @@ public class CSAKey {
      * @return
      * @throws IOException
      */
-    public static Triple<MiningAssistant, Float, String> parseArguments(String[] args) throws IOException {
+    public static Configuration parseArguments(String[] args) throws IOException {
     	HelpFormatter formatter = new HelpFormatter();
     	float inputSupport = defaultMinSupport;
+    	String outputFile = null;
+    	int topK = 0;
 
         // create the command line parser
         CommandLineParser parser = new PosixParser();
@@ -108,9 +148,9 @@ public class CSAKey {
                 .create("p");
         
         Option nonKeysOpt = OptionBuilder.withArgName("non-keys")
-        		.withDescription("Path the to the non-keys file.")
+        		.withDescription("Path the to the non-keys file. If omitted, the non-keys are computed "
+        				+ "from the KB.")
         		.hasArg()
-        		.isRequired()
         		.create("nk");
         
         Option minLoadOpt = OptionBuilder.withArgName("")
@@ -123,11 +163,32 @@ public class CSAKey {
         		.hasArg()
         		.create("maxl");
         
+        Option queryCacheOpt = OptionBuilder.withArgName("max-entries")
+        		.withDescription("Cache the support of the queries, up to variable renaming "
+        				+ "and order of the atoms. Default size: " + QueryCache.DEFAULT_CAPACITY + " entries.")
+        		.hasOptionalArg()
+        		.create("qc");
+        
+        Option outputOpt = OptionBuilder.withArgName("file")
+        		.withDescription("Stream the keys to this file as they are found (JSON lines if the "
+        				+ "file ends with .json, TSV otherwise) instead of keeping them in memory.")
+        		.hasArg()
+        		.create("o");
+        
+        Option topKOpt = OptionBuilder.withArgName("k")
+        		.withDescription("Report only the k conditional keys with the highest support. The support "
+        				+ "threshold is raised as better keys are found.")
+        		.hasArg()
+        		.create("k");
+        
         options.addOption(supportOpt);
         options.addOption(ratioOpt);
         options.addOption(nonKeysOpt);
         options.addOption(minLoadOpt);
         options.addOption(maxLoadOpt);
+        options.addOption(queryCacheOpt);
+        options.addOption(outputOpt);
+        options.addOption(topKOpt);
         
         try {
             cli = parser.parse(options, args);
@@ -141,7 +202,20 @@ public class CSAKey {
         // Use kb = amie.data.U.loadFiles(args, 1) to ignore the first
         // argument. This first argument could be the list of non-keys
         //kb = amie.data.U.loadFiles(fileNameArgs);        
-        KB kb = AlignKBs.loadFiles(fileNameArgs, 0);
+        KB kb = AlignKBs.loadFiles(fileNameArgs, 0, KB.KEY_MINING_PERMUTATIONS);
+        if (cli.hasOption("qc")) {
+        	int capacity = QueryCache.DEFAULT_CAPACITY;
+        	if (cli.getOptionValue("qc") != null) {
+        		try {
+        			capacity = Integer.parseInt(cli.getOptionValue("qc"));
+        		} catch (NumberFormatException e) {
+        			System.out.println("Unexpected exception: " + e.getMessage());
+        			formatter.printHelp("CombinationsExploration [OPTIONS] <TSV FILES>", options);
+        			System.exit(1);
+        		}
+        	}
+        	kb.setQueryCache(new QueryCache(capacity));
+        }
         MiningAssistant miningHelper = new DefaultMiningAssistant(kb);
     	
         if (cli.hasOption("mins")) {
@@ -166,6 +240,22 @@ public class CSAKey {
         	System.out.println("minLoad=" + minLoad);
         }
         
+        if (cli.hasOption("o")) {
+        	outputFile = cli.getOptionValue("o");
+        	System.out.println("Writing the keys to " + outputFile);
+        }
+        
+        if (cli.hasOption("k")) {
+        	try {
+        		topK = Integer.parseInt(cli.getOptionValue("k"));
+        	} catch (NumberFormatException e) {
+        		System.out.println("Unexpected exception: " + e.getMessage());
+        		formatter.printHelp("CombinationsExploration [OPTIONS] <TSV FILES>", options);
+        		System.exit(1);
+        	}
+        	System.out.println("Reporting the top " + topK + " conditional keys");
+        }
+        
         if (cli.hasOption("maxl")) {
         	maxLoad = Integer.parseInt(cli.getOptionValue("maxl"));
         	System.out.println("maxLoad=" + maxLoad);
@@ -173,7 +263,7 @@ public class CSAKey {
         
     	System.out.println("Using minimum support " + inputSupport);
         
-        return new Triple<>(miningHelper, inputSupport, cli.getOptionValue("nk"));
+        return new Configuration(miningHelper, inputSupport, cli.getOptionValue("nk"), outputFile, topK);
     }
     
     private static int computeLoad(List<List<String>> nks) {
@@ -186,7 +276,7 @@ public class CSAKey {
     }
     
     
-    private static int[] nextIndex(List<HashSet<Integer>> nonKeys, int lastIndex, int batchSize) {
+    private static int[] nextIndex(List<PropertySet> nonKeys, int lastIndex, int batchSize) {
     	int result[] = new int[]{0, 0};
     	
     	int idx = lastIndex;
@@ -202,16 +292,30 @@ public class CSAKey {
 	}
 
     public static void main(String[] args) throws IOException, InterruptedException {
-    	final Triple<MiningAssistant, Float, String> parsedArgs = parseArguments(args);    	
-    	final Set<Rule> output = new LinkedHashSet<>();
+    	final Configuration configuration = parseArguments(args);    	
+    	final KeySink output = configuration.outputFile == null ? new KeySink() : 
+    		new KeySink(true, false, KeySink.fileWriter(configuration.outputFile));
+    	// In top-k mode the keys are reported at the end, because they can be displaced by better ones
+    	final TopKKeys topKeys = configuration.topK > 0 ? new TopKKeys(configuration.topK) : null;
+    	final KeySink miningOutput = topKeys == null ? output : new KeySink(false, false);
         
         // Helper object that contains the implementation for the calculation
         // of confidence and support
         // The file with the non-keys, one per line
     	long timea = System.currentTimeMillis();
-    	List<List<String>> inputNonKeys = Utilities.parseNonKeysFile(parsedArgs.third);
+    	KB kb = configuration.assistant.getKb();
+    	final KeyValidator validator = new KeyValidator(kb);
+    	int nThreads = Runtime.getRuntime().availableProcessors();
+    	List<List<String>> inputNonKeys = null;
+    	if (configuration.nonKeysFile != null) {
+    		inputNonKeys = Utilities.parseNonKeysFile(configuration.nonKeysFile);
+    	} else {
+    		System.out.println("Computing the non-keys");
+    		inputNonKeys = new NonKeysFinder(kb, validator).findNonKeys(nThreads);
+    		System.out.println("Non-keys computed in " + (System.currentTimeMillis() - timea) + " ms");
+    	}
     	System.out.println(inputNonKeys.size() + " input non-keys");
-        final List<List<String>> nonKeys = pruneBySupport(inputNonKeys, parsedArgs.second, parsedArgs.first.getKb());
+        final List<List<String>> nonKeys = pruneBySupport(inputNonKeys, configuration.support, kb);
         Collections.sort(nonKeys, new Comparator<List<String>>() {
 
 			@Override
@@ -228,27 +332,19 @@ public class CSAKey {
     	System.out.println(nonKeys.size() + " non-keys after pruning");
     	int totalLoad = computeLoad(nonKeys);
     	System.out.println(totalLoad + " is the total load");
-        int nThreads = Runtime.getRuntime().availableProcessors();
         //int batchSize = Math.max(Math.min(maxBatchSize, totalLoad / nThreads), minBatchSize);
     	int batchSize = Math.max(Math.min(maxLoad, totalLoad / nThreads), minLoad);
     	
-    	final Queue<int[]> chunks = new PriorityQueue(50, new Comparator<int[]>(){
-			@Override
-			public int compare(int[] o1, int[] o2) {
-				return Integer.compare(o2[2], o1[2]);
-			}
-    		
-    	});
+    	final List<int[]> chunks = new ArrayList<>();
     	
     	
-		final HashSet<HashSet<Integer>> nonKeysInt = new HashSet<>();
+		final HashSet<PropertySet> nonKeysInt = new HashSet<>();
 		final HashMap<String, Integer> property2Id = new HashMap<>();
 		final HashMap<Integer, String> id2Property = new HashMap<>();		
 		final List<Integer> propertiesList = new ArrayList<>();
-		int support = (int) parsedArgs.second.floatValue();
-		KB kb = parsedArgs.first.getKb();
+		int support = (int) configuration.support;
 		buildDictionaries(nonKeys, nonKeysInt, property2Id, id2Property, propertiesList, support, kb);
-    	final List<HashSet<Integer>> nonKeysIntList = new ArrayList<>(nonKeysInt);
+    	final List<PropertySet> nonKeysIntList = new ArrayList<>(nonKeysInt);
     	int start = 0;
     	int[] nextIdx = nextIndex(nonKeysIntList, 0, batchSize);
     	int end = nextIdx[0];
@@ -261,41 +357,57 @@ public class CSAKey {
     		end = nextIdx[0];
     		load = nextIdx[1];
     	}
+    	// The heaviest chunks are started first
+    	Collections.sort(chunks, new Comparator<int[]>(){
+			@Override
+			public int compare(int[] o1, int[] o2) {
+				return Integer.compare(o2[2], o1[2]);
+			}
+    	});
     	
-    	
-    	Thread[] threads = new Thread[Math.min(Runtime.getRuntime().availableProcessors(), chunks.size())];
-    	for (int i = 0; i < threads.length; ++i) {
-        	threads[i] = new Thread(new Runnable() {
-
+    	/**
+    	 * Each chunk is a task that forks a subtask per condition (see discoverConditionalKeys), 
+    	 * so idle threads steal the conditions of the chunks still running.
+    	 */
+    	final List<RecursiveAction> tasks = new ArrayList<>();
+    	for (final int[] chunk : chunks) {
+    		tasks.add(new RecursiveAction() {
 				@Override
-				public void run() {
-					while (true) {
-						int[] chunk = null;
-    					synchronized (chunks) {
-    						if (!chunks.isEmpty()) {
-    							chunk = chunks.poll();
-    						} else {
-    							break;
-    						}
-    					}
-    					System.out.println("Processing chunk " + Arrays.toString(chunk));
-    					mine(parsedArgs, nonKeysIntList, property2Id, id2Property, propertiesList, chunk[0], chunk[1], output);
-					}
-					
+				protected void compute() {
+					System.out.println("Processing chunk " + Arrays.toString(chunk));
+					mine(configuration, nonKeysIntList, property2Id, id2Property, propertiesList, chunk[0], chunk[1], 
+							validator, miningOutput, topKeys);
 				}
-        	});	
-        	threads[i].start();
+    		});
     	}
-    	
-    	for (int i = 0; i < threads.length; ++i) {
-    		threads[i].join();
+    	ForkJoinPool pool = new ForkJoinPool(nThreads);
+    	pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+    	});
+    	pool.shutdown();
+    	if (topKeys != null) {
+    		for (Rule r : topKeys.getKeys()) {
+    			output.add(r);
+    		}
     	}
+    	output.close();
         long timeb = System.currentTimeMillis();
-        System.out.println("==== Unique C-keys =====");
-        for (Rule r : output) {
-        	System.out.println(Utilities.formatKey(r));
+        if (configuration.outputFile == null) {
+        	System.out.println("==== Unique C-keys =====");
+        	for (Rule r : topKeys == null ? output.getKeys() : topKeys.getKeys()) {
+        		System.out.println(Utilities.formatKey(r));
+        	}
+        }
+        if (topKeys != null) {
+        	System.out.println("Final support threshold: " + topKeys.getThreshold());
         }
         System.out.println("VICKEY found " + output.size() + " unique conditional keys in " + (timeb - timea) +  " ms");
+        if (kb.getQueryCache() != null) {
+        	System.out.println(kb.getQueryCache());
+        }
     }
     
     /**
@@ -304,7 +416,7 @@ public class CSAKey {
      * @param ids2Properties
      * @return
      */
-    static int support(HashSet<Integer> propertyIds, Map<Integer, String> ids2Properties, KB kb) {
+    static int support(Collection<Integer> propertyIds, Map<Integer, String> ids2Properties, KB kb) {
     	List<ByteString[]> query = new ArrayList<>();
     	ByteString var = ByteString.of("?s");
     	int k = 0;
@@ -353,22 +465,23 @@ public class CSAKey {
         return simplifyNonKeysSet(result);
 	}
 
-	private static void mine(Triple<MiningAssistant, Float, String> parsedArgs, 
-    		List<HashSet<Integer>> nonKeysInt, HashMap<String, Integer> property2Id, HashMap<Integer, String> id2Property,
+	private static void mine(Configuration configuration, 
+    		List<PropertySet> nonKeysInt, HashMap<String, Integer> property2Id, HashMap<Integer, String> id2Property,
     		List<Integer> propertiesList,
-    		int start, int end, Set<Rule> output) {
+    		int start, int end, KeyValidator validator, KeySink output, TopKKeys topKeys) {
     	// First prune non-promising non-keys    	
-		HashSet<HashSet<Integer>> hs = new HashSet<>(nonKeysInt.subList(start, end));
-    	CSAKey ckminer = new CSAKey(parsedArgs.first, hs, property2Id, id2Property, propertiesList);
+		HashSet<PropertySet> hs = new HashSet<>(nonKeysInt.subList(start, end));
+    	CSAKey ckminer = new CSAKey(configuration.assistant, hs, property2Id, id2Property, propertiesList, validator);
     	//System.out.println(hs);
-    	ckminer.support = parsedArgs.second.floatValue();
+    	ckminer.support = configuration.support;
+    	ckminer.topKeys = topKeys;
         ckminer.discoverConditionalKeys(output);
     }
 
-	private static HashSet<HashSet<Integer>> subSet(HashSet<HashSet<Integer>> nonKeysInt2, int start, int end) {
+	private static HashSet<PropertySet> subSet(HashSet<PropertySet> nonKeysInt2, int start, int end) {
 		int counter = 0;
-		Iterator<HashSet<Integer>> it = nonKeysInt2.iterator();
-		HashSet<HashSet<Integer>> result = new HashSet<>();
+		Iterator<PropertySet> it = nonKeysInt2.iterator();
+		HashSet<PropertySet> result = new HashSet<>();
 		while (counter < start) {
 			it.next();
 			++counter;
@@ -397,20 +510,19 @@ public class CSAKey {
 
         int k = 1;
         for (String property : properties) {
-            rule.getTriples().add(KB.triple(ByteString.of("?a"), ByteString.of(property), ByteString.of("?ob" + k)));
-            rule.getTriples().add(KB.triple(ByteString.of("?b"), ByteString.of(property), ByteString.of("?ob" + k)));
+            rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(property), KB.objectVariable(k)));
+            rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(property), KB.objectVariable(k)));
             ++k;
         }
 
         for (ByteString[] conditionAtom : conditionsRule.getTriples()) {
             ByteString[] missingAtom = conditionAtom.clone();
-            missingAtom[0] = ByteString.of("?b");
+            missingAtom[0] = KB.variable('b', 0);
             rule.getTriples().add(conditionAtom.clone());
             rule.getTriples().add(missingAtom);
         }
 
-        miningHelper.computeCardinality(rule);
-        miningHelper.computeStandardConfidence(rule);
+        validator.evaluate(rule);
 
         return rule;
     }
@@ -428,10 +540,10 @@ public class CSAKey {
     /**
      * Construction of the maps from properties -> id and id -> properties
      */
-    private static void buildDictionaries(List<List<String>> nonKeys, HashSet<HashSet<Integer>> nonKeysInt, HashMap<String, Integer> property2Id,
+    private static void buildDictionaries(List<List<String>> nonKeys, HashSet<PropertySet> nonKeysInt, HashMap<String, Integer> property2Id,
     		HashMap<Integer, String> id2Property, List<Integer> propertiesList, int support, KB kb) {
     	int id = 0;
-    	HashSet<HashSet<Integer>> nonKeysIntTmp = new HashSet<>();
+    	HashSet<PropertySet> nonKeysIntTmp = new HashSet<>();
         for (List<String> nonKey : nonKeys) {
             HashSet<Integer> nonKeyInt = new HashSet<>();
             for (int k = 0; k < nonKey.size(); ++k) {
@@ -453,7 +565,7 @@ public class CSAKey {
                 Integer idProperty = property2Id.get(property);
                 nonKeyInt.add(idProperty);
             }
-            nonKeysIntTmp.add(nonKeyInt);
+            nonKeysIntTmp.add(PropertySet.of(nonKeyInt));
         }
         nonKeysInt.addAll(simplifyHashNonKeySet(nonKeysIntTmp));
         //System.out.println("Simplified " + nonKeysInt + "\tThread " + Thread.currentThread().getId() + "\t" + id2Property);
@@ -465,7 +577,7 @@ public class CSAKey {
      * @param support
      * @param kb
      */
-    public void discoverConditionalKeys(Set<Rule> output) {
+    public void discoverConditionalKeys(KeySink output) {
         HashMap<Rule, Graph> ruleToGraphFirstLevel = new HashMap<>();
         /** 
          * We build a graph (subset lattice) for each property. The graph contains nodes
@@ -495,7 +607,7 @@ public class CSAKey {
         	// If there is room for extension, we look for conditional keys of longer size.
             discoverConditionalKeysPerLevel(conditionsToPotentialExtensions, ruleToGraphFirstLevel, ruleToGraphFirstLevel, output);
         }
-        System.out.println("We found " + conditions2Keys.valueSize() + " key(s)");
+        System.out.println("We found " + conditions2Keys.size() + " key(s)");
 
     }
 
@@ -517,7 +629,7 @@ public class CSAKey {
 
     public void discoverConditionalKeysForCondition(Graph newGraph, Graph graph, 
     		HashSet<Node> candidateKeys,
-    		Rule conditionRule, Set<Rule> output) {
+    		Rule conditionRule, KeySink output) {
     	HashSet<Node> newCandidateKeys = new HashSet<>();
         for (Node candidateKey : candidateKeys) {
             //  System.out.println("candidateKey:" + candidateKey);
@@ -530,7 +642,7 @@ public class CSAKey {
                 boolean isConditionalKey = isConditionaKey(amieRule);
                 //System.out.println("isConditionalKey:"+isConditionalKey +  " Thread " + Thread.currentThread().getId() + "\t" + Utilities.formatKey(amieRule));
 
-                if (amieRule.getSupport() >= support && !isConditionalKey) {
+                if (amieRule.getSupport() >= minSupport() && !isConditionalKey) {
                 	//System.out.println("Case 0" +  " Thread " + Thread.currentThread().getId());
                     if (!newGraph.graph.containsKey(candidateKey)) {
                     	//System.out.println("Case 1" +  " Thread " + Thread.currentThread().getId());
@@ -551,30 +663,24 @@ public class CSAKey {
                 // and there is no a simpler key already discovered
                 // then output it
                 if (isConditionalKey
-                        && amieRule.getSupport() >= support
-                        && !isSubsumedByKey(amieRule, conditionRule, conditions2Keys)) {
+                        && amieRule.getSupport() >= minSupport()
+                        && !isSubsumedByKey(amieRule, conditionRule)) {
                     //        System.out.println("KEY");
                     if (!newGraph.graph.containsKey(candidateKey)) {
                         //       System.out.println("clone");
                         Node newCandidateKey = candidateKey.clone();
-                        synchronized (output) {
-							output.add(amieRule);
-						}
+                        report(amieRule, output);
                         //System.out.println(Utilities.formatKey(amieRule) + "\tThread " + Thread.currentThread().getId() + " Case 3");
-                        System.out.println(Utilities.formatKey(amieRule));
-                        conditions2Keys.put(conditionRule, amieRule);
+                        addKey(conditionRule, amieRule);
                         newCandidateKey.toExplore = false;
                         HashSet<Node> children = new HashSet<>();
                         newGraph.graph.put(newCandidateKey, children);
                         newGraph.nodes.put(newCandidateKey, newCandidateKey);
                         newCandidateKeys.add(newCandidateKey);
                     } else {
-                        synchronized (output) {
-							output.add(amieRule);
-						}
-                        System.out.println(Utilities.formatKey(amieRule));
+                        report(amieRule, output);
                         //System.out.println(Utilities.formatKey(amieRule) + "\tThread " + Thread.currentThread().getId() + " Case 4");
-                        conditions2Keys.put(conditionRule, amieRule);
+                        addKey(conditionRule, amieRule);
                         candidateKey.toExplore = false;
                         HashSet<Node> children = new HashSet<>();
                         newGraph.graph.put(candidateKey, children);
@@ -590,19 +696,19 @@ public class CSAKey {
 
         // createChildren
         HashSet<Node> allChildren = new HashSet<>();
+        PropertySet conditionProperties = getRelations(conditionRule, property2Id);
         // System.out.println("newCandidateKeys:"+newCandidateKeys);
         for (Node parent1 : newCandidateKeys) {
             //    System.out.println("parent1:"+parent1);
             for (Node parent2 : newCandidateKeys) {
                 if (parent1 != parent2 && parent1.toExplore != false && parent2.toExplore != false) {
-                    HashSet<Integer> newSet = new HashSet<>();
-                    newSet.addAll(parent1.set);
-                    newSet.addAll(parent2.set);
-                    HashSet<Integer> condProp_KeyProp = new HashSet<>();
-                    condProp_KeyProp.addAll(newSet);
-                    condProp_KeyProp.addAll(getRelations(conditionRule, property2Id));
+                	// Only the pairs that differ in one property make a child
+                	if (parent1.set.unionSize(parent2.set) != parent1.set.size() + 1)
+                		continue;
+                    PropertySet newSet = parent1.set.union(parent2.set);
+                    PropertySet condProp_KeyProp = newSet.union(conditionProperties);
                     //     System.out.println("newSet:" + newSet);
-                    if ((newSet.size() == parent1.set.size() + 1) && (getSupport(newSet, conditionRule, (int)support)) 
+                    if ((getSupport(newSet, conditionRule, (int) minSupport())) 
                     		&& Graph.containsASuperSetOf(nonKeysInt, condProp_KeyProp) != -1) {
                         //      System.out.println("enters");
                         Node child = new Node(newSet);
@@ -630,90 +736,78 @@ public class CSAKey {
         }
     }
 
+    /**
+     * The support threshold for the candidate keys and the conditions. In top-k mode it is
+     * raised to the support of the weakest of the best keys found so far: the support of a key
+     * bounds the support of the keys with more properties or conditions, so those branches of the
+     * lattice cannot produce better keys.
+     */
+    private float minSupport() {
+    	if (topKeys == null)
+    		return support;
+    	return (float) Math.max(support, topKeys.getThreshold());
+    }
+    
+    /**
+     * It returns the conditions that extend the given conditions with an instantiation of the
+     * property, in descending order of support. The tasks of the conditions with more subjects,
+     * which are the most expensive, are thus started first. In top-k mode the threshold of the
+     * enumeration is raised with the threshold of the best keys, so the enumeration stops as soon 
+     * as the remaining conditions cannot lead to a better key.
+     */
+    private ConditionsResult getConditions(Rule conditions, String property) {
+    	ConditionsResult result = new ConditionsResult(conditions, Arrays.asList(property), 
+    			(int) minSupport(), kb);
+    	result.setOrderedBySupport(true);
+    	if (topKeys != null)
+    		topKeys.register(result);
+    	return result;
+    }
+    
+    /**
+     * It waits for the tasks of the conditions, which are forked as the conditions are 
+     * enumerated, so that the keys they find can raise the threshold of the enumeration in
+     * top-k mode. The last task is joined first: this thread runs its own tasks in LIFO
+     * order while the idle threads steal the oldest ones, i.e., those with most support.
+     */
+    private static void joinAll(List<RecursiveAction> tasks) {
+    	for (int i = tasks.size() - 1; i >= 0; --i)
+    		tasks.get(i).join();
+    }
+    
+    /**
+     * It reports a key to the output, or to the best keys in top-k mode.
+     */
+    private void report(Rule conditionalKey, KeySink output) {
+    	if (topKeys == null)
+    		output.add(conditionalKey);
+    	else
+    		topKeys.offer(conditionalKey);
+    }
+    
     /**
      * It determines whether there exists a more general version of the given conditional key, a version of the
      * key with the exact same relations but fewer instantiations. For instance
-     * if the key states lastname | nationality=French, field=Databases but the map contains a key
+     * if the key states lastname | nationality=French, field=Databases but the index contains a key
      * lastname nationality | field=Databases (here nationality is not instantiated), the method will report 
      * this as a subsumption case and return true. 
      * @param conditionalKey
      * @param conditionRule
-     * @param conditions2Keys2
      * @return
      */
-    private boolean isSubsumedByKey(Rule conditionalKey, Rule conditionRule, 
-    		MultiMap<Rule, Rule> conditions2Keys2) {
-    	if (conditionRule.getLength() < 2) {
-            return false;
-        }
-
-        Set<ByteString> instantiations = new LinkedHashSet<>();
-        Set<ByteString> instantiatedRelations = new LinkedHashSet<>();
-        Set<ByteString> nonInstantiatedRelations = new LinkedHashSet<>();
-        Utilities.parseConditionalKey(conditionalKey, nonInstantiatedRelations, instantiations, instantiatedRelations);
-
-        /**
-         * Now get all possible simpler versions of the condition If the
-         * condition is field=Databases, residence=Paris, gender=female the
-         * method returns: field=Databases, residence=Paris field=Database,
-         * gender=female residence=Paris, gender=female residence=Paris
-         * gender=female field=Databases *
-         */
-        List<Rule> properSubconditions = getAllProperSubconditions(conditionRule);
-        for (Rule subCondition : properSubconditions) {
-            List<Rule> potentialParents = conditions2Keys2.get(subCondition);
-            if (potentialParents != null) {
-                for (Rule potentialParent : potentialParents) {
-                    if (potentialParent.getLength() != conditionalKey.getLength()) {
-                       // System.out.println("potentialParent:" + potentialParent);
-                        continue;
-                    }
-                    Set<ByteString> instantiatedRelationsParent = new LinkedHashSet<>();
-                    Set<ByteString> nonInstantiatedRelationsParent = new LinkedHashSet<>();
-                    Set<ByteString> instantiationsParent = new LinkedHashSet<>();
-                    Utilities.parseConditionalKey(potentialParent, nonInstantiatedRelationsParent,
-                            instantiationsParent, instantiatedRelationsParent);
-                    Set<ByteString> instansiatedNonInstantiatedRelations = new LinkedHashSet<>();
-					instansiatedNonInstantiatedRelations.addAll(instantiatedRelations);
-					instansiatedNonInstantiatedRelations.addAll(nonInstantiatedRelations);
-                    Set<ByteString> instansiatedNonInstantiatedRelationsParent = new LinkedHashSet<>();
-					instansiatedNonInstantiatedRelationsParent.addAll(instantiatedRelationsParent);
-					instansiatedNonInstantiatedRelationsParent.addAll(nonInstantiatedRelationsParent);
-                    if (instantiatedRelations.containsAll(instantiatedRelationsParent)
-                            && nonInstantiatedRelationsParent.containsAll(nonInstantiatedRelations) && 
-                            instansiatedNonInstantiatedRelationsParent.containsAll(instansiatedNonInstantiatedRelations)) {
-                        return true;
-                    }
-                }
-            }
-        }
-
-        return false;
+    private boolean isSubsumedByKey(Rule conditionalKey, Rule conditionRule) {
+    	return conditions2Keys.isSubsumed(conditionalKey, conditionRule);
 	}
 
-	private List<Rule> getAllProperSubconditions(Rule conditionRule) {
-		int numberOfConditions = conditionRule.getLength();
-		List<Rule> results = new ArrayList<>();
-		for (int size = 1; size < numberOfConditions; ++size) {
-			List<int[]> combinations = 
-					telecom.util.collections.Collections.subsetsOfSize(numberOfConditions, size);
-			for (int[] combination : combinations) {
-				List<ByteString[]> atoms = new ArrayList<>();
-				for (int idx : combination) {
-					atoms.add(conditionRule.getTriples().get(idx));
-				}
-				Rule newRule = null;
-				long card = kb.countDistinct(atoms.get(0)[0], atoms);
-				if (atoms.size() > 1) {
-					newRule = new Rule(atoms.get(0), atoms.subList(1, atoms.size()), card);
-				} else {
-					newRule = new Rule(atoms.get(0), card);
-				}
-				results.add(newRule);
-			}
-		}
-		return results;
-	}
+    /**
+     * It registers a conditional key. The keys of a condition are registered by a single 
+     * task, and they are read only by the tasks of longer conditions.
+     * @param conditionRule
+     * @param conditionalKey
+     */
+    private void addKey(Rule conditionRule, Rule conditionalKey) {
+    	conditions2Keys.add(conditionRule, conditionalKey);
+    }
 
 	private boolean isConditionaKey(Rule amieRule) {
         return amieRule.getStdConfidence() == 1.0;
@@ -721,7 +815,7 @@ public class CSAKey {
 
     public HashSet<HashSet<Integer>> buidPropertyGraph(int property) {
         HashSet<HashSet<Integer>> propertyPowerSets = new HashSet<>();
-        for (HashSet<Integer> nonKeyInt : nonKeysInt) {
+        for (PropertySet nonKeyInt : nonKeysInt) {
             if (nonKeyInt.contains(property)) {
                 HashSet<Integer> remainingSet = new HashSet<>(nonKeyInt);
                 remainingSet.addAll(nonKeyInt);
@@ -773,19 +867,34 @@ public class CSAKey {
     private HashMap<Rule, HashSet<String>> discoverConditionalKeysFirstLevel(
     		HashMap<Rule, Graph> ruleToGraph, 
     		HashMap<Integer, Graph> instantiatedProperty2Graph,
-    		Set<Rule> output) {
+    		final KeySink output) {
         Rule rule = new Rule();
+        final Map<Rule, Graph> ruleToGraphThisLevel = new ConcurrentHashMap<>();
+        List<RecursiveAction> tasks = new ArrayList<>();
         for (int conditionProperty : instantiatedProperty2Graph.keySet()) {
-            Graph graph = instantiatedProperty2Graph.get(conditionProperty);
+            final Graph graph = instantiatedProperty2Graph.get(conditionProperty);
             String prop = id2Property.get(conditionProperty);
 
-            Iterable<Rule> conditions = Utilities.getConditions(rule, prop, (int) support, kb);
-            for (Rule conditionRule : conditions) {
-                Graph newGraph = new Graph();
-                discoverConditionalKeysForCondition(newGraph, graph, graph.topGraphNodes(), conditionRule, output);
-                ruleToGraph.put(conditionRule, newGraph);
+            Iterable<Rule> conditions = getConditions(rule, prop);
+            for (final Rule conditionRule : conditions) {
+            	// The graph of the property is only read
+            	RecursiveAction task = new RecursiveAction() {
+					@Override
+					protected void compute() {
+						// The threshold may have been raised since the condition was enumerated
+						if (conditionRule.getSupport() < minSupport())
+							return;
+		                Graph newGraph = new Graph();
+		                discoverConditionalKeysForCondition(newGraph, graph, graph.topGraphNodes(), conditionRule, output);
+		                ruleToGraphThisLevel.put(conditionRule, newGraph);
+					}
+            	};
+            	task.fork();
+            	tasks.add(task);
             }
         }
+        joinAll(tasks);
+        ruleToGraph.putAll(ruleToGraphThisLevel);
 
         HashMap<Rule, HashSet<String>> newRuleToExtendWith = new HashMap<>();
         for (Rule conRule : ruleToGraph.keySet()) {
@@ -807,7 +916,7 @@ public class CSAKey {
         return newRuleToExtendWith;
     }
     
-    private HashSet<Integer> getRelations(Rule rule, Map<String, Integer> relation2Id) {
+    private PropertySet getRelations(Rule rule, Map<String, Integer> relation2Id) {
     	List<ByteString> relationsInRule = rule.getAllRelationsBS();
     	HashSet<Integer> result = new HashSet<>();
     	for (ByteString relation : relationsInRule) {
@@ -816,7 +925,7 @@ public class CSAKey {
         		result.add(id);
         	}
         }
-        return result;
+        return PropertySet.of(result);
 	}
     
     /**
@@ -827,50 +936,61 @@ public class CSAKey {
      * @param kb
      */
     private void discoverConditionalKeysPerLevel(HashMap<Rule, HashSet<String>> ruleToExtendWith,
-            HashMap<Rule, Graph> ruleToGraphFirstLevel, HashMap<Rule, Graph> ruleToGraphLastLevel,
-            Set<Rule> output) {
+            final HashMap<Rule, Graph> ruleToGraphFirstLevel, HashMap<Rule, Graph> ruleToGraphLastLevel,
+            final KeySink output) {
     	//System.out.println("discoverConditionalKeysPerLevel()");
-    	HashMap<Rule, Graph> ruleToGraphThisLevel = new HashMap<>();
-        for (Rule currentRule : ruleToExtendWith.keySet()) {
+    	final ConcurrentHashMap<Rule, Graph> ruleToGraphThisLevelConcurrent = new ConcurrentHashMap<>();
+    	List<RecursiveAction> tasks = new ArrayList<>();
+        for (final Rule currentRule : ruleToExtendWith.keySet()) {
             Graph graph = ruleToGraphLastLevel.get(currentRule);
         	//System.out.println("Current rule: " + currentRule+ " Graph:"+graph);
             for (String conditionProperty : ruleToExtendWith.get(currentRule)) {            	
                 if (Utilities.getRelationIds(currentRule, property2Id).last()
                         > property2Id.get(conditionProperty)) {
-                    Graph currentGraphNew = (Graph) graph.clone();
+                    final Graph currentGraphNew = (Graph) graph.clone();
                     Integer propertyId = property2Id.get(conditionProperty);
-                    HashSet<Integer> propertiesSet = new HashSet<>();
-                    propertiesSet.add(propertyId);
-                    Node node = currentGraphNew.createOrGetNode(propertiesSet); //Before it was createNode
+                    Node node = currentGraphNew.createOrGetNode(PropertySet.of(propertyId)); //Before it was createNode
                     node.toExplore = false;
-                    Iterable<Rule> conditions = Utilities.getConditions(currentRule, conditionProperty, (int) support, kb);
-                    for (Rule conditionRule : conditions) {
-                        Rule complementaryRule = getComplementaryRule(conditionRule);
-                        if (!ruleToGraphFirstLevel.containsKey(complementaryRule)) {
-                            // We should never fall in this case
-                            for (Rule r : ruleToGraphFirstLevel.keySet()) {
-                                System.out.println(r.getDatalogBasicRuleString());
-                            }
-                            System.out.println(complementaryRule.getDatalogBasicRuleString());
-                            System.out.println(complementaryRule + " not found in the first level graph");
-                        }
-                                      	
-                        Graph complementaryGraphNew = ruleToGraphFirstLevel.get(complementaryRule);
-                        //System.out.println("Complementary rule: " + complementaryRule + "\tThread " + Thread.currentThread().getId() + "\t" + complementaryGraphNew);
-                        Graph newGraphNew = (Graph) currentGraphNew.clone();
-                        HashSet<Integer> conditionProperties = new HashSet<>();
-                        conditionProperties.addAll(getRelations(conditionRule, property2Id));
-                        conditionProperties.addAll(getRelations(currentRule, property2Id));
-                        //System.out.println("currentGraph:"+currentGraphNew);
-                        //System.out.println("clone of currentGraph:"+newGraphNew);
-                        newGraphNew = mergeGraphs(newGraphNew, complementaryGraphNew, newGraphNew.topGraphNodes(), conditionProperties);
-                        //System.out.println("newMergeGraph:"+newGraphNew);
-                        discoverConditionalKeysForComplexConditions(newGraphNew, newGraphNew.topGraphNodes(), conditionRule, output);
-                        ruleToGraphThisLevel.put(conditionRule, newGraphNew);
+                    Iterable<Rule> conditions = getConditions(currentRule, conditionProperty);
+                    for (final Rule conditionRule : conditions) {
+                    	// Each task works on its own copy of the graph
+                    	RecursiveAction task = new RecursiveAction() {
+							@Override
+							protected void compute() {
+								if (conditionRule.getSupport() < minSupport())
+									return;
+		                        Rule complementaryRule = getComplementaryRule(conditionRule);
+		                        if (!ruleToGraphFirstLevel.containsKey(complementaryRule)) {
+		                            // We should never fall in this case
+		                            for (Rule r : ruleToGraphFirstLevel.keySet()) {
+		                                System.out.println(r.getDatalogBasicRuleString());
+		                            }
+		                            System.out.println(complementaryRule.getDatalogBasicRuleString());
+		                            System.out.println(complementaryRule + " not found in the first level graph");
+		                        }
+		                                      	
+		                        Graph complementaryGraphNew = ruleToGraphFirstLevel.get(complementaryRule);
+		                        //System.out.println("Complementary rule: " + complementaryRule + "\tThread " + Thread.currentThread().getId() + "\t" + complementaryGraphNew);
+		                        Graph newGraphNew = (Graph) currentGraphNew.clone();
+		                        PropertySet conditionProperties = getRelations(conditionRule, property2Id)
+		                        		.union(getRelations(currentRule, property2Id));
+		                        //System.out.println("currentGraph:"+currentGraphNew);
+		                        //System.out.println("clone of currentGraph:"+newGraphNew);
+		                        newGraphNew = mergeGraphs(newGraphNew, complementaryGraphNew, newGraphNew.topGraphNodes(), conditionProperties);
+		                        //System.out.println("newMergeGraph:"+newGraphNew);
+		                        discoverConditionalKeysForComplexConditions(newGraphNew, newGraphNew.topGraphNodes(), conditionRule, output);
+		                        ruleToGraphThisLevelConcurrent.put(conditionRule, newGraphNew);
+							}
+                    	};
+                    	task.fork();
+                    	tasks.add(task);
                     }
                 }
             }
         }
+        // All the conditions of the level must be done before going to the next one
+        joinAll(tasks);
+        HashMap<Rule, Graph> ruleToGraphThisLevel = new HashMap<>(ruleToGraphThisLevelConcurrent);
         HashMap<Rule, HashSet<String>> newRuleToExtendWith = new HashMap<>();
         for (Rule conRule : ruleToGraphThisLevel.keySet()) {
             Graph newGraphNew = ruleToGraphThisLevel.get(conRule);
@@ -896,7 +1016,7 @@ public class CSAKey {
 
     }
     
-    public void discoverConditionalKeysForComplexConditions(Graph graph, HashSet<Node> candidateKeys, Rule conditionRule, Set<Rule> output) {
+    public void discoverConditionalKeysForComplexConditions(Graph graph, HashSet<Node> candidateKeys, Rule conditionRule, KeySink output) {
         HashSet<Node> childrenCandidateKeys = new HashSet<>();
         //   System.out.println("candidates:" + candidateKeys);
 
@@ -911,7 +1031,7 @@ public class CSAKey {
 
                     //       System.out.println("amieRule:" + amieRule.getDatalogFullRuleString());
                     boolean isConditionalKey = isConditionaKey(amieRule);
-                    if (amieRule.getSupport() < support || isConditionalKey) {
+                    if (amieRule.getSupport() < minSupport() || isConditionalKey) {
                         candidateKey.toExplore = false;
                         //      System.out.println("key");
                         flagChildren(graph, candidateKey);
@@ -921,14 +1041,11 @@ public class CSAKey {
                     // and there is no a simpler key already discovered
                     // then output it
                     if (isConditionalKey
-                            && amieRule.getSupport() >= support
-                            && !isSubsumedByKey(amieRule, conditionRule, conditions2Keys)) {
-                        synchronized (output) {
-							output.add(amieRule);
-						}
+                            && amieRule.getSupport() >= minSupport()
+                            && !isSubsumedByKey(amieRule, conditionRule)) {
+                        report(amieRule, output);
                         //System.out.println(Utilities.formatKey(amieRule) + "\tThread " + Thread.currentThread().getId());
-                        System.out.println(Utilities.formatKey(amieRule));
-                        conditions2Keys.put(conditionRule, amieRule);
+                        addKey(conditionRule, amieRule);
                     }
 
                     if (candidateKey.toExplore) {
@@ -947,17 +1064,17 @@ public class CSAKey {
     }
 
     private Rule getComplementaryRule(Rule conditionRule) {
-        long cardinality = kb.count(conditionRule.getHead());
+        long cardinality = validator.countSubjects(conditionRule.getHead());
         Rule complementaryRule = new Rule(conditionRule.getHead(), cardinality);
         return complementaryRule;
     }
     
-    public boolean containsSubSet(HashSet<Integer> allPropertiesSet) {
+    public boolean containsSubSet(PropertySet allPropertiesSet) {
         boolean contains = false;
         if (nonKeysInt.contains(allPropertiesSet)) {
             return true;
         }
-        for (HashSet<Integer> nonKeyInt : nonKeysInt) {
+        for (PropertySet nonKeyInt : nonKeysInt) {
             //   System.out.println("nonKeyInt:"+nonKeyInt);
             if (nonKeyInt.containsAll(allPropertiesSet)) {
                 //|| nonKeyInt.equals(allPropertiesSet)) {
@@ -969,7 +1086,7 @@ public class CSAKey {
     }
     
     private Graph mergeGraphs(Graph currentGraph, Graph graph2, HashSet<Node> currentGraphTopNodes, 
-    		HashSet<Integer> conditionProperties) {
+    		PropertySet conditionProperties) {
     	HashSet<Node> childrenNodes = new HashSet<>();
         for (Node currentGraphNewtopNode : currentGraphTopNodes) {
             if (currentGraphNewtopNode.toExplore) {
@@ -983,9 +1100,7 @@ public class CSAKey {
                         currentGraph.createOrGetNode(currentGraphNewtopNode);
                     } else {
                         // System.out.println("yes2");
-                        HashSet<Integer> allProperties = new HashSet<>();
-                        allProperties.addAll(conditionProperties);
-                        allProperties.addAll(currentGraphNewtopNode.set);
+                        PropertySet allProperties = conditionProperties.union(currentGraphNewtopNode.set);
                         //  System.out.println("allProperties:"+allProperties);
                         if (!containsSubSet(allProperties)) {
                             //  System.out.println("no3");
@@ -1011,11 +1126,11 @@ public class CSAKey {
     }
 
     
-    public static HashSet<HashSet<Integer>> simplifyHashNonKeySet(HashSet<HashSet<Integer>> nonKeySet) {
-        HashSet<HashSet<Integer>> newnonKeySet = new HashSet<HashSet<Integer>>();
+    public static <T extends Set<Integer>> HashSet<T> simplifyHashNonKeySet(HashSet<T> nonKeySet) {
+        HashSet<T> newnonKeySet = new HashSet<T>();
         newnonKeySet.addAll(nonKeySet);
-        for (HashSet set : nonKeySet) {
-            for (HashSet set2 : nonKeySet) {
+        for (T set : nonKeySet) {
+            for (T set2 : nonKeySet) {
                 if (set2 != set && set2.containsAll(set)) {
                     newnonKeySet.remove(set);
                     break;
@@ -1040,7 +1155,7 @@ public class CSAKey {
         return newnonKeySet;
     }
     
-    private static boolean hasFalseParent(HashSet<Integer> newSet2, HashSet<Node> newCandidateKeys) {
+    private static boolean hasFalseParent(PropertySet newSet2, HashSet<Node> newCandidateKeys) {
         for (Node parent : newCandidateKeys) {
             //          System.out.println("parent:" + parent);
             //   System.out.println("parent.toExplore:" + parent.toExplore);
@@ -1053,30 +1168,25 @@ public class CSAKey {
         return false;
     }
     
-    public boolean getSupport(HashSet<Integer> properties,
+    public boolean getSupport(Collection<Integer> properties,
             Rule conditionsRule, int support) {
         Rule rule = new Rule(KB.triple("?a", KB.EQUALSstr, "?b"), 0.0);
 
         int k = 1;
         for (int property : properties) {
-            rule.getTriples().add(KB.triple(ByteString.of("?a"), ByteString.of(id2Property.get(property)), ByteString.of("?ob" + k)));
-            rule.getTriples().add(KB.triple(ByteString.of("?b"), ByteString.of(id2Property.get(property)), ByteString.of("?ob" + k)));
+            rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(id2Property.get(property)), KB.objectVariable(k)));
+            rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(id2Property.get(property)), KB.objectVariable(k)));
             ++k;
         }
 
         for (ByteString[] conditionAtom : conditionsRule.getTriples()) {
             ByteString[] missingAtom = conditionAtom.clone();
-            missingAtom[0] = ByteString.of("?b");
+            missingAtom[0] = KB.variable('b', 0);
             rule.getTriples().add(conditionAtom.clone());
             rule.getTriples().add(missingAtom);
         }
 
-        miningHelper.computeCardinality(rule);
-        if ((int) rule.getSupport() < support) {
-            return false;
-        } else {
-            return true;
-        }
+        return validator.support(rule) >= support;
     }
     
 }
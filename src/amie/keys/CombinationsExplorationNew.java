@@ -7,10 +7,10 @@ package amie.keys;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -31,7 +31,6 @@ import amie.mining.assistant.MiningAssistant;
 import amie.rules.Rule;
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
-import telecom.util.collections.MultiMap;
 
 /**
  *
@@ -43,7 +42,7 @@ public class CombinationsExplorationNew {
     static Map<String, Integer> property2Id = new HashMap<>();
     static Map<Integer, String> id2Property = new HashMap<>();
 
-    static HashSet<HashSet<Integer>> nonKeysInt = new HashSet<>();
+    static HashSet<PropertySet> nonKeysInt = new HashSet<>();
     //static HashSet<node> nonKeysIntNodes = new HashSet<>();
     static ArrayList<Integer> propertiesList = new ArrayList<>();
     static HashSet<Integer> nonKeyInt1 = new HashSet<>();
@@ -51,17 +50,22 @@ public class CombinationsExplorationNew {
     static HashSet<Integer> nonKeyInt3 = new HashSet<>();
     static IntHashMap<ByteString> propertiesSupport = null;
     /**
-     * A map where the keys are conditions, e.g., residence=Paris and the values
+     * An index where the keys are conditions, e.g., residence=Paris and the values
      * are conditional keys with that condition, e.g., nationality zipCode |
      * residence=Paris; lastname nationality | residence=Paris etc.
      */
-    static MultiMap<Rule, Rule> conditions2Keys = new MultiMap<>();
+    static KeyIndex conditions2Keys = new KeyIndex();
     static MiningAssistant miningHelper = null;
+    /** Validation of the candidate keys with partitions of the subjects **/
+    static KeyValidator validator = null;
     public static final int defaultMinSupport = 2;
     static int support = defaultMinSupport;
     public static long numberOfInstances = 0;
     static int keyCounter = 0;
     static KB kb;
+    /** The conditional keys found so far **/
+    static KeySink output = null;
+    static String outputFile = null;
 
     /**
      * Parses the command line arguments and the returns an object that maps
@@ -100,7 +104,14 @@ public class CombinationsExplorationNew {
 
         options.addOption(supportOpt);
         options.addOption(ratioOpt);
+        Option outputOpt = OptionBuilder.withArgName("file")
+                .withDescription("Stream the keys to this file as they are found (JSON lines if the "
+                		+ "file ends with .json, TSV otherwise).")
+                .hasArg()
+                .create("o");
+
         options.addOption(nonKeysOpt);
+        options.addOption(outputOpt);
 
         try {
             cli = parser.parse(options, args);
@@ -131,6 +142,10 @@ public class CombinationsExplorationNew {
             support = (int) Math.ceil(numberOfInstances * support / 100.0);
         }
 
+        if (cli.hasOption("o")) {
+            outputFile = cli.getOptionValue("o");
+        }
+
         System.out.println("Using minimum support " + support);
 
         return cli;
@@ -146,6 +161,7 @@ public class CombinationsExplorationNew {
         // of confidence and support
         numberOfInstances = kb.size(Column.Subject);
         miningHelper = new DefaultMiningAssistant(kb);
+        validator = new KeyValidator(kb);
         // The file with the non-keys, one per line
         List<List<String>> nonKeys = new ArrayList<>();
         for (List<String> nonKey : Utilities.parseNonKeysFile(cli.getOptionValue("nk"))) {
@@ -165,7 +181,10 @@ public class CombinationsExplorationNew {
         //System.out.println("prop:"+property2Id);
         System.out.println("Dictionaries built");
         // We discover the conditional keys
+        output = outputFile == null ? new KeySink(true, false) :
+        	new KeySink(true, false, KeySink.fileWriter(outputFile));
         discoverConditionalKeys();
+        output.close();
         long timeb = System.currentTimeMillis();
         System.out.println("Total time in ms: " + (timeb - timea));
     }
@@ -185,58 +204,52 @@ public class CombinationsExplorationNew {
 
         int k = 1;
         for (String property : properties) {
-            rule.getTriples().add(KB.triple(ByteString.of("?a"), ByteString.of(property), ByteString.of("?ob" + k)));
-            rule.getTriples().add(KB.triple(ByteString.of("?b"), ByteString.of(property), ByteString.of("?ob" + k)));
+            rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(property), KB.objectVariable(k)));
+            rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(property), KB.objectVariable(k)));
             ++k;
         }
 
         for (ByteString[] conditionAtom : conditionsRule.getTriples()) {
             ByteString[] missingAtom = conditionAtom.clone();
-            missingAtom[0] = ByteString.of("?b");
+            missingAtom[0] = KB.variable('b', 0);
             rule.getTriples().add(conditionAtom);
             rule.getTriples().add(missingAtom);
         }
 
-        miningHelper.computeCardinality(rule);
+        validator.evaluate(rule);
         rule.setSupportRatio(rule.getSupport() / (double) numberOfInstances);
-        miningHelper.computeStandardConfidence(rule);
 
         return rule;
     }
 
-    public static boolean getSupport(HashSet<Integer> properties,
+    public static boolean getSupport(Collection<Integer> properties,
             Rule conditionsRule, int support) {
         Rule rule = new Rule(KB.triple("?a", KB.EQUALSstr, "?b"), 0.0);
 
         int k = 1;
         for (int property : properties) {
-            rule.getTriples().add(KB.triple(ByteString.of("?a"), ByteString.of(id2Property.get(property)), ByteString.of("?ob" + k)));
-            rule.getTriples().add(KB.triple(ByteString.of("?b"), ByteString.of(id2Property.get(property)), ByteString.of("?ob" + k)));
+            rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(id2Property.get(property)), KB.objectVariable(k)));
+            rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(id2Property.get(property)), KB.objectVariable(k)));
             ++k;
         }
 
         for (ByteString[] conditionAtom : conditionsRule.getTriples()) {
             ByteString[] missingAtom = conditionAtom.clone();
-            missingAtom[0] = ByteString.of("?b");
+            missingAtom[0] = KB.variable('b', 0);
             rule.getTriples().add(conditionAtom.clone());
             rule.getTriples().add(missingAtom);
         }
         //System.out.println("computing cardinality of " + rule);
-        miningHelper.computeCardinality(rule);
-        if ((int) rule.getSupport() < support) {
-            return false;
-        } else {
-            return true;
-        }
+        return validator.support(rule) >= support;
     }
 
     /**
      * Construction of the maps from properties -> id and id -> properties
      */
-    private static HashSet<HashSet<Integer>> buildDictionaries(
+    private static HashSet<PropertySet> buildDictionaries(
             List<List<String>> nonKeys, List<Integer> propertiesList) {
         int id = 0;
-        HashSet<HashSet<Integer>> result = new HashSet<>();
+        HashSet<PropertySet> result = new HashSet<>();
         for (List<String> nonKey : nonKeys) {
             //    System.out.println("nonkey:" + nonKey);
             HashSet<Integer> nonKeyInt = new HashSet<>();
@@ -270,7 +283,7 @@ public class CombinationsExplorationNew {
             }
             //System.out.println("propertyList:"+propertiesList);
             if (nonKeyInt.size() != 0) {
-                result.add(nonKeyInt);
+                result.add(PropertySet.of(nonKeyInt));
                 //   System.out.println("nonKeyInt!:" + nonKeyInt + " " + nonKeyInt.size() + "\n");
             }
         }
@@ -319,7 +332,7 @@ public class CombinationsExplorationNew {
         if (conditionsToPotentialExtensions.size() != 0) {
             discoverConditionalKeysPerLevel(conditionsToPotentialExtensions, ruleToGraphNewFirstLevel, ruleToGraphNewFirstLevel);
         }
-        System.out.println("We found " + conditions2Keys.valueSize() + " key(s)");
+        System.out.println("We found " + conditions2Keys.size() + " key(s)");
 
     }
 
@@ -379,13 +392,13 @@ public class CombinationsExplorationNew {
                 // then output it
                 if (isConditionalKey
                         && amieRule.getSupport() >= support
-                        && !isSubsumedByKey(amieRule, conditionRule, conditions2Keys)) {
+                        && !isSubsumedByKey(amieRule, conditionRule)) {
                     //        System.out.println("KEY");
                     if (!newGraph.graph.containsKey(candidateKey)) {
                         //       System.out.println("clone");
                         Node newCandidateKey = candidateKey.clone();
-                        System.out.println(Utilities.formatKey(amieRule));
-                        conditions2Keys.put(conditionRule, amieRule);
+                        output.add(amieRule);
+                        conditions2Keys.add(conditionRule, amieRule);
                         newCandidateKey.toExplore = false;
                         HashSet<Node> children = new HashSet<>();
                         newGraph.graph.put(newCandidateKey, children);
@@ -393,8 +406,8 @@ public class CombinationsExplorationNew {
                         newCandidateKeys.add(newCandidateKey);
                     	//System.out.println("Case 3");
                     } else {
-                        System.out.println(Utilities.formatKey(amieRule));
-                        conditions2Keys.put(conditionRule, amieRule);
+                        output.add(amieRule);
+                        conditions2Keys.add(conditionRule, amieRule);
                         candidateKey.toExplore = false;
                         HashSet<Node> children = new HashSet<>();
                         newGraph.graph.put(candidateKey, children);
@@ -404,7 +417,7 @@ public class CombinationsExplorationNew {
                     }
 
                     // System.out.println(Utilities.formatKey(amieRule));
-                    //conditions2Keys.put(conditionRule, amieRule);
+                    //conditions2Keys.add(conditionRule, amieRule);
                     // candidateKey.toExplore = false;
                 }
             } else {
@@ -416,20 +429,19 @@ public class CombinationsExplorationNew {
 
         // createChildren
         HashSet<Node> allChildren = new HashSet<>();
+        PropertySet conditionProperties = getRelations(conditionRule, property2Id);
         // System.out.println("newCandidateKeys:"+newCandidateKeys);
         for (Node parent1 : newCandidateKeys) {
             //    System.out.println("parent1:"+parent1);
             for (Node parent2 : newCandidateKeys) {
                 if (parent1 != parent2 && parent1.toExplore != false && parent2.toExplore != false) {
-                    HashSet<Integer> newSet = new HashSet<>();
-                    newSet.addAll(parent1.set);
-                    newSet.addAll(parent2.set);
-                    HashSet<Integer> condProp_KeyProp = new HashSet<>();
-                    condProp_KeyProp.addAll(newSet);
-                    condProp_KeyProp.addAll(getRelations(conditionRule, property2Id));
+                	// Only the pairs that differ in one property make a child
+                	if (parent1.set.unionSize(parent2.set) != parent1.set.size() + 1)
+                		continue;
+                    PropertySet newSet = parent1.set.union(parent2.set);
+                    PropertySet condProp_KeyProp = newSet.union(conditionProperties);
                     //     System.out.println("newSet:" + newSet);
-                    if ((newSet.size() == parent1.set.size() + 1) && 
-                    		(getSupport(newSet, conditionRule, support)) && GraphNew.containsASuperSetOf(CombinationsExplorationNew.nonKeysInt, condProp_KeyProp) != -1) {
+                    if ((getSupport(newSet, conditionRule, support)) && GraphNew.containsASuperSetOf(CombinationsExplorationNew.nonKeysInt, condProp_KeyProp) != -1) {
                         //      System.out.println("enters");
                         Node child = new Node(newSet);
                         if (hasFalseParent(newSet, newCandidateKeys)) {
@@ -480,9 +492,9 @@ public class CombinationsExplorationNew {
                     // then output it
                     if (isConditionalKey
                             && amieRule.getSupport() >= support
-                            && !isSubsumedByKey(amieRule, conditionRule, conditions2Keys)) {
-                        System.out.println(Utilities.formatKey(amieRule));
-                        conditions2Keys.put(conditionRule, amieRule);
+                            && !isSubsumedByKey(amieRule, conditionRule)) {
+                        output.add(amieRule);
+                        conditions2Keys.add(conditionRule, amieRule);
                     }
 
                     if (candidateKey.toExplore) {
@@ -504,96 +516,25 @@ public class CombinationsExplorationNew {
      * It determines whether there exists a more general version of the given
      * conditional key, a version of the key with the exact same relations but
      * fewer instantiations. For instance if the key states lastname |
-     * nationality=French, field=Databases but the map contains a key lastname
+     * nationality=French, field=Databases but the index contains a key lastname
      * nationality | field=Databases (here nationality is not instantiated), the
      * method will report this a subsumption case and return true.
      *
      * @param conditionalKey
      * @param conditionRule
-     * @param conditions2Keys2
      * @return
      */
-    private static boolean isSubsumedByKey(Rule conditionalKey, Rule conditionRule,
-            MultiMap<Rule, Rule> conditions2Keys2) {
-        if (conditionRule.getLength() < 2) {
-            return false;
-        }
-
-        Set<ByteString> instantiations = new LinkedHashSet<>();
-        Set<ByteString> instantiatedRelations = new LinkedHashSet<>();
-        Set<ByteString> nonInstantiatedRelations = new LinkedHashSet<>();
-        Utilities.parseConditionalKey(conditionalKey, nonInstantiatedRelations, instantiations, instantiatedRelations);
-
-        /**
-         * Now get all possible simpler versions of the condition If the
-         * condition is field=Databases, residence=Paris, gender=female the
-         * method returns: field=Databases, residence=Paris field=Database,
-         * gender=female residence=Paris, gender=female residence=Paris
-         * gender=female field=Databases *
-         */
-        List<Rule> properSubconditions = getAllProperSubconditions(conditionRule);
-        for (Rule subCondition : properSubconditions) {
-            List<Rule> potentialParents = conditions2Keys2.get(subCondition);
-            if (potentialParents != null) {
-                for (Rule potentialParent : potentialParents) {
-                    if (potentialParent.getLength() != conditionalKey.getLength()) {
-                       // System.out.println("potentialParent:" + potentialParent);
-                        continue;
-                    }
-                    Set<ByteString> instantiatedRelationsParent = new LinkedHashSet<>();
-                    Set<ByteString> nonInstantiatedRelationsParent = new LinkedHashSet<>();
-                    Set<ByteString> instantiationsParent = new LinkedHashSet<>();
-                    Utilities.parseConditionalKey(potentialParent, nonInstantiatedRelationsParent,
-                            instantiationsParent, instantiatedRelationsParent);
-                    Set<ByteString> instansiatedNonInstantiatedRelations = new LinkedHashSet<>();
-					instansiatedNonInstantiatedRelations.addAll(instantiatedRelations);
-					instansiatedNonInstantiatedRelations.addAll(nonInstantiatedRelations);
-                    Set<ByteString> instansiatedNonInstantiatedRelationsParent = new LinkedHashSet<>();
-					instansiatedNonInstantiatedRelationsParent.addAll(instantiatedRelationsParent);
-					instansiatedNonInstantiatedRelationsParent.addAll(nonInstantiatedRelationsParent);
-                    if (instantiatedRelations.containsAll(instantiatedRelationsParent)
-                            && nonInstantiatedRelationsParent.containsAll(nonInstantiatedRelations) && 
-                            instansiatedNonInstantiatedRelationsParent.containsAll(instansiatedNonInstantiatedRelations)) {
-                        return true;
-                    }
-                }
-            }
-        }
-
-        return false;
+    private static boolean isSubsumedByKey(Rule conditionalKey, Rule conditionRule) {
+        return conditions2Keys.isSubsumed(conditionalKey, conditionRule);
     } 
 
-    private static List<Rule> getAllProperSubconditions(Rule conditionRule) {
-        int numberOfConditions = conditionRule.getLength();
-        List<Rule> results = new ArrayList<>();
-        for (int size = 1; size < numberOfConditions; ++size) {
-            List<int[]> combinations
-                    = telecom.util.collections.Collections.subsetsOfSize(numberOfConditions, size);
-            for (int[] combination : combinations) {
-                List<ByteString[]> atoms = new ArrayList<>();
-                for (int idx : combination) {
-                    atoms.add(conditionRule.getTriples().get(idx));
-                }
-                Rule newRule = null;
-                long card = kb.countDistinct(atoms.get(0)[0], atoms);
-                if (atoms.size() > 1) {
-                    newRule = new Rule(atoms.get(0), atoms.subList(1, atoms.size()), card);
-                } else {
-                    newRule = new Rule(atoms.get(0), card);
-                }
-                results.add(newRule);
-            }
-        }
-        return results;
-    }
-
     private static boolean isConditionaKey(Rule amieRule) {
         return amieRule.getStdConfidence() == 1.0;
     }
 
     public static HashSet<HashSet<Integer>> buidPropertyGraphNew(int property) {
         HashSet<HashSet<Integer>> propertyPowerSets = new HashSet<>();
-        for (HashSet<Integer> nonKeyInt : nonKeysInt) {
+        for (PropertySet nonKeyInt : nonKeysInt) {
             if (nonKeyInt.contains(property)) {
                 HashSet<Integer> remainingSet = new HashSet<>(nonKeyInt);
                 remainingSet.addAll(nonKeyInt);
@@ -697,9 +638,7 @@ public class CombinationsExplorationNew {
                     GraphNew graph = ruleToGraphNewLastLevel.get(currentRule);
                     GraphNew currentGraphNew = (GraphNew) graph.clone();
                     Integer propertyId = property2Id.get(conditionProperty);
-                    HashSet<Integer> propertiesSet = new HashSet<>();
-                    propertiesSet.add(propertyId);
-                    Node node = currentGraphNew.createNode(propertiesSet);
+                    Node node = currentGraphNew.createNode(PropertySet.of(propertyId));
                     node.toExplore = false;
                     Iterable<Rule> conditions = Utilities.getConditions(currentRule, conditionProperty, (int) support, kb);
                     for (Rule conditionRule : conditions) {
@@ -714,9 +653,8 @@ public class CombinationsExplorationNew {
                         }
                         GraphNew complementaryGraphNew = ruleToGraphNewFirstLevel.get(complementaryRule);
                         GraphNew newGraphNew = (GraphNew) currentGraphNew.clone();
-                        HashSet<Integer> conditionProperties = new HashSet<>();
-                        conditionProperties.addAll(getRelations(conditionRule, property2Id));
-                        conditionProperties.addAll(getRelations(currentRule, property2Id));
+                        PropertySet conditionProperties = getRelations(conditionRule, property2Id)
+                        		.union(getRelations(currentRule, property2Id));
                         newGraphNew = mergeGraphNews(newGraphNew, complementaryGraphNew, newGraphNew.topGraphNodes(), conditionProperties);
                     
                         discoverConditionalKeysForComplexConditions(newGraphNew, newGraphNew.topGraphNodes(), conditionRule);
@@ -753,7 +691,7 @@ public class CombinationsExplorationNew {
         return complementaryRule;
     }
 
-    private static GraphNew mergeGraphNews(GraphNew currentGraphNew, GraphNew graph2, HashSet<Node> currentGraphNewTopNodes, HashSet<Integer> conditionProperties) {
+    private static GraphNew mergeGraphNews(GraphNew currentGraphNew, GraphNew graph2, HashSet<Node> currentGraphNewTopNodes, PropertySet conditionProperties) {
         HashSet<Node> childrenNodes = new HashSet<>();
         for (Node currentGraphNewtopNode : currentGraphNewTopNodes) {
             if (currentGraphNewtopNode.toExplore) {
@@ -767,9 +705,7 @@ public class CombinationsExplorationNew {
                         currentGraphNew.getAndCreateNode(currentGraphNewtopNode);
                     } else {
                         // System.out.println("yes2");
-                        HashSet<Integer> allProperties = new HashSet<>();
-                        allProperties.addAll(conditionProperties);
-                        allProperties.addAll(currentGraphNewtopNode.set);
+                        PropertySet allProperties = conditionProperties.union(currentGraphNewtopNode.set);
                         //  System.out.println("allProperties:"+allProperties);
                         if (!containsSubSet(allProperties)) {
                             //  System.out.println("no3");
@@ -794,11 +730,11 @@ public class CombinationsExplorationNew {
         return currentGraphNew;
     }
 
-    public static HashSet<HashSet<Integer>> simplifyHashNonKeySet(HashSet<HashSet<Integer>> nonKeySet) {
-        HashSet<HashSet<Integer>> newnonKeySet = new HashSet<HashSet<Integer>>();
+    public static <T extends Set<Integer>> HashSet<T> simplifyHashNonKeySet(HashSet<T> nonKeySet) {
+        HashSet<T> newnonKeySet = new HashSet<T>();
         newnonKeySet.addAll(nonKeySet);
-        for (HashSet set : nonKeySet) {
-            for (HashSet set2 : nonKeySet) {
+        for (T set : nonKeySet) {
+            for (T set2 : nonKeySet) {
                 if (set2 != set && set2.containsAll(set)) {
                     newnonKeySet.remove(set);
                     break;
@@ -808,12 +744,12 @@ public class CombinationsExplorationNew {
         return newnonKeySet;
     }
 
-    public static boolean containsSubSet(HashSet<Integer> allPropertiesSet) {
+    public static boolean containsSubSet(PropertySet allPropertiesSet) {
         boolean contains = false;
         if (nonKeysInt.contains(allPropertiesSet)) {
             return true;
         }
-        for (HashSet<Integer> nonKeyInt : nonKeysInt) {
+        for (PropertySet nonKeyInt : nonKeysInt) {
             //   System.out.println("nonKeyInt:"+nonKeyInt);
             if (nonKeyInt.containsAll(allPropertiesSet)) {
                 //|| nonKeyInt.equals(allPropertiesSet)) {
@@ -824,7 +760,7 @@ public class CombinationsExplorationNew {
         return contains;
     }
 
-    private static HashSet<Integer> getRelations(Rule rule, Map<String, Integer> relation2Id) {
+    private static PropertySet getRelations(Rule rule, Map<String, Integer> relation2Id) {
         List<ByteString> relationsInRule = rule.getAllRelationsBS();
         HashSet<Integer> result = new HashSet<>();
         for (ByteString relation : relationsInRule) {
@@ -833,11 +769,11 @@ public class CombinationsExplorationNew {
                 result.add(id);
             }
         }
-        return result;
+        return PropertySet.of(result);
 
     }
 
-    public static int support(HashSet<Integer> propertyIds,
+    public static int support(Collection<Integer> propertyIds,
             Map<Integer, String> ids2Properties, KB kb) {
         List<ByteString[]> query = new ArrayList<>();
         ByteString var = ByteString.of("?s");
@@ -860,13 +796,10 @@ public class CombinationsExplorationNew {
         for (Node parent1 : parents) {
             for (Node parent2 : parents) {
                 if (parent1 != parent2) {
-                    HashSet<Integer> newSet = new HashSet<>();
-                    newSet.addAll(parent1.set);
-                    newSet.addAll(parent2.set);
-                    HashSet<Integer> newSet2 = new HashSet<>();
-                    newSet2.addAll(newSet);
-                    newSet2.addAll(newSet);
-                    if ((newSet.size() == parent1.set.size() + 1) && (getSupport(newSet2, conditionRule, support))) {
+                    if (parent1.set.unionSize(parent2.set) != parent1.set.size() + 1)
+                        continue;
+                    PropertySet newSet = parent1.set.union(parent2.set);
+                    if (getSupport(newSet, conditionRule, support)) {
                         Node child = new Node(newSet);
                         HashSet<Node> children1 = newGraph.graph.get(parent1);
                         children1.add(child);
@@ -885,7 +818,7 @@ public class CombinationsExplorationNew {
         return allChildren;
     }
 
-    private static boolean hasFalseParent(HashSet<Integer> newSet2, HashSet<Node> newCandidateKeys) {
+    private static boolean hasFalseParent(PropertySet newSet2, HashSet<Node> newCandidateKeys) {
         for (Node parent : newCandidateKeys) {
             //          System.out.println("parent:" + parent);
             //   System.out.println("parent.toExplore:" + parent.toExplore);
@@ -1,10 +1,22 @@
 package amie.keys;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
-import java.util.Stack;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
@@ -18,6 +30,14 @@ import amie.rules.Rule;
  * form r(?a, C) r'(?a, C') .... (in datalog notation), while they are stored
  * as triple patterns: [?a r C], [?a r' C']
  * 
+ * Each conjunction keeps the subjects that satisfy it, so its refinements are computed
+ * by grouping those subjects by their values in the next property, i.e., by intersecting
+ * the subjects of the prefix with the subjects of each instantiation of the new atom, instead
+ * of evaluating the whole conjunction against the KB. The conjunctions can also be returned in 
+ * descending order of support ({@link #setOrderedBySupport(boolean)}). The support threshold can 
+ * be raised while the conditions are traversed, and then the branches below the new threshold are 
+ * not explored.
+ * 
  * @author galarrag
  *
  */
@@ -28,10 +48,12 @@ public class ConditionsResult implements Iterable<Rule>{
 	
 	private KB kb;
 	
-	private int minSupport;
+	private volatile int minSupport;
 	
 	private long numberOfInstances;
 	
+	private boolean orderedBySupport;
+	
 	/**
 	 * 
 	 * @param properties
@@ -45,6 +67,7 @@ public class ConditionsResult implements Iterable<Rule>{
 		this.kb = kb;
 		this.minSupport = minSupport;
 		this.numberOfInstances = kb.size(Column.Subject);
+		this.orderedBySupport = false;
 	}
 	
 	public ConditionsResult(Rule conditions, List<String> properties, int minSupport, KB kb) {
@@ -52,114 +75,234 @@ public class ConditionsResult implements Iterable<Rule>{
 		this.constantConditions = conditions;
 	}
 	
+	/**
+	 * If true, the iterators return the conditions in descending order of support,
+	 * otherwise they traverse them depth-first.
+	 * @param orderedBySupport
+	 */
+	public void setOrderedBySupport(boolean orderedBySupport) {
+		this.orderedBySupport = orderedBySupport;
+	}
+	
+	public boolean isOrderedBySupport() {
+		return orderedBySupport;
+	}
+	
+	public int getMinSupport() {
+		return minSupport;
+	}
+	
+	/**
+	 * It raises the support threshold, also for the iterators in progress. When the conditions are
+	 * ordered by support, the iterators stop as soon as the next condition is below the threshold.
+	 * Lower thresholds are ignored.
+	 * @param minSupport
+	 */
+	public synchronized void raiseMinSupport(int minSupport) {
+		if (minSupport > this.minSupport)
+			this.minSupport = minSupport;
+	}
+	
+	/**
+	 * A conjunction of conditions together with the subjects that satisfy it.
+	 */
+	private static class Condition {
+		final Rule rule;
+		
+		/** Number of instantiated properties **/
+		final int depth;
+		
+		/** Null if the conjunction is empty and all subjects qualify **/
+		final ByteString[] subjects;
+		
+		Condition(Rule rule, int depth, ByteString[] subjects) {
+			this.rule = rule;
+			this.depth = depth;
+			this.subjects = subjects;
+		}
+		
+		int support() {
+			return subjects.length;
+		}
+	}
+	
+	/**
+	 * Largest support first
+	 */
+	private static final Comparator<Condition> bySupport = new Comparator<Condition>() {
+		@Override
+		public int compare(Condition c1, Condition c2) {
+			return Integer.compare(c2.support(), c1.support());
+		}
+	};
+	
+	/**
+	 * The root of the enumeration, i.e., the constant conditions.
+	 */
+	private Condition root() {
+		if (constantConditions == null || constantConditions.isEmpty())
+			return new Condition(null, 0, null);
+		
+		Set<ByteString> subjects = kb.selectDistinct(ByteString.of("?a"), constantConditions.getTriples());
+		return new Condition(constantConditions, 0, subjects.toArray(new ByteString[subjects.size()]));
+	}
+	
+	private boolean isComplete(Condition condition) {
+		return condition.depth >= properties.size();
+	}
+	
+	/**
+	 * It returns the refinements of the condition with all possible instantiations
+	 * of the next property in the set of properties that are above the support threshold. 
+	 * Given the relations [r, r', r''], if the condition contains the atoms r(?a, C') r'(?a, C'), 
+	 * the refinements have the form r(?a, C') r'(?a, C') r''(?a, C'') (recall that support is 
+	 * defined in terms of the number of instantiations of ?a).
+	 */
+	private List<Condition> refine(Condition parent) {
+		ByteString[] nextAtom = buildAtom(properties.get(parent.depth));
+		Map<ByteString, List<ByteString>> object2subjects;
+		if (parent.subjects == null) {
+			// All the subjects qualify, the index object -> subjects of the relation has the answer 
+			object2subjects = new IdentityHashMap<>();
+			Map<ByteString, IntHashMap<ByteString>> index = 
+					kb.resultsTwoVariables(nextAtom[2], nextAtom[0], nextAtom);
+			for (Map.Entry<ByteString, IntHashMap<ByteString>> entry : index.entrySet()) {
+				List<ByteString> subjects = new ArrayList<>(entry.getValue().size());
+				for (ByteString subject : entry.getValue())
+					subjects.add(subject);
+				object2subjects.put(entry.getKey(), subjects);
+			}
+		} else if (parent.subjects.length < minSupport) {
+			return Collections.emptyList();
+		} else {
+			// Group the subjects of the prefix by their values in the next property
+			object2subjects = new IdentityHashMap<>();
+			ByteString[] query = nextAtom.clone();
+			for (ByteString subject : parent.subjects) {
+				query[0] = subject;
+				for (ByteString object : kb.resultsOneVariable(query)) {
+					List<ByteString> subjects = object2subjects.get(object);
+					if (subjects == null) {
+						subjects = new ArrayList<>();
+						object2subjects.put(object, subjects);
+					}
+					subjects.add(subject);
+				}
+			}
+		}
+		
+		List<Condition> result = new ArrayList<>();
+		int threshold = minSupport;
+		for (Map.Entry<ByteString, List<ByteString>> entry : object2subjects.entrySet()) {
+			int support = entry.getValue().size();
+			if (support < threshold)
+				continue;
+			ByteString[] instantiatedAtom = nextAtom.clone();
+			instantiatedAtom[2] = entry.getKey();
+			Rule rule = null;
+			if (parent.depth == 0) {
+				if (parent.rule == null) {
+					rule = new Rule(instantiatedAtom, support);	
+				} else {
+					rule = new Rule(instantiatedAtom, parent.rule.getTriples(), support);
+				}
+			} else {
+				rule = new Rule();
+				rule.setSupport(support);
+				for (ByteString[] atom : parent.rule.getTriples())
+					rule.getTriples().add(atom.clone());
+				rule.getTriples().add(instantiatedAtom);
+			}
+			rule.setSupportRatio(support / (double)numberOfInstances);
+			result.add(new Condition(rule, parent.depth + 1, 
+					entry.getValue().toArray(new ByteString[support])));
+		}
+		return result;
+	}
+	
+	private ByteString[] buildAtom(String relation) {
+		return KB.triple(ByteString.of("?a"), ByteString.of(relation), ByteString.of("?b"));
+	}
 
 	/**
-	 * It iterates a set of condition results in a depth-first manner. This iterator
-	 * materializes all possible conditions on demand. Conditions are stored as AMIE
-	 * rules.
+	 * It iterates a set of condition results in a depth-first manner, or in descending
+	 * order of support. This iterator materializes all possible conditions on demand. 
+	 * Conditions are stored as AMIE rules.
 	 * 
 	 * @author galarrag
 	 *
 	 */
 	class ConditionsIterator implements Iterator<Rule>{
 		/**
-		 * LIFO structure that allow us to search depth-first.
+		 * LIFO structure that allow us to search depth-first, or priority queue
+		 * when the conditions are ordered by support.
 		 */
-		private Stack<Rule> atomsStack;
+		private Deque<Condition> atomsStack;
+		
+		private PriorityQueue<Condition> atomsQueue;
 		
 		private boolean done;
 		
 		/**
-		 * It initializes the stack with all the conditions of size 1. For example given the relations
+		 * It initializes the frontier with all the conditions of size 1. For example given the relations
 		 *  [r, r'] (non-key of size 2) and if the possible instantiations for these relations are 
-		 *  r(?a, C1), r(?a, C2), r'(?a, C1'), r'(?a, C2') the stack is initialized with all the instantiations
-		 *  above the support threshold.
+		 *  r(?a, C1), r(?a, C2), r'(?a, C1'), r'(?a, C2') the frontier is initialized with all the instantiations
+		 *  of r above the support threshold.
 		 */
 		public ConditionsIterator() {
-			this.atomsStack = new Stack<>();
 			this.done = false;
-			// Initialize the stack
-			ByteString[] firstAtom = buildAtom(properties.get(0));
-			List<ByteString[]> query = new ArrayList<>();
-			if (constantConditions != null) {
-				query.addAll(constantConditions.getTriples());
-			}
-			query.add(firstAtom);
-			IntHashMap<ByteString> firstInstantiations = 
-					kb.frequentBindingsOf(firstAtom[2], firstAtom[0], query);
-			for (ByteString inst : firstInstantiations) {
-				int support = firstInstantiations.get(inst);
-				if (support >= minSupport) {
-					ByteString[] instantiatedAtom = firstAtom.clone();
-					instantiatedAtom[2] = inst;
-					Rule rule = null;
-					if (constantConditions == null || constantConditions.isEmpty()) {
-						rule = new Rule(instantiatedAtom, support);	
-					} else {
-						rule = new Rule(instantiatedAtom, constantConditions.getTriples(), support);
-					}
-					rule.setSupportRatio(support / (double)numberOfInstances);
-					atomsStack.push(rule);
-				}
+			List<Condition> firstLevel = properties.isEmpty() ? 
+					Collections.<Condition>emptyList() : refine(root());
+			if (orderedBySupport) {
+				this.atomsQueue = new PriorityQueue<>(Math.max(1, firstLevel.size()), bySupport);
+				this.atomsQueue.addAll(firstLevel);
+			} else {
+				this.atomsStack = new ArrayDeque<>(firstLevel);
 			}
 		}
 		
+		private Condition peek() {
+			return orderedBySupport ? atomsQueue.peek() : atomsStack.peek();
+		}
+		
+		private Condition pop() {
+			return orderedBySupport ? atomsQueue.poll() : atomsStack.pop();
+		}
+		
+		private void push(List<Condition> conditions) {
+			if (orderedBySupport)
+				atomsQueue.addAll(conditions);
+			else
+				for (Condition condition : conditions)
+					atomsStack.push(condition);
+		}
+		
 		/**
-		 * It pops out the top element of the stack and refines it with all possible instantiations
-		 * of the next property in the set of properties. Given the relations [r, r', r''], if the 
-		 * top of the stack contains the atoms r(?a, C') r'(?a, C'), then populate stack with add all
-		 * refinements of the form r(?a, C') r'(?a, C') r''(?a, ?X) where ?X will be replaced by all 
-		 * constants that keep the whole pattern above the support threshold (recall that support is defined
-		 * in terms of the number of instantiations of ?a)
+		 * It pops out elements from the frontier and refines them until the next element is a
+		 * complete conjunction. Conditions that fall below the support threshold (when it has been
+		 * raised) are discarded. When the conditions are ordered by support, the refinements of a 
+		 * condition cannot have more support than the condition, so the iteration stops at the first 
+		 * condition below the threshold.
 		 */
 		private void populateStack() {
-			while (!atomsStack.isEmpty() &&
-					atomsStack.peek().getLength() < properties.size()) {
-				Rule currentRule = atomsStack.pop();
-				String nextProperty = properties.get(currentRule.getLength());
-				ByteString nextAtom[] = buildAtom(nextProperty);
-				List<ByteString[]> query = new ArrayList<ByteString[]>();
-				query.addAll(currentRule.getTriples());
-				query.add(nextAtom);
-				IntHashMap<ByteString> instantiations = 
-						kb.frequentBindingsOf(nextAtom[2], nextAtom[0], query);
-				for (ByteString inst : instantiations) {
-					int support = instantiations.get(inst);
-					if (support >= minSupport) {
-						List<ByteString[]> deepClone = cloneDeeply(query);
-						ByteString[] lastAtom = deepClone.get(deepClone.size() - 1);
-						lastAtom[2] = inst;
-						Rule newRule = new Rule();
-						newRule.setSupport(support);
-						newRule.setSupportRatio(support / (double)numberOfInstances);
-						newRule.getTriples().addAll(deepClone);
-						atomsStack.push(newRule);
+			Condition top = null;
+			while ((top = peek()) != null) {
+				if (top.support() < minSupport) {
+					if (orderedBySupport) {
+						atomsQueue.clear();
+						break;
 					}
+					pop();
+				} else if (!isComplete(top)) {
+					push(refine(pop()));
+				} else {
+					break;
 				}
 			}
 			
-			if (atomsStack.isEmpty())
+			if (peek() == null)
 				this.done = true;	
 		}
-		
-		/**
-		 * Returns a clone of a list of triples patterns where each element of 
-		 * the list has been also cloned.
-		 * @param query
-		 * @return
-		 */
-		private List<ByteString[]> cloneDeeply(List<ByteString[]> query) {
-			List<ByteString[]> result = new ArrayList<ByteString[]>();
-			for (ByteString[] atom : query) {
-				result.add(atom.clone());
-			}
-			
-			return result;
-		}
-
-		private ByteString[] buildAtom(String relation) {
-			return KB.triple(ByteString.of("?a"), ByteString.of(relation), ByteString.of("?b"));
-		}
 
 		@Override
 		public boolean hasNext() {
@@ -172,7 +315,7 @@ public class ConditionsResult implements Iterable<Rule>{
 			if (!hasNext())
 				throw new NoSuchElementException();
 
-			return atomsStack.pop();
+			return pop().rule;
 		}
 	
 		@Override
@@ -186,5 +329,111 @@ public class ConditionsResult implements Iterable<Rule>{
 	public java.util.Iterator<Rule> iterator() {
 		return new ConditionsIterator();
 	}
-
+	
+	/**
+	 * Cache of the subjects that satisfy a condition of the form [?a r C1], [?a r' C'] ...
+	 * The subjects of a condition are the same for all the candidate keys evaluated under it,
+	 * thus they are computed once and shared by all the threads. The subjects of a conjunction
+	 * are the intersection of the subjects of the conjunction without its last atom, and of the
+	 * subjects of the last atom alone (the complementary condition), which are both in the cache
+	 * when the conditions are explored level by level. The entries are softly referenced, so the
+	 * JVM evicts them under memory pressure and they are recomputed on demand. The keys of the
+	 * evicted entries are removed from the cache on the next call to {@link #get(List)}.
+	 * 
+	 * @author galarrag
+	 *
+	 */
+	public static class SubjectsCache {
+		/** Condition (sorted r=C atoms) -> subjects **/
+		private final ConcurrentHashMap<String, Entry> cache = new ConcurrentHashMap<>();
+		
+		/** The entries cleared by the JVM **/
+		private final ReferenceQueue<Set<ByteString>> queue = new ReferenceQueue<>();
+		
+		private final KB kb;
+		
+		/**
+		 * A softly referenced set of subjects that knows its key, so that it can be removed
+		 * from the cache once it is cleared.
+		 */
+		private static class Entry extends SoftReference<Set<ByteString>> {
+			final String key;
+			
+			Entry(String key, Set<ByteString> subjects, ReferenceQueue<Set<ByteString>> queue) {
+				super(subjects, queue);
+				this.key = key;
+			}
+		}
+		
+		public SubjectsCache(KB kb) {
+			this.kb = kb;
+		}
+		
+		/**
+		 * It returns the subjects that satisfy all the given atoms. Only the relation and the
+		 * constant of each atom are considered.
+		 * @param conditions A non-empty list of atoms of the form [?a r C]
+		 * @return A read-only set of subjects
+		 */
+		public Set<ByteString> get(List<ByteString[]> conditions) {
+			expunge();
+			String key = canonicalForm(conditions);
+			Entry entry = cache.get(key);
+			Set<ByteString> subjects = entry == null ? null : entry.get();
+			if (subjects == null) {
+				subjects = compute(conditions);
+				cache.put(key, new Entry(key, subjects, queue));
+			}
+			return subjects;
+		}
+		
+		/**
+		 * It removes the entries cleared by the JVM. An entry is only removed if it has not
+		 * been replaced by a new one in the meantime.
+		 */
+		private void expunge() {
+			Reference<? extends Set<ByteString>> reference;
+			while ((reference = queue.poll()) != null) {
+				Entry entry = (Entry) reference;
+				cache.remove(entry.key, entry);
+			}
+		}
+		
+		private Set<ByteString> compute(List<ByteString[]> conditions) {
+			ByteString[] lastAtom = conditions.get(conditions.size() - 1);
+			Set<ByteString> result = Collections.newSetFromMap(new IdentityHashMap<ByteString, Boolean>());
+			if (conditions.size() == 1) {
+				for (ByteString subject : kb.resultsOneVariable(
+						KB.triple(ByteString.of("?a"), lastAtom[1], lastAtom[2]))) {
+					result.add(subject);
+				}
+			} else {
+				Set<ByteString> prefix = get(conditions.subList(0, conditions.size() - 1));
+				Set<ByteString> complementary = get(Collections.singletonList(lastAtom));
+				Set<ByteString> smaller = prefix.size() <= complementary.size() ? prefix : complementary;
+				Set<ByteString> larger = smaller == prefix ? complementary : prefix;
+				for (ByteString subject : smaller) {
+					if (larger.contains(subject))
+						result.add(subject);
+				}
+			}
+			return Collections.unmodifiableSet(result);
+		}
+		
+		private static String canonicalForm(List<ByteString[]> conditions) {
+			String[] atoms = new String[conditions.size()];
+			for (int i = 0; i < atoms.length; ++i)
+				atoms[i] = conditions.get(i)[1] + "=" + conditions.get(i)[2];
+			Arrays.sort(atoms);
+			return Arrays.toString(atoms);
+		}
+		
+		/**
+		 * Number of conditions in the cache.
+		 */
+		public int size() {
+			expunge();
+			return cache.size();
+		}
+	}
 }
@@ -6,10 +6,12 @@
 package amie.keys;
 
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import amie.data.KB;
 
@@ -29,26 +31,22 @@ public class Graph implements Cloneable {
         this.nodes = new HashMap<>();
     }
 
-    public Graph(HashSet<HashSet<Integer>> nonKeysInt, List<Integer> propertiesList, int instatiatedProperty, Map<Integer, String> id2Property, KB kb, int support) {
+    public Graph(Set<? extends Set<Integer>> nonKeysInt, List<Integer> propertiesList, int instatiatedProperty, Map<Integer, String> id2Property, KB kb, int support) {
         this.nodes = new HashMap<>();
         this.graph = new HashMap<>();
         buildParents(nonKeysInt, instatiatedProperty, propertiesList, id2Property, kb, support);
     }
 
-    private HashSet<Node> buildParents(HashSet<HashSet<Integer>> nonKeysInt, int instantiatedProperty, List<Integer> propertiesList,
+    private HashSet<Node> buildParents(Set<? extends Set<Integer>> nonKeysInt, int instantiatedProperty, List<Integer> propertiesList,
     		Map<Integer, String> id2Property, KB kb, int support) {
         HashSet<Node> parents = new HashSet<>();
         for (int currentProperty : propertiesList) {
             if (instantiatedProperty != currentProperty) {
-                HashSet<Integer> candidateParent = new HashSet<>();
-                candidateParent.add(currentProperty);
-                candidateParent.add(instantiatedProperty);
+                PropertySet candidateParent = PropertySet.of(currentProperty, instantiatedProperty);
                 if (containsASuperSetOf(nonKeysInt, candidateParent) == 1/*exact equal*/
                         || containsASuperSetOf(nonKeysInt, candidateParent) == 0) /*included*/ {
                     if (CSAKey.support(candidateParent, id2Property, kb) > support) {
-                        HashSet<Integer> parentProperty = new HashSet<>();
-                        parentProperty.add(currentProperty);
-                        Node parent = createOrGetNode(parentProperty);
+                        Node parent = createOrGetNode(PropertySet.of(currentProperty));
                         parents.add(parent);
                         HashSet<Node> children =  new HashSet<>();
                         graph.put(parent, children);
@@ -62,13 +60,17 @@ public class Graph implements Cloneable {
         return parents;
     }
 
-    public static int containsASuperSetOf(HashSet<HashSet<Integer>> hh, HashSet<Integer> h) {
+    /**
+     * The containment checks are bitwise operations when the sets are
+     * PropertySet objects.
+     */
+    public static int containsASuperSetOf(Set<? extends Set<Integer>> hh, Set<Integer> h) {
         if (hh.contains(h)) {
             //1 => exactly equal
             return 1;
         }
 
-        for (HashSet<Integer> s : hh) {
+        for (Set<Integer> s : hh) {
             if (s.containsAll(h)) {
                 //0 => contained
                 return 0;
@@ -78,7 +80,7 @@ public class Graph implements Cloneable {
         return -1;
     }
     
-    public Node getNode(HashSet<Integer> properties) {
+    public Node getNode(Set<Integer> properties) {
     	for (Node n : nodes.keySet()) {
     		if (n.set.equals(properties))
     			return n;
@@ -90,7 +92,7 @@ public class Graph implements Cloneable {
         return nodes.get(nd);
     }
 
-    public Node createOrGetNode(HashSet<Integer> properties) {
+    public Node createOrGetNode(Collection<Integer> properties) {
         Node newNode = new Node(properties);
         if (!nodes.containsKey(newNode)) {
             nodes.put(newNode, newNode);
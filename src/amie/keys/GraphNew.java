@@ -8,8 +8,10 @@ package amie.keys;
 import static amie.keys.CombinationsExplorationNew.propertiesList;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  *
@@ -26,7 +28,7 @@ public class GraphNew implements Cloneable {
         this.nodes = new HashMap<>();
     }
 
-    public GraphNew(HashSet<HashSet<Integer>> nonKeysInt, ArrayList<Integer> propertiesList, int instatiatedProperty) {
+    public GraphNew(Set<? extends Set<Integer>> nonKeysInt, ArrayList<Integer> propertiesList, int instatiatedProperty) {
         this.nodes = new HashMap<>();
         this.graph = new HashMap<>();
         HashSet<Node> parents = buildParents(instatiatedProperty, propertiesList);
@@ -38,15 +40,11 @@ public class GraphNew implements Cloneable {
         HashSet<Node> parents = new HashSet<>();
         for (int currentProperty : propertiesList) {
             if (instantiatedProperty != currentProperty) {
-                HashSet<Integer> candidateParent = new HashSet<>();
-                candidateParent.add(currentProperty);
-                candidateParent.add(instantiatedProperty);
+                PropertySet candidateParent = PropertySet.of(currentProperty, instantiatedProperty);
                 if (containsASuperSetOf(CombinationsExplorationNew.nonKeysInt, candidateParent) == 1/*exact equal*/
                         || containsASuperSetOf(CombinationsExplorationNew.nonKeysInt, candidateParent) == 0) /*included*/ {
                     if (CombinationsExplorationNew.support(candidateParent, CombinationsExplorationNew.id2Property, CombinationsExplorationNew.kb) > CombinationsExplorationNew.support) {
-                        HashSet<Integer> parentProperty = new HashSet<>();
-                        parentProperty.add(currentProperty);
-                        Node parent = createNode(parentProperty);
+                        Node parent = createNode(PropertySet.of(currentProperty));
                         parents.add(parent);
                         HashSet<Node> children =  new HashSet<>();
                         graph.put(parent, children);
@@ -60,13 +58,13 @@ public class GraphNew implements Cloneable {
         return parents;
     }
 
-    public static int containsASuperSetOf(HashSet<HashSet<Integer>> hh, HashSet<Integer> h) {
+    public static int containsASuperSetOf(Set<? extends Set<Integer>> hh, Set<Integer> h) {
         if (hh.contains(h)) {
             //1 => exactly equal
             return 1;
         }
 
-        for (HashSet<Integer> s : hh) {
+        for (Set<Integer> s : hh) {
             if (s.containsAll(h)) {
                 //0 => contained
                 return 0;
@@ -80,7 +78,7 @@ public class GraphNew implements Cloneable {
         return nodes.get(nd);
     }
 
-    public Node createNode(HashSet<Integer> properties) {
+    public Node createNode(Collection<Integer> properties) {
         Node newNode = new Node(properties);
         if (!nodes.containsKey(newNode)) {
             nodes.put(newNode, newNode);
@@ -95,7 +93,7 @@ public class GraphNew implements Cloneable {
     }
 
     private HashMap<Node, HashSet<Node>> buildGraphOnTheFly(
-            HashSet<HashSet<Integer>> nonKeysInt,
+            Set<? extends Set<Integer>> nonKeysInt,
             HashSet<Node> parents, int instatiatedProperty) {
         boolean stop = false;
         HashSet<Node> allChildren = new HashSet<>();
@@ -108,14 +106,8 @@ public class GraphNew implements Cloneable {
                 if (property != instatiatedProperty) {
                     if (!parent.set.contains(property)) {
                         counter++;
-                        HashSet<Integer> c = new HashSet<>();
-                        c.add(property);
-                        c.addAll(parent.set);
-                        Node child = createNode(c);
-                        c = new HashSet<>();
-                        c.addAll(child.set);
-                        c.add(instatiatedProperty);
-                        Node set = createNode(c);
+                        Node child = createNode(parent.set.with(property));
+                        Node set = createNode(child.set.with(instatiatedProperty));
                         if (containsASuperSetOf(nonKeysInt, set.set) == 1/*exact equal*/
                                 || containsASuperSetOf(nonKeysInt, set.set) == 0) /*included*/ {
                             //        System.out.println("prop:"+property);
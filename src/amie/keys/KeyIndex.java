@@ -0,0 +1,171 @@
+package amie.keys;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+
+/**
+ * Class KeyIndex
+ *
+ * Set-trie of the conditional keys found so far, indexed by the atoms of their conditions.
+ * It tells whether a new conditional key is subsumed by a key with the same number of atoms
+ * under a proper subset of its condition (see {@link #isSubsumed(Rule, Rule)}), without
+ * enumerating and looking up all the subsets of the condition.
+ *
+ * Each atom of a condition, e.g., residence=Paris, is mapped to an integer, and a condition
+ * is a path of increasing integers from the root of the trie. The keys are stored in the node
+ * at the end of the path of their condition. The subsets of a condition stored in the trie
+ * are found by following only the children whose atom is in the condition.
+ *
+ * The index can be read and updated concurrently.
+ *
+ * @author lgalarra
+ *
+ */
+public class KeyIndex {
+
+	/**
+	 * A conditional key stored in the trie
+	 */
+	private static class Entry {
+		/** Non-instantiated relations of the key **/
+		final Set<ByteString> properties;
+
+		/** Instantiated and non-instantiated relations **/
+		final Set<ByteString> relations;
+
+		final int length;
+
+		Entry(Rule keyRule) {
+			this.properties = new LinkedHashSet<>();
+			Set<ByteString> instantiations = new LinkedHashSet<>();
+			Set<ByteString> instantiatedRelations = new LinkedHashSet<>();
+			Utilities.parseConditionalKey(keyRule, properties, instantiations, instantiatedRelations);
+			this.relations = new LinkedHashSet<>(properties);
+			this.relations.addAll(instantiatedRelations);
+			this.length = keyRule.getLength();
+		}
+	}
+
+	private static class TrieNode {
+		final ConcurrentHashMap<Integer, TrieNode> children = new ConcurrentHashMap<>();
+
+		final Collection<Entry> keys = new ConcurrentLinkedQueue<>();
+	}
+
+	private final TrieNode root = new TrieNode();
+
+	/** Atom (relation=constant) -> identifier **/
+	private final ConcurrentHashMap<String, Integer> atom2Id = new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * It stores a conditional key of the form r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C)
+	 * ... => equals(?a, ?b).
+	 * @param conditionRule The condition of the key, with atoms of the form c(?a, C)
+	 * @param keyRule
+	 */
+	public void add(Rule conditionRule, Rule keyRule) {
+		TrieNode node = root;
+		for (int atom : encode(conditionRule, true)) {
+			TrieNode child = node.children.get(atom);
+			if (child == null) {
+				child = new TrieNode();
+				TrieNode previous = node.children.putIfAbsent(atom, child);
+				if (previous != null)
+					child = previous;
+			}
+			node = child;
+		}
+		node.keys.add(new Entry(keyRule));
+		size.incrementAndGet();
+	}
+
+	/**
+	 * It determines whether there exists a more general version of the given conditional key,
+	 * i.e., a key with the same number of atoms whose condition is a proper subset of the given
+	 * condition, whose properties include the properties of the given key, and whose relations
+	 * include all the relations of the given key. For instance the key
+	 * lastname | nationality=French, field=Databases is subsumed by the key
+	 * lastname nationality | field=Databases.
+	 * @param keyRule
+	 * @param conditionRule
+	 * @return
+	 */
+	public boolean isSubsumed(Rule keyRule, Rule conditionRule) {
+		if (conditionRule.getLength() < 2)
+			return (false);
+		int[] condition = encode(conditionRule, false);
+		Entry key = new Entry(keyRule);
+		return (isSubsumed(root, condition, 0, 0, conditionRule.getLength(), key));
+	}
+
+	/**
+	 * It visits the nodes of the trie whose path is a subset of the condition.
+	 * @param node
+	 * @param condition The atoms of the condition in ascending order, -1 if they are not in the trie
+	 * @param from First position of the condition that can follow the path of the node
+	 * @param depth Length of the path of the node
+	 * @param conditionSize Number of atoms of the condition
+	 * @param key
+	 * @return
+	 */
+	private boolean isSubsumed(TrieNode node, int[] condition, int from, int depth,
+			int conditionSize, Entry key) {
+		if (depth > 0 && depth < conditionSize) {
+			for (Entry parent : node.keys) {
+				if (parent.length == key.length
+						&& parent.properties.containsAll(key.properties)
+						&& parent.relations.containsAll(key.relations))
+					return (true);
+			}
+		}
+		for (int i = from; i < condition.length; ++i) {
+			if (condition[i] < 0)
+				continue;
+			TrieNode child = node.children.get(condition[i]);
+			if (child != null && isSubsumed(child, condition, i + 1, depth + 1, conditionSize, key))
+				return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * It maps the atoms of the condition to integers in ascending order.
+	 * @param create If false, the atoms that have never been added are mapped to -1.
+	 */
+	private int[] encode(Rule conditionRule, boolean create) {
+		int[] result = new int[conditionRule.getTriples().size()];
+		int i = 0;
+		for (ByteString[] atom : conditionRule.getTriples()) {
+			String atomStr = atom[1] + "=" + atom[2];
+			Integer id = atom2Id.get(atomStr);
+			if (id == null && create) {
+				id = nextId.getAndIncrement();
+				Integer previous = atom2Id.putIfAbsent(atomStr, id);
+				if (previous != null)
+					id = previous;
+			}
+			result[i++] = id == null ? -1 : id;
+		}
+		Arrays.sort(result);
+		return (result);
+	}
+
+	/**
+	 * Number of keys in the index
+	 */
+	public int size() {
+		return (size.get());
+	}
+}
@@ -0,0 +1,555 @@
+package amie.keys;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionBuilder;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.cli.PosixParser;
+
+import amie.data.KB;
+import amie.rosa.AlignKBs;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class KeyLinker
+ *
+ * It links the entities of two KBs with conditional keys. Two entities are linked if they
+ * satisfy the conditions of a key and share a value for each of the properties of the key.
+ * For each key, the entities of the smaller side are indexed by the combinations of their
+ * values of the key properties (hash blocking), and the entities of the other side are looked
+ * up in the index, so no pair of entities is compared. The keys and the entities probing the
+ * index are processed in parallel. The entities of both KBs are compared by their identifiers,
+ * so the values of the key properties must use the same vocabulary in both KBs. The links are
+ * deduplicated per key, so nothing is kept across keys besides the index of the current key.
+ *
+ * @author lgalarra
+ *
+ */
+public class KeyLinker {
+
+	/** Default maximal number of entities of a block on the indexed side **/
+	public static final int DEFAULT_MAX_BLOCK_SIZE = 100;
+
+	/** Default maximal number of value combinations of an entity for a key **/
+	public static final int DEFAULT_MAX_COMBINATIONS = 1000;
+
+	/** Number of entities probed by a task **/
+	private static final int PROBE_CHUNK_SIZE = 10000;
+
+	/**
+	 * It receives the sameAs candidates. It is called from several threads.
+	 */
+	public interface LinkHandler {
+		/**
+		 * @param leftEntity An entity of the first KB
+		 * @param rightEntity An entity of the second KB
+		 * @param key The key that linked the entities
+		 */
+		public void link(ByteString leftEntity, ByteString rightEntity, ConditionalKey key);
+	}
+
+	/**
+	 * A conditional key: a set of properties and a set of conditions of the form [?a r C].
+	 */
+	public static class ConditionalKey {
+		private final List<ByteString> properties;
+
+		private final List<ByteString[]> conditions;
+
+		private final double support;
+
+		/**
+		 * @param properties A non-empty list of properties
+		 * @param conditions
+		 * @param support
+		 * @throws IllegalArgumentException if there are no properties
+		 */
+		public ConditionalKey(List<ByteString> properties, List<ByteString[]> conditions, double support) {
+			if (properties.isEmpty())
+				throw new IllegalArgumentException("A conditional key needs at least one property");
+			this.properties = properties;
+			this.conditions = conditions;
+			this.support = support;
+		}
+
+		/**
+		 * It builds a key from a rule of the form r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C) ... => equals(?a, ?b)
+		 * @param keyRule
+		 * @return
+		 * @throws IllegalArgumentException if the rule has no properties
+		 */
+		public static ConditionalKey fromRule(Rule keyRule) {
+			Set<ByteString> properties = new LinkedHashSet<>();
+			Map<String, ByteString[]> conditions = new LinkedHashMap<>();
+			for (ByteString[] atom : keyRule.getBody()) {
+				if (KB.isVariable(atom[2])) {
+					properties.add(atom[1]);
+				} else {
+					conditions.put(atom[1] + "=" + atom[2],
+							KB.triple(ByteString.of("?a"), atom[1], atom[2]));
+				}
+			}
+			return new ConditionalKey(new ArrayList<>(properties),
+					new ArrayList<>(conditions.values()), keyRule.getSupport());
+		}
+
+		/**
+		 * It parses a key in the format of {@link Utilities#formatKey(Rule)}, i.e., the
+		 * properties separated by spaces, a tab, the conditions r=C separated by spaces and, optionally,
+		 * a tab and the support.
+		 * @param line
+		 * @return The key or null if the line has no properties.
+		 */
+		public static ConditionalKey parse(String line) {
+			String[] parts = line.split("\t");
+			List<ByteString> properties = new ArrayList<>();
+			for (String property : parts[0].trim().split("\\s+")) {
+				if (!property.isEmpty())
+					properties.add(ByteString.of(property));
+			}
+			if (properties.isEmpty())
+				return null;
+
+			List<ByteString[]> conditions = new ArrayList<>();
+			if (parts.length > 1) {
+				// Constants may contain spaces
+				List<String> instantiations = new ArrayList<>();
+				for (String token : parts[1].trim().split(" ")) {
+					int eqIdx = token.indexOf('=');
+					if ((eqIdx > 0 && !token.startsWith("\"")) || instantiations.isEmpty()) {
+						instantiations.add(token);
+					} else {
+						int last = instantiations.size() - 1;
+						instantiations.set(last, instantiations.get(last) + " " + token);
+					}
+				}
+				for (String instantiation : instantiations) {
+					int eqIdx = instantiation.indexOf('=');
+					if (eqIdx <= 0)
+						continue;
+					conditions.add(KB.triple(ByteString.of("?a"), ByteString.of(instantiation.substring(0, eqIdx)),
+							ByteString.of(instantiation.substring(eqIdx + 1))));
+				}
+			}
+			double support = 0.0;
+			if (parts.length > 2) {
+				try {
+					support = Double.parseDouble(parts[2].trim());
+				} catch (NumberFormatException e) {}
+			}
+			return new ConditionalKey(properties, conditions, support);
+		}
+
+		public List<ByteString> getProperties() {
+			return properties;
+		}
+
+		public List<ByteString[]> getConditions() {
+			return conditions;
+		}
+
+		public double getSupport() {
+			return support;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder strBuilder = new StringBuilder();
+			for (ByteString property : properties) {
+				strBuilder.append(property);
+				strBuilder.append(" ");
+			}
+			strBuilder.append("\t");
+			for (ByteString[] condition : conditions) {
+				strBuilder.append(condition[1] + "=" + condition[2]);
+				strBuilder.append(" ");
+			}
+			return strBuilder.toString();
+		}
+	}
+
+	private final KB left;
+
+	private final KB right;
+
+	private final ConditionsResult.SubjectsCache leftSubjects;
+
+	private final ConditionsResult.SubjectsCache rightSubjects;
+
+	private int maxBlockSize;
+
+	private int maxCombinations;
+
+	/** Entities ignored because of too many value combinations **/
+	private final AtomicLong skippedEntities;
+
+	/** Blocks ignored because of their size **/
+	private final AtomicLong skippedBlocks;
+
+	public KeyLinker(KB left, KB right) {
+		this.left = left;
+		this.right = right;
+		this.leftSubjects = new ConditionsResult.SubjectsCache(left);
+		this.rightSubjects = right == left ? leftSubjects : new ConditionsResult.SubjectsCache(right);
+		this.maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+		this.maxCombinations = DEFAULT_MAX_COMBINATIONS;
+		this.skippedEntities = new AtomicLong();
+		this.skippedBlocks = new AtomicLong();
+	}
+
+	/**
+	 * Blocks with more entities on the indexed side are ignored, as the key does not
+	 * identify the entities of that KB.
+	 * @param maxBlockSize
+	 */
+	public void setMaxBlockSize(int maxBlockSize) {
+		this.maxBlockSize = maxBlockSize;
+	}
+
+	public int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	/**
+	 * Entities with more combinations of values for the properties of a key
+	 * are ignored for that key.
+	 * @param maxCombinations
+	 */
+	public void setMaxCombinations(int maxCombinations) {
+		this.maxCombinations = maxCombinations;
+	}
+
+	public int getMaxCombinations() {
+		return maxCombinations;
+	}
+
+	public long getSkippedEntities() {
+		return skippedEntities.get();
+	}
+
+	public long getSkippedBlocks() {
+		return skippedBlocks.get();
+	}
+
+	/**
+	 * It links the entities of the two KBs with the given keys in the given pool. Each pair of
+	 * entities is reported once per key that links it.
+	 * @param keys
+	 * @param handler
+	 * @param pool
+	 * @return The number of links
+	 */
+	public long link(Collection<ConditionalKey> keys, final LinkHandler handler, ForkJoinPool pool) {
+		final AtomicLong nLinks = new AtomicLong();
+		final List<RecursiveAction> tasks = new ArrayList<>();
+		for (final ConditionalKey key : keys) {
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					nLinks.addAndGet(link(key, handler));
+				}
+			});
+		}
+		pool.invoke(new RecursiveAction() {
+			@Override
+			protected void compute() {
+				invokeAll(tasks);
+			}
+		});
+		return nLinks.get();
+	}
+
+	/**
+	 * It links the entities of the two KBs with a single key. When called from a fork/join task,
+	 * the entities that probe the index are processed in parallel. Each pair of entities is
+	 * reported once.
+	 * @param key
+	 * @param handler
+	 * @return The number of links
+	 */
+	public long link(final ConditionalKey key, final LinkHandler handler) {
+		Collection<ByteString> leftEntities = entities(left, leftSubjects, key);
+		Collection<ByteString> rightEntities = entities(right, rightSubjects, key);
+		if (leftEntities.isEmpty() || rightEntities.isEmpty())
+			return 0;
+
+		// Index the smaller side
+		final boolean indexLeft = leftEntities.size() <= rightEntities.size();
+		final Map<List<ByteString>, List<ByteString>> index =
+				buildIndex(indexLeft ? left : right, indexLeft ? leftEntities : rightEntities, key);
+		final ByteString[] probe = indexLeft ?
+				rightEntities.toArray(new ByteString[rightEntities.size()]) :
+				leftEntities.toArray(new ByteString[leftEntities.size()]);
+		final KB probeKB = indexLeft ? right : left;
+		final AtomicLong nLinks = new AtomicLong();
+		List<RecursiveAction> tasks = new ArrayList<>();
+		for (int i = 0; i < probe.length; i += PROBE_CHUNK_SIZE) {
+			final int start = i;
+			final int end = Math.min(i + PROBE_CHUNK_SIZE, probe.length);
+			tasks.add(new RecursiveAction() {
+				@Override
+				protected void compute() {
+					for (int j = start; j < end; ++j) {
+						List<List<ByteString>> blockingKeys = blockingKeys(probeKB, probe[j], key);
+						if (blockingKeys == null || blockingKeys.isEmpty())
+							continue;
+						Collection<ByteString> candidates = null;
+						if (blockingKeys.size() == 1) {
+							candidates = index.get(blockingKeys.get(0));
+							if (candidates == null)
+								continue;
+						} else {
+							// An entity that shares several combinations of values with the probe is linked once
+							candidates = Collections.newSetFromMap(new IdentityHashMap<ByteString, Boolean>());
+							for (List<ByteString> blockingKey : blockingKeys) {
+								List<ByteString> block = index.get(blockingKey);
+								if (block != null)
+									candidates.addAll(block);
+							}
+						}
+						for (ByteString candidate : candidates) {
+							ByteString leftEntity = indexLeft ? candidate : probe[j];
+							ByteString rightEntity = indexLeft ? probe[j] : candidate;
+							if (report(leftEntity, rightEntity, key, handler))
+								nLinks.incrementAndGet();
+						}
+					}
+				}
+			});
+		}
+
+		if (ForkJoinTask.inForkJoinPool()) {
+			ForkJoinTask.invokeAll(tasks);
+		} else {
+			for (RecursiveAction task : tasks)
+				task.invoke();
+		}
+
+		return nLinks.get();
+	}
+
+	private boolean report(ByteString leftEntity, ByteString rightEntity,
+			ConditionalKey key, LinkHandler handler) {
+		if (left == right) {
+			// Deduplication within a KB: each unordered pair is found from both entities,
+			// it is reported when the smaller entity is on the left
+			if (leftEntity == rightEntity || leftEntity.toString().compareTo(rightEntity.toString()) > 0)
+				return false;
+		}
+		handler.link(leftEntity, rightEntity, key);
+		return true;
+	}
+
+	/**
+	 * The entities of the KB that satisfy the conditions of the key and have a
+	 * value for its first property.
+	 */
+	private Collection<ByteString> entities(KB kb, ConditionsResult.SubjectsCache subjects,
+			ConditionalKey key) {
+		if (!key.getConditions().isEmpty())
+			return subjects.get(key.getConditions());
+		ByteString[] firstProperty = KB.triple(ByteString.of("?a"), key.getProperties().get(0), ByteString.of("?b"));
+		return kb.selectDistinct(ByteString.of("?a"), KB.triples(firstProperty));
+	}
+
+	/**
+	 * It maps every combination of values of the key properties to the entities that have it.
+	 * Blocks with more than maxBlockSize entities are dropped.
+	 */
+	private Map<List<ByteString>, List<ByteString>> buildIndex(KB kb, Collection<ByteString> entities,
+			ConditionalKey key) {
+		Map<List<ByteString>, List<ByteString>> index = new HashMap<>();
+		for (ByteString entity : entities) {
+			List<List<ByteString>> blockingKeys = blockingKeys(kb, entity, key);
+			if (blockingKeys == null)
+				continue;
+			for (List<ByteString> blockingKey : blockingKeys) {
+				List<ByteString> block = index.get(blockingKey);
+				if (block == null) {
+					block = new ArrayList<>(1);
+					index.put(blockingKey, block);
+				}
+				block.add(entity);
+			}
+		}
+
+		Iterator<List<ByteString>> it = index.values().iterator();
+		while (it.hasNext()) {
+			if (it.next().size() > maxBlockSize) {
+				it.remove();
+				skippedBlocks.incrementAndGet();
+			}
+		}
+		return index;
+	}
+
+	/**
+	 * All the combinations of values of the entity for the properties of the key.
+	 * @return The combinations, or null if there are more than maxCombinations.
+	 */
+	private List<List<ByteString>> blockingKeys(KB kb, ByteString entity, ConditionalKey key) {
+		List<List<ByteString>> result = new ArrayList<>();
+		result.add(new ArrayList<ByteString>(key.getProperties().size()));
+		for (ByteString property : key.getProperties()) {
+			IntHashMap<ByteString> values = kb.resultsOneVariable(KB.triple(entity, property, ByteString.of("?b")));
+			if (values.isEmpty())
+				return Collections.emptyList();
+			if ((long) result.size() * values.size() > maxCombinations) {
+				skippedEntities.incrementAndGet();
+				return null;
+			}
+
+			List<List<ByteString>> newResult = new ArrayList<>(result.size() * values.size());
+			for (List<ByteString> prefix : result) {
+				for (ByteString value : values) {
+					List<ByteString> combination = new ArrayList<>(key.getProperties().size());
+					combination.addAll(prefix);
+					combination.add(value);
+					newResult.add(combination);
+				}
+			}
+			result = newResult;
+		}
+		return result;
+	}
+
+	/**
+	 * It parses a file of conditional keys, one per line, in the format of {@link Utilities#formatKey(Rule)}.
+	 * @param keysFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static List<ConditionalKey> parseKeysFile(String keysFile) throws IOException {
+		List<ConditionalKey> result = new ArrayList<>();
+		for (String line : Files.readAllLines(Paths.get(keysFile), Charset.forName("UTF-8"))) {
+			if (line.trim().isEmpty())
+				continue;
+			ConditionalKey key = ConditionalKey.parse(line);
+			if (key != null)
+				result.add(key);
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws IOException {
+		HelpFormatter formatter = new HelpFormatter();
+        CommandLineParser parser = new PosixParser();
+        Options options = new Options();
+        CommandLine cli = null;
+
+        Option leftOpt = OptionBuilder.withArgName("files")
+                .hasArg()
+                .withDescription("Comma-separated list of the files of the first KB.")
+                .create("kb1");
+
+        Option rightOpt = OptionBuilder.withArgName("files")
+                .hasArg()
+                .withDescription("Comma-separated list of the files of the second KB. If omitted, the "
+                		+ "entities of the first KB are linked among them.")
+                .create("kb2");
+
+        Option outputOpt = OptionBuilder.withArgName("file")
+                .hasArg()
+                .withDescription("Output file for the sameAs candidates. A pair linked by several keys "
+                		+ "is written once per key. Default: standard output.")
+                .create("o");
+
+        Option blockOpt = OptionBuilder.withArgName("size")
+                .hasArg()
+                .withDescription("Maximal number of entities of a block. Default: " + DEFAULT_MAX_BLOCK_SIZE)
+                .create("maxb");
+
+        Option threadsOpt = OptionBuilder.withArgName("n")
+                .hasArg()
+                .withDescription("Number of threads. Default: number of cores.")
+                .create("nc");
+
+        options.addOption(leftOpt);
+        options.addOption(rightOpt);
+        options.addOption(outputOpt);
+        options.addOption(blockOpt);
+        options.addOption(threadsOpt);
+
+        try {
+            cli = parser.parse(options, args);
+        } catch (ParseException e) {
+            System.err.println("Unexpected exception: " + e.getMessage());
+            formatter.printHelp("KeyLinker [OPTIONS] <KEYS FILE>", options);
+            System.exit(1);
+        }
+
+        if (cli.getArgs().length < 1 || !cli.hasOption("kb1")) {
+        	formatter.printHelp("KeyLinker [OPTIONS] <KEYS FILE>", options);
+        	System.exit(1);
+        }
+
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        KB left = AlignKBs.loadFiles(cli.getOptionValue("kb1").split(","), 0, KB.KEY_MINING_PERMUTATIONS);
+        KB right = cli.hasOption("kb2") ?
+        		AlignKBs.loadFiles(cli.getOptionValue("kb2").split(","), 0, KB.KEY_MINING_PERMUTATIONS) : left;
+        KeyLinker linker = new KeyLinker(left, right);
+        try {
+        	if (cli.hasOption("maxb"))
+        		linker.setMaxBlockSize(Integer.parseInt(cli.getOptionValue("maxb")));
+        	if (cli.hasOption("nc"))
+        		nThreads = Integer.parseInt(cli.getOptionValue("nc"));
+        } catch (NumberFormatException e) {
+        	System.err.println("Unexpected exception: " + e.getMessage());
+        	formatter.printHelp("KeyLinker [OPTIONS] <KEYS FILE>", options);
+        	System.exit(1);
+        }
+
+        List<ConditionalKey> keys = parseKeysFile(cli.getArgs()[0]);
+        System.err.println(keys.size() + " conditional keys");
+        final Writer writer = new BufferedWriter(cli.hasOption("o") ?
+        		Files.newBufferedWriter(Paths.get(cli.getOptionValue("o")), Charset.forName("UTF-8")) :
+        		new OutputStreamWriter(System.out, Charset.forName("UTF-8")));
+        long startTime = System.currentTimeMillis();
+        ForkJoinPool pool = new ForkJoinPool(nThreads);
+        long nLinks = linker.link(keys, new LinkHandler() {
+			@Override
+			public void link(ByteString leftEntity, ByteString rightEntity, ConditionalKey key) {
+				synchronized (writer) {
+					try {
+						writer.write(leftEntity + "\towl:sameAs\t" + rightEntity + "\n");
+					} catch (IOException e) {
+						throw new RuntimeException(e);
+					}
+				}
+			}
+		}, pool);
+        pool.shutdown();
+        writer.close();
+        System.err.println(nLinks + " sameAs candidates found in " + (System.currentTimeMillis() - startTime) + " ms");
+        System.err.println(linker.getSkippedBlocks() + " blocks and " + linker.getSkippedEntities()
+        		+ " entities ignored because of their size");
+	}
+}
@@ -0,0 +1,321 @@
+package amie.keys;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+
+/**
+ * Class KeySink
+ *
+ * Thread-safe collection of the conditional keys found by the mining threads. A key
+ * is reported only once regardless of the order of its properties and conditions. The new
+ * keys are handed to a writer thread that streams them to the registered {@link KeyWriter}s
+ * (standard output, TSV or JSON files), so the mining threads do not wait for the output and
+ * the keys found so far are available during long runs. The writers are flushed whenever the
+ * writer thread is idle. The keys can also be kept sorted in memory, so the output of a run
+ * does not depend on the scheduling of the threads. Otherwise only their canonical forms are
+ * kept for deduplication.
+ *
+ * @author lgalarra
+ *
+ */
+public class KeySink implements Closeable {
+
+	/**
+	 * Destination of the keys. It is only called from the writer thread.
+	 */
+	public interface KeyWriter extends Closeable, Flushable {
+		public void write(Rule keyRule) throws IOException;
+	}
+
+	/**
+	 * One key per line in the format of {@link Utilities#formatKey(Rule)}.
+	 */
+	public static class TSVKeyWriter implements KeyWriter {
+		protected final Writer out;
+
+		private final boolean closeStream;
+
+		/**
+		 * @param out
+		 * @param closeStream If false, the stream is only flushed when the writer is closed.
+		 */
+		public TSVKeyWriter(Writer out, boolean closeStream) {
+			this.out = out;
+			this.closeStream = closeStream;
+		}
+
+		@Override
+		public void write(Rule keyRule) throws IOException {
+			out.write(Utilities.formatKey(keyRule));
+			out.write("\n");
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closeStream)
+				out.close();
+			else
+				out.flush();
+		}
+	}
+
+	/**
+	 * One JSON object per line, e.g., {"properties": ["r"], "conditions": [{"relation": "c", "value": "C"}],
+	 * "support": 3.0, "supportRatio": 0.1}
+	 */
+	public static class JSONKeyWriter extends TSVKeyWriter {
+
+		public JSONKeyWriter(Writer out, boolean closeStream) {
+			super(out, closeStream);
+		}
+
+		@Override
+		public void write(Rule keyRule) throws IOException {
+			Set<ByteString> instantiations = new LinkedHashSet<>();
+			Set<ByteString> instantiatedRelations = new LinkedHashSet<>();
+			Set<ByteString> nonInstantiatedRelations = new LinkedHashSet<>();
+			Utilities.parseConditionalKey(keyRule, nonInstantiatedRelations, instantiations, instantiatedRelations);
+			StringBuilder strBuilder = new StringBuilder("{\"properties\": [");
+			String separator = "";
+			for (ByteString relation : nonInstantiatedRelations) {
+				strBuilder.append(separator);
+				appendString(strBuilder, relation.toString());
+				separator = ", ";
+			}
+			strBuilder.append("], \"conditions\": [");
+			separator = "";
+			for (ByteString instantiation : instantiations) {
+				String condition = instantiation.toString();
+				int eqIdx = condition.indexOf('=');
+				strBuilder.append(separator);
+				strBuilder.append("{\"relation\": ");
+				appendString(strBuilder, condition.substring(0, eqIdx));
+				strBuilder.append(", \"value\": ");
+				appendString(strBuilder, condition.substring(eqIdx + 1));
+				strBuilder.append("}");
+				separator = ", ";
+			}
+			strBuilder.append("], \"support\": " + keyRule.getSupport());
+			strBuilder.append(", \"supportRatio\": " + keyRule.getSupportRatio() + "}\n");
+			out.write(strBuilder.toString());
+		}
+
+		private static void appendString(StringBuilder strBuilder, String str) {
+			strBuilder.append('"');
+			for (int i = 0; i < str.length(); ++i) {
+				char c = str.charAt(i);
+				switch (c) {
+				case '"': strBuilder.append("\\\""); break;
+				case '\\': strBuilder.append("\\\\"); break;
+				case '\n': strBuilder.append("\\n"); break;
+				case '\r': strBuilder.append("\\r"); break;
+				case '\t': strBuilder.append("\\t"); break;
+				default:
+					if (c < 0x20)
+						strBuilder.append(String.format("\\u%04x", (int) c));
+					else
+						strBuilder.append(c);
+				}
+			}
+			strBuilder.append('"');
+		}
+	}
+
+	/**
+	 * It opens a writer for the file: JSON if the file ends with .json or .jsonl, TSV otherwise.
+	 * @param fileName
+	 * @return
+	 * @throws IOException
+	 */
+	public static KeyWriter fileWriter(String fileName) throws IOException {
+		Writer out = Files.newBufferedWriter(Paths.get(fileName), Charset.forName("UTF-8"));
+		if (fileName.endsWith(".json") || fileName.endsWith(".jsonl"))
+			return new JSONKeyWriter(out, true);
+		else
+			return new TSVKeyWriter(out, true);
+	}
+
+	/** Marks the end of the queue **/
+	private static final Rule END = new Rule();
+
+	/** Canonical forms of the keys reported so far **/
+	private final Set<String> canonicalForms = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/** The keys sorted by canonical form, if they are kept **/
+	private final ConcurrentSkipListMap<String, Rule> keys = new ConcurrentSkipListMap<>();
+
+	private final boolean retainKeys;
+
+	private final List<KeyWriter> writers;
+
+	private final BlockingQueue<Rule> queue;
+
+	private final Thread writerThread;
+
+	private volatile IOException writerException;
+
+	public KeySink() {
+		this(true);
+	}
+
+	/**
+	 * @param verbose If true, the new keys are printed as they are added.
+	 */
+	public KeySink(boolean verbose) {
+		this(verbose, true);
+	}
+
+	/**
+	 * @param verbose If true, the new keys are printed to the standard output as they are added.
+	 * @param retainKeys If true, the keys are kept in memory and can be obtained with {@link #getKeys()}.
+	 * @param writers Additional destinations of the keys. They are closed by {@link #close()}.
+	 */
+	public KeySink(boolean verbose, boolean retainKeys, KeyWriter... writers) {
+		this.retainKeys = retainKeys;
+		this.writers = new ArrayList<>();
+		if (verbose)
+			this.writers.add(new TSVKeyWriter(new OutputStreamWriter(System.out, Charset.forName("UTF-8")), false));
+		this.writers.addAll(Arrays.asList(writers));
+		if (this.writers.isEmpty()) {
+			this.queue = null;
+			this.writerThread = null;
+		} else {
+			this.queue = new LinkedBlockingQueue<>();
+			this.writerThread = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, "KeySink writer");
+			this.writerThread.setDaemon(true);
+			this.writerThread.start();
+		}
+	}
+
+	/**
+	 * It writes the keys of the queue until it finds the end mark.
+	 */
+	private void drain() {
+		try {
+			while (true) {
+				Rule keyRule = queue.poll();
+				if (keyRule == null) {
+					// Idle: make the keys written so far visible
+					for (KeyWriter writer : writers)
+						writer.flush();
+					keyRule = queue.take();
+				}
+				if (keyRule == END)
+					break;
+				for (KeyWriter writer : writers)
+					writer.write(keyRule);
+			}
+		} catch (IOException e) {
+			writerException = e;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * It adds a conditional key of the form r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C)
+	 * ... => equals(?a, ?b).
+	 * @param keyRule
+	 * @return true if the key had not been added before.
+	 */
+	public boolean add(Rule keyRule) {
+		String canonicalForm = canonicalForm(keyRule);
+		if (!canonicalForms.add(canonicalForm))
+			return (false);
+		if (retainKeys)
+			keys.put(canonicalForm, keyRule);
+		if (queue != null)
+			queue.add(keyRule);
+		return (true);
+	}
+
+	/**
+	 * The properties and the conditions of the key in lexicographical order.
+	 */
+	static String canonicalForm(Rule keyRule) {
+		Set<ByteString> instantiations = new LinkedHashSet<>();
+		Set<ByteString> instantiatedRelations = new LinkedHashSet<>();
+		Set<ByteString> nonInstantiatedRelations = new LinkedHashSet<>();
+		Utilities.parseConditionalKey(keyRule, nonInstantiatedRelations, instantiations, instantiatedRelations);
+		Set<String> properties = new TreeSet<>();
+		for (ByteString relation : nonInstantiatedRelations)
+			properties.add(relation.toString());
+		Set<String> conditions = new TreeSet<>();
+		for (ByteString instantiation : instantiations)
+			conditions.add(instantiation.toString());
+		return (properties + "|" + conditions);
+	}
+
+	public int size() {
+		return (canonicalForms.size());
+	}
+
+	/**
+	 * It returns the keys sorted by their canonical form, or an empty
+	 * collection if the keys are not kept.
+	 */
+	public Collection<Rule> getKeys() {
+		return (keys.values());
+	}
+
+	/**
+	 * It waits until all the keys have been written and closes the writers.
+	 * Keys added afterwards are not written.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (writerThread == null)
+			return;
+
+		if (writerThread.isAlive()) {
+			queue.add(END);
+			try {
+				writerThread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		IOException exception = writerException;
+		for (KeyWriter writer : writers) {
+			try {
+				writer.close();
+			} catch (IOException e) {
+				if (exception == null)
+					exception = e;
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+}
@@ -0,0 +1,258 @@
+package amie.keys;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import amie.data.KB;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * Class KeyValidator
+ *
+ * It validates conditional keys with stripped partitions of the subjects, also known
+ * as position list indexes (PLI), instead of evaluating the self-join rule
+ * r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C) ... => equals(?a, ?b).
+ *
+ * The partition of a property groups its subjects by object and keeps only the groups
+ * with at least two subjects. A set of properties is a key for the subjects that satisfy
+ * a condition if no two of them share an object for every property. The validator starts
+ * with the subjects of the condition and splits them with the partition of each property
+ * in turn, so that each group contains subjects that agree on all the properties seen
+ * so far. The properties are a key as soon as no group is left. Each step is linear in
+ * the number of subjects in the groups.
+ *
+ * Properties can have several objects per subject, thus a subject may belong to several
+ * groups of a partition. The partitions are built on first use and shared by all threads,
+ * and also by the {@link NonKeysFinder}. So are the subjects of the conditions, which are
+ * kept in a {@link ConditionsResult.SubjectsCache}.
+ *
+ * @author lgalarra
+ *
+ */
+public class KeyValidator {
+
+	/**
+	 * Stripped partition of the subjects of a property.
+	 */
+	static class Partition {
+		/** Subjects of the property **/
+		final Set<ByteString> subjects = Collections.newSetFromMap(new IdentityHashMap<ByteString, Boolean>());
+
+		/** Subject -> groups of the subject. Subjects without an object shared with
+		 * another subject are not included. **/
+		final Map<ByteString, int[]> groups = new IdentityHashMap<>();
+	}
+
+	private final KB kb;
+
+	private final ConcurrentHashMap<ByteString, Partition> partitions = new ConcurrentHashMap<>();
+
+	private final ConditionsResult.SubjectsCache conditionSubjects;
+
+	private static final ByteString subjectVariable = KB.variable('a', 0);
+
+	public KeyValidator(KB kb) {
+		this.kb = kb;
+		this.conditionSubjects = new ConditionsResult.SubjectsCache(kb);
+	}
+
+	/**
+	 * It returns the partition of the property, built on first use.
+	 * @param property
+	 * @return
+	 */
+	Partition getPartition(ByteString property) {
+		Partition partition = partitions.get(property);
+		if (partition == null) {
+			partition = buildPartition(property);
+			Partition previous = partitions.putIfAbsent(property, partition);
+			if (previous != null)
+				partition = previous;
+		}
+		return (partition);
+	}
+
+	private Partition buildPartition(ByteString property) {
+		Partition partition = new Partition();
+		Map<ByteString, IntHashMap<ByteString>> object2subjects = kb.resultsTwoVariables(2, 0,
+				KB.triple(ByteString.of("?s"), property, ByteString.of("?o")));
+		// First count the shared objects of each subject
+		IntHashMap<ByteString> sizes = new IntHashMap<>();
+		for (IntHashMap<ByteString> subjects : object2subjects.values()) {
+			for (ByteString subject : subjects) {
+				partition.subjects.add(subject);
+				if (subjects.size() > 1)
+					sizes.increase(subject);
+			}
+		}
+		int group = 0;
+		IntHashMap<ByteString> filled = new IntHashMap<>();
+		for (IntHashMap<ByteString> subjects : object2subjects.values()) {
+			if (subjects.size() < 2)
+				continue;
+			for (ByteString subject : subjects) {
+				int[] groups = partition.groups.get(subject);
+				if (groups == null)
+					partition.groups.put(subject, groups = new int[sizes.get(subject)]);
+				groups[filled.get(subject, 0)] = group;
+				filled.increase(subject);
+			}
+			++group;
+		}
+		return (partition);
+	}
+
+	/**
+	 * It computes the support of a rule of the form r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C)
+	 * ... => equals(?a, ?b), i.e., the number of subjects that satisfy the conditions and have
+	 * all the properties. It also sets the body size of the rule so that its standard confidence
+	 * is 1.0 if and only if the properties are a key for those subjects. For other rules the
+	 * body size is a lower bound. The support ratio is relative to the size of the KB, as in
+	 * {@link amie.mining.assistant.MiningAssistant#computeCardinality(Rule)}.
+	 * @param keyRule
+	 */
+	public void evaluate(Rule keyRule) {
+		List<Partition> properties = new ArrayList<>();
+		List<ByteString[]> conditions = new ArrayList<>();
+		parse(keyRule, properties, conditions);
+		List<ByteString> subjects = subjects(properties, conditions);
+		long support = subjects.size();
+		keyRule.setSupport(support);
+		keyRule.setSupportRatio((double) support / kb.size());
+		keyRule.setBodySize(isKey(subjects, properties) ? support : support + 2);
+	}
+
+	/**
+	 * It returns the support of a rule of the form r(?a, ?ob1) r(?b, ?ob1) ... c(?a, C) c(?b, C)
+	 * ... => equals(?a, ?b) without checking whether the properties are a key.
+	 * @param keyRule
+	 * @return
+	 */
+	public int support(Rule keyRule) {
+		List<Partition> properties = new ArrayList<>();
+		List<ByteString[]> conditions = new ArrayList<>();
+		parse(keyRule, properties, conditions);
+		return (subjects(properties, conditions).size());
+	}
+
+	/**
+	 * It returns the number of subjects that satisfy a condition of the form [?a r C].
+	 * The subjects are taken from the cache used to evaluate the keys under the condition.
+	 * @param condition
+	 * @return
+	 */
+	public int countSubjects(ByteString[] condition) {
+		return (conditionSubjects.get(Collections.singletonList(condition)).size());
+	}
+
+	/**
+	 * It finds the partitions of the properties and the conditions in the atoms of the
+	 * rule whose subject is ?a.
+	 */
+	private void parse(Rule keyRule, List<Partition> properties, List<ByteString[]> conditions) {
+		Set<ByteString> relations = new LinkedHashSet<>();
+		for (ByteString[] atom : keyRule.getAntecedent()) {
+			if (!atom[0].equals(subjectVariable))
+				continue;
+			if (KB.isVariable(atom[2]))
+				relations.add(atom[1]);
+			else
+				conditions.add(atom);
+		}
+		for (ByteString relation : relations)
+			properties.add(getPartition(relation));
+	}
+
+	/**
+	 * It returns the subjects that satisfy all the conditions and have all the properties.
+	 */
+	private List<ByteString> subjects(List<Partition> properties, List<ByteString[]> conditions) {
+		Set<ByteString> subjectsOfConditions = conditions.isEmpty() ? null : conditionSubjects.get(conditions);
+		Partition smallestProperty = null;
+		for (Partition partition : properties) {
+			if (smallestProperty == null || partition.subjects.size() < smallestProperty.subjects.size())
+				smallestProperty = partition;
+		}
+		if (subjectsOfConditions == null && smallestProperty == null)
+			throw new IllegalArgumentException("The rule has neither properties nor conditions");
+
+		Iterable<ByteString> candidates = smallestProperty == null
+				|| (subjectsOfConditions != null && subjectsOfConditions.size() <= smallestProperty.subjects.size())
+				? subjectsOfConditions : smallestProperty.subjects;
+		List<ByteString> result = new ArrayList<>();
+		candidates:
+		for (ByteString subject : candidates) {
+			if (subjectsOfConditions != null && candidates != subjectsOfConditions
+					&& !subjectsOfConditions.contains(subject))
+				continue;
+			for (Partition partition : properties) {
+				if (!partition.subjects.contains(subject))
+					continue candidates;
+			}
+			result.add(subject);
+		}
+		return (result);
+	}
+
+	/**
+	 * TRUE if no two of the subjects share an object for each of the properties.
+	 */
+	private static boolean isKey(List<ByteString> subjects, List<Partition> properties) {
+		if (subjects.isEmpty())
+			return (false);
+		List<Partition> sorted = new ArrayList<>(properties);
+		// The properties that split the subjects the most come first
+		Collections.sort(sorted, new Comparator<Partition>() {
+			@Override
+			public int compare(Partition p1, Partition p2) {
+				return (Integer.compare(p1.groups.size(), p2.groups.size()));
+			}
+		});
+		List<List<ByteString>> groups = new ArrayList<>();
+		groups.add(subjects);
+		for (Partition partition : sorted) {
+			groups = refine(groups, partition);
+			if (groups.isEmpty())
+				return (true);
+		}
+		return (groups.isEmpty() || (groups.size() == 1 && groups.get(0).size() < 2));
+	}
+
+	/**
+	 * It splits each group by the objects of the property and keeps only the
+	 * resulting groups with at least two subjects.
+	 */
+	static List<List<ByteString>> refine(List<List<ByteString>> groups, Partition partition) {
+		List<List<ByteString>> result = new ArrayList<>();
+		Map<Integer, List<ByteString>> buckets = new HashMap<>();
+		for (List<ByteString> group : groups) {
+			buckets.clear();
+			for (ByteString subject : group) {
+				int[] ids = partition.groups.get(subject);
+				if (ids == null)
+					continue;
+				for (int id : ids) {
+					List<ByteString> bucket = buckets.get(id);
+					if (bucket == null)
+						buckets.put(id, bucket = new ArrayList<>());
+					bucket.add(subject);
+				}
+			}
+			for (List<ByteString> bucket : buckets.values()) {
+				if (bucket.size() > 1)
+					result.add(bucket);
+			}
+		}
+		return (result);
+	}
+}
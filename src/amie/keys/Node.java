@@ -7,7 +7,6 @@ package amie.keys;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -18,11 +17,12 @@ import java.util.Objects;
  */
 public class Node implements Cloneable {
 
-    public HashSet<Integer> set;
+    /** The properties of the node as a bitmask **/
+    public final PropertySet set;
     public boolean toExplore;
     
     public Node(Collection<Integer> properties) {
-        this.set = new HashSet<Integer>(properties);
+        this.set = PropertySet.of(properties);
         this.toExplore = true;
     }
 
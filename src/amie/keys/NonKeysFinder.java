@@ -0,0 +1,206 @@
+package amie.keys;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import amie.data.KB;
+import amie.keys.KeyValidator.Partition;
+import javatools.datatypes.ByteString;
+
+/**
+ * Class NonKeysFinder
+ *
+ * It computes the maximal non-keys of a KB, i.e., the maximal sets of properties for which
+ * at least two different subjects share an object in every property. It replaces the call
+ * to SAKey, and works on the KB already loaded in memory.
+ *
+ * The search is a depth-first traversal of the lattice of properties. Each node keeps the
+ * groups of subjects that agree on all its properties, and a child node refines those groups
+ * with the partition of a new property (see {@link KeyValidator}). A node is a non-key as long
+ * as some group is left. A subtree is pruned when the properties of the node plus all the
+ * properties that still leave groups are contained in a non-key already found. The subtrees
+ * of the properties are explored in parallel, the biggest first.
+ *
+ * @author lgalarra
+ *
+ */
+public class NonKeysFinder {
+
+	private final KeyValidator validator;
+
+	/** The properties of the KB in the order they are added to the nodes **/
+	private final List<ByteString> properties;
+
+	private final List<Partition> partitions;
+
+	/** Non-keys found so far, not necessarily maximal **/
+	private final Queue<BitSet> nonKeys = new ConcurrentLinkedQueue<>();
+
+	public NonKeysFinder(KB kb) {
+		this(kb, new KeyValidator(kb));
+	}
+
+	/**
+	 * @param kb
+	 * @param validator Its partitions are reused to find the non-keys.
+	 */
+	public NonKeysFinder(KB kb, KeyValidator validator) {
+		this.validator = validator;
+		this.properties = new ArrayList<>(kb.getRelationsList());
+		this.partitions = new ArrayList<>();
+		Collections.sort(this.properties, new Comparator<ByteString>() {
+			@Override
+			public int compare(ByteString o1, ByteString o2) {
+				return o1.toString().compareTo(o2.toString());
+			}
+		});
+	}
+
+	/**
+	 * It returns the maximal non-keys of the KB. Each non-key is a list of property names,
+	 * as in the files parsed by {@link Utilities#parseNonKeysFile(String)}.
+	 * @param nThreads
+	 * @return
+	 * @throws InterruptedException
+	 */
+	public List<List<String>> findNonKeys(int nThreads) throws InterruptedException {
+		nonKeys.clear();
+		partitions.clear();
+		for (ByteString property : properties) {
+			partitions.add(validator.getPartition(property));
+		}
+
+		final Queue<Integer> roots = new PriorityQueue<>(Math.max(1, properties.size()),
+				new Comparator<Integer>() {
+			@Override
+			public int compare(Integer o1, Integer o2) {
+				return Integer.compare(partitions.get(o2).groups.size(), partitions.get(o1).groups.size());
+			}
+		});
+		for (int i = 0; i < properties.size(); ++i) {
+			if (!partitions.get(i).groups.isEmpty())
+				roots.add(i);
+		}
+
+		Thread[] threads = new Thread[Math.max(1, Math.min(nThreads, roots.size()))];
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					while (true) {
+						Integer root = null;
+						synchronized (roots) {
+							if (roots.isEmpty())
+								break;
+							root = roots.poll();
+						}
+						Partition partition = partitions.get(root);
+						List<List<ByteString>> groups = new ArrayList<>();
+						groups.add(new ArrayList<>(partition.groups.keySet()));
+						BitSet nonKey = new BitSet();
+						nonKey.set(root);
+						search(nonKey, KeyValidator.refine(groups, partition), root);
+					}
+				}
+			});
+			threads[i].start();
+		}
+
+		for (int i = 0; i < threads.length; ++i) {
+			threads[i].join();
+		}
+
+		return (toNames(maximal(nonKeys)));
+	}
+
+	/**
+	 * It explores the supersets of the non-key that add properties after the
+	 * last one.
+	 * @param nonKey
+	 * @param groups Groups of subjects that agree on all the properties of the non-key
+	 * @param last
+	 */
+	private void search(BitSet nonKey, List<List<ByteString>> groups, int last) {
+		List<Integer> candidates = new ArrayList<>();
+		List<List<List<ByteString>>> refinedGroups = new ArrayList<>();
+		BitSet bound = (BitSet) nonKey.clone();
+		for (int i = last + 1; i < partitions.size(); ++i) {
+			List<List<ByteString>> refined = KeyValidator.refine(groups, partitions.get(i));
+			if (!refined.isEmpty()) {
+				candidates.add(i);
+				refinedGroups.add(refined);
+				bound.set(i);
+			}
+		}
+
+		if (candidates.isEmpty()) {
+			nonKeys.add(nonKey);
+			return;
+		}
+
+		if (isSubsumed(bound))
+			return;
+
+		for (int k = 0; k < candidates.size(); ++k) {
+			BitSet child = (BitSet) nonKey.clone();
+			child.set(candidates.get(k));
+			search(child, refinedGroups.get(k), candidates.get(k));
+		}
+	}
+
+	/**
+	 * TRUE if the set of properties is contained in a non-key found so far.
+	 */
+	private boolean isSubsumed(BitSet set) {
+		for (BitSet nonKey : nonKeys) {
+			BitSet rest = (BitSet) set.clone();
+			rest.andNot(nonKey);
+			if (rest.isEmpty())
+				return (true);
+		}
+		return (false);
+	}
+
+	/**
+	 * It removes the non-keys contained in other non-keys.
+	 */
+	private static List<BitSet> maximal(Queue<BitSet> nonKeys) {
+		List<BitSet> sorted = new ArrayList<>(nonKeys);
+		Collections.sort(sorted, new Comparator<BitSet>() {
+			@Override
+			public int compare(BitSet o1, BitSet o2) {
+				return Integer.compare(o2.cardinality(), o1.cardinality());
+			}
+		});
+		List<BitSet> result = new ArrayList<>();
+		candidates:
+		for (BitSet candidate : sorted) {
+			for (BitSet nonKey : result) {
+				BitSet rest = (BitSet) candidate.clone();
+				rest.andNot(nonKey);
+				if (rest.isEmpty())
+					continue candidates;
+			}
+			result.add(candidate);
+		}
+		return (result);
+	}
+
+	private List<List<String>> toNames(List<BitSet> nonKeys) {
+		List<List<String>> result = new ArrayList<>();
+		for (BitSet nonKey : nonKeys) {
+			List<String> names = new ArrayList<>();
+			for (int i = nonKey.nextSetBit(0); i >= 0; i = nonKey.nextSetBit(i + 1)) {
+				names.add(properties.get(i).toString());
+			}
+			result.add(names);
+		}
+		return (result);
+	}
+}
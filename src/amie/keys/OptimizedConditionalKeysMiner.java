@@ -324,14 +324,14 @@ public class OptimizedConditionalKeysMiner {
 		
 		int k = 1;
 		for (String property : properties) {
-			rule.getTriples().add(KB.triple(ByteString.of("?a"), ByteString.of(property), ByteString.of("?ob" + k)));
-			rule.getTriples().add(KB.triple(ByteString.of("?b"), ByteString.of(property), ByteString.of("?ob" + k)));
+			rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(property), KB.objectVariable(k)));
+			rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(property), KB.objectVariable(k)));
 			++k;
 		}
 		
 		for (ByteString[] conditionAtom : conditionsRule.getTriples()) {
 			ByteString[] missingAtom = conditionAtom.clone();
-			missingAtom[0] = ByteString.of("?b");
+			missingAtom[0] = KB.variable('b', 0);
 			rule.getTriples().add(conditionAtom);
 			rule.getTriples().add(missingAtom);
 		}
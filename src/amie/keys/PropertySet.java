@@ -0,0 +1,197 @@
+package amie.keys;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Class PropertySet
+ *
+ * Immutable set of property identifiers encoded as a bitmask, one long per 64 properties.
+ * It is used for the nodes of the key lattices and for the non-keys, where the containment
+ * checks become bitwise operations. It behaves as any other Set<Integer>: its hash code is the
+ * sum of its elements and it is equal to any set with the same elements. The elements are
+ * iterated in ascending order.
+ *
+ * @author lgalarra
+ *
+ */
+public final class PropertySet extends AbstractSet<Integer> {
+
+	private static final long[] NO_WORDS = new long[0];
+
+	public static final PropertySet EMPTY = new PropertySet(NO_WORDS);
+
+	private final long[] words;
+
+	private final int size;
+
+	private final int hash;
+
+	private PropertySet(long[] words) {
+		int length = words.length;
+		while (length > 0 && words[length - 1] == 0)
+			--length;
+		this.words = length == words.length ? words : Arrays.copyOf(words, length);
+		int size = 0, hash = 0;
+		for (int i = 0; i < this.words.length; ++i) {
+			long word = this.words[i];
+			size += Long.bitCount(word);
+			while (word != 0) {
+				hash += (i << 6) + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		this.size = size;
+		this.hash = hash;
+	}
+
+	/**
+	 * It returns a set with the given property identifiers.
+	 * @param properties Non-negative identifiers
+	 * @return
+	 */
+	public static PropertySet of(Collection<Integer> properties) {
+		if (properties instanceof PropertySet)
+			return ((PropertySet) properties);
+		long[] words = NO_WORDS;
+		for (int property : properties) {
+			int word = property >>> 6;
+			if (word >= words.length)
+				words = Arrays.copyOf(words, Math.max(word + 1, 2 * words.length));
+			words[word] |= 1L << property;
+		}
+		return (new PropertySet(words));
+	}
+
+	public static PropertySet of(int... properties) {
+		long[] words = NO_WORDS;
+		for (int property : properties) {
+			int word = property >>> 6;
+			if (word >= words.length)
+				words = Arrays.copyOf(words, word + 1);
+			words[word] |= 1L << property;
+		}
+		return (new PropertySet(words));
+	}
+
+	/**
+	 * It returns the union of this set and the given set.
+	 */
+	public PropertySet union(PropertySet other) {
+		if (other.words.length > words.length)
+			return (other.union(this));
+		long[] result = words.clone();
+		for (int i = 0; i < other.words.length; ++i)
+			result[i] |= other.words[i];
+		return (new PropertySet(result));
+	}
+
+	/**
+	 * It returns this set plus the given property.
+	 */
+	public PropertySet with(int property) {
+		if (contains(property))
+			return (this);
+		long[] result = Arrays.copyOf(words, Math.max(words.length, (property >>> 6) + 1));
+		result[property >>> 6] |= 1L << property;
+		return (new PropertySet(result));
+	}
+
+	/**
+	 * TRUE if all the properties of the given set are in this set.
+	 */
+	public boolean containsAll(PropertySet other) {
+		if (other.words.length > words.length)
+			return (false);
+		for (int i = 0; i < other.words.length; ++i) {
+			if ((other.words[i] & ~words[i]) != 0)
+				return (false);
+		}
+		return (true);
+	}
+
+	/**
+	 * Number of properties of the union of this set and the given set.
+	 */
+	public int unionSize(PropertySet other) {
+		int result = 0;
+		int common = Math.min(words.length, other.words.length);
+		for (int i = 0; i < common; ++i)
+			result += Long.bitCount(words[i] | other.words[i]);
+		for (int i = common; i < words.length; ++i)
+			result += Long.bitCount(words[i]);
+		for (int i = common; i < other.words.length; ++i)
+			result += Long.bitCount(other.words[i]);
+		return (result);
+	}
+
+	@Override
+	public boolean contains(Object o) {
+		if (!(o instanceof Integer))
+			return (false);
+		int property = (Integer) o;
+		return (property >= 0 && (property >>> 6) < words.length
+				&& (words[property >>> 6] & (1L << property)) != 0);
+	}
+
+	@Override
+	public boolean containsAll(Collection<?> c) {
+		if (c instanceof PropertySet)
+			return (containsAll((PropertySet) c));
+		return (super.containsAll(c));
+	}
+
+	@Override
+	public Iterator<Integer> iterator() {
+		return (new Iterator<Integer>() {
+			int word = 0;
+
+			long rest = words.length > 0 ? words[0] : 0;
+
+			@Override
+			public boolean hasNext() {
+				while (rest == 0 && word < words.length - 1)
+					rest = words[++word];
+				return (rest != 0);
+			}
+
+			@Override
+			public Integer next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				int property = (word << 6) + Long.numberOfTrailingZeros(rest);
+				rest &= rest - 1;
+				return (property);
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+
+	@Override
+	public int size() {
+		return (size);
+	}
+
+	@Override
+	public int hashCode() {
+		return (hash);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (o == this)
+			return (true);
+		if (o instanceof PropertySet) {
+			PropertySet other = (PropertySet) o;
+			return (hash == other.hash && Arrays.equals(words, other.words));
+		}
+		return (super.equals(o));
+	}
+}
@@ -0,0 +1,150 @@
+package amie.keys;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import amie.rules.Rule;
+
+/**
+ * Class TopKKeys
+ *
+ * Thread-safe bounded collection of the k conditional keys with the highest support.
+ * Once it is full, the support of its weakest key becomes a threshold: keys below it
+ * cannot enter the collection, and since support decreases when properties or conditions
+ * are added, the miners can prune every candidate below it. Ranking by support ratio
+ * (support over the number of subjects) gives the same order. Ties are broken by the
+ * canonical form of the keys, so the result does not depend on the order of discovery.
+ * The enumerations of conditions registered with {@link #register(ConditionsResult)} follow
+ * the threshold, so they do not generate the conditions below it.
+ *
+ * @author lgalarra
+ *
+ */
+public class TopKKeys {
+
+	private static class Entry {
+		final Rule keyRule;
+
+		final String canonicalForm;
+
+		Entry(Rule keyRule) {
+			this.keyRule = keyRule;
+			this.canonicalForm = KeySink.canonicalForm(keyRule);
+		}
+	}
+
+	/**
+	 * Best keys first: descending support, then ascending canonical form
+	 */
+	private static final Comparator<Entry> bestFirst = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry e1, Entry e2) {
+			int cmp = Double.compare(e2.keyRule.getSupport(), e1.keyRule.getSupport());
+			if (cmp == 0)
+				cmp = e1.canonicalForm.compareTo(e2.canonicalForm);
+			return cmp;
+		}
+	};
+
+	private final int k;
+
+	/** The weakest key at the top **/
+	private final PriorityQueue<Entry> heap;
+
+	private final Set<String> canonicalForms;
+
+	private volatile double threshold;
+
+	/** The enumerations of conditions that follow the threshold, weakly referenced **/
+	private final Set<ConditionsResult> enumerations;
+
+	public TopKKeys(int k) {
+		if (k < 1)
+			throw new IllegalArgumentException("k must be positive: " + k);
+		this.k = k;
+		this.heap = new PriorityQueue<>(k, Collections.reverseOrder(bestFirst));
+		this.canonicalForms = new HashSet<>();
+		this.threshold = 0.0;
+		this.enumerations = Collections.newSetFromMap(new WeakHashMap<ConditionsResult, Boolean>());
+	}
+
+	/**
+	 * It adds the key if it is among the k best keys seen so far.
+	 * @param keyRule
+	 * @return true if the key was added
+	 */
+	public synchronized boolean offer(Rule keyRule) {
+		if (keyRule.getSupport() < threshold)
+			return false;
+		Entry entry = new Entry(keyRule);
+		if (canonicalForms.contains(entry.canonicalForm))
+			return false;
+		if (heap.size() == k) {
+			if (bestFirst.compare(entry, heap.peek()) >= 0)
+				return false;
+			canonicalForms.remove(heap.poll().canonicalForm);
+		}
+		heap.add(entry);
+		canonicalForms.add(entry.canonicalForm);
+		if (heap.size() == k) {
+			double newThreshold = heap.peek().keyRule.getSupport();
+			if (newThreshold > threshold) {
+				threshold = newThreshold;
+				for (ConditionsResult enumeration : enumerations)
+					enumeration.raiseMinSupport(minSupport());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * It raises the support threshold of the enumeration to the threshold of the collection,
+	 * now and whenever the threshold rises. The enumeration is dropped once it is not used anymore.
+	 * @param enumeration
+	 */
+	public synchronized void register(ConditionsResult enumeration) {
+		enumeration.raiseMinSupport(minSupport());
+		enumerations.add(enumeration);
+	}
+
+	/**
+	 * The threshold as a minimum number of subjects.
+	 */
+	private int minSupport() {
+		return (int) Math.ceil(threshold);
+	}
+
+	/**
+	 * The minimum support of a key to enter the collection: 0 until it is full, the
+	 * support of the weakest key afterwards. It never decreases.
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+
+	public int getK() {
+		return k;
+	}
+
+	public synchronized int size() {
+		return heap.size();
+	}
+
+	/**
+	 * The keys in descending order of support.
+	 */
+	public synchronized List<Rule> getKeys() {
+		List<Entry> entries = new ArrayList<>(heap);
+		Collections.sort(entries, bestFirst);
+		List<Rule> result = new ArrayList<>(entries.size());
+		for (Entry entry : entries)
+			result.add(entry.keyRule);
+		return result;
+	}
+}
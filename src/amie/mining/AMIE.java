@@ -13,10 +13,11 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -27,6 +28,8 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.cli.PosixParser;
 
+import amie.data.EncodedKB;
+import amie.data.QueryCache;
 import amie.data.KB;
 import amie.mining.assistant.DefaultMiningAssistant;
 import amie.mining.assistant.MiningAssistant;
@@ -35,7 +38,6 @@ import amie.rules.Metric;
 import amie.rules.Rule;
 import javatools.administrative.Announce;
 import javatools.datatypes.ByteString;
-import javatools.datatypes.MultiMap;
 import javatools.parsers.NumberFormatter;
 
 /**
@@ -48,6 +50,15 @@ import javatools.parsers.NumberFormatter;
  */
 public class AMIE {
 
+    /**
+     * Scheduling of the refinement of rules among the mining threads.
+     * Barrier: a single queue and a barrier between rounds (see {@link AMIEQueue}).
+     * WorkStealing: one deque per thread with work stealing, breath-first rounds are kept.
+     * Relaxed: one deque per thread with work stealing, no barrier between rounds
+     * (see {@link WorkStealingAMIEQueue}).
+     */
+    public enum Scheduling { Barrier, WorkStealing, Relaxed };
+
     /**
      * Default standard confidence threshold
      */
@@ -106,6 +117,26 @@ public class AMIE {
      */
     private boolean realTime;
     
+    /**
+     * Scheduling of the rules among the threads
+     */
+    private Scheduling scheduling;
+    
+    /**
+     * File where the state of the mining is saved at the start of each round, or null
+     */
+    private File checkpointFile;
+    
+    /**
+     * Command line arguments of the run, saved in the checkpoints
+     */
+    private String[] arguments;
+    
+    /**
+     * Checkpoint from which the mining is resumed, or null
+     */
+    private MiningCheckpoint resumeFrom;
+    
     /**
      * List of target head relations.
      */
@@ -134,6 +165,7 @@ public class AMIE {
         this.pruningMetric = metric;
         this.nThreads = nThreads;
         this.realTime = true;
+        this.scheduling = Scheduling.Barrier;
         this.seeds = null;
     }
 
@@ -193,6 +225,38 @@ public class AMIE {
 	public void setnThreads(int nThreads) {
 		this.nThreads = nThreads;
 	}
+
+	public Scheduling getScheduling() {
+		return scheduling;
+	}
+
+	public void setScheduling(Scheduling scheduling) {
+		this.scheduling = scheduling;
+	}
+
+	public File getCheckpointFile() {
+		return checkpointFile;
+	}
+
+	/**
+	 * It enables the checkpoints of the mining.
+	 * @param checkpointFile
+	 * @param arguments The command line arguments of the run, needed to resume it.
+	 */
+	public void setCheckpointFile(File checkpointFile, String[] arguments) {
+		this.checkpointFile = checkpointFile;
+		this.arguments = arguments;
+	}
+
+	/**
+	 * The mining will start from the state saved in the checkpoint instead of
+	 * the initial atoms. The rules output before the checkpoint are part of the
+	 * result of {@link #mine()}, but they are not printed again in real time.
+	 * @param checkpoint
+	 */
+	public void setResumeFrom(MiningCheckpoint checkpoint) {
+		this.resumeFrom = checkpoint;
+	}
     
 
     /**
@@ -203,26 +267,52 @@ public class AMIE {
      * @throws Exception
      */
     public List<Rule> mine() throws Exception {
-        List<Rule> result = new ArrayList<>();
-        MultiMap<Integer, Rule> indexedResult = new MultiMap<>();
+        ConcurrentOutputIndex result = new ConcurrentOutputIndex(realTime);
         RuleConsumer consumerObj = null;
         Thread consumerThread = null;
-        Lock resultsLock = new ReentrantLock();
-        Condition resultsCondVar = resultsLock.newCondition();
         Collection<Rule> seedRules = new ArrayList<>();
         
+        int generation = 1;
+        
         // Queue initialization
-        if (seeds == null || seeds.isEmpty()) {
+        if (resumeFrom != null) {
+        	seedRules = resumeFrom.getRules();
+        	generation = resumeFrom.getGeneration();
+        	// The rules output before the checkpoint are not printed again
+        	for (Rule rule : resumeFrom.getOutput()) {
+        		result.restore(rule);
+        	}
+        } else if (seeds == null || seeds.isEmpty()) {
             seedRules = assistant.getInitialAtoms(minInitialSupport);
         } else {
             seedRules = assistant.getInitialAtomsFromSeeds(seeds, minInitialSupport);
         }
         
-        AMIEQueue queue = new AMIEQueue(seedRules, nThreads);
+        RuleQueue queue = null;
+        switch (scheduling) {
+        case WorkStealing :
+        	queue = new WorkStealingAMIEQueue(seedRules, nThreads, false, generation);
+        	break;
+        case Relaxed :
+        	queue = new WorkStealingAMIEQueue(seedRules, nThreads, true, generation);
+        	break;
+        default :
+        	queue = new AMIEQueue(seedRules, generation, nThreads);
+        }
+        
+        ExecutorService checkpointWriter = null;
+        if (checkpointFile != null) {
+        	if (scheduling == Scheduling.Relaxed) {
+        		System.err.println("The relaxed scheduling has no rounds, no checkpoints will be saved");
+        	}
+        	checkpointWriter = Executors.newSingleThreadExecutor();
+        	queue.setRoundListener(new CheckpointListener(result, checkpointWriter));
+        }
 
         if (realTime) {
-            consumerObj = new RuleConsumer(result, resultsLock, resultsCondVar);
+            consumerObj = new RuleConsumer(result);
             consumerThread = new Thread(consumerObj);
+            result.setConsumer(consumerThread);
             consumerThread.start();
         }
 
@@ -231,7 +321,7 @@ public class AMIE {
         ArrayList<Thread> currentJobs = new ArrayList<>();
         ArrayList<RDFMinerJob> jobObjects = new ArrayList<>();
         for (int i = 0; i < nThreads; ++i) {
-            RDFMinerJob jobObject = new RDFMinerJob(queue, result, resultsLock, resultsCondVar, indexedResult);
+            RDFMinerJob jobObject = new RDFMinerJob(queue, result);
             Thread job = new Thread(jobObject);
             currentJobs.add(job);
             jobObjects.add(jobObject);
@@ -245,58 +335,116 @@ public class AMIE {
         for (Thread job : currentJobs) {
             job.join();
         }
+        
+        if (checkpointWriter != null) {
+        	checkpointWriter.shutdown();
+        	checkpointWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
 
-        if (realTime) {        
-            consumerThread.interrupt();
-            while (!consumerThread.isInterrupted());            	
+        if (realTime) {
+            consumerObj.finish(consumerThread);
+            consumerThread.join();
         }
 
-        return result;
+        return result.getRules();
     }
 
     /**
-     * It removes and prints rules from a shared list (a list accessed by
-     * multiple threads).
+     * It saves a checkpoint at the start of each round. The state is captured
+     * while the mining threads wait and it is written to disk by another thread. If the
+     * previous checkpoint is still being written, the round is skipped.
      *
      * @author galarrag
      *
      */
-    private class RuleConsumer implements Runnable {
+    private class CheckpointListener implements RuleQueue.RoundListener {
+    	
+    	private final ConcurrentOutputIndex output;
+    	
+    	private final ExecutorService writer;
+    	
+    	private final AtomicBoolean writing;
+    	
+    	public CheckpointListener(ConcurrentOutputIndex output, ExecutorService writer) {
+    		this.output = output;
+    		this.writer = writer;
+    		this.writing = new AtomicBoolean(false);
+    	}
+
+		@Override
+		public void roundStarted(final int generation, Collection<Rule> rules) {
+			if (!writing.compareAndSet(false, true)) {
+				return;
+			}
+			final MiningCheckpoint checkpoint;
+			try {
+				checkpoint = new MiningCheckpoint(arguments, generation, rules, output.getRules());
+			} catch (IOException e) {
+				System.err.println("Could not save the checkpoint: " + e.getMessage());
+				writing.set(false);
+				return;
+			}
+			writer.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						checkpoint.write(checkpointFile);
+						System.err.println("Checkpoint of generation " + generation 
+								+ " saved to " + checkpointFile);
+					} catch (IOException e) {
+						System.err.println("Could not save the checkpoint: " + e.getMessage());
+					} finally {
+						writing.set(false);
+					}
+				}
+			});
+		}
+    }
 
-        private List<Rule> consumeList;
+    /**
+     * It prints the rules appended to the log of the output index as they
+     * are discovered. It sleeps while the log is empty.
+     *
+     * @author galarrag
+     *
+     */
+    private class RuleConsumer implements Runnable {
 
-        private int lastConsumedIndex;
+        private final ConcurrentOutputIndex output;
 
-        private Lock consumeLock;
+        private volatile boolean finished;
 
-        private Condition conditionVariable;
+        public RuleConsumer(ConcurrentOutputIndex output) {
+            this.output = output;
+            this.finished = false;
+        }
 
-        public RuleConsumer(List<Rule> consumeList, Lock consumeLock, Condition conditionVariable) {
-            this.consumeList = consumeList;
-            this.lastConsumedIndex = -1;
-            this.consumeLock = consumeLock;
-            this.conditionVariable = conditionVariable;
+        /**
+         * It asks the consumer to print the remaining rules and stop.
+         * @param consumerThread The thread running the consumer
+         */
+        public void finish(Thread consumerThread) {
+            finished = true;
+            LockSupport.unpark(consumerThread);
         }
 
         @Override
         public void run() {
             AMIE.printRuleHeaders(assistant);
-            while (!Thread.currentThread().isInterrupted()) {
-                consumeLock.lock();
-                try {
-                    while (lastConsumedIndex == consumeList.size() - 1) {
-                        conditionVariable.await();
-                        for (int i = lastConsumedIndex + 1; i < consumeList.size(); ++i) {
-                        	System.out.println(assistant.formatRule(consumeList.get(i)));
-                        }
-                        lastConsumedIndex = consumeList.size() - 1;
-                    }
-                } catch (InterruptedException e) {
-                	consumeLock.unlock();
-                	System.out.flush();
-                	break;
-                } 
+            while (true) {
+                Rule rule = output.poll();
+                if (rule != null) {
+                    System.out.println(assistant.formatRule(rule));
+                } else if (finished) {
+                    // The rules added before finish() are visible now
+                    if ((rule = output.poll()) == null)
+                        break;
+                    System.out.println(assistant.formatRule(rule));
+                } else {
+                    LockSupport.park(this);
+                }
             }
+            System.out.flush();
         }
     }
 
@@ -307,36 +455,19 @@ public class AMIE {
      */
     private class RDFMinerJob implements Runnable {
 
-        private List<Rule> outputSet;
-
-        // A version of the output set thought for search.
-        private MultiMap<Integer, Rule> indexedOutputSet;
-
-        private AMIEQueue queryPool;
+        // The output set, indexed for the search of parents
+        private ConcurrentOutputIndex outputSet;
 
-        private Lock resultsLock;
-
-        private Condition resultsCondition;
+        private RuleQueue queryPool;
 
         /**
          * 
          * @param seedsPool
-         * @param outputSet
-         * @param resultsLock Lock associated to the output buffer were mined rules are added
-         * @param resultsCondition Condition variable associated to the results lock
-         * @param sharedCounter Reference to a shared counter that keeps track of the number of threads that are running
-         * in the system.
-         * @param indexedOutputSet
+         * @param outputSet Shared output set where mined rules are added
          */
-        public RDFMinerJob(AMIEQueue seedsPool,
-                List<Rule> outputSet, Lock resultsLock,
-                Condition resultsCondition,
-                MultiMap<Integer, Rule> indexedOutputSet) {
+        public RDFMinerJob(RuleQueue seedsPool, ConcurrentOutputIndex outputSet) {
             this.queryPool = seedsPool;
             this.outputSet = outputSet;
-            this.resultsLock = resultsLock;
-            this.resultsCondition = resultsCondition;
-            this.indexedOutputSet = indexedOutputSet;
         }
 
         @Override
@@ -361,9 +492,7 @@ public class AMIE {
                         boolean ruleSatisfiesConfidenceBounds
                                 = assistant.calculateConfidenceBoundsAndApproximations(currentRule);
                         if (ruleSatisfiesConfidenceBounds) {
-                            this.resultsLock.lock();
-                            assistant.setAdditionalParents(currentRule, indexedOutputSet);
-                            this.resultsLock.unlock();
+                            assistant.setAdditionalParents(currentRule, outputSet);
                             // Calculate the metrics
                             assistant.calculateConfidenceMetrics(currentRule);
                             // Check the confidence threshold and skyline technique.
@@ -418,19 +547,7 @@ public class AMIE {
 
                     // Output the rule
                     if (outputRule) {
-                        this.resultsLock.lock();
-                        Set<Rule> outputQueries = indexedOutputSet.get(currentRule.alternativeParentHashCode());
-                        if (outputQueries != null) {
-                            if (!outputQueries.contains(currentRule)) {
-                                this.outputSet.add(currentRule);
-                                outputQueries.add(currentRule);
-                            }
-                        } else {
-                            this.outputSet.add(currentRule);
-                            this.indexedOutputSet.put(currentRule.alternativeParentHashCode(), currentRule);
-                        }
-                        this.resultsCondition.signal();
-                        this.resultsLock.unlock();
+                        this.outputSet.add(currentRule);
                     }
                 }
             }
@@ -541,6 +658,16 @@ public class AMIE {
     		throws IOException, InstantiationException, 
     		IllegalAccessException, IllegalArgumentException, 
     		InvocationTargetException {
+        // A resumed run takes the arguments saved in the checkpoint
+        MiningCheckpoint checkpoint = null;
+        for (int i = 0; i < args.length - 1; ++i) {
+        	if (args[i].equals("-resume")) {
+        		checkpoint = MiningCheckpoint.read(new File(args[i + 1]));
+        		args = checkpoint.getArguments();
+        		break;
+        	}
+        }
+        
         List<File> dataFiles = new ArrayList<File>();
         List<File> targetFiles = new ArrayList<File>();
         List<File> schemaFiles = new ArrayList<File>();
@@ -581,6 +708,7 @@ public class AMIE {
         KB targetSource = null;
         KB schemaSource = null;
         int nThreads = nProcessors; // By default use as many threads as processors.
+        Scheduling scheduling = Scheduling.Barrier;
         HelpFormatter formatter = new HelpFormatter();
 
         // create the command line parser
@@ -685,6 +813,14 @@ public class AMIE {
                 		+ "in the system if a higher value is provided.")
                 .create("nc");
 
+        Option schedulingOp = OptionBuilder.withArgName("scheduling")
+                .hasArg()
+                .withDescription("Scheduling of the rules among the threads: barrier|ws|relaxed. "
+                		+ "barrier uses a single queue, ws uses a deque per thread with work stealing, "
+                		+ "relaxed does not wait for the end of each round and may output rules "
+                		+ "that the other modes prune. Default: barrier")
+                .create("sched");
+
         Option stdConfThresholdOpt = OptionBuilder.withArgName("min-std-confidence")
                 .hasArg()
                 .withDescription("Minimum standard confidence threshold. "
@@ -747,6 +883,30 @@ public class AMIE {
         		.withDescription("Do not calculate standard confidence")
         		.create("ostd");
 
+        Option encodedKBOp = OptionBuilder.withArgName("encoded-kb")
+                .withDescription("Store the KB with integer identifiers instead of strings. "
+                		+ "It requires less memory and speeds up the evaluation of queries.")
+                .create("ekb");
+
+        Option checkpointOp = OptionBuilder.withArgName("checkpoint-file")
+                .hasArg()
+                .withDescription("Save the state of the mining to the file at the start of each round "
+                		+ "(not with -sched relaxed), so that the run can be resumed with -resume.")
+                .create("chk");
+
+        Option resumeOp = OptionBuilder.withArgName("checkpoint-file")
+                .hasArg()
+                .withDescription("Resume the run saved in the checkpoint file, with the arguments of that run. "
+                		+ "Any other argument is ignored.")
+                .create("resume");
+
+        Option queryCacheOp = OptionBuilder.withArgName("max-entries")
+                .withDescription("Cache the results of the counting queries, "
+                		+ "up to variable renaming and order of the atoms. "
+                		+ "Default size: " + QueryCache.DEFAULT_CAPACITY + " entries.")
+                .hasOptionalArg()
+                .create("qc");
+
         options.addOption(stdConfThresholdOpt);
         options.addOption(supportOpt);
         options.addOption(initialSupportOpt);
@@ -764,6 +924,7 @@ public class AMIE {
         options.addOption(countOnSubjectOpt);
         options.addOption(assistantOp);
         options.addOption(coresOp);
+        options.addOption(schedulingOp);
         options.addOption(confidenceBoundsOp);
         options.addOption(verboseOp);
         options.addOption(funcHeuristicOp);
@@ -777,6 +938,10 @@ public class AMIE {
         options.addOption(extraFileOp);
         options.addOption(datalogNotationOpt);
         options.addOption(calculateStdConfidenceOp);
+        options.addOption(encodedKBOp);
+        options.addOption(queryCacheOp);
+        options.addOption(checkpointOp);
+        options.addOption(resumeOp);
 
         try {
             cli = parser.parse(options, args);
@@ -938,6 +1103,24 @@ public class AMIE {
             }
         }
 
+        if (cli.hasOption("sched")) {
+            switch (cli.getOptionValue("sched")) {
+                case "barrier":
+                    scheduling = Scheduling.Barrier;
+                    break;
+                case "ws":
+                    scheduling = Scheduling.WorkStealing;
+                    break;
+                case "relaxed":
+                    scheduling = Scheduling.Relaxed;
+                    break;
+                default:
+                    System.err.println("The argument for option -sched must be barrier, ws or relaxed");
+                    System.err.println("AMIE [OPTIONS] <.tsv INPUT FILES>");
+                    System.exit(1);
+            }
+        }
+
 
         avoidUnboundTypeAtoms = cli.hasOption("auta");
         exploitMaxLengthForRuntime = !cli.hasOption("deml");
@@ -962,10 +1145,24 @@ public class AMIE {
                 dataFiles.add(new File(leftOverArgs[i]));
             }
         }
-        KB dataSource = new KB();
+        KB dataSource = cli.hasOption("ekb") ? new EncodedKB() : new KB();
         long timeStamp1 = System.currentTimeMillis();
-        dataSource.load(dataFiles);
+        dataSource = amie.data.U.loadFiles(dataFiles, dataSource);
         long timeStamp2 = System.currentTimeMillis();
+        if (cli.hasOption("qc")) {
+            int capacity = QueryCache.DEFAULT_CAPACITY;
+            if (cli.getOptionValue("qc") != null) {
+                try {
+                    capacity = Integer.parseInt(cli.getOptionValue("qc"));
+                } catch (NumberFormatException e) {
+                    System.err.println("The argument for option -qc (query cache) must be an integer");
+                    System.err.println("AMIE+ [OPTIONS] <.tsv INPUT FILES>");
+                    formatter.printHelp("AMIE+", options);
+                    System.exit(1);
+                }
+            }
+            dataSource.setQueryCache(new QueryCache(capacity));
+        }
         if (cli.hasOption("optimfh")) {
             Announce.message("Building overlap tables for confidence approximation.");
             dataSource.buildOverlapTables();
@@ -1138,6 +1335,16 @@ public class AMIE {
         
         AMIE miner = new AMIE(mineAssistant, minInitialSup, minMetricValue, metric, nThreads);
         miner.setRealTime(realTime);
+        miner.setScheduling(scheduling);
+        if (cli.hasOption("chk")) {
+        	miner.setCheckpointFile(new File(cli.getOptionValue("chk")), args);
+        }
+        if (checkpoint != null) {
+        	System.out.println("Resuming at generation " + checkpoint.getGeneration() + " with " 
+        			+ checkpoint.getRules().size() + " rules to refine and " 
+        			+ checkpoint.getOutput().size() + " rules output");
+        	miner.setResumeFrom(checkpoint);
+        }
         miner.setSeeds(headTargetRelations);
 
         if (minStdConf > 0.0) {
@@ -1220,6 +1427,8 @@ public class AMIE {
 	
 	    long miningTime = System.currentTimeMillis() - time;
 	    System.out.println("Mining done in " + NumberFormatter.formatMS(miningTime));
+	    if (assistant.getKb().getQueryCache() != null)
+	    	System.out.println(assistant.getKb().getQueryCache());
 	    Announce.done("Total time " + NumberFormatter.formatMS(miningTime + loadingTime));
 	    System.out.println(rules.size() + " rules mined.");
     }
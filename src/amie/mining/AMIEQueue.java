@@ -18,7 +18,7 @@ import amie.rules.Rule;
  * @author galarrag
  *
  */
-public final class AMIEQueue {
+public final class AMIEQueue implements RuleQueue {
 	private final Lock lock = new ReentrantLock(); 
 	
 	private final Condition empty = lock.newCondition(); 
@@ -33,8 +33,21 @@ public final class AMIEQueue {
 	
 	private int waitingThreads = 0;
 	
+	private RoundListener listener;
+	
 	public AMIEQueue(Collection<Rule> seeds, int maxThreads) {
-		this.generation = 1;
+		this(seeds, 1, maxThreads);
+	}
+	
+	/**
+	 * It builds a queue whose first round has the given generation, e.g., to resume
+	 * a mining process.
+	 * @param seeds
+	 * @param generation
+	 * @param maxThreads
+	 */
+	public AMIEQueue(Collection<Rule> seeds, int generation, int maxThreads) {
+		this.generation = generation;
 		this.maxThreads = maxThreads; 
 		this.waitingThreads = 0;
 		this.current = new LinkedHashSet<>();
@@ -50,6 +63,7 @@ public final class AMIEQueue {
 	 * Adds an item to the queue.
 	 * @param o
 	 */
+	@Override
 	public void queue(Rule o) {
 		lock.lock();
 		o.setGeneration(generation);
@@ -61,6 +75,7 @@ public final class AMIEQueue {
 	 * Adds a collection of items to the queue.
 	 * @param rules
 	 */
+	@Override
 	public void queueAll(Collection<Rule> rules) {
 		lock.lock();
 		for (Rule r : rules) {
@@ -75,6 +90,7 @@ public final class AMIEQueue {
 	 * @return An object or null if the queue is empty.
 	 * @throws InterruptedException
 	 */
+	@Override
 	public Rule dequeue() throws InterruptedException {
 		lock.lock();
 		Rule item = null;
@@ -85,6 +101,8 @@ public final class AMIEQueue {
 	    		--waitingThreads;
 	    	} else {	    	
 	    		nextGeneration();
+	    		if (listener != null && !current.isEmpty())
+	    			listener.roundStarted(generation - 1, current);
 	    		--waitingThreads;
 		    	empty.signalAll();	
 	    	}
@@ -119,14 +137,24 @@ public final class AMIEQueue {
 		next = new LinkedHashSet<>();
 	}
 	
+	@Override
 	public boolean isEmpty() {
 		return current.isEmpty() && next.isEmpty();
 	}
 	
+	@Override
 	public int getGeneration() {
 		return generation;
 	}
 
+	@Override
+	public void setRoundListener(RoundListener listener) {
+		lock.lock();
+		this.listener = listener;
+		lock.unlock();
+	}
+
+	@Override
 	public void decrementMaxThreads() {
 		lock.lock();
 		--maxThreads;
@@ -0,0 +1,173 @@
+package amie.mining;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import amie.rules.Rule;
+import javatools.datatypes.MultiMap;
+
+/**
+ * Thread-safe output set of the AMIE mining system. The rules are indexed by
+ * {@link Rule#alternativeParentHashCode()}, so that the mining assistants can look
+ * for the parents of a rule (see {@link amie.mining.assistant.MiningAssistant#setAdditionalParents})
+ * while other threads add rules. The index is a concurrent hash map, which locks a
+ * single bin on updates, and each entry is a concurrent set, so neither lookups nor
+ * additions take a global lock. The new rules are also appended to a lock-free log
+ * that a consumer thread (e.g., the real-time printer) drains with {@link #poll()}.
+ * The consumer is woken up when rules are appended.
+ *
+ * @author galarrag
+ *
+ */
+public final class ConcurrentOutputIndex extends MultiMap<Integer, Rule> {
+
+	private final ConcurrentHashMap<Integer, Set<Rule>> index;
+
+	/** The rules in order of addition **/
+	private final ConcurrentLinkedQueue<Rule> rules;
+
+	/** The rules that have not been consumed, or null if there is no consumer **/
+	private final ConcurrentLinkedQueue<Rule> log;
+
+	private volatile Thread consumer;
+
+	/**
+	 * @param withLog If true, the rules are also appended to a log that can be drained with {@link #poll()}.
+	 */
+	public ConcurrentOutputIndex(boolean withLog) {
+		this.index = new ConcurrentHashMap<>();
+		this.rules = new ConcurrentLinkedQueue<>();
+		this.log = withLog ? new ConcurrentLinkedQueue<Rule>() : null;
+	}
+
+	/**
+	 * It adds the rule to the output if no equivalent rule has been added before.
+	 * @param rule
+	 * @return true if the rule was added.
+	 */
+	public boolean add(Rule rule) {
+		if (!index(rule))
+			return false;
+
+		rules.add(rule);
+		if (log != null) {
+			log.add(rule);
+			Thread waiting = consumer;
+			if (waiting != null)
+				LockSupport.unpark(waiting);
+		}
+		return true;
+	}
+
+	/**
+	 * It adds a rule output by a previous run (see {@link MiningCheckpoint}). The rule
+	 * is not appended to the log, since it has been consumed already.
+	 * @param rule
+	 * @return true if the rule was added.
+	 */
+	public boolean restore(Rule rule) {
+		if (!index(rule))
+			return false;
+
+		rules.add(rule);
+		return true;
+	}
+
+	private boolean index(Rule rule) {
+		Integer key = rule.alternativeParentHashCode();
+		Set<Rule> bucket = index.get(key);
+		if (bucket == null) {
+			Set<Rule> newBucket = Collections.newSetFromMap(new ConcurrentHashMap<Rule, Boolean>());
+			bucket = index.putIfAbsent(key, newBucket);
+			if (bucket == null)
+				bucket = newBucket;
+		}
+		return bucket.add(rule);
+	}
+
+	/**
+	 * It returns the oldest rule of the log that has not been consumed, or null.
+	 */
+	public Rule poll() {
+		return log == null ? null : log.poll();
+	}
+
+	/**
+	 * It registers the thread that drains the log. It is unparked whenever a rule is added.
+	 * @param consumer
+	 */
+	public void setConsumer(Thread consumer) {
+		this.consumer = consumer;
+	}
+
+	/**
+	 * The output rules in order of addition.
+	 */
+	public List<Rule> getRules() {
+		return new ArrayList<>(rules);
+	}
+
+	public int size() {
+		return rules.size();
+	}
+
+	/**
+	 * The key is ignored, rules are indexed by {@link Rule#alternativeParentHashCode()}.
+	 */
+	@Override
+	public void put(Integer key, Rule rule) {
+		add(rule);
+	}
+
+	@Override
+	public void putAll(MultiMap<Integer, Rule> otherMap) {
+		for (Entry<Integer, Rule> e : otherMap) {
+			add(e.getValue());
+		}
+	}
+
+	/**
+	 * It returns the rules with the given key. The set may change while it is iterated.
+	 */
+	@Override
+	public Set<Rule> get(Integer key) {
+		return index.get(key);
+	}
+
+	@Override
+	public List<Rule> getAsList(Integer key) {
+		Set<Rule> bucket = index.get(key);
+		return bucket == null ? null : new ArrayList<>(bucket);
+	}
+
+	@Override
+	public boolean contains(Entry<Integer, Rule> e) {
+		Set<Rule> bucket = index.get(e.getKey());
+		return bucket != null && bucket.contains(e.getValue());
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return rules.isEmpty();
+	}
+
+	@Override
+	public Iterator<Entry<Integer, Rule>> iterator() {
+		List<Entry<Integer, Rule>> entries = new ArrayList<>();
+		for (Map.Entry<Integer, Set<Rule>> bucket : index.entrySet()) {
+			for (Rule rule : bucket.getValue()) {
+				entries.add(new AbstractMap.SimpleEntry<Integer, Rule>(bucket.getKey(), rule));
+			}
+		}
+		return entries.iterator();
+	}
+}
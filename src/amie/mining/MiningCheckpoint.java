@@ -0,0 +1,194 @@
+package amie.mining;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import amie.rules.Rule;
+
+/**
+ * Class MiningCheckpoint
+ *
+ * State of an AMIE run at the start of a round of the breath-first search: the
+ * command line arguments of the run, the rules of the round that have not been
+ * refined yet (with the ancestors used by the skyline pruning) and the rules output
+ * so far. A run can be resumed from it with the option -resume.
+ *
+ * Layout (big-endian):
+ * <ul>
+ * <li> MAGIC (int), VERSION (int), number of arguments (int) followed by the
+ * arguments (UTF), generation of the round (int)</li>
+ * <li> Number of rules of the round (int) and, for each rule, the rule, the number
+ * of ancestors (int) and the ancestors</li>
+ * <li> Number of output rules (int) followed by the rules</li>
+ * </ul>
+ * Rules are written with {@link Rule#write(java.io.DataOutput)}. The file is written
+ * next to the target and then renamed, so a crash during the write keeps the previous
+ * checkpoint.
+ *
+ * @author galarrag
+ *
+ */
+public class MiningCheckpoint {
+
+	/** "AMCK" **/
+	private static final int MAGIC = 0x414D434B;
+
+	/** Version of the format. Increase it whenever the layout changes. **/
+	private static final int VERSION = 1;
+
+	private final String[] arguments;
+
+	private final int generation;
+
+	/** The rules of the round, when the checkpoint is read **/
+	private final List<Rule> rules;
+
+	/** The rules of the round and their ancestors in binary form, when the checkpoint is captured **/
+	private final byte[] rulesData;
+
+	private final int nRules;
+
+	private final List<Rule> output;
+
+	/**
+	 * It captures the state of the mining. The rules of the round are serialized right
+	 * away, since the mining threads modify them (e.g., they add parents or instantiate
+	 * their atoms temporarily) once the round starts. The output rules are not modified
+	 * anymore, so they are only written by {@link #write(File)}.
+	 * @param arguments The command line arguments of the run
+	 * @param generation The generation of the rules of the round
+	 * @param rules The rules of the round
+	 * @param output The rules output so far
+	 * @throws IOException
+	 */
+	public MiningCheckpoint(String[] arguments, int generation, Collection<Rule> rules, 
+			List<Rule> output) throws IOException {
+		this.arguments = arguments;
+		this.generation = generation;
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		for (Rule rule : rules) {
+			rule.write(out);
+			List<Rule> ruleAncestors = rule.getAncestors();
+			out.writeInt(ruleAncestors.size());
+			for (Rule ancestor : ruleAncestors)
+				ancestor.write(out);
+		}
+		out.flush();
+		this.rulesData = buffer.toByteArray();
+		this.nRules = rules.size();
+		this.rules = null;
+		this.output = output;
+	}
+
+	private MiningCheckpoint(String[] arguments, int generation, List<Rule> rules, List<Rule> output) {
+		this.arguments = arguments;
+		this.generation = generation;
+		this.rules = rules;
+		this.rulesData = null;
+		this.nRules = rules.size();
+		this.output = output;
+	}
+
+	public String[] getArguments() {
+		return arguments;
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * The rules of the round, with their ancestors as parents. Only for checkpoints
+	 * obtained with {@link #read(File)}.
+	 */
+	public List<Rule> getRules() {
+		if (rules == null)
+			throw new IllegalStateException("The rules of a captured checkpoint are only available in binary form");
+		return Collections.unmodifiableList(rules);
+	}
+
+	public int getNumberOfRules() {
+		return nRules;
+	}
+
+	/**
+	 * The rules output before the round.
+	 */
+	public List<Rule> getOutput() {
+		return Collections.unmodifiableList(output);
+	}
+
+	/**
+	 * It writes a captured checkpoint to the file.
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		File tmpFile = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(arguments.length);
+			for (String argument : arguments)
+				out.writeUTF(argument);
+			out.writeInt(generation);
+			out.writeInt(nRules);
+			out.write(rulesData);
+			out.writeInt(output.size());
+			for (Rule rule : output)
+				rule.write(out);
+		}
+		Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * It reads a checkpoint. The ancestors are added as parents of the rules of the round.
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MiningCheckpoint read(File file) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			if (in.readInt() != MAGIC)
+				throw new IOException(file + " is not an AMIE checkpoint");
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported checkpoint version " + version + " in " + file);
+			String[] arguments = new String[in.readInt()];
+			for (int i = 0; i < arguments.length; ++i)
+				arguments[i] = in.readUTF();
+			int generation = in.readInt();
+			int nRules = in.readInt();
+			List<Rule> rules = new ArrayList<>(nRules);
+			for (int i = 0; i < nRules; ++i) {
+				Rule rule = Rule.read(in);
+				int nAncestors = in.readInt();
+				for (int j = 0; j < nAncestors; ++j)
+					rule.addParent(Rule.read(in));
+				rules.add(rule);
+			}
+			int nOutput = in.readInt();
+			List<Rule> output = new ArrayList<>(nOutput);
+			for (int i = 0; i < nOutput; ++i)
+				output.add(Rule.read(in));
+			return new MiningCheckpoint(arguments, generation, rules, output);
+		}
+	}
+}
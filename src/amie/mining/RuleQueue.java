@@ -0,0 +1,65 @@
+package amie.mining;
+
+import java.util.Collection;
+
+import amie.rules.Rule;
+
+/**
+ * The queue of rules to refine shared by the mining threads of AMIE. Each
+ * thread calls {@link #dequeue()} until it returns null, and queues the refinements
+ * of the rule it got before it asks for the next one.
+ * 
+ * @author galarrag
+ *
+ */
+public interface RuleQueue {
+	/**
+	 * It is notified when a new round of the breath-first search starts. At that
+	 * point the rules of the previous rounds have been refined and output, so it is
+	 * a consistent point to save the state of the mining.
+	 */
+	public interface RoundListener {
+		/**
+		 * It is called by the thread that starts the round while the other threads wait,
+		 * so it should return quickly.
+		 * @param generation The generation of the rules of the round
+		 * @param rules The rules of the round. They should not be modified.
+		 */
+		public void roundStarted(int generation, Collection<Rule> rules);
+	}
+	
+	/**
+	 * Adds an item to the queue.
+	 * @param o
+	 */
+	public void queue(Rule o);
+	
+	/**
+	 * Adds a collection of items to the queue.
+	 * @param rules
+	 */
+	public void queueAll(Collection<Rule> rules);
+	
+	/**
+	 * Retrieves and removes an item from the queue. 
+	 * @return An object or null if there are no more rules to refine.
+	 * @throws InterruptedException
+	 */
+	public Rule dequeue() throws InterruptedException;
+	
+	public boolean isEmpty();
+	
+	public int getGeneration();
+	
+	/**
+	 * Called by a thread that leaves the mining after dequeue returned null.
+	 */
+	public void decrementMaxThreads();
+	
+	/**
+	 * It sets the listener notified at the start of each round, or null. Queues without
+	 * rounds never notify it.
+	 * @param listener
+	 */
+	public void setRoundListener(RoundListener listener);
+}
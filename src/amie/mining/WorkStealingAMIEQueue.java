@@ -0,0 +1,354 @@
+package amie.mining;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import amie.rules.Rule;
+
+/**
+ * A queue implementation for the AMIE mining system where each thread has its own
+ * deque of rules. A thread refines the rules of its deque in LIFO order and, when
+ * the deque is empty, it steals the oldest rules of the other threads, so no thread
+ * waits while there are rules to refine anywhere.
+ *
+ * In the default mode, the queue guarantees that the rules produced in the nth-round of
+ * a breath-first search strategy are refined before any rule of the (n+1)th-round, as
+ * {@link AMIEQueue} does. The refinements go to a second set of deques and a counter
+ * tracks the rules of the current round that are not done yet. The thread that completes
+ * the last rule of the round starts the next one (a new epoch), and the threads only wait
+ * when the whole round has been dequeued. In relaxed mode there are no rounds: the
+ * refinements can be dequeued right away and the threads never wait while there is work.
+ * The relaxed mode does not guarantee that the parents of a rule have been output before
+ * the rule is refined, which AMIE needs to find the additional parents of the rule
+ * (see {@link amie.mining.assistant.MiningAssistant#setAdditionalParents}), so some rules
+ * may be output that the breath-first order would have pruned.
+ *
+ * As in {@link AMIEQueue}, a rule is queued only once per generation.
+ *
+ * @author galarrag
+ *
+ */
+public final class WorkStealingAMIEQueue implements RuleQueue {
+
+	/**
+	 * The state of a mining thread
+	 */
+	private static class Worker {
+		final int id;
+
+		/** The rule the thread is refining, or null **/
+		Rule current;
+
+		Worker(int id) {
+			this.id = id;
+		}
+	}
+
+	private final boolean relaxed;
+
+	private final int nDeques;
+
+	/** The rules to refine, one deque per thread. In the default mode, the rules of the current round **/
+	private volatile ConcurrentLinkedDeque<Rule>[] current;
+
+	/** The rules of the next round (only in the default mode) **/
+	private volatile ConcurrentLinkedDeque<Rule>[] next;
+
+	/** Rules of the current round (all the rules in relaxed mode) that are not done **/
+	private final AtomicLong pending;
+
+	/** Rules in the next round **/
+	private final AtomicLong nextSize;
+
+	/** Number of the current round (the oldest generation with pending rules in relaxed mode) **/
+	private volatile int generation;
+
+	/** Generation -> rules queued in that generation, for deduplication **/
+	private final ConcurrentHashMap<Integer, Set<Rule>> queuedRules;
+
+	/** Generation -> rules of that generation that are not done (only in relaxed mode) **/
+	private final ConcurrentHashMap<Integer, AtomicLong> pendingPerGeneration;
+
+	private final AtomicInteger lastGeneration;
+
+	private volatile boolean done;
+
+	private final Object monitor = new Object();
+
+	/** Threads waiting for rules in relaxed mode **/
+	private final AtomicInteger waiting = new AtomicInteger();
+
+	private final AtomicInteger nextWorkerId = new AtomicInteger();
+
+	private volatile RoundListener listener;
+
+	private final ThreadLocal<Worker> worker = new ThreadLocal<Worker>() {
+		@Override
+		protected Worker initialValue() {
+			return new Worker(nextWorkerId.getAndIncrement() % nDeques);
+		}
+	};
+
+	/**
+	 *
+	 * @param seeds
+	 * @param maxThreads
+	 * @param relaxed If true, the rules of different rounds can be refined at the same time.
+	 */
+	public WorkStealingAMIEQueue(Collection<Rule> seeds, int maxThreads, boolean relaxed) {
+		this(seeds, maxThreads, relaxed, 1);
+	}
+
+	/**
+	 * It builds a queue whose first round has the given generation, e.g., to resume
+	 * a mining process.
+	 * @param seeds
+	 * @param maxThreads
+	 * @param relaxed
+	 * @param generation
+	 */
+	public WorkStealingAMIEQueue(Collection<Rule> seeds, int maxThreads, boolean relaxed, int generation) {
+		this.relaxed = relaxed;
+		this.nDeques = Math.max(1, maxThreads);
+		this.current = newDeques();
+		this.next = relaxed ? null : newDeques();
+		this.generation = generation;
+		this.pending = new AtomicLong();
+		this.nextSize = new AtomicLong();
+		this.queuedRules = new ConcurrentHashMap<>();
+		this.pendingPerGeneration = new ConcurrentHashMap<>();
+		this.lastGeneration = new AtomicInteger(generation);
+		int i = 0;
+		for (Rule seed : seeds) {
+			seed.setGeneration(generation);
+			current[i++ % nDeques].add(seed);
+		}
+		this.pending.set(seeds.size());
+		if (relaxed)
+			this.pendingPerGeneration.put(generation, new AtomicLong(seeds.size()));
+		this.done = seeds.isEmpty();
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private ConcurrentLinkedDeque<Rule>[] newDeques() {
+		ConcurrentLinkedDeque<Rule>[] deques = new ConcurrentLinkedDeque[nDeques];
+		for (int i = 0; i < nDeques; ++i) {
+			deques[i] = new ConcurrentLinkedDeque<>();
+		}
+		return deques;
+	}
+
+	private static <K> Set<Rule> getOrCreateSet(ConcurrentHashMap<K, Set<Rule>> map, K key) {
+		Set<Rule> set = map.get(key);
+		if (set == null) {
+			Set<Rule> newSet = Collections.newSetFromMap(new ConcurrentHashMap<Rule, Boolean>());
+			set = map.putIfAbsent(key, newSet);
+			if (set == null)
+				set = newSet;
+		}
+		return set;
+	}
+
+	private AtomicLong getPending(int generation) {
+		AtomicLong counter = pendingPerGeneration.get(generation);
+		if (counter == null) {
+			AtomicLong newCounter = new AtomicLong();
+			counter = pendingPerGeneration.putIfAbsent(generation, newCounter);
+			if (counter == null)
+				counter = newCounter;
+		}
+		return counter;
+	}
+
+	@Override
+	public void queue(Rule o) {
+		Worker w = worker.get();
+		// Refinements are one round after the rule being refined
+		int childGeneration = w.current == null ? generation + 1 : w.current.getGeneration() + 1;
+		o.setGeneration(childGeneration);
+		if (!getOrCreateSet(queuedRules, childGeneration).add(o))
+			return;
+
+		if (relaxed) {
+			getPending(childGeneration).incrementAndGet();
+			pending.incrementAndGet();
+			int last = lastGeneration.get();
+			while (childGeneration > last && !lastGeneration.compareAndSet(last, childGeneration))
+				last = lastGeneration.get();
+			current[w.id].push(o);
+			wakeUp();
+		} else {
+			nextSize.incrementAndGet();
+			next[w.id].push(o);
+		}
+	}
+
+	@Override
+	public void queueAll(Collection<Rule> rules) {
+		for (Rule r : rules) {
+			queue(r);
+		}
+	}
+
+	/**
+	 * It wakes up an idle thread, if any, for a rule just queued. Idle threads register as
+	 * waiting and then look for rules under the monitor before they wait, so a rule queued 
+	 * before this call is either found or notified. 
+	 */
+	private void wakeUp() {
+		if (waiting.get() == 0)
+			return;
+		synchronized (monitor) {
+			monitor.notify();
+		}
+	}
+
+	/**
+	 * It marks the rule of the thread as done. In the default mode, the thread that completes
+	 * the last rule of the round starts the next round.
+	 */
+	private void complete(Worker w) {
+		Rule rule = w.current;
+		if (rule == null)
+			return;
+		w.current = null;
+		if (relaxed && getPending(rule.getGeneration()).decrementAndGet() == 0)
+			closeGenerations();
+
+		if (pending.decrementAndGet() == 0) {
+			synchronized (monitor) {
+				if (!relaxed) {
+					// Nobody holds a rule of this round, so nobody is adding to the next one.
+					// The old deques are dropped, as late thieves may still poll them.
+					RoundListener roundListener = listener;
+					if (roundListener != null && nextSize.get() > 0) {
+						List<Rule> rules = new ArrayList<>();
+						for (ConcurrentLinkedDeque<Rule> deque : next)
+							rules.addAll(deque);
+						roundListener.roundStarted(generation + 1, rules);
+					}
+					current = next;
+					next = newDeques();
+					++generation;
+					queuedRules.remove(generation);
+					pending.set(nextSize.getAndSet(0));
+				}
+				if (pending.get() == 0)
+					done = true;
+				monitor.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * In relaxed mode, a generation is closed when it has no pending rules and the older
+	 * generations are closed. No more rules of the next generation can be queued then, so its
+	 * deduplication set is dropped.
+	 */
+	private void closeGenerations() {
+		synchronized (monitor) {
+			while (generation <= lastGeneration.get()) {
+				AtomicLong counter = pendingPerGeneration.get(generation);
+				if (counter != null && counter.get() > 0)
+					break;
+				pendingPerGeneration.remove(generation);
+				queuedRules.remove(generation + 1);
+				++generation;
+			}
+		}
+	}
+
+	/**
+	 * It takes the newest rule of the thread's deque or the oldest rule of another thread.
+	 */
+	private Rule take(Worker w) {
+		ConcurrentLinkedDeque<Rule>[] deques = current;
+		Rule rule = deques[w.id].pollFirst();
+		if (rule != null)
+			return rule;
+		for (int i = 1; i < nDeques; ++i) {
+			rule = deques[(w.id + i) % nDeques].pollLast();
+			if (rule != null)
+				return rule;
+		}
+		return null;
+	}
+
+	@Override
+	public Rule dequeue() throws InterruptedException {
+		Worker w = worker.get();
+		complete(w);
+		while (true) {
+			// Read before looking for rules, so a round started meanwhile is not missed
+			int observedGeneration = generation;
+			Rule rule = take(w);
+			if (rule != null) {
+				w.current = rule;
+				return rule;
+			}
+
+			synchronized (monitor) {
+				if (done)
+					return null;
+				if (relaxed) {
+					// Rules queued while the thread was stealing are found here,
+					// later ones are notified by wakeUp()
+					waiting.incrementAndGet();
+					try {
+						while (!done && !hasWork())
+							monitor.wait();
+					} finally {
+						waiting.decrementAndGet();
+					}
+				} else {
+					// No rules are added to the current round
+					while (!done && observedGeneration == generation)
+						monitor.wait();
+				}
+			}
+		}
+	}
+
+	private boolean hasWork() {
+		for (ConcurrentLinkedDeque<Rule> deque : current) {
+			if (!deque.isEmpty())
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return pending.get() == 0 && nextSize.get() == 0;
+	}
+
+	@Override
+	public int getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * In relaxed mode there are no rounds, so the listener is never notified.
+	 */
+	@Override
+	public void setRoundListener(RoundListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void decrementMaxThreads() {
+		complete(worker.get());
+		worker.remove();
+	}
+
+	public boolean isRelaxed() {
+		return relaxed;
+	}
+}
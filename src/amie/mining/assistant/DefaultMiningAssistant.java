@@ -8,6 +8,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
@@ -27,10 +28,24 @@ public class DefaultMiningAssistant extends MiningAssistant{
 	 */
 	protected Map<Pair<ByteString, Boolean>, Long> hardQueries;
 	
+	/**
+	 * Default estimated cost (index lookups) from which support and PCA confidence
+	 * are computed in parallel
+	 */
+	public static final long DEFAULT_PARALLEL_COUNTING_MIN_COST = 100000;
+	
+	/**
+	 * Queries with a higher estimated cost are evaluated by several threads of the
+	 * fork/join pool, so that a few expensive rules at the end of a round do not
+	 * keep the other mining threads waiting. Non-positive values disable it.
+	 */
+	protected long parallelCountingMinCost;
+	
 	
 	public DefaultMiningAssistant(KB dataSource) {
 		super(dataSource);
 		this.hardQueries = Collections.synchronizedMap(new HashMap<Pair<ByteString, Boolean>, Long>());
+		this.parallelCountingMinCost = DEFAULT_PARALLEL_COUNTING_MIN_COST;
 		// TODO Auto-generated constructor stub
 	}
 	
@@ -38,6 +53,46 @@ public class DefaultMiningAssistant extends MiningAssistant{
 		return kb.size();
 	}
 	
+	public long getParallelCountingMinCost() {
+		return parallelCountingMinCost;
+	}
+
+	public void setParallelCountingMinCost(long parallelCountingMinCost) {
+		this.parallelCountingMinCost = parallelCountingMinCost;
+	}
+	
+	/**
+	 * It decides whether the bindings of the variable in the query are counted
+	 * by several threads, based on the estimated cost of the query.
+	 */
+	protected boolean countInParallel(ByteString variable, List<ByteString[]> query) {
+		return parallelCountingMinCost > 0 
+				&& ForkJoinPool.getCommonPoolParallelism() > 1
+				&& this.kb.estimateCountCost(variable, query) >= parallelCountingMinCost;
+	}
+	
+	/**
+	 * Number of distinct bindings of the variable, computed in parallel for expensive queries.
+	 */
+	protected long countDistinct(ByteString variable, List<ByteString[]> query) {
+		if (countInParallel(variable, query)) {
+			return this.kb.countDistinctInParallel(variable, query);
+		} else {
+			return this.kb.countDistinct(variable, query);
+		}
+	}
+	
+	/**
+	 * Number of distinct pairs of bindings, computed in parallel for expensive queries.
+	 */
+	protected long countDistinctPairs(ByteString var1, ByteString var2, List<ByteString[]> query) {
+		if (countInParallel(var1, query)) {
+			return this.kb.countDistinctPairsInParallel(var1, var2, query);
+		} else {
+			return this.kb.countDistinctPairs(var1, var2, query);
+		}
+	}
+	
 	@Override
 	public String getDescription() {
        	return "Default mining assistant that defines support "
@@ -573,9 +628,9 @@ public class DefaultMiningAssistant extends MiningAssistant{
 		} else {
 			ByteString[] head = rule.getHead();
 			if (KB.numVariables(head) == 2) {
-				rule.setSupport(this.kb.countDistinctPairs(head[0], head[2], rule.getTriples()));
+				rule.setSupport(countDistinctPairs(head[0], head[2], rule.getTriples()));
 			} else {
-				rule.setSupport(this.kb.countDistinct(rule.getFunctionalVariable(), rule.getTriples()));
+				rule.setSupport(countDistinct(rule.getFunctionalVariable(), rule.getTriples()));
 			}
 			rule.setSupportRatio((double) rule.getSupport() / this.kb.size());
 			Double relationSize = this.headCardinalities.get(head[1].toString());
@@ -614,9 +669,9 @@ public class DefaultMiningAssistant extends MiningAssistant{
 			antecedent.add(existentialTriple);
 			try{
 				if (noOfHeadVars == 1) {
-					pcaDenominator = (double) this.kb.countDistinct(rule.getFunctionalVariable(), antecedent);
+					pcaDenominator = (double) countDistinct(rule.getFunctionalVariable(), antecedent);
 				} else {
-					pcaDenominator = (double) this.kb.countDistinctPairs(succedent[0], succedent[2], antecedent);					
+					pcaDenominator = (double) countDistinctPairs(succedent[0], succedent[2], antecedent);					
 				}
 				rule.setPcaBodySize(pcaDenominator);
 			}catch(UnsupportedOperationException e){
@@ -7,11 +7,14 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import amie.data.KB;
+import amie.data.KBSnapshot;
 import amie.mining.AMIE;
 import amie.rules.Metric;
 import amie.rules.Rule;
@@ -44,7 +47,27 @@ public class AlignKBs {
 	}
 
 	public static KB loadFiles(String args[], int idx) throws IOException {
+		return loadFiles(args, idx, EnumSet.allOf(KB.Permutation.class));
+	}
+
+	/**
+	 * It loads the files from the given position of the arguments and fills only
+	 * the indexes of the given permutations. The other indexes are built on demand.
+	 * @param args
+	 * @param idx
+	 * @param permutations
+	 * @return
+	 * @throws IOException
+	 */
+	public static KB loadFiles(String args[], int idx, Set<KB.Permutation> permutations) throws IOException {
 		KB kb = new KB();
+		kb.setPermutations(permutations);
+		// A snapshot in the first position replaces the empty KB
+		if (idx < args.length && KBSnapshot.isSnapshot(new File(args[idx]))) {
+			kb = KBSnapshot.read(new File(args[idx]));
+			kb.setPermutations(permutations);
+			++idx;
+		}
 		for (int i = idx; i < args.length; ++i) {
 			String fileName = args[i];
 			// Check of the format of the file
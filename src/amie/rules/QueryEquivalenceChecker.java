@@ -3,7 +3,9 @@ package amie.rules;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
 
@@ -240,6 +242,118 @@ public class QueryEquivalenceChecker {
 		}
 	}
 
+	/**
+	 * It returns a canonical labeling of a conjunctive query whose first atom is the
+	 * head: two queries have the same canonical form if and only if one can be obtained
+	 * from the other by renaming variables and reordering the atoms after the head
+	 * (see {@link #canonicalForm(List, List, ByteString...)}).
+	 * @param query
+	 * @return
+	 */
+	public static String canonicalForm(List<ByteString[]> query) {
+		if (query.isEmpty())
+			return "";
+		return canonicalForm(query.subList(0, 1), query.subList(1, query.size()));
+	}
+	
+	/**
+	 * It returns a canonical labeling of a conjunctive query. The given variables are
+	 * named first, in this order, and the other variables are named in order of appearance.
+	 * The fixed atoms come first and keep their order. The other atoms follow in the order
+	 * that gives the smallest representation: at each step the atom with the smallest
+	 * representation under the current names is chosen, and ties are resolved by exploring
+	 * all the tied atoms. It is used for the rules (the head is fixed) and for the keys of
+	 * the {@link amie.data.QueryCache} (the projection variables are named first).
+	 * @param fixedAtoms
+	 * @param atoms
+	 * @param variables
+	 * @return
+	 */
+	public static String canonicalForm(List<ByteString[]> fixedAtoms, List<ByteString[]> atoms, 
+			ByteString... variables) {
+		Map<ByteString, Integer> names = new HashMap<ByteString, Integer>();
+		for (ByteString variable : variables)
+			name(variable, names);
+		StringBuilder prefix = new StringBuilder();
+		for (int i = 0; i < fixedAtoms.size(); ++i) {
+			if (i > 0)
+				prefix.append(';');
+			appendAtom(prefix, fixedAtoms.get(i), names, true);
+		}
+		return canonicalForm(prefix.toString(), atoms, new boolean[atoms.size()], atoms.size(), names);
+	}
+	
+	private static String canonicalForm(String prefix, List<ByteString[]> body, boolean[] used,
+			int remaining, Map<ByteString, Integer> names) {
+		if (remaining == 0)
+			return prefix;
+		
+		String bestAtom = null;
+		List<Integer> candidates = new ArrayList<Integer>();
+		for (int i = 0; i < body.size(); ++i) {
+			if (used[i])
+				continue;
+			StringBuilder strBuilder = new StringBuilder();
+			appendAtom(strBuilder, body.get(i), names, false);
+			String atom = strBuilder.toString();
+			int cmp = bestAtom == null ? -1 : atom.compareTo(bestAtom);
+			if (cmp < 0) {
+				bestAtom = atom;
+				candidates.clear();
+			}
+			if (cmp <= 0)
+				candidates.add(i);
+		}
+		
+		String best = null;
+		for (int candidate : candidates) {
+			Map<ByteString, Integer> newNames = candidates.size() == 1 ? 
+					names : new HashMap<ByteString, Integer>(names);
+			for (ByteString term : body.get(candidate))
+				name(term, newNames);
+			used[candidate] = true;
+			String result = canonicalForm(prefix + ";" + bestAtom, body, used, remaining - 1, newNames);
+			used[candidate] = false;
+			if (best == null || result.compareTo(best) < 0)
+				best = result;
+		}
+		return best;
+	}
+	
+	/**
+	 * It appends the atom with the current names of the variables. Variables without
+	 * name get the next names in order of appearance; they are kept only if assign is true.
+	 */
+	private static void appendAtom(StringBuilder strBuilder, ByteString[] atom, 
+			Map<ByteString, Integer> names, boolean assign) {
+		Map<ByteString, Integer> atomNames = assign ? names : null;
+		for (int i = 0; i < atom.length; ++i) {
+			if (i > 0)
+				strBuilder.append('\t');
+			ByteString term = atom[i];
+			if (!KB.isVariable(term)) {
+				strBuilder.append(term);
+				continue;
+			}
+			Integer name = names.get(term);
+			if (name == null) {
+				if (atomNames == null)
+					atomNames = new HashMap<ByteString, Integer>(names);
+				name(term, atomNames);
+				name = atomNames.get(term);
+			}
+			strBuilder.append('?').append(name);
+		}
+	}
+	
+	/**
+	 * It gives the next name to the term if it is a variable without name.
+	 */
+	private static void name(ByteString term, Map<ByteString, Integer> names) {
+		if (KB.isVariable(term) && !names.containsKey(term))
+			names.put(term, names.size());
+	}
+
 	/**
 	 * It returns the query graph representation of a conjunctive query.
 	 * @param q2
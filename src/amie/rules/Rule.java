@@ -4,6 +4,9 @@
  */
 package amie.rules;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -72,6 +75,26 @@ public class Rule {
      */
     private String headKey;
 
+    /**
+     * Representation of the rule up to variable renaming and order of the body atoms,
+     * used for hashing and equality, and a copy of the atoms it was computed from.
+     */
+    private static final class CanonicalForm {
+    	final String form;
+
+    	final List<ByteString[]> atoms;
+
+    	CanonicalForm(String form, List<ByteString[]> atoms) {
+    		this.form = form;
+    		this.atoms = atoms;
+    	}
+    }
+
+    /**
+     * It is computed on demand and it is recomputed whenever the atoms change.
+     */
+    private volatile CanonicalForm canonicalForm;
+
     /**
      * Parent query
      */
@@ -396,11 +419,7 @@ public class Rule {
     		++this.highestVariable;
     	}
     	
-    	ByteString result = this.highestVariableSuffix == 0 ?
-    			ByteString.of("?" + this.highestVariable) :
-    			ByteString.of("?" + this.highestVariable + this.highestVariableSuffix);
-    	
-    	return result;
+    	return KB.variable(this.highestVariable, this.highestVariableSuffix);
     }
 
 
@@ -500,6 +519,7 @@ public class Rule {
 
     protected void setTriples(ArrayList<ByteString[]> triples) {
         this.triples = triples;
+        this.canonicalForm = null;
     }
 
     /**
@@ -1315,6 +1335,7 @@ public class Rule {
 	        result = prime * result + (int) getRealLength();
 	        result = prime * result + (headKey == null ? 0 : headKey.hashCode());	
        }
+        result = prime * result + getCanonicalForm().hashCode();
         return result;
     }
 
@@ -1349,7 +1370,96 @@ public class Rule {
             return false;
         }
 
-        return QueryEquivalenceChecker.areEquivalent(triples, other.triples);
+        return getCanonicalForm().equals(other.getCanonicalForm());
+    }
+
+    /**
+     * It returns a representation of the rule that does not depend on the names of 
+     * the variables or the order of the body atoms (see 
+     * {@link QueryEquivalenceChecker#canonicalForm(List)}). Two rules are equivalent
+     * if and only if they have the same canonical form. The form is cached with a copy 
+     * of the atoms, and it is recomputed if the atoms differ from the copy, e.g., after 
+     * an atom was modified in place and restored.
+     * @return
+     */
+    public String getCanonicalForm() {
+    	CanonicalForm cached = canonicalForm;
+    	if (cached != null && sameAtoms(cached.atoms, triples))
+    		return cached.form;
+    	List<ByteString[]> atoms = U.deepClone(triples);
+    	String form = QueryEquivalenceChecker.canonicalForm(atoms);
+    	canonicalForm = new CanonicalForm(form, atoms);
+    	return form;
+    }
+
+    private static boolean sameAtoms(List<ByteString[]> atoms1, List<ByteString[]> atoms2) {
+    	if (atoms1.size() != atoms2.size())
+    		return false;
+    	for (int i = 0; i < atoms1.size(); ++i) {
+    		if (!Arrays.equals(atoms1.get(i), atoms2.get(i)))
+    			return false;
+    	}
+    	return true;
+    }
+
+    /**
+     * It writes the atoms, the generation and the metrics of the rule in binary form. 
+     * The ancestors of the rule are not written.
+     * @param out
+     * @throws IOException
+     */
+    public void write(DataOutput out) throws IOException {
+    	out.writeInt(triples.size());
+    	for (ByteString[] atom : triples) {
+    		for (ByteString term : atom) {
+    			out.writeUTF(term.toString());
+    		}
+    	}
+    	out.writeInt(generation);
+    	out.writeInt(functionalVariablePosition);
+    	out.writeDouble(support);
+    	out.writeLong(initialSupport);
+    	out.writeDouble(headCoverage);
+    	out.writeDouble(supportRatio);
+    	out.writeLong(bodySize);
+    	out.writeLong(bodyMinusHeadSize);
+    	out.writeDouble(pcaBodySize);
+    	out.writeDouble(stdConfidenceUpperBound);
+    	out.writeDouble(pcaConfidenceUpperBound);
+    	out.writeDouble(pcaConfidenceEstimation);
+    }
+    
+    /**
+     * It reads a rule written by {@link #write(DataOutput)}.
+     * @param in
+     * @return
+     * @throws IOException
+     */
+    public static Rule read(DataInput in) throws IOException {
+    	Rule rule = new Rule();
+    	int nAtoms = in.readInt();
+    	for (int i = 0; i < nAtoms; ++i) {
+    		ByteString[] atom = new ByteString[3];
+    		for (int j = 0; j < atom.length; ++j) {
+    			atom[j] = ByteString.of(in.readUTF());
+    		}
+    		rule.triples.add(atom);
+    	}
+    	rule.parseVariables();
+    	rule.computeHeadKey();
+    	rule.generation = in.readInt();
+    	rule.functionalVariablePosition = in.readInt();
+    	rule.support = in.readDouble();
+    	rule.initialSupport = in.readLong();
+    	rule.headCoverage = in.readDouble();
+    	rule.supportRatio = in.readDouble();
+    	rule.bodySize = in.readLong();
+    	rule.bodyMinusHeadSize = in.readLong();
+    	rule.pcaBodySize = in.readDouble();
+    	rule.stdConfidenceUpperBound = in.readDouble();
+    	rule.pcaConfidenceUpperBound = in.readDouble();
+    	rule.pcaConfidenceEstimation = in.readDouble();
+    	return rule;
     }
 
     public String getRuleString() {
@@ -1620,6 +1730,7 @@ public class Rule {
         }
 
         triples.removeAll(toRemove);
+        canonicalForm = null;
     }
 
     public List<Rule> getAncestors() {
@@ -2341,7 +2452,7 @@ public class Rule {
 			for (int idx : cmb) {
 				subsetOfAtoms.add(targetAntecedent.get(idx));
 			}
-			if (QueryEquivalenceChecker.areEquivalent(subsetOfAtoms, triples))
+			if (QueryEquivalenceChecker.canonicalForm(subsetOfAtoms).equals(getCanonicalForm()))
 				return true;
 		}
 		
@@ -0,0 +1,131 @@
+package amie.tests;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+import java.util.Set;
+
+import amie.data.EncodedKB;
+import amie.data.KB;
+import amie.data.KBSnapshot;
+import javatools.datatypes.ByteString;
+import javatools.datatypes.IntHashMap;
+
+/**
+ * It runs the tests of KBTest on an EncodedKB, plus some tests
+ * for the queries evaluated on identifiers.
+ */
+public class EncodedKBTest extends KBTest {
+
+	protected void setUp() throws Exception {
+		kb = new EncodedKB();
+		super.setUp();
+	}
+
+	public void testSelectDistinctJoin() {
+		Set<ByteString> values = kb.selectDistinct(ByteString.of("?x"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+						KB.triple("?y", "<isLocatedIn>", "<Paris>")));
+		assertEquals(3, values.size());
+		assertTrue(values.contains(ByteString.of("<Luis>")));
+		assertFalse(values.contains(ByteString.of("<Ambar>")));
+		assertEquals(3, kb.countDistinct(ByteString.of("?x"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+						KB.triple("?x", "<livesIn>", "?z"))));
+	}
+
+	public void testExistsWithSpecialRelations() {
+		assertTrue(kb.existsBS(KB.triples(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triple("?x", "<wasBornIn>", "?z"),
+				KB.triple("?y", KB.DIFFERENTFROMstr, "?z"))));
+		assertFalse(kb.existsBS(KB.triples(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triple("?x", "<wasBornIn>", "?z"),
+				KB.triple("?y", KB.EQUALSstr, "?z"))));
+		assertFalse(kb.existsBS(KB.triples(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triple("?x", "<worksAt>", "<Unknown>"))));
+	}
+
+	public void testCountProjectionBindings() {
+		IntHashMap<ByteString> counts = kb.countProjectionBindings(
+				KB.triple("?x", "<livesIn>", "?y"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?z")), ByteString.of("?z"));
+		assertEquals(1, counts.size());
+		assertEquals(3, counts.get(ByteString.of("<Telecom>")));
+		assertEquals(-1, counts.get(ByteString.of("<ESPOL>")));
+		assertEquals(3, kb.countProjection(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triples(KB.triple("?x", "<wasBornIn>", "?z"))));
+	}
+
+	public void testLeapfrogJoin() {
+		EncodedKB ekb = (EncodedKB) kb;
+		List<ByteString[]> query = KB.triples(KB.triple("?a", "<worksAt>", "?w"),
+				KB.triple("?b", "<worksAt>", "?w"), KB.triple("?a", "<livesIn>", "?c"),
+				KB.triple("?b", "<livesIn>", "?c"), KB.triple("?a", KB.DIFFERENTFROMstr, "?b"));
+		for (EncodedKB.JoinPolicy policy : EncodedKB.JoinPolicy.values()) {
+			ekb.setJoinPolicy(policy);
+			assertTrue(kb.existsBS(query));
+			assertEquals(3, kb.countDistinct(ByteString.of("?a"), query));
+			assertEquals(6, kb.countDistinctPairs(ByteString.of("?a"), ByteString.of("?b"), query));
+			assertEquals(3, kb.countProjection(query.get(0), query.subList(1, query.size())));
+			assertEquals(3, kb.countProjectionBindings(query.get(0),
+					query.subList(1, query.size()), ByteString.of("?c")).get(ByteString.of("<Paris>")));
+			assertFalse(kb.existsBS(KB.triples(KB.triple("?a", "<worksAt>", "?w"),
+					KB.triple("?b", "<worksAt>", "?w"), KB.triple("?a", "<wasBornIn>", "?c"),
+					KB.triple("?b", "<wasBornIn>", "?c"), KB.triple("?a", KB.DIFFERENTFROMstr, "?b"))));
+		}
+	}
+
+	public void testDelete() {
+		long size = kb.size();
+		assertTrue(kb.delete("<Oana>", "<livesIn>", "<Paris>"));
+		assertFalse(kb.delete("<Oana>", "<livesIn>", "<Paris>"));
+		assertEquals(size - 1, kb.size());
+		assertEquals(3, kb.count(KB.triple("?x", "<livesIn>", "<Paris>")));
+		assertFalse(kb.contains(KB.triple("<Oana>", "<livesIn>", "<Paris>")));
+	}
+
+	public void testSnapshot() throws Exception {
+		File file = File.createTempFile("snapshot", KBSnapshot.EXTENSION);
+		try {
+			KBSnapshot.write((EncodedKB) kb, file);
+			EncodedKB copy = KBSnapshot.read(file);
+			assertEquals(kb.size(), copy.size());
+			assertEquals(4, copy.count(KB.triple("?x", "<livesIn>", "<Paris>")));
+			assertEquals(kb.relationSize(ByteString.of("<livesIn>")),
+					copy.relationSize(ByteString.of("<livesIn>")));
+			assertEquals(kb.selectDistinct(ByteString.of("?x"),
+					KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+							KB.triple("?y", "<isLocatedIn>", "<Paris>"))),
+					copy.selectDistinct(ByteString.of("?x"),
+							KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+									KB.triple("?y", "<isLocatedIn>", "<Paris>"))));
+			assertTrue(copy.add("<Oana>", "<worksAt>", "<Telecom>"));
+			assertEquals(kb.size() + 1, copy.size());
+		} finally {
+			file.delete();
+		}
+	}
+
+	public void testLoad() throws Exception {
+		File file = File.createTempFile("facts", ".tsv");
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write("<Luis>\t<livesIn>\t<Paris>\n");
+			writer.write("<Luis>\t<livesIn>\t<Paris> .\r\n");
+			writer.write("<f1>\t<Ambar>\t<livesIn>\t<Santiago>\n");
+			writer.write("malformed line\n");
+			writer.write("<Ambar>\t<worksAt>\t<ESPOL>");
+		}
+		try {
+			EncodedKB loaded = new EncodedKB();
+			loaded.load(file);
+			assertTrue(loaded.isFrozen());
+			assertEquals(3, loaded.size());
+			assertEquals(2, loaded.relationSize(ByteString.of("<livesIn>")));
+			assertEquals(1, loaded.count(KB.triple("<Ambar>", "?r", "<Santiago>")));
+			assertEquals(2, loaded.countDistinct(ByteString.of("?x"),
+					KB.triples(KB.triple("?x", "?r", "?y"))));
+		} finally {
+			file.delete();
+		}
+	}
+}
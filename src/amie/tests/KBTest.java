@@ -1,9 +1,15 @@
 package amie.tests;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import amie.data.KB;
+import amie.data.KBStatistics;
+import amie.data.QueryCache;
 import javatools.datatypes.ByteString;
 import javatools.datatypes.IntHashMap;
 import junit.framework.TestCase;
@@ -87,5 +93,159 @@ public class KBTest extends TestCase {
 		assertTrue(values.containsKey(ByteString.of("<wasBornIn>")));
 		assertTrue(values.get(ByteString.of("<wasBornIn>")).containsKey(ByteString.of("<Paris>")));
 	}
+	
+	public void testQueryCache() {
+		QueryCache cache = new QueryCache(10);
+		kb.setQueryCache(cache);
+		assertEquals(3, kb.countDistinct(ByteString.of("?x"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+						KB.triple("?x", "<livesIn>", "?z"))));
+		// Same query with other variables and atom order
+		assertEquals(3, kb.countDistinct(ByteString.of("?a"),
+				KB.triples(KB.triple("?a", "<livesIn>", "?b"),
+						KB.triple("?a", "<worksAt>", "?c"))));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		// Different projection variable
+		assertEquals(1, kb.countDistinct(ByteString.of("?b"),
+				KB.triples(KB.triple("?a", "<livesIn>", "?b"),
+						KB.triple("?a", "<worksAt>", "?c"))));
+		assertEquals(2, cache.getMisses());
+		
+		kb.add(KB.triple("<Oana>", "<worksAt>", "<Telecom>"));
+		assertEquals(0, cache.size());
+		assertEquals(4, kb.countDistinct(ByteString.of("?a"),
+				KB.triples(KB.triple("?a", "<livesIn>", "?b"),
+						KB.triple("?a", "<worksAt>", "?c"))));
+		assertEquals(4, kb.countProjection(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?z"))));
+		assertEquals(4, kb.countProjection(KB.triple("?a", "<livesIn>", "?b"),
+				KB.triples(KB.triple("?a", "<worksAt>", "?c"))));
+		assertEquals(2, cache.getHits());
+		kb.setQueryCache(null);
+	}
+	
+	public void testOverlapTables() {
+		ByteString livesIn = ByteString.of("<livesIn>");
+		ByteString worksAt = ByteString.of("<worksAt>");
+		ByteString isLocatedIn = ByteString.of("<isLocatedIn>");
+		kb.buildOverlapTables();
+		assertEquals(3, kb.overlap(livesIn, worksAt, KB.SUBJECT2SUBJECT));
+		assertEquals(3, kb.overlap(worksAt, livesIn, KB.SUBJECT2SUBJECT));
+		assertEquals(1, kb.overlap(isLocatedIn, worksAt, KB.SUBJECT2OBJECT));
+		assertEquals(0, kb.overlap(worksAt, isLocatedIn, KB.SUBJECT2OBJECT));
+		assertEquals(1, kb.overlap(livesIn, isLocatedIn, KB.OBJECT2OBJECT));
+		
+		// The tables are maintained on updates
+		kb.add(KB.triple("<Oana>", "<worksAt>", "<Telecom>"));
+		assertEquals(4, kb.overlap(livesIn, worksAt, KB.SUBJECT2SUBJECT));
+		kb.delete("<Luis>", "<livesIn>", "<Paris>");
+		assertEquals(3, kb.overlap(worksAt, livesIn, KB.SUBJECT2SUBJECT));
+		assertEquals(3, kb.overlap(livesIn, livesIn, KB.SUBJECT2SUBJECT));
+		kb.add(KB.triple("<Paris>", "<isLocatedIn>", "<France>"));
+		assertEquals(1, kb.overlap(isLocatedIn, livesIn, KB.SUBJECT2OBJECT));
+		kb.add(KB.triple("<Telecom>", "<hasHeadquarters>", "<Telecom>"));
+		assertEquals(1, kb.overlap(ByteString.of("<hasHeadquarters>"), 
+				ByteString.of("<hasHeadquarters>"), KB.SUBJECT2OBJECT));
+		assertEquals(0, kb.overlap(ByteString.of("<hasHeadquarters>"), livesIn, KB.SUBJECT2SUBJECT));
+	}
+	
+	public void testStatistics() {
+		KBStatistics statistics = kb.getStatistics();
+		assertEquals(4, statistics.size());
+		KBStatistics.RelationStatistics livesIn = statistics.get(ByteString.of("<livesIn>"));
+		assertEquals(4, livesIn.getSize());
+		assertEquals(4, livesIn.getDistinct(0));
+		assertEquals(1, livesIn.getDistinct(2));
+		assertEquals(4, livesIn.getDegrees(2).getMaxDegree());
+		assertEquals(1, livesIn.getDegrees(2).getBucket(2));
+		// The only city where people live is the location of a company
+		assertEquals(1.0, statistics.matchProbability(ByteString.of("<livesIn>"), 2,
+				ByteString.of("<isLocatedIn>"), 2));
+		assertNull(statistics.get(ByteString.of("<hasChild>")));
+		// Planned query
+		assertEquals(3, kb.countDistinct(ByteString.of("?x"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+						KB.triple("?y", "<isLocatedIn>", "?z"),
+						KB.triple("?x", "<livesIn>", "?z"))));
+	}
+	
+	public void testLazyPermutations() {
+		kb.setPermutations(KB.KEY_MINING_PERMUTATIONS);
+		assertEquals(KB.KEY_MINING_PERMUTATIONS, kb.getPermutations());
+		assertFalse(kb.isMaterialized(KB.Permutation.ObjectRelationSubject));
+		// Updates only touch the built indexes
+		kb.add(KB.triple("<Oana>", "<worksAt>", "<Telecom>"));
+		assertTrue(kb.delete("<Luis>", "<livesIn>", "<Paris>"));
+		assertEquals(4, kb.count(KB.triple("?x", "<worksAt>", "<Telecom>")));
+		// Other indexes are built on first use
+		assertEquals(2, kb.count(KB.triple("<Luis>", "?r", "?y")));
+		assertEquals(4, kb.count(KB.triple("?x", "?r", "<Paris>")));
+		assertEquals(1, kb.count(KB.triple("<Thomas>", "?r", "<Paris>")));
+		assertTrue(kb.isMaterialized(KB.Permutation.ObjectSubjectRelation));
+		assertEquals(3, kb.countDistinct(ByteString.of("?x"),
+				KB.triples(KB.triple("?x", "<worksAt>", "?y"),
+						KB.triple("?y", "<isLocatedIn>", "?z"),
+						KB.triple("?x", "<livesIn>", "?z"))));
+		assertTrue(kb.delete("<Oana>", "<livesIn>", "<Paris>"));
+		assertEquals(3, kb.count(KB.triple("?x", "?r", "<Paris>")));
+	}
+	
+	public void testParallelCounting() {
+		List<ByteString[]> query = KB.triples(KB.triple("?a", "<worksAt>", "?w"),
+				KB.triple("?b", "<worksAt>", "?w"), KB.triple("?a", "<livesIn>", "?c"),
+				KB.triple("?b", "<livesIn>", "?c"), KB.triple("?a", KB.DIFFERENTFROMstr, "?b"));
+		ByteString a = ByteString.of("?a");
+		ByteString b = ByteString.of("?b");
+		assertEquals(kb.countDistinct(a, query), kb.countDistinctInParallel(a, query));
+		assertEquals(kb.countDistinctPairs(a, b, query), kb.countDistinctPairsInParallel(a, b, query));
+		assertEquals(6, kb.countDistinctPairsInParallel(a, b, query));
+		// The query is not modified
+		assertEquals("?a", query.get(0)[0].toString());
+		List<ByteString[]> pcaQuery = KB.triples(KB.triple("?x", "<livesIn>", "?y"),
+				KB.triple("?x", "<wasBornIn>", "?z"));
+		assertEquals(3, kb.countDistinctInParallel(ByteString.of("?x"), pcaQuery));
+		assertEquals(0, kb.estimateCountCost(ByteString.of("?x"), pcaQuery.subList(0, 1)));
+		assertEquals(3, kb.estimateCountCost(ByteString.of("?x"), pcaQuery));
+	}
+	
+	public void testChunkedLoad() throws Exception {
+		File file = File.createTempFile("facts", ".tsv");
+		try (FileWriter writer = new FileWriter(file)) {
+			for (int i = 0; i < 500; ++i) {
+				writer.write("<p" + i + ">\t<livesIn>\t<c" + (i % 7) + ">\n");
+				writer.write("<f" + i + ">\t<p" + i + ">\t<worksAt>\t<o" + (i % 13) + "> .\n");
+				// Duplicates in other chunks
+				writer.write("<p" + (i / 2) + ">\t<livesIn>\t<c" + (i / 2 % 7) + ">\r\n");
+				writer.write("<c" + (i % 7) + ">\t<isLocatedIn>\t<p" + i + ">\n");
+			}
+		}
+		try {
+			KB sequential = kb.getClass().newInstance();
+			sequential.loadSequential(Arrays.asList(file));
+			KB chunked = kb.getClass().newInstance();
+			chunked.setChunkSize(64);
+			chunked.buildOverlapTables();
+			chunked.load(file);
+			assertEquals(1500, sequential.size());
+			assertEquals(sequential.size(), chunked.size());
+			for (KB.Column column : KB.Column.values())
+				assertEquals(sequential.size(column), chunked.size(column));
+			for (String relation : Arrays.asList("<livesIn>", "<worksAt>", "<isLocatedIn>"))
+				assertEquals(sequential.relationSize(ByteString.of(relation)),
+						chunked.relationSize(ByteString.of(relation)));
+			assertEquals(sequential.count(KB.triple("?x", "<livesIn>", "<c3>")),
+					chunked.count(KB.triple("?x", "<livesIn>", "<c3>")));
+			// The overlap tables built before loading are rebuilt
+			assertEquals(500, chunked.overlap(ByteString.of("<livesIn>"), 
+					ByteString.of("<worksAt>"), KB.SUBJECT2SUBJECT));
+			assertEquals(500, chunked.overlap(ByteString.of("<worksAt>"), 
+					ByteString.of("<isLocatedIn>"), KB.SUBJECT2OBJECT));
+			assertEquals(7, chunked.overlap(ByteString.of("<isLocatedIn>"), 
+					ByteString.of("<livesIn>"), KB.SUBJECT2OBJECT));
+		} finally {
+			file.delete();
+		}
+	}
 
 }
@@ -0,0 +1,345 @@
+package amie.tests;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import amie.data.KB;
+import amie.keys.ConditionsResult;
+import amie.keys.KeyIndex;
+import amie.keys.KeySink;
+import amie.keys.KeyLinker;
+import amie.keys.KeyValidator;
+import amie.keys.NonKeysFinder;
+import amie.keys.TopKKeys;
+import amie.mining.assistant.DefaultMiningAssistant;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import junit.framework.TestCase;
+
+public class KeyValidatorTest extends TestCase {
+	KB kb = new KB();
+
+	KeyValidator validator;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		kb.add(KB.triple("<Luis>", "<livesIn>", "<Paris>"));
+		kb.add(KB.triple("<Thomas>", "<livesIn>", "<Paris>"));
+		kb.add(KB.triple("<Antoine>", "<livesIn>", "<Paris>"));
+		kb.add(KB.triple("<Oana>", "<livesIn>", "<Paris>"));
+		kb.add(KB.triple("<Ambar>", "<livesIn>", "<Guayaquil>"));
+		kb.add(KB.triple("<Luis>", "<worksAt>", "<Telecom>"));
+		kb.add(KB.triple("<Thomas>", "<worksAt>", "<Telecom>"));
+		kb.add(KB.triple("<Antoine>", "<worksAt>", "<Telecom>"));
+		kb.add(KB.triple("<Oana>", "<worksAt>", "<Inria>"));
+		kb.add(KB.triple("<Ambar>", "<worksAt>", "<ESPOL>"));
+		kb.add(KB.triple("<Luis>", "<speaks>", "<Spanish>"));
+		kb.add(KB.triple("<Luis>", "<speaks>", "<French>"));
+		kb.add(KB.triple("<Thomas>", "<speaks>", "<German>"));
+		kb.add(KB.triple("<Thomas>", "<speaks>", "<French>"));
+		kb.add(KB.triple("<Antoine>", "<speaks>", "<French>"));
+		kb.add(KB.triple("<Ambar>", "<speaks>", "<Spanish>"));
+		kb.add(KB.triple("<Luis>", "<gender>", "<male>"));
+		kb.add(KB.triple("<Thomas>", "<gender>", "<male>"));
+		kb.add(KB.triple("<Antoine>", "<gender>", "<male>"));
+		kb.add(KB.triple("<Oana>", "<gender>", "<female>"));
+		kb.add(KB.triple("<Ambar>", "<gender>", "<female>"));
+		validator = new KeyValidator(kb);
+	}
+
+	private static Rule keyRule(List<String> properties, ByteString[]... conditions) {
+		Rule rule = new Rule(KB.triple("?a", KB.EQUALSstr, "?b"), 0.0);
+		int k = 1;
+		for (String property : properties) {
+			rule.getTriples().add(KB.triple(KB.variable('a', 0), ByteString.of(property), KB.objectVariable(k)));
+			rule.getTriples().add(KB.triple(KB.variable('b', 0), ByteString.of(property), KB.objectVariable(k)));
+			++k;
+		}
+		for (ByteString[] condition : conditions) {
+			ByteString[] missingAtom = condition.clone();
+			missingAtom[0] = KB.variable('b', 0);
+			rule.getTriples().add(condition);
+			rule.getTriples().add(missingAtom);
+		}
+		return rule;
+	}
+
+	public void testKeys() {
+		// The three people working at Telecom live in Paris
+		Rule rule = keyRule(Arrays.asList("<livesIn>", "<worksAt>"), KB.triple("?a", "<gender>", "<male>"));
+		validator.evaluate(rule);
+		assertEquals(3.0, rule.getSupport());
+		assertFalse(rule.getStdConfidence() == 1.0);
+		// Antoine and Thomas share French, as Luis and Thomas
+		rule = keyRule(Arrays.asList("<speaks>"), KB.triple("?a", "<gender>", "<male>"));
+		validator.evaluate(rule);
+		assertFalse(rule.getStdConfidence() == 1.0);
+		// Oana does not speak
+		rule = keyRule(Arrays.asList("<speaks>"), KB.triple("?a", "<gender>", "<female>"));
+		validator.evaluate(rule);
+		assertEquals(1.0, rule.getSupport());
+		assertEquals(1.0, rule.getStdConfidence());
+		rule = keyRule(Arrays.asList("<worksAt>"), KB.triple("?a", "<livesIn>", "<Paris>"));
+		assertEquals(4, validator.support(rule));
+		validator.evaluate(rule);
+		assertFalse(rule.getStdConfidence() == 1.0);
+		rule = keyRule(Arrays.asList("<worksAt>"), KB.triple("?a", "<gender>", "<female>"));
+		validator.evaluate(rule);
+		assertEquals(1.0, rule.getStdConfidence());
+	}
+
+	public void testSameAsRuleEvaluation() {
+		DefaultMiningAssistant assistant = new DefaultMiningAssistant(kb);
+		List<List<String>> propertySets = Arrays.asList(Arrays.asList("<livesIn>"),
+				Arrays.asList("<speaks>"), Arrays.asList("<speaks>", "<worksAt>"),
+				Arrays.asList("<livesIn>", "<speaks>"), Arrays.asList("<gender>", "<livesIn>", "<worksAt>"));
+		List<ByteString[]> conditions = Arrays.asList(KB.triple("?a", "<gender>", "<male>"),
+				KB.triple("?a", "<gender>", "<female>"), KB.triple("?a", "<livesIn>", "<Paris>"),
+				KB.triple("?a", "<speaks>", "<French>"));
+		for (List<String> properties : propertySets) {
+			for (ByteString[] condition : conditions) {
+				Rule expected = keyRule(properties, condition);
+				assistant.computeCardinality(expected);
+				assistant.computeStandardConfidence(expected);
+				Rule actual = keyRule(properties, condition);
+				validator.evaluate(actual);
+				assertEquals(expected.getSupport(), actual.getSupport());
+				assertEquals(expected.getSupportRatio(), actual.getSupportRatio());
+				assertEquals(expected.getStdConfidence() == 1.0, actual.getStdConfidence() == 1.0);
+			}
+		}
+	}
+
+	public void testNonKeys() throws InterruptedException {
+		// Only Oana and Ambar are women, and they share no other property
+		kb.add(KB.triple("<Oana>", "<speaks>", "<Romanian>"));
+		kb.add(KB.triple("<Antoine>", "<livesIn>", "<Lyon>"));
+		KeyValidator validator = new KeyValidator(kb);
+		Set<Set<String>> expected = new HashSet<>();
+		expected.add(new HashSet<>(Arrays.asList("<gender>", "<livesIn>", "<speaks>", "<worksAt>")));
+		for (int nThreads = 1; nThreads <= 4; nThreads *= 2) {
+			Set<Set<String>> actual = new HashSet<>();
+			for (List<String> nonKey : new NonKeysFinder(kb, validator).findNonKeys(nThreads)) {
+				actual.add(new HashSet<>(nonKey));
+			}
+			assertEquals(expected, actual);
+		}
+
+		kb.delete("<Luis>", "<speaks>", "<French>");
+		kb.add(KB.triple("<Oana>", "<hobby>", "<chess>"));
+		kb.add(KB.triple("<Ambar>", "<hobby>", "<chess>"));
+		validator = new KeyValidator(kb);
+		expected.clear();
+		// Thomas and Antoine
+		expected.add(new HashSet<>(Arrays.asList("<gender>", "<livesIn>", "<speaks>", "<worksAt>")));
+		// Oana and Ambar
+		expected.add(new HashSet<>(Arrays.asList("<gender>", "<hobby>")));
+		Set<Set<String>> actual = new HashSet<>();
+		for (List<String> nonKey : new NonKeysFinder(kb, validator).findNonKeys(2)) {
+			actual.add(new HashSet<>(nonKey));
+		}
+		assertEquals(expected, actual);
+	}
+
+	private static Rule condition(ByteString[]... atoms) {
+		Rule rule = new Rule(atoms[0], 0.0);
+		for (int i = 1; i < atoms.length; ++i)
+			rule.getTriples().add(atoms[i]);
+		return rule;
+	}
+
+	public void testKeyIndex() {
+		KeyIndex index = new KeyIndex();
+		ByteString[] male = KB.triple("?a", "<gender>", "<male>");
+		ByteString[] paris = KB.triple("?a", "<livesIn>", "<Paris>");
+		ByteString[] french = KB.triple("?a", "<speaks>", "<French>");
+		// worksAt livesIn | gender=male
+		index.add(condition(male), keyRule(Arrays.asList("<worksAt>", "<livesIn>"), male));
+		assertEquals(1, index.size());
+		// A single condition is never subsumed
+		assertFalse(index.isSubsumed(keyRule(Arrays.asList("<worksAt>"), paris), condition(paris)));
+		// worksAt | livesIn=Paris, gender=male, in any order of the conditions
+		assertTrue(index.isSubsumed(keyRule(Arrays.asList("<worksAt>"), paris, male), condition(paris, male)));
+		assertTrue(index.isSubsumed(keyRule(Arrays.asList("<worksAt>"), male, paris), condition(male, paris)));
+		// speaks is not a property of the stored key
+		assertFalse(index.isSubsumed(keyRule(Arrays.asList("<speaks>"), paris, male), condition(paris, male)));
+		// Different number of atoms
+		assertFalse(index.isSubsumed(keyRule(Arrays.asList("<worksAt>"), paris, male, french),
+				condition(paris, male, french)));
+		// The condition of the stored key must be a proper subset
+		index.add(condition(paris, french), keyRule(Arrays.asList("<worksAt>", "<gender>"), paris, french));
+		assertFalse(index.isSubsumed(keyRule(Arrays.asList("<worksAt>", "<gender>"), french, paris),
+				condition(french, paris)));
+		assertTrue(index.isSubsumed(keyRule(Arrays.asList("<worksAt>"), french, paris, male),
+				condition(french, paris, male)));
+	}
+
+	public void testConditionSubjects() {
+		ConditionsResult.SubjectsCache cache = new ConditionsResult.SubjectsCache(kb);
+		ByteString[] male = KB.triple("?a", "<gender>", "<male>");
+		ByteString[] french = KB.triple("?a", "<speaks>", "<French>");
+		Set<ByteString> subjects = cache.get(Arrays.asList(male, french));
+		assertEquals(new HashSet<>(Arrays.asList(ByteString.of("<Luis>"), ByteString.of("<Thomas>"),
+				ByteString.of("<Antoine>"))), subjects);
+		// The atoms and their conjunction are cached
+		assertEquals(3, cache.size());
+		assertSame(subjects, cache.get(Arrays.asList(french, male)));
+		assertEquals(2, cache.get(Collections.singletonList(KB.triple("?b", "<gender>", "<female>"))).size());
+		assertTrue(cache.get(Arrays.asList(french, KB.triple("?a", "<gender>", "<female>"))).isEmpty());
+	}
+
+	public void testConditionsOrderedBySupport() {
+		ConditionsResult conditions = new ConditionsResult(Arrays.asList("<gender>", "<speaks>"), 1, kb);
+		Set<String> depthFirst = new HashSet<>();
+		for (Rule condition : conditions)
+			depthFirst.add(condition.getDatalogBasicRuleString());
+		// male & French (3), male & Spanish, male & German, female & Spanish
+		assertEquals(4, depthFirst.size());
+		conditions.setOrderedBySupport(true);
+		Set<String> ordered = new HashSet<>();
+		double lastSupport = Double.MAX_VALUE;
+		for (Rule condition : conditions) {
+			assertTrue(condition.getSupport() <= lastSupport);
+			lastSupport = condition.getSupport();
+			ordered.add(condition.getDatalogBasicRuleString());
+		}
+		assertEquals(depthFirst, ordered);
+		// Only male & French remains above the new threshold
+		conditions.raiseMinSupport(2);
+		Iterator<Rule> it = conditions.iterator();
+		assertEquals(3.0, it.next().getSupport());
+		assertFalse(it.hasNext());
+	}
+
+	public void testKeyLinker() {
+		KB other = new KB();
+		other.add(KB.triple("<Luis2>", "<livesIn>", "<Paris>"));
+		other.add(KB.triple("<Luis2>", "<speaks>", "<Spanish>"));
+		other.add(KB.triple("<Luis2>", "<gender>", "<male>"));
+		other.add(KB.triple("<Oana2>", "<livesIn>", "<Paris>"));
+		other.add(KB.triple("<Oana2>", "<gender>", "<female>"));
+		other.add(KB.triple("<Oana2>", "<worksAt>", "<Inria>"));
+		other.add(KB.triple("<Ambar2>", "<speaks>", "<Spanish>"));
+		other.add(KB.triple("<Ambar2>", "<gender>", "<female>"));
+		KeyLinker linker = new KeyLinker(kb, other);
+		final Set<String> links = new HashSet<>();
+		KeyLinker.LinkHandler handler = new KeyLinker.LinkHandler() {
+			@Override
+			public void link(ByteString leftEntity, ByteString rightEntity, KeyLinker.ConditionalKey key) {
+				links.add(leftEntity + " " + rightEntity);
+			}
+		};
+		// livesIn, speaks | gender=male
+		KeyLinker.ConditionalKey key = KeyLinker.ConditionalKey.parse("<livesIn> <speaks> \t<gender>=<male> \t3.0\t0.6");
+		assertEquals(2, key.getProperties().size());
+		assertEquals(1, key.getConditions().size());
+		assertEquals(1, linker.link(key, handler));
+		assertTrue(links.contains("<Luis> <Luis2>"));
+		// worksAt | gender=female, from the rule
+		Rule rule = keyRule(Arrays.asList("<worksAt>"), KB.triple("?a", "<gender>", "<female>"));
+		assertEquals(1, linker.link(KeyLinker.ConditionalKey.fromRule(rule), handler));
+		assertTrue(links.contains("<Oana> <Oana2>"));
+		// Links are reported once per key
+		assertEquals(1, linker.link(key, handler));
+		// speaks: the block of Spanish has two entities
+		linker.setMaxBlockSize(1);
+		assertEquals(0, linker.link(KeyLinker.ConditionalKey.parse("<speaks> \t"), handler));
+		assertEquals(2, links.size());
+	}
+
+	public void testKeyLinkerWithinKB() {
+		// Luis and Thomas share two languages
+		kb.add(KB.triple("<Thomas>", "<speaks>", "<Spanish>"));
+		KeyLinker linker = new KeyLinker(kb, kb);
+		final List<String> links = new ArrayList<>();
+		long nLinks = linker.link(KeyLinker.ConditionalKey.parse("<speaks> \t"), new KeyLinker.LinkHandler() {
+			@Override
+			public void link(ByteString leftEntity, ByteString rightEntity, KeyLinker.ConditionalKey key) {
+				synchronized (links) {
+					links.add(leftEntity + " " + rightEntity);
+				}
+			}
+		});
+		assertEquals(5, nLinks);
+		assertEquals(new HashSet<>(Arrays.asList("<Ambar> <Luis>", "<Ambar> <Thomas>", "<Luis> <Thomas>",
+				"<Antoine> <Luis>", "<Antoine> <Thomas>")), new HashSet<>(links));
+		assertEquals(5, links.size());
+	}
+
+	public void testConditionalKeyWithoutProperties() {
+		assertNull(KeyLinker.ConditionalKey.parse("\t<gender>=<male>"));
+		try {
+			KeyLinker.ConditionalKey.fromRule(keyRule(Collections.<String>emptyList(),
+					KB.triple("?a", "<gender>", "<male>")));
+			fail("A key without properties");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	public void testKeySink() throws IOException {
+		StringWriter tsv = new StringWriter();
+		StringWriter json = new StringWriter();
+		KeySink sink = new KeySink(false, false, new KeySink.TSVKeyWriter(tsv, true),
+				new KeySink.JSONKeyWriter(json, true));
+		ByteString[] male = KB.triple("?a", "<gender>", "<male>");
+		ByteString[] paris = KB.triple("?a", "<livesIn>", "<Paris>");
+		assertTrue(sink.add(keyRule(Arrays.asList("<worksAt>", "<speaks>"), male, paris)));
+		// Same key, different order
+		assertFalse(sink.add(keyRule(Arrays.asList("<speaks>", "<worksAt>"), paris, male)));
+		assertTrue(sink.add(keyRule(Arrays.asList("<speaks>"), paris)));
+		sink.close();
+		assertEquals(2, sink.size());
+		// The keys are not kept
+		assertTrue(sink.getKeys().isEmpty());
+		String[] lines = tsv.toString().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[0].contains("<worksAt>") && lines[0].contains("<gender>=<male>"));
+		lines = json.toString().split("\n");
+		assertEquals(2, lines.length);
+		assertTrue(lines[1].startsWith("{\"properties\": [\"<speaks>\"], "
+				+ "\"conditions\": [{\"relation\": \"<livesIn>\", \"value\": \"<Paris>\"}]"));
+	}
+
+	public void testTopKKeys() {
+		TopKKeys topKeys = new TopKKeys(2);
+		Rule key1 = keyRule(Arrays.asList("<worksAt>"), KB.triple("?a", "<livesIn>", "<Paris>"));
+		key1.setSupport(4);
+		Rule key2 = keyRule(Arrays.asList("<speaks>"), KB.triple("?a", "<gender>", "<male>"));
+		key2.setSupport(3);
+		Rule key3 = keyRule(Arrays.asList("<livesIn>"), KB.triple("?a", "<gender>", "<female>"));
+		key3.setSupport(2);
+		assertTrue(topKeys.offer(key2));
+		assertTrue(topKeys.offer(key3));
+		assertEquals(2.0, topKeys.getThreshold());
+		// The same key again
+		assertFalse(topKeys.offer(keyRule(Arrays.asList("<speaks>"), KB.triple("?a", "<gender>", "<male>"))));
+		assertTrue(topKeys.offer(key1));
+		assertEquals(3.0, topKeys.getThreshold());
+		assertFalse(topKeys.offer(key3));
+		assertEquals(Arrays.asList(key1, key2), topKeys.getKeys());
+	}
+
+	public void testTopKKeysRaiseConditionsThreshold() {
+		TopKKeys topKeys = new TopKKeys(1);
+		ConditionsResult conditions = new ConditionsResult(Arrays.asList("<gender>", "<speaks>"), 1, kb);
+		conditions.setOrderedBySupport(true);
+		topKeys.register(conditions);
+		Iterator<Rule> it = conditions.iterator();
+		// male & French (3)
+		assertEquals(3.0, it.next().getSupport());
+		assertTrue(it.hasNext());
+		Rule key = keyRule(Arrays.asList("<speaks>"), KB.triple("?a", "<gender>", "<male>"));
+		key.setSupport(2);
+		assertTrue(topKeys.offer(key));
+		// The remaining conditions have support 1
+		assertEquals(2, conditions.getMinSupport());
+		assertFalse(it.hasNext());
+	}
+}
@@ -0,0 +1,185 @@
+package amie.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import amie.data.KB;
+import amie.mining.AMIE;
+import amie.mining.MiningCheckpoint;
+import amie.mining.assistant.DefaultMiningAssistant;
+import amie.mining.assistant.MiningAssistant;
+import amie.rules.Metric;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import junit.framework.TestCase;
+
+public class MiningCheckpointTest extends TestCase {
+
+	private File file;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		file = File.createTempFile("amie", ".chk");
+	}
+
+	protected void tearDown() throws Exception {
+		file.delete();
+		super.tearDown();
+	}
+
+	private static Rule rule(double support, String[]... atoms) {
+		List<ByteString[]> body = new ArrayList<>();
+		for (int i = 1; i < atoms.length; ++i)
+			body.add(KB.triple(atoms[i][0], atoms[i][1], atoms[i][2]));
+		Rule rule = new Rule(KB.triple(atoms[0][0], atoms[0][1], atoms[0][2]), body, support);
+		rule.setHeadCoverage(support / 100);
+		rule.setSupportRatio(support / 1000);
+		rule.setBodySize((long) support * 2);
+		rule.setBodyMinusHeadSize((int) support * 3);
+		rule.setPcaBodySize(support + 1);
+		rule.setConfidenceUpperBound(0.75);
+		rule.setPcaConfidenceUpperBound(0.8);
+		rule.setPcaEstimation(0.6);
+		rule.setFunctionalVariablePosition(2);
+		return rule;
+	}
+
+	private static void assertSameRule(Rule expected, Rule actual) throws IOException {
+		assertEquals(expected.getTriples().size(), actual.getTriples().size());
+		for (int i = 0; i < expected.getTriples().size(); ++i)
+			assertTrue(Arrays.equals(expected.getTriples().get(i), actual.getTriples().get(i)));
+		assertEquals(expected.getGeneration(), actual.getGeneration());
+		assertEquals(expected.getFunctionalVariablePosition(), actual.getFunctionalVariablePosition());
+		assertEquals(expected.getSupport(), actual.getSupport());
+		assertEquals(expected.getHeadCoverage(), actual.getHeadCoverage());
+		assertEquals(expected.getSupportRatio(), actual.getSupportRatio());
+		assertEquals(expected.getBodySize(), actual.getBodySize());
+		assertEquals(expected.getBodyMinusHeadSize(), actual.getBodyMinusHeadSize());
+		assertEquals(expected.getPcaBodySize(), actual.getPcaBodySize());
+		assertEquals(expected.getPcaEstimation(), actual.getPcaEstimation());
+		assertEquals(expected.getRuleString(), actual.getRuleString());
+		// The fields without getters, e.g., the confidence upper bounds
+		assertTrue(Arrays.equals(bytes(expected), bytes(actual)));
+	}
+
+	private static byte[] bytes(Rule rule) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+		rule.write(out);
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	public void testRoundTrip() throws Exception {
+		String[] head = new String[] {"?a", "<livesIn>", "?b"};
+		Rule parent1 = rule(40, head, new String[] {"?a", "<wasBornIn>", "?b"});
+		Rule parent2 = rule(30, head, new String[] {"?a", "<worksAt>", "?c"}, new String[] {"?c", "<isLocatedIn>", "?b"});
+		Rule rule1 = rule(20, head, new String[] {"?a", "<wasBornIn>", "?b"},
+				new String[] {"?a", "<worksAt>", "?c"}, new String[] {"?c", "<isLocatedIn>", "?b"});
+		rule1.addParent(parent1);
+		rule1.addParent(parent2);
+		Rule rule2 = rule(10, head, new String[] {"?b", "<isLocatedIn>", "?c"}, new String[] {"?a", "<livesIn>", "?c"});
+		List<Rule> output = Arrays.asList(parent1, parent2);
+		String[] arguments = new String[] {"-minhc", "0.01", "-chk", file.getPath(), "kb.tsv"};
+
+		MiningCheckpoint checkpoint = new MiningCheckpoint(arguments, 3, Arrays.asList(rule1, rule2), output);
+		assertEquals(2, checkpoint.getNumberOfRules());
+		checkpoint.write(file);
+
+		MiningCheckpoint read = MiningCheckpoint.read(file);
+		assertTrue(Arrays.equals(arguments, read.getArguments()));
+		assertEquals(3, read.getGeneration());
+		assertEquals(2, read.getNumberOfRules());
+		List<Rule> rules = read.getRules();
+		assertEquals(2, rules.size());
+		assertSameRule(rule1, rules.get(0));
+		assertSameRule(rule2, rules.get(1));
+		assertEquals(2, rules.get(0).getAncestors().size());
+		assertSameRule(parent1, rules.get(0).getAncestors().get(0));
+		assertSameRule(parent2, rules.get(0).getAncestors().get(1));
+		assertTrue(rules.get(1).getAncestors().isEmpty());
+		assertEquals(2, read.getOutput().size());
+		assertSameRule(parent1, read.getOutput().get(0));
+		assertSameRule(parent2, read.getOutput().get(1));
+	}
+
+	public void testNotACheckpoint() throws Exception {
+		try (FileWriter writer = new FileWriter(file)) {
+			writer.write("<Luis>\t<livesIn>\t<Paris>\n");
+		}
+		try {
+			MiningCheckpoint.read(file);
+			fail("The file is not a checkpoint");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * A random KB where <r1> is mostly the inverse of <r0> and <r3> is mostly
+	 * the composition of <r0> and <r2>.
+	 */
+	private static KB kb() {
+		KB kb = new KB();
+		Random random = new Random(42);
+		for (int i = 0; i < 300; ++i) {
+			String s = "<e" + random.nextInt(60) + ">";
+			String o = "<e" + random.nextInt(60) + ">";
+			kb.add(KB.triple(s, "<r0>", o));
+			if (random.nextInt(10) < 8)
+				kb.add(KB.triple(o, "<r1>", s));
+			String t = "<e" + random.nextInt(60) + ">";
+			kb.add(KB.triple(o, "<r2>", t));
+			if (random.nextInt(10) < 6)
+				kb.add(KB.triple(s, "<r3>", t));
+		}
+		return kb;
+	}
+
+	private static AMIE miner(KB kb) {
+		MiningAssistant assistant = new DefaultMiningAssistant(kb);
+		AMIE miner = new AMIE(assistant, 10, 0.01, Metric.HeadCoverage, 2);
+		miner.setRealTime(false);
+		return miner;
+	}
+
+	/**
+	 * The rules with their metrics. The threads may output any of several equivalent
+	 * rules that differ in the names of their variables, so rules are identified by
+	 * their canonical form.
+	 */
+	private static List<String> format(List<Rule> rules) {
+		List<String> result = new ArrayList<>();
+		for (Rule rule : rules)
+			result.add(rule.getCanonicalForm() + "\t" + rule.getSupport() + "\t" + rule.getHeadCoverage()
+					+ "\t" + rule.getBodySize() + "\t" + rule.getPcaBodySize());
+		Collections.sort(result);
+		return result;
+	}
+
+	public void testResume() throws Exception {
+		KB kb = kb();
+		AMIE uninterrupted = miner(kb);
+		List<String> expected = format(uninterrupted.mine());
+		assertFalse(expected.isEmpty());
+
+		AMIE checkpointed = miner(kb);
+		checkpointed.setCheckpointFile(file, new String[0]);
+		assertEquals(expected, format(checkpointed.mine()));
+
+		MiningCheckpoint checkpoint = MiningCheckpoint.read(file);
+		assertTrue(checkpoint.getGeneration() > 1);
+		assertTrue(checkpoint.getNumberOfRules() > 0);
+		assertFalse(checkpoint.getOutput().isEmpty());
+		AMIE resumed = miner(kb);
+		resumed.setResumeFrom(checkpoint);
+		assertEquals(expected, format(resumed.mine()));
+	}
+}
@@ -0,0 +1,43 @@
+package amie.tests;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import amie.keys.PropertySet;
+import junit.framework.TestCase;
+
+public class PropertySetTest extends TestCase {
+
+	public void testSetSemantics() {
+		Set<Integer> expected = new HashSet<>(Arrays.asList(0, 3, 63, 64, 130));
+		PropertySet set = PropertySet.of(expected);
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected, set);
+		assertEquals(set, expected);
+		assertEquals(expected.hashCode(), set.hashCode());
+		assertEquals(Arrays.asList(0, 3, 63, 64, 130), Arrays.asList(set.toArray()));
+		assertTrue(set.contains(130));
+		assertFalse(set.contains(129));
+		assertFalse(set.contains(1000));
+		// Built from a collection or from an array
+		assertEquals(PropertySet.of(3, 130, 64, 63, 0), set);
+	}
+
+	public void testOperations() {
+		PropertySet s1 = PropertySet.of(1, 2, 70);
+		PropertySet s2 = PropertySet.of(1, 3);
+		assertEquals(PropertySet.of(1, 2, 3, 70), s1.union(s2));
+		assertEquals(PropertySet.of(1, 2, 3, 70), s2.union(s1));
+		assertEquals(4, s1.unionSize(s2));
+		assertEquals(4, s2.unionSize(s1));
+		assertTrue(s1.union(s2).containsAll(s1));
+		assertTrue(s1.union(s2).containsAll(new HashSet<>(Arrays.asList(2, 3))));
+		assertFalse(s2.containsAll(s1));
+		assertFalse(s1.containsAll(s2));
+		assertTrue(s1.containsAll(PropertySet.EMPTY));
+		assertEquals(PropertySet.of(1, 3, 200), s2.with(200));
+		assertSame(s2, s2.with(3));
+		assertEquals(PropertySet.of(5), PropertySet.of(new HashSet<>(Arrays.asList(5))));
+	}
+}
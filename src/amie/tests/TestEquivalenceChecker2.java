@@ -1,8 +1,10 @@
 package amie.tests;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import javatools.datatypes.ByteString;
 import javatools.datatypes.Pair;
@@ -395,6 +397,57 @@ public class TestEquivalenceChecker2 extends TestCase {
 		assertTrue(QueryEquivalenceChecker.areEquivalent(cases.get(33).first, cases.get(33).second));		
 	}
 
+	public void testCanonicalForm() {
+		for (Pair<List<ByteString[]>, List<ByteString[]>> pair : cases) {
+			if (pair.first.size() == 1)
+				continue;
+			assertEquals(QueryEquivalenceChecker.areEquivalent(pair.first, pair.second),
+					QueryEquivalenceChecker.canonicalForm(pair.first).equals(
+							QueryEquivalenceChecker.canonicalForm(pair.second)));
+		}
+		// Invariant to variable renaming and to the order of the body atoms
+		List<ByteString[]> q1 = KB.triples(KB.triple("?a", "livesIn", "?b"),
+				KB.triple("?a", "wasBornIn", "?x"), KB.triple("?x", "locatedIn", "?b"), 
+				KB.triple("?a", "wasBornIn", "?y"));
+		List<ByteString[]> q2 = KB.triples(KB.triple("?s", "livesIn", "?o"),
+				KB.triple("?s", "wasBornIn", "?z"), KB.triple("?s", "wasBornIn", "?w"), 
+				KB.triple("?w", "locatedIn", "?o"));
+		assertEquals(QueryEquivalenceChecker.canonicalForm(q1), QueryEquivalenceChecker.canonicalForm(q2));
+		Rule r1 = new Rule(q1.get(0), q1.subList(1, q1.size()), 10);
+		Rule r2 = new Rule(q2.get(0), q2.subList(1, q2.size()), 10);
+		assertEquals(r1, r2);
+		assertEquals(r1.hashCode(), r2.hashCode());
+		// The head is not interchangeable with the body
+		List<ByteString[]> q3 = KB.triples(KB.triple("?a", "wasBornIn", "?x"),
+				KB.triple("?a", "livesIn", "?b"), KB.triple("?x", "locatedIn", "?b"), 
+				KB.triple("?a", "wasBornIn", "?y"));
+		assertFalse(QueryEquivalenceChecker.canonicalForm(q1).equals(QueryEquivalenceChecker.canonicalForm(q3)));
+	}
+
+	public void testCanonicalFormAfterBinding() {
+		List<ByteString[]> q = KB.triples(KB.triple("?a", "livesIn", "?b"),
+				KB.triple("?a", "wasBornIn", "?x"), KB.triple("?x", "locatedIn", "?b"));
+		Rule rule = new Rule(q.get(0), q.subList(1, q.size()), 10);
+		Rule copy = new Rule(q.get(0), q.subList(1, q.size()), 10);
+		// The form is first computed while an atom is bound in place
+		ByteString[] atom = rule.getTriples().get(2);
+		ByteString variable = atom[2];
+		atom[2] = ByteString.of("Paris");
+		assertFalse(rule.equals(copy));
+		atom[2] = variable;
+		Set<Rule> rules = new HashSet<>();
+		rules.add(rule);
+		assertEquals(copy, rule);
+		assertEquals(copy.hashCode(), rule.hashCode());
+		assertTrue(rules.contains(copy));
+		// And the other way around
+		rule.hashCode();
+		atom[2] = ByteString.of("Paris");
+		assertFalse(rule.equals(copy));
+		atom[2] = variable;
+		assertTrue(rules.contains(copy));
+	}
+
 	protected void tearDown() throws Exception {
 		super.tearDown();
 	}
@@ -0,0 +1,129 @@
+package amie.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import amie.data.KB;
+import amie.mining.WorkStealingAMIEQueue;
+import amie.rules.Rule;
+import javatools.datatypes.ByteString;
+import junit.framework.TestCase;
+
+/**
+ * Several threads refine rules of a WorkStealingAMIEQueue. Each rule <rX> has
+ * the children <rX0> and <rX1> (queued twice) until DEPTH, so the rules form a
+ * binary tree per seed.
+ */
+public class WorkStealingAMIEQueueTest extends TestCase {
+
+	private static final int SEEDS = 5;
+
+	private static final int DEPTH = 6;
+
+	private static final int THREADS = 4;
+
+	/** Number of rules of the trees **/
+	private static final int RULES = SEEDS * ((1 << (DEPTH + 1)) - 1);
+
+	private static Rule rule(String id) {
+		return new Rule(KB.triple("?a", "<r" + id + ">", "?b"), new ArrayList<ByteString[]>(), 0);
+	}
+
+	private static String id(Rule rule) {
+		String relation = rule.getHead()[1].toString();
+		return relation.substring(2, relation.length() - 1);
+	}
+
+	private final ConcurrentHashMap<String, AtomicInteger> dequeued = new ConcurrentHashMap<>();
+
+	/** Generation -> rules of the generation dequeued and done **/
+	private final ConcurrentHashMap<Integer, AtomicInteger> started = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<Integer, AtomicInteger> done = new ConcurrentHashMap<>();
+
+	private final List<String> errors = new ArrayList<>();
+
+	private static AtomicInteger counter(ConcurrentHashMap<Integer, AtomicInteger> map, int key) {
+		map.putIfAbsent(key, new AtomicInteger());
+		return map.get(key);
+	}
+
+	private synchronized void error(String message) {
+		errors.add(message);
+	}
+
+	/**
+	 * It runs the threads until every one of them gets null from dequeue.
+	 * @param checkBarrier If true, no rule can be dequeued before the rules of
+	 * the previous generation are done.
+	 */
+	private void run(final WorkStealingAMIEQueue queue, final boolean checkBarrier) throws Exception {
+		final AtomicInteger finished = new AtomicInteger();
+		List<Thread> threads = new ArrayList<>();
+		for (int t = 0; t < THREADS; ++t) {
+			threads.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Rule rule;
+						while ((rule = queue.dequeue()) != null) {
+							int generation = rule.getGeneration();
+							String id = id(rule);
+							dequeued.putIfAbsent(id, new AtomicInteger());
+							dequeued.get(id).incrementAndGet();
+							if (id.length() - 1 != generation - 1)
+								error(id + " has generation " + generation);
+							counter(started, generation).incrementAndGet();
+							if (checkBarrier && generation > 1) {
+								int previousStarted = counter(started, generation - 1).get();
+								int previousDone = counter(done, generation - 1).get();
+								if (previousStarted != previousDone || previousDone != SEEDS << (generation - 2))
+									error(id + " dequeued before the end of generation " + (generation - 1));
+							}
+							if (id.length() <= DEPTH) {
+								queue.queue(rule(id + "0"));
+								queue.queue(rule(id + "1"));
+								queue.queue(rule(id + "1"));
+							}
+							counter(done, generation).incrementAndGet();
+						}
+						queue.decrementMaxThreads();
+						finished.incrementAndGet();
+					} catch (InterruptedException e) {
+						error("Interrupted");
+					}
+				}
+			}));
+		}
+		for (Thread thread : threads)
+			thread.start();
+		for (Thread thread : threads)
+			thread.join(30000);
+
+		assertEquals(THREADS, finished.get());
+		assertTrue(errors.toString(), errors.isEmpty());
+		assertEquals(RULES, dequeued.size());
+		for (String id : dequeued.keySet())
+			assertEquals(id, 1, dequeued.get(id).get());
+		assertTrue(queue.isEmpty());
+	}
+
+	private static List<Rule> seeds() {
+		List<Rule> seeds = new ArrayList<>();
+		for (int i = 0; i < SEEDS; ++i)
+			seeds.add(rule(String.valueOf(i)));
+		return seeds;
+	}
+
+	public void testBarrier() throws Exception {
+		WorkStealingAMIEQueue queue = new WorkStealingAMIEQueue(seeds(), THREADS, false);
+		run(queue, true);
+		assertEquals(DEPTH + 2, queue.getGeneration());
+	}
+
+	public void testRelaxed() throws Exception {
+		run(new WorkStealingAMIEQueue(seeds(), THREADS, true), false);
+	}
+}
@@ -1,7 +1,9 @@
 package javatools.datatypes;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.util.Arrays;
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javatools.administrative.D;
 
@@ -20,8 +22,17 @@ import javatools.administrative.D;
  */
 public class ByteString implements Comparable<ByteString>, CharSequence {
 
-  /** Holds all strings */
-  protected static WeakHashMap<ByteString, ByteString> values = new WeakHashMap<ByteString, ByteString>();
+  /** Log2 of the number of shards of the set of strings */
+  protected static final int SHARD_BITS = 6;
+
+  /** Number of shards of the set of strings */
+  protected static final int SHARDS = 1 << SHARD_BITS;
+
+  /** Holds all strings, sharded by hash code */
+  protected static final Shard[] values = new Shard[SHARDS];
+  static {
+    for (int i = 0; i < SHARDS; i++) values[i] = new Shard();
+  }
 
   /** Holds the string */
   public byte[] data;
@@ -35,14 +46,101 @@ public class ByteString implements Comparable<ByteString>, CharSequence {
   /** Constructor*/
   public static ByteString of(CharSequence s) {
     ByteString newOne=new ByteString(s);
-    synchronized (values) {
-      ByteString canonic = values.get(newOne);
+    /* The shard is chosen with the highest bits of the mixed hash, because the maps of the shards use the lowest ones */
+    return (values[mix(newOne.hashCode) >>> (32 - SHARD_BITS)].intern(newOne));
+  }
+
+  /** Spreads the bits of a hash code (finalizer of MurmurHash3) */
+  protected static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  /**
+   * A shard of the set of interned strings. Lookups do not lock. Strings are
+   * weakly referenced, so the ones that are no longer used can be collected; their
+   * entries are removed the next time a string is added to the shard.
+   */
+  protected static class Shard {
+    private final ConcurrentHashMap<Object, Entry> map = new ConcurrentHashMap<Object, Entry>();
+
+    private final ReferenceQueue<ByteString> queue = new ReferenceQueue<ByteString>();
+
+    /** Returns the canonic string with the contents of the given one */
+    ByteString intern(ByteString newOne) {
+      Entry entry = map.get(new Probe(newOne));
+      ByteString canonic = entry == null ? null : entry.get();
       if (canonic != null) return (canonic);
-      values.put(newOne,newOne);
-      newOne.isInterned=true;
-      /* We need this flag, because if we go directly always by ==, then WeakHashMap will not be able to detect if the String is already there...*/
+
+      expunge();
+      /* We need this flag, because if we go directly always by ==, then the map will not be able to detect if the String is already there...*/
+      newOne.isInterned = true;
+      Entry newEntry = new Entry(newOne, queue);
+      while (true) {
+        entry = map.putIfAbsent(newEntry, newEntry);
+        if (entry == null) return (newOne);
+        canonic = entry.get();
+        if (canonic != null) return (canonic);
+        map.remove(entry, entry);
+      }
+    }
+
+    /** Removes the entries of the strings collected by the GC */
+    private void expunge() {
+      Object ref;
+      while ((ref = queue.poll()) != null) {
+        map.remove(ref, ref);
+      }
+    }
+  }
+
+  /** Weak reference to an interned string, used as key of a shard */
+  private static class Entry extends WeakReference<ByteString> {
+    private final int hashCode;
+
+    Entry(ByteString s, ReferenceQueue<ByteString> queue) {
+      super(s, queue);
+      hashCode = mix(s.hashCode);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) return (true);
+      if (!(obj instanceof Entry)) return (false);
+      ByteString s = get();
+      ByteString other = ((Entry) obj).get();
+      return (s != null && other != null && Arrays.equals(s.data, other.data));
+    }
+  }
+
+  /** Key to look up a string in a shard without creating a weak reference */
+  private static class Probe {
+    private final ByteString s;
+
+    Probe(ByteString s) {
+      this.s = s;
+    }
+
+    @Override
+    public int hashCode() {
+      return mix(s.hashCode);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof Entry)) return (false);
+      ByteString other = ((Entry) obj).get();
+      return (other != null && Arrays.equals(s.data, other.data));
     }
-    return (newOne);
   }
   
   /** Use subSequence()*/